@@ -15,6 +15,14 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
 import org.openmrs.module.DaemonToken;
 import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.expertsystem.audit.AuditLog;
+import org.openmrs.module.expertsystem.cache.ResponseCache;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.deidentify.Deidentifier;
+import org.openmrs.module.expertsystem.guardrail.OutputGuardrail;
+import org.openmrs.module.expertsystem.ratelimit.RateLimiter;
+import org.openmrs.module.expertsystem.retrieval.ConceptIndex;
+import org.openmrs.module.expertsystem.trace.Tracer;
 import org.springframework.stereotype.Component;
 
 /**
@@ -47,6 +55,14 @@ public class ExpertsystemActivator extends BaseModuleActivator implements Daemon
 	@Override
 	public void started() {
 		log.info(ExpertsystemConstants.GREEN + "Started AI Expert System module" + ExpertsystemConstants.RESET);
+		Context.getRegisteredComponent("expertSystemConceptIndex", ConceptIndex.class).initialize();
+		Context.getRegisteredComponent("expertSystemRateLimiter", RateLimiter.class).initialize();
+		Context.getRegisteredComponent("expertSystemAuditLog", AuditLog.class).initialize();
+		Context.getRegisteredComponent("expertSystemTracer", Tracer.class).initialize();
+		Context.getRegisteredComponent("expertSystemConcurrencyLimiter", ConcurrencyLimiter.class).initialize();
+		Context.getRegisteredComponent("expertSystemOutputGuardrail", OutputGuardrail.class).initialize();
+		Context.getRegisteredComponent("expertSystemDeidentifier", Deidentifier.class).initialize();
+		Context.getRegisteredComponent("expertSystemResponseCache", ResponseCache.class).initialize();
 	}
 	
 	public void shutdown() {
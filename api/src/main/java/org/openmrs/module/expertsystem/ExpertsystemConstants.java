@@ -25,4 +25,6 @@ public class ExpertsystemConstants {
 	public static final String EXPERT_SYSTEM_MODULE_ID = "expertsystem";
 	
 	public final static String AI_EXPERT_SYSTEM_MODULE_PRIVILEGE = "AI Expert System User";
+	
+	public final static String MANAGE_EXPERT_SYSTEM_PRIVILEGE = "Manage Expert System";
 }
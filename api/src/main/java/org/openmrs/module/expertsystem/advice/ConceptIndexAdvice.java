@@ -0,0 +1,51 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.advice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.retrieval.ConceptIndex;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Keeps the {@link ConceptIndex} up to date by re-indexing concepts after they are saved, retired
+ * or purged through the ConceptService. Registered in config.xml.
+ */
+@Slf4j
+public class ConceptIndexAdvice implements AfterReturningAdvice {
+	
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) {
+		String methodName = method.getName();
+		try {
+			if (methodName.equals("saveConcept") || methodName.equals("retireConcept")) {
+				if (returnValue instanceof Concept) {
+					getConceptIndex().onConceptSaved((Concept) returnValue);
+				}
+			} else if (methodName.equals("purgeConcept") && args.length > 0 && args[0] instanceof Concept) {
+				getConceptIndex().onConceptRemoved(((Concept) args[0]).getConceptId());
+			}
+		}
+		catch (Exception error) {
+			// never fail the concept save because of the index
+			log.error(ExpertsystemConstants.RED + "Cannot update concept index after {}" + ExpertsystemConstants.RESET,
+			    methodName, error);
+		}
+	}
+	
+	private ConceptIndex getConceptIndex() {
+		return Context.getRegisteredComponent("expertSystemConceptIndex", ConceptIndex.class);
+	}
+}
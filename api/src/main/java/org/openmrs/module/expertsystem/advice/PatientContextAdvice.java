@@ -0,0 +1,81 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.advice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.Condition;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.patient.PatientContextCache;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Keeps the {@link PatientContextCache} up to date by dropping the summary of a patient after
+ * observations, encounters, orders, conditions or the patient are saved, voided or purged through
+ * the OpenMRS services. Registered in config.xml.
+ */
+@Slf4j
+public class PatientContextAdvice implements AfterReturningAdvice {
+	
+	private static final String[] CHANGING_METHODS = { "save", "void", "unvoid", "purge", "discontinue", "merge" };
+	
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) {
+		String methodName = method.getName();
+		if (!isChanging(methodName)) {
+			return;
+		}
+		try {
+			PatientContextCache cache = Context.getRegisteredComponent("expertSystemPatientContext",
+			    PatientContextCache.class);
+			cache.invalidate(getPatientId(returnValue));
+			for (Object arg : args) {
+				cache.invalidate(getPatientId(arg));
+			}
+		}
+		catch (Exception error) {
+			// never fail the save because of the cache
+			log.error(ExpertsystemConstants.RED + "Cannot update patient context cache after {}"
+			        + ExpertsystemConstants.RESET, methodName, error);
+		}
+	}
+	
+	private static boolean isChanging(String methodName) {
+		for (String prefix : CHANGING_METHODS) {
+			if (methodName.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static Integer getPatientId(Object value) {
+		Patient patient = null;
+		if (value instanceof Obs) {
+			return ((Obs) value).getPersonId();
+		} else if (value instanceof Patient) {
+			patient = (Patient) value;
+		} else if (value instanceof Encounter) {
+			patient = ((Encounter) value).getPatient();
+		} else if (value instanceof Order) {
+			patient = ((Order) value).getPatient();
+		} else if (value instanceof Condition) {
+			patient = ((Condition) value).getPatient();
+		}
+		return patient != null ? patient.getPatientId() : null;
+	}
+}
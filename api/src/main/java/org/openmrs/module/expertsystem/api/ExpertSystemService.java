@@ -14,8 +14,13 @@ import dev.langchain4j.model.chat.response.ChatResponse;
 import org.openmrs.annotation.Authorized;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.dto.AuditEntryDto;
+import org.openmrs.module.expertsystem.dto.UsageDto;
 import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.util.PrivilegeConstants;
 
+import java.util.Date;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -46,4 +51,57 @@ public interface ExpertSystemService extends OpenmrsService {
 	 */
 	void chatStream(PromptRequest promptRequest, Consumer<String> onToken, Consumer<String> onComplete,
 	        Consumer<Throwable> onError);
+	
+	/**
+	 * Streams chat responses token by token, and the reasoning of the model on a channel of its own.
+	 * The {@code reasoning} option of the request chooses whether the reasoning is dropped,
+	 * summarized or sent; it never reaches {@code onToken} or the final text.
+	 * 
+	 * @param promptRequest the request containing the prompt and configuration for the chat
+	 * @param onToken consumer that receives each answer token as it's generated (never null)
+	 * @param onReasoning consumer that receives reasoning chunks or summaries (never null)
+	 * @param onComplete consumer called when the entire response has been completed successfully
+	 * @param onError consumer called when an error occurs during processing (never null)
+	 */
+	void chatStream(PromptRequest promptRequest, Consumer<String> onToken, Consumer<String> onReasoning,
+	        Consumer<String> onComplete, Consumer<Throwable> onError);
+	
+	/**
+	 * Adds usage increments to the stored usage of a day, creating the rows of users without usage
+	 * on that day.
+	 * 
+	 * @param day the day, at midnight
+	 * @param usage the requests and generated tokens to add per user
+	 */
+	@Authorized(ExpertsystemConstants.AI_EXPERT_SYSTEM_MODULE_PRIVILEGE)
+	void saveUsage(Date day, List<UsageDto> usage);
+	
+	/**
+	 * Gets the stored usage of all users on a day.
+	 * 
+	 * @param day the day, at midnight
+	 * @return the requests and generated tokens per user
+	 */
+	@Authorized(ExpertsystemConstants.AI_EXPERT_SYSTEM_MODULE_PRIVILEGE)
+	List<UsageDto> getUsage(Date day);
+	
+	/**
+	 * Writes a batch of audit entries.
+	 * 
+	 * @param entries the prompts, responses and timings to store
+	 */
+	@Authorized(ExpertsystemConstants.AI_EXPERT_SYSTEM_MODULE_PRIVILEGE)
+	void saveAuditEntries(List<AuditEntryDto> entries);
+	
+	/**
+	 * Gets the clinical summary of a patient as it is put into prompts with the
+	 * {@code patient_id} option: sex and age, active conditions and orders, and the latest
+	 * observations and encounters.
+	 * 
+	 * @param patientId the patient id
+	 * @return the summary, or null if there is no such patient
+	 */
+	@Authorized(value = { ExpertsystemConstants.AI_EXPERT_SYSTEM_MODULE_PRIVILEGE,
+	        PrivilegeConstants.GET_PATIENTS }, requireAll = true)
+	String getPatientContext(Integer patientId);
 }
@@ -10,11 +10,32 @@
 
 package org.openmrs.module.expertsystem.api.dao;
 
+import org.openmrs.Order;
 import org.openmrs.api.db.hibernate.DbSession;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.expertsystem.dto.AuditEntryDto;
+import org.openmrs.module.expertsystem.dto.ConceptTextDto;
+import org.openmrs.module.expertsystem.dto.PatientContextDto;
+import org.openmrs.module.expertsystem.dto.UsageDto;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 @Repository("expertSystemDao")
 public class ExpertSystemDao {
 	
@@ -24,4 +45,354 @@ public class ExpertSystemDao {
 	private DbSession getSession() {
 		return sessionFactory.getCurrentSession();
 	}
+	
+	/**
+	 * Reads a page of concepts created, changed or retired after the given checkpoint, ordered by
+	 * last change and then id (keyset pagination). Names and descriptions are only read for concepts
+	 * that are not retired.
+	 * 
+	 * @param since the last change date of the checkpoint
+	 * @param afterConceptId the concept id of the checkpoint
+	 * @param limit the page size
+	 * @return the changed concepts, ordered by last change and id
+	 */
+	@SuppressWarnings("unchecked")
+	public List<ConceptTextDto> getChangedConceptTexts(Date since, int afterConceptId, int limit) {
+		List<Object[]> rows = getSession()
+		        .createQuery("select c.conceptId, coalesce(c.dateChanged, c.dateCreated), c.retired from Concept c "
+		                + "where coalesce(c.dateChanged, c.dateCreated) > :since "
+		                + "or (coalesce(c.dateChanged, c.dateCreated) = :since and c.conceptId > :after) "
+		                + "order by coalesce(c.dateChanged, c.dateCreated), c.conceptId")
+		        .setParameter("since", since).setParameter("after", afterConceptId).setMaxResults(limit).list();
+		List<Integer> activeIds = new ArrayList<>();
+		for (Object[] row : rows) {
+			if (!Boolean.TRUE.equals(row[2])) {
+				activeIds.add((Integer) row[0]);
+			}
+		}
+		Map<Integer, ConceptTextDto> texts = new HashMap<>();
+		for (ConceptTextDto text : getConceptTexts(activeIds)) {
+			texts.put(text.getConceptId(), text);
+		}
+		List<ConceptTextDto> changed = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			ConceptTextDto text = texts.getOrDefault((Integer) row[0], new ConceptTextDto((Integer) row[0]));
+			text.setDateChanged((Date) row[1]);
+			text.setRetired(Boolean.TRUE.equals(row[2]));
+			changed.add(text);
+		}
+		return changed;
+	}
+	
+	/**
+	 * Reads the names and descriptions of the given concepts with one query each, instead of loading
+	 * the concepts and their collections lazily.
+	 * 
+	 * @param conceptIds the concept ids
+	 * @return the concept texts, in the order of the given ids
+	 */
+	@SuppressWarnings("unchecked")
+	public List<ConceptTextDto> getConceptTexts(Collection<Integer> conceptIds) {
+		if (conceptIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Map<Integer, ConceptTextDto> texts = new LinkedHashMap<>();
+		for (Integer conceptId : conceptIds) {
+			texts.put(conceptId, new ConceptTextDto(conceptId));
+		}
+		List<Object[]> names = getSession()
+		        .createQuery("select cn.concept.conceptId, cn.name from ConceptName cn where cn.concept.conceptId in (:ids) "
+		                + "and cn.voided = false order by cn.localePreferred desc, cn.conceptNameId")
+		        .setParameterList("ids", conceptIds).list();
+		for (Object[] row : names) {
+			List<String> conceptNames = texts.get((Integer) row[0]).getNames();
+			if (!conceptNames.contains((String) row[1])) {
+				conceptNames.add((String) row[1]);
+			}
+		}
+		List<Object[]> descriptions = getSession()
+		        .createQuery("select cd.concept.conceptId, cd.description from ConceptDescription cd "
+		                + "where cd.concept.conceptId in (:ids) order by cd.conceptDescriptionId")
+		        .setParameterList("ids", conceptIds).list();
+		for (Object[] row : descriptions) {
+			texts.get((Integer) row[0]).getDescriptions().add((String) row[1]);
+		}
+		return new ArrayList<>(texts.values());
+	}
+	
+	/**
+	 * Adds usage increments to the {@code expertsystem_usage} rows of a day. Rows are updated in
+	 * place and only inserted for users without usage on that day, which works on every supported
+	 * database without vendor specific upserts.
+	 * 
+	 * @param day the day
+	 * @param usage the increments per user
+	 */
+	public void addUsage(Date day, List<UsageDto> usage) {
+		for (UsageDto increment : usage) {
+			int updated = getSession()
+			        .createSQLQuery("update expertsystem_usage set request_count = request_count + :requests, "
+			                + "token_count = token_count + :tokens where user_key = :userKey and usage_date = :day")
+			        .setParameter("requests", increment.getRequestCount()).setParameter("tokens", increment.getTokenCount())
+			        .setParameter("userKey", increment.getUserKey()).setParameter("day", day).executeUpdate();
+			if (updated == 0) {
+				getSession()
+				        .createSQLQuery("insert into expertsystem_usage (user_key, usage_date, request_count, token_count) "
+				                + "values (:userKey, :day, :requests, :tokens)")
+				        .setParameter("userKey", increment.getUserKey()).setParameter("day", day)
+				        .setParameter("requests", increment.getRequestCount())
+				        .setParameter("tokens", increment.getTokenCount()).executeUpdate();
+			}
+		}
+	}
+	
+	/**
+	 * Reads the usage of all users on a day.
+	 * 
+	 * @param day the day
+	 * @return the usage per user
+	 */
+	@SuppressWarnings("unchecked")
+	public List<UsageDto> getUsage(Date day) {
+		List<Object[]> rows = getSession()
+		        .createSQLQuery("select user_key, request_count, token_count from expertsystem_usage where usage_date = :day")
+		        .setParameter("day", day).list();
+		List<UsageDto> usage = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			usage.add(new UsageDto((String) row[0], ((Number) row[1]).longValue(), ((Number) row[2]).longValue()));
+		}
+		return usage;
+	}
+	
+	/**
+	 * Inserts audit entries with a single JDBC batch.
+	 * 
+	 * @param entries the entries
+	 */
+	public void saveAuditEntries(List<AuditEntryDto> entries) {
+		getSession().doWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement("insert into expertsystem_audit "
+			        + "(date_created, user_key, conversation_id, model, prompt, response, status, error, token_count, "
+			        + "first_token_ms, duration_ms) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+				for (AuditEntryDto entry : entries) {
+					statement.setTimestamp(1, new Timestamp(entry.getDateCreated().getTime()));
+					statement.setString(2, entry.getUserKey());
+					statement.setString(3, entry.getConversationId());
+					statement.setString(4, entry.getModel());
+					statement.setString(5, entry.getPrompt());
+					statement.setString(6, entry.getResponse());
+					statement.setString(7, entry.getStatus());
+					statement.setString(8, entry.getError() != null && entry.getError().length() > 1024
+					        ? entry.getError().substring(0, 1024) : entry.getError());
+					statement.setLong(9, entry.getTokenCount());
+					if (entry.getTimeToFirstTokenMillis() != null) {
+						statement.setLong(10, entry.getTimeToFirstTokenMillis());
+					} else {
+						statement.setNull(10, Types.BIGINT);
+					}
+					statement.setLong(11, entry.getDurationMillis());
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+		});
+	}
+	
+	/**
+	 * Reads a page of the person names that are not voided, ordered by id (keyset pagination).
+	 * 
+	 * @param afterId the id of the last name already read
+	 * @param limit the page size
+	 * @return the given, middle and family names of each person name, separated by spaces, by id
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getPersonNamesAfter(int afterId, int limit) {
+		List<Object[]> rows = getSession()
+		        .createQuery("select pn.personNameId, pn.givenName, pn.middleName, pn.familyName, pn.familyName2 "
+		                + "from PersonName pn where pn.personNameId > :after and pn.voided = false "
+		                + "order by pn.personNameId")
+		        .setParameter("after", afterId).setMaxResults(limit).list();
+		Map<Integer, String> names = new LinkedHashMap<>();
+		for (Object[] row : rows) {
+			StringBuilder name = new StringBuilder();
+			for (int i = 1; i < row.length; i++) {
+				if (row[i] != null) {
+					name.append(row[i]).append(' ');
+				}
+			}
+			names.put((Integer) row[0], name.toString().trim());
+		}
+		return names;
+	}
+	
+	/**
+	 * Reads a page of the concept names that are not voided, ordered by id (keyset pagination).
+	 * 
+	 * @param afterId the id of the last concept name already read
+	 * @param limit the page size
+	 * @return the concept names by id
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getConceptNamesAfter(int afterId, int limit) {
+		List<Object[]> rows = getSession()
+		        .createQuery("select cn.conceptNameId, cn.name from ConceptName cn "
+		                + "where cn.conceptNameId > :after and cn.voided = false order by cn.conceptNameId")
+		        .setParameter("after", afterId).setMaxResults(limit).list();
+		Map<Integer, String> names = new LinkedHashMap<>();
+		for (Object[] row : rows) {
+			names.put((Integer) row[0], (String) row[1]);
+		}
+		return names;
+	}
+	
+	/**
+	 * Reads a page of the patient identifiers that are not voided, ordered by id (keyset
+	 * pagination).
+	 * 
+	 * @param afterId the id of the last identifier already read
+	 * @param limit the page size
+	 * @return the identifiers by id
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getPatientIdentifiersAfter(int afterId, int limit) {
+		List<Object[]> rows = getSession()
+		        .createQuery("select pi.patientIdentifierId, pi.identifier from PatientIdentifier pi "
+		                + "where pi.patientIdentifierId > :after and pi.voided = false order by pi.patientIdentifierId")
+		        .setParameter("after", afterId).setMaxResults(limit).list();
+		Map<Integer, String> identifiers = new LinkedHashMap<>();
+		for (Object[] row : rows) {
+			identifiers.put((Integer) row[0], (String) row[1]);
+		}
+		return identifiers;
+	}
+	
+	/**
+	 * Reads the clinical summary of a patient with a fixed number of projection queries, one per
+	 * kind of data and one for the names and units of all concepts involved, instead of walking the
+	 * lazily loaded collections of the patient. Only the latest value of each concept is kept.
+	 * 
+	 * @param patientId the patient id
+	 * @param obsLimit the number of latest observations read
+	 * @param encounterLimit the number of latest encounters read
+	 * @param now the time orders are checked to be active at
+	 * @return the summary, or null if there is no such patient
+	 */
+	@SuppressWarnings("unchecked")
+	public PatientContextDto getPatientContext(int patientId, int obsLimit, int encounterLimit, Date now) {
+		List<Object[]> patients = getSession()
+		        .createQuery("select p.gender, p.birthdate from Patient p where p.patientId = :patient and p.voided = false")
+		        .setParameter("patient", patientId).list();
+		if (patients.isEmpty()) {
+			return null;
+		}
+		PatientContextDto context = new PatientContextDto(patientId);
+		context.setGender((String) patients.get(0)[0]);
+		context.setBirthdate((Date) patients.get(0)[1]);
+		
+		List<Object[]> conditions = getSession()
+		        .createQuery("select cc.conceptId, c.condition.nonCoded, c.clinicalStatus, c.onsetDate from Condition c "
+		                + "left join c.condition.coded cc where c.patient.patientId = :patient and c.voided = false "
+		                + "and c.endDate is null order by c.onsetDate desc")
+		        .setParameter("patient", patientId).list();
+		List<Object[]> orders = getSession()
+		        .createQuery("select o.concept.conceptId, o.dateActivated, o.instructions from Order o "
+		                + "where o.patient.patientId = :patient and o.voided = false and o.dateStopped is null "
+		                + "and o.action <> :discontinue and (o.autoExpireDate is null or o.autoExpireDate > :now) "
+		                + "order by o.dateActivated desc")
+		        .setParameter("patient", patientId).setParameter("discontinue", Order.Action.DISCONTINUE)
+		        .setParameter("now", now).list();
+		List<Object[]> observations = getSession()
+		        .createQuery("select o.concept.conceptId, o.obsDatetime, o.valueNumeric, vc.conceptId, o.valueText, "
+		                + "o.valueDatetime from Obs o left join o.valueCoded vc where o.person.personId = :patient "
+		                + "and o.voided = false order by o.obsDatetime desc, o.obsId desc")
+		        .setParameter("patient", patientId).setMaxResults(obsLimit).list();
+		List<Object[]> encounters = getSession()
+		        .createQuery("select e.encounterDatetime, et.name, l.name from Encounter e join e.encounterType et "
+		                + "left join e.location l where e.patient.patientId = :patient and e.voided = false "
+		                + "order by e.encounterDatetime desc")
+		        .setParameter("patient", patientId).setMaxResults(encounterLimit).list();
+		
+		Set<Integer> conceptIds = new HashSet<>();
+		for (Object[] row : conditions) {
+			addIfNotNull(conceptIds, row[0]);
+		}
+		for (Object[] row : orders) {
+			addIfNotNull(conceptIds, row[0]);
+		}
+		for (Object[] row : observations) {
+			addIfNotNull(conceptIds, row[0]);
+			addIfNotNull(conceptIds, row[3]);
+		}
+		Map<Integer, String> names = getConceptNames(conceptIds);
+		Map<Integer, String> units = new HashMap<>();
+		if (!conceptIds.isEmpty()) {
+			for (Object[] row : (List<Object[]>) getSession()
+			        .createQuery("select cn.conceptId, cn.units from ConceptNumeric cn where cn.conceptId in (:ids) "
+			                + "and cn.units is not null")
+			        .setParameterList("ids", conceptIds).list()) {
+				units.put((Integer) row[0], (String) row[1]);
+			}
+		}
+		
+		SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+		for (Object[] row : conditions) {
+			String condition = row[0] != null ? names.get((Integer) row[0]) : (String) row[1];
+			if (condition != null) {
+				context.getConditions().add(condition + (row[2] != null ? " (" + row[2].toString().toLowerCase() + ")" : "")
+				        + (row[3] != null ? " since " + day.format((Date) row[3]) : ""));
+			}
+		}
+		for (Object[] row : orders) {
+			context.getOrders().add(names.get((Integer) row[0]) + (row[2] != null ? ", " + row[2] : "") + " since "
+			        + day.format((Date) row[1]));
+		}
+		Set<Integer> observed = new HashSet<>();
+		for (Object[] row : observations) {
+			String value = null;
+			if (row[2] != null) {
+				value = BigDecimal.valueOf((Double) row[2]).stripTrailingZeros().toPlainString();
+			} else if (row[3] != null) {
+				value = names.get((Integer) row[3]);
+			} else if (row[4] != null) {
+				value = (String) row[4];
+			} else if (row[5] != null) {
+				value = day.format((Date) row[5]);
+			}
+			if (value != null && observed.add((Integer) row[0])) {
+				String unit = row[2] != null ? units.get((Integer) row[0]) : null;
+				context.getObservations().add(day.format((Date) row[1]) + " " + names.get((Integer) row[0]) + ": "
+				        + value + (unit != null ? " " + unit : ""));
+			}
+		}
+		for (Object[] row : encounters) {
+			context.getEncounters()
+			        .add(day.format((Date) row[0]) + " " + row[1] + (row[2] != null ? " at " + row[2] : ""));
+		}
+		return context;
+	}
+	
+	/**
+	 * Reads one name of each of the given concepts, preferring the locale preferred name.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<Integer, String> getConceptNames(Collection<Integer> conceptIds) {
+		Map<Integer, String> names = new HashMap<>();
+		if (conceptIds.isEmpty()) {
+			return names;
+		}
+		List<Object[]> rows = getSession()
+		        .createQuery("select cn.concept.conceptId, cn.name from ConceptName cn where cn.concept.conceptId in (:ids) "
+		                + "and cn.voided = false order by cn.localePreferred desc, cn.conceptNameId")
+		        .setParameterList("ids", conceptIds).list();
+		for (Object[] row : rows) {
+			names.putIfAbsent((Integer) row[0], (String) row[1]);
+		}
+		return names;
+	}
+	
+	private static void addIfNotNull(Set<Integer> ids, Object id) {
+		if (id != null) {
+			ids.add((Integer) id);
+		}
+	}
 }
@@ -10,21 +10,32 @@
 
 package org.openmrs.module.expertsystem.api.impl;
 
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
 import dev.langchain4j.agent.tool.ToolSpecification;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.request.ChatRequest;
 import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
 import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import dev.langchain4j.model.ollama.OllamaChatRequestParameters;
+import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Scheduler;
 import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.Disposable;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Daemon;
 import org.openmrs.api.impl.BaseOpenmrsService;
@@ -33,16 +44,49 @@ import org.openmrs.module.expertsystem.ExpertsystemActivator;
 import org.openmrs.module.expertsystem.ExpertsystemConstants;
 import org.openmrs.module.expertsystem.api.ExpertSystemService;
 import org.openmrs.module.expertsystem.api.dao.ExpertSystemDao;
+import org.openmrs.module.expertsystem.audit.AuditLog;
+import org.openmrs.module.expertsystem.budget.ContextWindowBudget;
+import org.openmrs.module.expertsystem.budget.ModelTokenEstimator;
+import org.openmrs.module.expertsystem.cache.ResponseCache;
+import org.openmrs.module.expertsystem.cache.SemanticCache;
+import org.openmrs.module.expertsystem.concurrency.AdaptiveLimit;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.concurrency.Priority;
+import org.openmrs.module.expertsystem.deadline.Deadline;
+import org.openmrs.module.expertsystem.deadline.DeadlineExceededException;
+import org.openmrs.module.expertsystem.dto.AuditEntryDto;
+import org.openmrs.module.expertsystem.dto.ConceptTextDto;
 import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.dto.UsageDto;
+import org.openmrs.module.expertsystem.deidentify.Deidentifier;
+import org.openmrs.module.expertsystem.deidentify.PhiSession;
+import org.openmrs.module.expertsystem.deidentify.RestoringStream;
+import org.openmrs.module.expertsystem.guardrail.GuardedStream;
+import org.openmrs.module.expertsystem.patient.PatientContextCache;
+import org.openmrs.module.expertsystem.guardrail.OutputBlockedException;
+import org.openmrs.module.expertsystem.guardrail.OutputGuardrail;
+import org.openmrs.module.expertsystem.memory.ConversationSummarizer;
+import org.openmrs.module.expertsystem.reasoning.ReasoningMode;
+import org.openmrs.module.expertsystem.reasoning.ReasoningSplitter;
 import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.module.expertsystem.retrieval.ConceptIndex;
+import org.openmrs.module.expertsystem.routing.ModelRouter;
+import org.openmrs.module.expertsystem.tools.ToolExecutionEngine;
+import org.openmrs.module.expertsystem.tools.ToolRegistry;
+import org.openmrs.module.expertsystem.trace.RequestTrace;
+import org.openmrs.module.expertsystem.trace.Tracer;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
@@ -67,6 +111,58 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 	@Autowired
 	private Scheduler expertSystemScheduler;
 	
+	@Autowired
+	@Qualifier("expertSystemConceptIndex")
+	private ConceptIndex conceptIndex;
+	
+	@Autowired
+	@Qualifier("expertSystemToolRegistry")
+	private ToolRegistry toolRegistry;
+	
+	@Autowired
+	@Qualifier("expertSystemToolExecutionEngine")
+	private ToolExecutionEngine toolExecutionEngine;
+	
+	@Autowired
+	@Qualifier("expertSystemModelRouter")
+	private ModelRouter modelRouter;
+	
+	@Autowired
+	@Qualifier("expertSystemConversationSummarizer")
+	private ConversationSummarizer conversationSummarizer;
+	
+	@Autowired
+	@Qualifier("expertSystemAuditLog")
+	private AuditLog auditLog;
+	
+	@Autowired
+	@Qualifier("expertSystemTracer")
+	private Tracer tracer;
+	
+	@Autowired
+	@Qualifier("expertSystemConcurrencyLimiter")
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	@Autowired
+	@Qualifier("expertSystemOutputGuardrail")
+	private OutputGuardrail outputGuardrail;
+	
+	@Autowired
+	@Qualifier("expertSystemDeidentifier")
+	private Deidentifier deidentifier;
+	
+	@Autowired
+	@Qualifier("expertSystemPatientContext")
+	private PatientContextCache patientContext;
+	
+	@Autowired
+	@Qualifier("expertSystemResponseCache")
+	private ResponseCache responseCache;
+	
+	@Autowired
+	@Qualifier("expertSystemSemanticCache")
+	private SemanticCache semanticCache;
+	
 	/**
 	 * Processes a chat request using the expertsystem's streaming chat model with timeout handling.
 	 * <p>
@@ -77,17 +173,21 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 	 * <p>
 	 * The method performs the following steps:
 	 * <ol>
-	 * <li>Reads timeout configuration from environment variables or global properties</li>
+	 * <li>Resolves the deadline from the {@code timeout_ms} or {@code deadline} option, capped by
+	 * the timeout configured in environment variables or global properties</li>
 	 * <li>Executes the chat operation on a daemon thread using the expert system scheduler</li>
 	 * <li>Streams the response and collects the final text</li>
-	 * <li>Waits for completion with the configured timeout</li>
+	 * <li>Waits for completion until the deadline; a request whose deadline passes while it waits
+	 * for an executor thread is dropped</li>
 	 * <li>Handles timeout and error conditions appropriately</li>
 	 * <li>Returns the constructed ChatResponse</li>
 	 * </ol>
 	 * 
 	 * @param promptRequest the chat prompt request containing the user's message and context
 	 * @return a ChatResponse containing the AI's response message
-	 * @throws RuntimeException if the operation times out or streaming fails
+	 * @throws DeadlineExceededException if the deadline passes before the response is complete
+	 * @throws OutputBlockedException if the output guardrail blocks the response
+	 * @throws RuntimeException if streaming fails
 	 * @throws IllegalStateException if the daemon token is not available
 	 * @see #chatStream(PromptRequest, Consumer, Consumer, Consumer)
 	 * @see ExpertsystemConstants
@@ -95,11 +195,10 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 	@Override
 	public ChatResponse chat(PromptRequest promptRequest) {
 		
-		String timeoutDuration = StringUtils.defaultIfBlank(System.getenv("TIMEOUT_DURATION"), StringUtils
-		        .defaultIfBlank(adminService.getGlobalProperty("expertsystem.timeoutDuration"), DEFAULT_TIMEOUT_MINUTES));
-		long timeout = Long.parseLong(timeoutDuration);
+		Deadline deadline = resolveDeadline(promptRequest);
 		
 		return Single.fromCallable(() -> {
+			deadline.check("while waiting for an executor thread");
 			DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
 			if (daemonToken == null) {
 				throw new IllegalStateException(
@@ -115,10 +214,16 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 				errorRef.set(error);
 				latch.countDown();
 			});
-			boolean completed = latch.await(timeout, TimeUnit.MINUTES);
+			boolean completed = latch.await(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
 			if (!completed) {
-				throw new RuntimeException(ExpertsystemConstants.RED + "AI response timed out after " + timeout + " minutes!"
-				        + ExpertsystemConstants.RESET);
+				throw new DeadlineExceededException(
+				        ExpertsystemConstants.RED + "AI response timed out!" + ExpertsystemConstants.RESET);
+			}
+			if (errorRef.get() instanceof DeadlineExceededException) {
+				throw (DeadlineExceededException) errorRef.get();
+			}
+			if (errorRef.get() instanceof OutputBlockedException) {
+				throw (OutputBlockedException) errorRef.get();
 			}
 			if (errorRef.get() != null) {
 				throw new RuntimeException(ExpertsystemConstants.RED + "AI streaming failed!" + ExpertsystemConstants.RESET,
@@ -138,10 +243,27 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 	 * The method performs the following steps:
 	 * <ol>
 	 * <li>Validates the availability of the daemon token</li>
+	 * <li>Routes prompts without a model, or with the model "auto", to the chat or reasoning model</li>
 	 * <li>Converts the prompt request to a chat request with appropriate options</li>
 	 * <li>Executes the streaming chat operation in a daemon thread</li>
-	 * <li>Streams tokens to the onToken consumer as they are received</li>
+	 * <li>Streams tokens to the onToken consumer as they are received, with the reasoning of the
+	 * model split off and handled as the {@code reasoning} option asks</li>
+	 * <li>Redacts or blocks the phrases of the {@link OutputGuardrail} before the output reaches the
+	 * consumers, holding back only the characters that may still become part of a phrase</li>
+	 * <li>Replaces protected health information in the prompt with placeholders when the
+	 * {@link Deidentifier} is enabled, and puts the original values back in the output, the tool
+	 * calls and the final response</li>
+	 * <li>Answers from the {@link ResponseCache} when it holds the response to the same request, or
+	 * from the {@link SemanticCache} when it holds the answer to a similar question, and caches the
+	 * response otherwise</li>
+	 * <li>Executes tools requested by the model and continues the conversation with their results</li>
 	 * <li>Handles completion and error scenarios</li>
+	 * <li>Queues an entry for the audit log when the response completes or fails, without waiting for
+	 * the database</li>
+	 * <li>Records the latency timeline of the request, continuing the trace of the prompt request if
+	 * the caller started one</li>
+	 * <li>Drops the request if its deadline passes before it reaches the model, and aborts the
+	 * generation when the deadline passes during it</li>
 	 * </ol>
 	 * <p>
 	 * Supported options include:
@@ -153,7 +275,23 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 	 * <li>frequency_penalty - penalty for repeated tokens</li>
 	 * <li>presence_penalty - penalty for new tokens</li>
 	 * <li>max_output_tokens - maximum tokens to generate</li>
-	 * <li>tools - tool specifications for function calling</li>
+	 * <li>num_ctx - context window the prompt is trimmed to</li>
+	 * <li>tools - tool specifications or names of registered tools for function calling, e.g. {@code lookup_concept}</li>
+	 * <li>grounding - set to false to skip injecting relevant concepts from the concept index</li>
+	 * <li>patient_id - id of the patient whose clinical summary is injected as a system message;
+	 * requires the Get Patients privilege, which the caller records with
+	 * {@link PromptRequest#setPatientAccess(boolean)}</li>
+	 * <li>cache - set to false to bypass the response and semantic caches</li>
+	 * <li>conversation_id - identifies the conversation across prompts</li>
+	 * <li>memory - "summary" to replace older turns of the conversation with a rolling summary</li>
+	 * <li>user - key of the user the prompt is sent for, recorded in the audit log</li>
+	 * <li>timeout_ms - milliseconds from receipt after which the answer is abandoned</li>
+	 * <li>deadline - the same as an absolute time, in milliseconds since the epoch</li>
+	 * <li>priority - interactive, standard (default) or background, the lane the model calls wait
+	 * in</li>
+	 * <li>reasoning - drop, summary or separate, what happens to the reasoning of the model; the
+	 * default is {@code expertsystem.reasoningMode}. Only {@link #chatStream(PromptRequest, Consumer,
+	 * Consumer, Consumer, Consumer)} can deliver it</li>
 	 * </ul>
 	 * 
 	 * @param promptRequest the chat prompt request containing messages and options
@@ -168,6 +306,15 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 	@Override
 	public void chatStream(PromptRequest promptRequest, Consumer<String> onToken, Consumer<String> onComplete,
 	        Consumer<Throwable> onError) {
+		chatStream(promptRequest, onToken, reasoning -> {}, onComplete, onError);
+	}
+	
+	/**
+	 * @see #chatStream(PromptRequest, Consumer, Consumer, Consumer)
+	 */
+	@Override
+	public void chatStream(PromptRequest promptRequest, Consumer<String> onToken, Consumer<String> onReasoning,
+	        Consumer<String> onComplete, Consumer<Throwable> onError) {
 		
 		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
 		if (daemonToken == null) {
@@ -175,93 +322,533 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 			        ExpertsystemConstants.RED + "Daemon token not available!" + ExpertsystemConstants.RESET));
 			return;
 		}
+		// enforced here, the daemon thread that reads the patient holds every privilege
+		if (promptRequest.getOptions() != null && promptRequest.getOptions().get(PromptRequest.PATIENT_OPTION) != null
+		        && !promptRequest.isPatientAccess()) {
+			onError.accept(new APIAuthenticationException("Privilege required: " + PrivilegeConstants.GET_PATIENTS));
+			return;
+		}
 		
+		Object userKey = promptRequest.getOptions() != null ? promptRequest.getOptions().get(PromptRequest.USER_OPTION)
+		        : null;
+		RequestTrace trace = promptRequest.getTrace() != null ? promptRequest.getTrace()
+		        : tracer.start(null, userKey instanceof String ? (String) userKey : null);
+		AuditLog.Recording recording = auditLog.start(promptRequest);
+		ReasoningSplitter splitter = new ReasoningSplitter(getReasoningMode(promptRequest), onToken, onReasoning);
+		GuardedStream guardedAnswer = outputGuardrail.guard(splitter::accept);
+		GuardedStream guardedReasoning = outputGuardrail.guard(splitter::acceptReasoning);
+		PhiSession phi = deidentifier.start();
+		RestoringStream restoredAnswer = phi.restore(guardedAnswer);
+		RestoringStream restoredReasoning = phi.restore(guardedReasoning);
+		Consumer<String> auditedToken = token -> {
+			trace.markToken();
+			recording.onToken();
+			restoredAnswer.accept(token);
+		};
+		Consumer<String> auditedReasoning = reasoning -> {
+			trace.markToken();
+			recording.onToken();
+			restoredReasoning.accept(reasoning);
+		};
+		Consumer<Throwable> auditedError = error -> {
+			recording.fail(error);
+			try {
+				onError.accept(error);
+			}
+			finally {
+				tracer.finish(trace, Tracer.FAILED);
+			}
+		};
+		Consumer<String> auditedComplete = text -> {
+			String response;
+			try {
+				restoredReasoning.finish();
+				restoredAnswer.finish();
+				guardedReasoning.finish();
+				guardedAnswer.finish();
+				splitter.finish();
+				response = outputGuardrail.apply(ReasoningSplitter.strip(phi.restore(text)));
+			}
+			catch (OutputBlockedException blocked) {
+				auditedError.accept(blocked);
+				return;
+			}
+			recording.complete(response);
+			try {
+				onComplete.accept(response);
+			}
+			finally {
+				tracer.finish(trace, Tracer.COMPLETED);
+			}
+		};
+		
+		Deadline deadline = resolveDeadline(promptRequest);
 		Daemon.runInDaemonThreadAndWait(() -> {
 			try {
-				String modelName = promptRequest.getModel();
-				List<ChatMessage> messages = convertDtoMessagesToChatMessages(promptRequest.getMessages());
-				Map<String, Object> options = promptRequest.getOptions();
-
-				ChatRequest.Builder builder = ChatRequest.builder().messages(messages).modelName(modelName);
-				
-				if (options != null) {
-					if (options.get("temperature") instanceof Double) {
-						builder.temperature((Double) options.get("temperature"));
-					}
-					Object stopSequences = options.get("stop");
-					if (stopSequences instanceof List) {
-						List<String> stops = new ArrayList<>();
-						for (Object s : (List<?>) stopSequences) {
-							if (s instanceof String) {
-								stops.add((String) s);
-							}
-						}
-						if (!stops.isEmpty()) {
-							builder.stopSequences(stops);
-						}
-					}
-					if (options.get("top_p") instanceof Double) {
-						builder.topP((Double) options.get("top_p"));
-					}
-					if (options.get("top_k") instanceof Integer) {
-						builder.topK((Integer) options.get("top_k"));
-					}
-					if (options.get("frequency_penalty") instanceof Double) {
-						builder.frequencyPenalty((Double) options.get("frequency_penalty"));
-					}
-					if (options.get("presence_penalty") instanceof Double) {
-						builder.presencePenalty((Double) options.get("presence_penalty"));
-					}
-					if (options.get("max_output_tokens") instanceof Integer) {
-						builder.maxOutputTokens((Integer) options.get("max_output_tokens"));
-					}
-					Object toolSpecs = options.get("tools");
-					if (toolSpecs instanceof List) {
-						List<ToolSpecification> toolSpecList = new ArrayList<>();
-						for (Object tool : (List<?>) toolSpecs) {
-							if (tool instanceof ToolSpecification) {
-								toolSpecList.add((ToolSpecification) tool);
-							}
-						}
-						if (!toolSpecList.isEmpty()) {
-							builder.toolSpecifications(toolSpecList);
-						}
-					}
+				trace.mark(RequestTrace.DAEMON_STARTED);
+				deadline.check("before the request was prepared");
+				ChatRequest chatRequest = buildChatRequest(promptRequest, phi);
+				trace.setModel(chatRequest.modelName());
+				trace.mark(RequestTrace.PREPARED);
+				recording.setModel(chatRequest.modelName());
+				ResponseCache.Key cacheKey = responseCache.keyOf(chatRequest, phi, promptRequest.getOptions());
+				String cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+				SemanticCache.Query semanticQuery = cached == null ? semanticCache.query(promptRequest, chatRequest, phi)
+				        : null;
+				if (semanticQuery != null) {
+					cached = semanticCache.get(semanticQuery);
 				}
-				
-				ChatRequest request = builder.build();
-				
-				expertSystemStreamingChatModel.chat(request, new StreamingChatResponseHandler() {
-					
-					@Override
-					public void onPartialResponse(String token) {
-						onToken.accept(token);
-					}
-					
-					@Override
-					public void onCompleteResponse(ChatResponse response) {
-						try {
-							onComplete.accept(response.aiMessage() != null ? response.aiMessage().text() : "");
-						}
-						finally {
-							log.info(ExpertsystemConstants.MAGENTA + "Streaming completed" + ExpertsystemConstants.RESET);
-						}
+				if (cached != null) {
+					auditedToken.accept(cached);
+					auditedComplete.accept(cached);
+					return;
+				}
+				// cached before the guardrail, so that a hit is checked against the phrases of its time
+				Consumer<String> complete = cacheKey == null && semanticQuery == null ? auditedComplete : text -> {
+					String response = ReasoningSplitter.strip(phi.restore(text));
+					if (cacheKey != null) {
+						responseCache.put(cacheKey, response);
 					}
-					
-					@Override
-					public void onError(Throwable error) {
-						log.error(ExpertsystemConstants.RED + "Streaming chat failed!" + ExpertsystemConstants.RESET, error);
-						onError.accept(error);
+					if (semanticQuery != null) {
+						semanticCache.put(semanticQuery, response);
 					}
-				});
-				
+					auditedComplete.accept(text);
+				};
+				streamChat(chatRequest, 0, trace, deadline, getPriority(promptRequest), promptRequest.getOptions(), phi,
+				    auditedToken, auditedReasoning, complete, auditedError);
 			}
 			catch (Throwable throwable) {
-				onError.accept(throwable);
+				auditedError.accept(throwable);
 			}
 		}, daemonToken);
 	}
 	
+	@Override
+	public void saveAuditEntries(List<AuditEntryDto> entries) {
+		dao.saveAuditEntries(entries);
+	}
+	
+	private static Priority getPriority(PromptRequest promptRequest) {
+		Object priority = promptRequest.getOptions() != null ? promptRequest.getOptions().get(Priority.OPTION) : null;
+		return priority != null ? Priority.parse(priority, Priority.INTERACTIVE) : Priority.STANDARD;
+	}
+	
+	private ReasoningMode getReasoningMode(PromptRequest promptRequest) {
+		Object mode = promptRequest.getOptions() != null ? promptRequest.getOptions().get(ReasoningMode.OPTION) : null;
+		return ReasoningMode.parse(mode, ReasoningMode.parse(ConfigurationUtils.getConfigurationValue(adminService,
+		    "REASONING_MODE", "expertsystem.reasoningMode", ConfigurationUtils.REASONING_MODE), ReasoningMode.DROP));
+	}
+	
+	/**
+	 * Resolves the deadline of a prompt once, when it is received, so that later stages check the
+	 * same deadline.
+	 */
+	private Deadline resolveDeadline(PromptRequest promptRequest) {
+		if (promptRequest.getDeadline() == null) {
+			String timeoutDuration = StringUtils.defaultIfBlank(System.getenv("TIMEOUT_DURATION"), StringUtils
+			        .defaultIfBlank(adminService.getGlobalProperty("expertsystem.timeoutDuration"), DEFAULT_TIMEOUT_MINUTES));
+			promptRequest.setDeadline(Deadline.fromOptions(promptRequest.getOptions(),
+			    TimeUnit.MINUTES.toMillis(Long.parseLong(timeoutDuration))));
+		}
+		return promptRequest.getDeadline();
+	}
+	
+	@Override
+	public void saveUsage(Date day, List<UsageDto> usage) {
+		dao.addUsage(day, usage);
+	}
+	
+	@Override
+	public List<UsageDto> getUsage(Date day) {
+		return dao.getUsage(day);
+	}
+	
+	@Override
+	public String getPatientContext(Integer patientId) {
+		return patientContext.get(patientId);
+	}
+	
+	/**
+	 * Builds the chat request sent to the model from the prompt request and its options.
+	 * 
+	 * @param promptRequest the chat prompt request containing messages and options
+	 * @param phi the de-identification of the request, applied to the messages
+	 * @return the chat request
+	 */
+	private ChatRequest buildChatRequest(PromptRequest promptRequest, PhiSession phi) {
+		List<ChatMessage> messages = convertDtoMessagesToChatMessages(phi.deidentify(promptRequest.getMessages()));
+		String modelName = modelRouter.route(promptRequest.getModel(), messages).getModel();
+		Map<String, Object> options = promptRequest.getOptions();
+		if (conversationSummarizer.isEnabled(options)) {
+			messages = conversationSummarizer.apply((String) options.get("conversation_id"), messages);
+		}
+		if (options == null || !Boolean.FALSE.equals(options.get("grounding"))) {
+			groundWithConcepts(messages);
+		}
+		if (options != null && options.get(PromptRequest.PATIENT_OPTION) instanceof Integer) {
+			addPatientContext(messages, (Integer) options.get(PromptRequest.PATIENT_OPTION), phi);
+		}
+		
+		OllamaChatRequestParameters.Builder builder = OllamaChatRequestParameters.builder().modelName(modelName);
+		List<ToolSpecification> toolSpecList = new ArrayList<>();
+		
+		if (options != null) {
+			if (options.get("temperature") instanceof Double) {
+				builder.temperature((Double) options.get("temperature"));
+			}
+			Object stopSequences = options.get("stop");
+			if (stopSequences instanceof List) {
+				List<String> stops = new ArrayList<>();
+				for (Object s : (List<?>) stopSequences) {
+					if (s instanceof String) {
+						stops.add((String) s);
+					}
+				}
+				if (!stops.isEmpty()) {
+					builder.stopSequences(stops);
+				}
+			}
+			if (options.get("top_p") instanceof Double) {
+				builder.topP((Double) options.get("top_p"));
+			}
+			if (options.get("top_k") instanceof Integer) {
+				builder.topK((Integer) options.get("top_k"));
+			}
+			if (options.get("frequency_penalty") instanceof Double) {
+				builder.frequencyPenalty((Double) options.get("frequency_penalty"));
+			}
+			if (options.get("presence_penalty") instanceof Double) {
+				builder.presencePenalty((Double) options.get("presence_penalty"));
+			}
+			if (options.get("max_output_tokens") instanceof Integer) {
+				builder.maxOutputTokens((Integer) options.get("max_output_tokens"));
+			}
+			toolSpecList = toolRegistry.resolve(options.get("tools"));
+			if (!toolSpecList.isEmpty()) {
+				builder.toolSpecifications(toolSpecList);
+			}
+		}
+		
+		messages = fitToContextWindow(modelName, messages, toolSpecList, options, builder);
+		
+		return ChatRequest.builder().messages(messages).parameters(builder.build()).build();
+	}
+	
+	/**
+	 * Trims the conversation to the context window and sizes the request's context to match.
+	 * <p>
+	 * The prompt budget is the context window ({@code num_ctx} option or
+	 * {@code expertsystem.contextWindowTokens}) minus the maximum output tokens
+	 * ({@code max_output_tokens} option or {@code expertsystem.maxOutputTokens}) and the tool
+	 * specifications. System prompts and the latest user turn are always kept; older history is
+	 * dropped first. The requested {@code num_ctx} is then only as large as the trimmed prompt needs,
+	 * so Ollama does not allocate KV cache for the whole window on every request. A context window of
+	 * 0 disables budgeting.
+	 * </p>
+	 * 
+	 * @param modelName the target model, used to pick the token estimator
+	 * @param messages the conversation
+	 * @param toolSpecList the tool specifications sent with the request
+	 * @param options the request options, may be null
+	 * @param builder the request parameters, receiving num_ctx and max_output_tokens
+	 * @return the messages that fit the budget
+	 * @see ContextWindowBudget
+	 */
+	private List<ChatMessage> fitToContextWindow(String modelName, List<ChatMessage> messages,
+	        List<ToolSpecification> toolSpecList, Map<String, Object> options, OllamaChatRequestParameters.Builder builder) {
+		int contextWindow = options != null && options.get("num_ctx") instanceof Integer ? (Integer) options.get("num_ctx")
+		        : Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "CONTEXT_WINDOW_TOKENS",
+		            "expertsystem.contextWindowTokens", String.valueOf(ConfigurationUtils.CONTEXT_WINDOW_TOKENS)));
+		if (contextWindow <= 0) {
+			return messages;
+		}
+		int maxOutputTokens = options != null && options.get("max_output_tokens") instanceof Integer
+		        ? (Integer) options.get("max_output_tokens")
+		        : Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "MAX_OUTPUT_TOKENS",
+		            "expertsystem.maxOutputTokens", String.valueOf(ConfigurationUtils.MAX_OUTPUT_TOKENS)));
+		
+		ModelTokenEstimator estimator = ModelTokenEstimator.forModel(modelName);
+		int toolTokens = 0;
+		for (ToolSpecification toolSpecification : toolSpecList) {
+			toolTokens += estimator.estimateTokenCountInText(toolSpecification.toString());
+		}
+		int budget = contextWindow - maxOutputTokens - toolTokens;
+		List<ChatMessage> fitted = ContextWindowBudget.fit(messages, budget, estimator);
+		int promptTokens = estimator.estimateTokenCountInMessages(fitted) + toolTokens;
+		if (fitted.size() < messages.size()) {
+			log.info(ExpertsystemConstants.GOLD + "Trimmed prompt from {} to {} messages to fit {} prompt tokens"
+			        + ExpertsystemConstants.RESET, messages.size(), fitted.size(), budget);
+		}
+		builder.numCtx(ContextWindowBudget.contextSizeFor(promptTokens + maxOutputTokens, contextWindow))
+		        .maxOutputTokens(maxOutputTokens);
+		return fitted;
+	}
+	
+	/**
+	 * Injects the concepts most relevant to the latest user turn as a system message, placed after
+	 * the leading system prompts. Requests can opt out with the {@code grounding} option set to
+	 * false.
+	 * 
+	 * @param messages the converted chat messages, modified in place
+	 * @see ConceptIndex
+	 */
+	private void groundWithConcepts(List<ChatMessage> messages) {
+		if (!conceptIndex.isReady()) {
+			return;
+		}
+		int topK = Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "CONCEPT_GROUNDING_TOP_K",
+		    "expertsystem.conceptGroundingTopK", String.valueOf(ConfigurationUtils.CONCEPT_GROUNDING_TOP_K)));
+		double minSimilarity = Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService,
+		    "CONCEPT_GROUNDING_MIN_SIMILARITY", "expertsystem.conceptGroundingMinSimilarity",
+		    ConfigurationUtils.CONCEPT_GROUNDING_MIN_SIMILARITY));
+		String question = null;
+		for (int i = messages.size() - 1; i >= 0 && question == null; i--) {
+			if (messages.get(i) instanceof UserMessage && ((UserMessage) messages.get(i)).hasSingleText()) {
+				question = ((UserMessage) messages.get(i)).singleText();
+			}
+		}
+		List<ConceptTextDto> concepts;
+		try {
+			concepts = conceptIndex.search(question, topK, minSimilarity);
+		}
+		catch (Exception error) {
+			log.warn(ExpertsystemConstants.GOLD + "Concept grounding skipped: {}" + ExpertsystemConstants.RESET,
+			    error.getMessage());
+			return;
+		}
+		if (concepts.isEmpty()) {
+			return;
+		}
+		StringBuilder grounding = new StringBuilder("Relevant OpenMRS concepts (concept id: names - description):");
+		for (ConceptTextDto concept : concepts) {
+			grounding.append("\n- ").append(concept.getConceptId()).append(": ").append(concept.toText());
+		}
+		int position = 0;
+		while (position < messages.size() && messages.get(position) instanceof SystemMessage) {
+			position++;
+		}
+		messages.add(position, SystemMessage.from(grounding.toString()));
+		log.debug("Grounded prompt with {} concepts", concepts.size());
+	}
+	
+	/**
+	 * Injects the clinical summary of a patient as a system message, placed after the leading system
+	 * prompts. The summary is de-identified like the rest of the prompt.
+	 * 
+	 * @param messages the converted chat messages, modified in place
+	 * @param patientId the patient id
+	 * @param phi the de-identification of the request
+	 * @see PatientContextCache
+	 */
+	private void addPatientContext(List<ChatMessage> messages, int patientId, PhiSession phi) {
+		String summary = patientContext.get(patientId);
+		if (summary == null) {
+			log.warn(ExpertsystemConstants.GOLD + "No patient {}; prompt sent without patient context"
+			        + ExpertsystemConstants.RESET, patientId);
+			return;
+		}
+		int position = 0;
+		while (position < messages.size() && messages.get(position) instanceof SystemMessage) {
+			position++;
+		}
+		messages.add(position, SystemMessage.from(phi.deidentify(summary)));
+	}
+	
+	/**
+	 * Streams a chat request and runs the tool execution loop.
+	 * <p>
+	 * When the model answers with tool execution requests, the tools are executed in parallel by
+	 * the {@link ToolExecutionEngine} and their results are appended to the conversation, which is
+	 * then sent back to the model. This repeats until the model produces a final answer or the
+	 * configured {@code expertsystem.maxToolRounds} is reached.
+	 * </p>
+	 * <p>
+	 * Each call to the model waits for a slot of the {@link ConcurrencyLimiter} in the lane of its
+	 * priority, which is freed when the model completes or fails.
+	 * </p>
+	 * 
+	 * @param request the chat request to stream
+	 * @param round the number of tool rounds already executed for this prompt
+	 * @param trace the latency timeline of the prompt
+	 * @param deadline the deadline of the prompt
+	 * @param priority the priority lane of the model calls
+	 * @param options the options of the prompt request, which size the context of the tool rounds
+	 * @param phi the de-identification of the request, applied to the tool calls and their results
+	 * @param onToken consumer that receives each token as it's generated
+	 * @param onReasoning consumer that receives the reasoning the model delivers apart from its answer
+	 * @param onComplete consumer that receives the final complete response
+	 * @param onError consumer that receives any errors that occur during streaming
+	 */
+	private void streamChat(ChatRequest request, int round, RequestTrace trace, Deadline deadline, Priority priority,
+	        Map<String, Object> options, PhiSession phi, Consumer<String> onToken, Consumer<String> onReasoning,
+	        Consumer<String> onComplete, Consumer<Throwable> onError) {
+		concurrencyLimiter.submit(priority, permit -> {
+			if (deadline.isExpired()) {
+				permit.cancel();
+				onError.accept(new DeadlineExceededException("Deadline passed while waiting for the model"));
+				return;
+			}
+			trace.mark(RequestTrace.MODEL_REQUESTED);
+			expertSystemStreamingChatModel.chat(request, streamHandler(request, round, trace, deadline, priority, options,
+			    phi, permit, onToken, onReasoning, onComplete, onError));
+		}, onError);
+	}
+	
+	/**
+	 * Creates the handler of one streaming model call. When the deadline passes first, the handler
+	 * fails the request, frees the concurrency slot and cancels the stream; later callbacks of the
+	 * model are ignored.
+	 */
+	private StreamingChatResponseHandler streamHandler(ChatRequest request, int round, RequestTrace trace,
+	        Deadline deadline, Priority priority, Map<String, Object> options, PhiSession phi,
+	        AdaptiveLimit.Permit permit, Consumer<String> onToken, Consumer<String> onReasoning,
+	        Consumer<String> onComplete, Consumer<Throwable> onError) {
+		AtomicBoolean finished = new AtomicBoolean();
+		AtomicReference<StreamingHandle> handle = new AtomicReference<>();
+		Disposable timer = Completable.timer(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS).subscribe(() -> {
+			if (finished.compareAndSet(false, true)) {
+				StreamingHandle streamingHandle = handle.get();
+				if (streamingHandle != null) {
+					streamingHandle.cancel();
+				}
+				permit.release(true);
+				log.warn(ExpertsystemConstants.GOLD + "Deadline passed; aborting generation" + ExpertsystemConstants.RESET);
+				onError.accept(new DeadlineExceededException("Deadline passed while the model was generating"));
+			}
+		});
+		return new StreamingChatResponseHandler() {
+			
+			@Override
+			public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+				handle.compareAndSet(null, context.streamingHandle());
+				if (finished.get()) {
+					context.streamingHandle().cancel();
+					return;
+				}
+				try {
+					onPartialResponse(partialResponse.text());
+				}
+				catch (OutputBlockedException blocked) {
+					block(context.streamingHandle(), blocked);
+				}
+			}
+			
+			@Override
+			public void onPartialResponse(String token) {
+				if (finished.get()) {
+					return;
+				}
+				permit.onToken();
+				onToken.accept(token);
+			}
+			
+			@Override
+			public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+				handle.compareAndSet(null, context.streamingHandle());
+				if (finished.get()) {
+					context.streamingHandle().cancel();
+					return;
+				}
+				permit.onToken();
+				try {
+					onReasoning.accept(partialThinking.text());
+				}
+				catch (OutputBlockedException blocked) {
+					block(context.streamingHandle(), blocked);
+				}
+			}
+			
+			/**
+			 * Stops a generation whose output the guardrail blocked. The backend served it
+			 * normally, so the slot is released as a success.
+			 */
+			private void block(StreamingHandle streamingHandle, OutputBlockedException blocked) {
+				if (!finished.compareAndSet(false, true)) {
+					return;
+				}
+				timer.dispose();
+				streamingHandle.cancel();
+				permit.release(true);
+				log.warn(ExpertsystemConstants.GOLD + "Output guardrail blocked the response" + ExpertsystemConstants.RESET);
+				onError.accept(blocked);
+			}
+			
+			@Override
+			public void onCompleteResponse(ChatResponse response) {
+				if (!finished.compareAndSet(false, true)) {
+					return;
+				}
+				timer.dispose();
+				permit.release(true);
+				trace.mark(RequestTrace.MODEL_COMPLETED);
+				AiMessage aiMessage = response.aiMessage();
+				if (aiMessage != null && aiMessage.hasToolExecutionRequests()) {
+					if (round < getMaxToolRounds()) {
+						executeTools(request, aiMessage, round, trace, deadline, priority, options, phi, onToken,
+						    onReasoning, onComplete, onError);
+						return;
+					}
+					log.warn(ExpertsystemConstants.GOLD + "Tool round limit of {} reached; returning partial answer"
+					        + ExpertsystemConstants.RESET, round);
+				}
+				try {
+					onComplete.accept(aiMessage != null && aiMessage.text() != null ? aiMessage.text() : "");
+				}
+				finally {
+					log.info(ExpertsystemConstants.MAGENTA + "Streaming completed" + ExpertsystemConstants.RESET);
+				}
+			}
+			
+			@Override
+			public void onError(Throwable error) {
+				if (!finished.compareAndSet(false, true)) {
+					return;
+				}
+				timer.dispose();
+				permit.release(false);
+				log.error(ExpertsystemConstants.RED + "Streaming chat failed!" + ExpertsystemConstants.RESET, error);
+				onError.accept(error);
+			}
+		};
+	}
+	
+	/**
+	 * Executes the tool calls of a model turn on the tool executor and continues the
+	 * conversation with their results. The tools see the original values in place of the
+	 * placeholders of the prompt, and the model sees their results de-identified. The results grow
+	 * the prompt, so the next round is fitted to the context window again.
+	 */
+	private void executeTools(ChatRequest request, AiMessage aiMessage, int round, RequestTrace trace,
+	        Deadline deadline, Priority priority, Map<String, Object> options, PhiSession phi,
+	        Consumer<String> onToken, Consumer<String> onReasoning, Consumer<String> onComplete,
+	        Consumer<Throwable> onError) {
+		List<ToolExecutionRequest> toolRequests = new ArrayList<>();
+		for (ToolExecutionRequest toolRequest : aiMessage.toolExecutionRequests()) {
+			toolRequests.add(phi.restore(toolRequest));
+		}
+		// not on the expertSystemScheduler: chat() blocks one of its threads until the answer is complete
+		toolExecutionEngine.execute(toolRequests).subscribe(results -> {
+			List<ChatMessage> messages = new ArrayList<>(request.messages());
+			messages.add(aiMessage);
+			for (ToolExecutionResultMessage result : results) {
+				messages.add(phi.deidentify(result));
+			}
+			log.debug("Executed {} tool call(s) in round {}", results.size(), round + 1);
+			trace.mark(RequestTrace.TOOLS_EXECUTED);
+			OllamaChatRequestParameters.Builder builder = OllamaChatRequestParameters.builder()
+			        .overrideWith(request.parameters());
+			List<ChatMessage> fitted = fitToContextWindow(request.modelName(), messages, request.toolSpecifications(),
+			    options, builder);
+			streamChat(ChatRequest.builder().messages(fitted).parameters(builder.build()).build(), round + 1, trace,
+			    deadline, priority, options, phi, onToken, onReasoning, onComplete, onError);
+		}, onError::accept);
+	}
+	
+	private int getMaxToolRounds() {
+		return Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "MAX_TOOL_ROUNDS",
+		    "expertsystem.maxToolRounds", String.valueOf(ConfigurationUtils.MAX_TOOL_ROUNDS)));
+	}
+	
 	/**
 	 * Converts a list of MessageDto objects to a list of specific ChatMessage implementations.
 	 * 
@@ -270,12 +857,12 @@ public class ExpertSystemServiceImpl extends BaseOpenmrsService implements Exper
 	 */
 	private List<ChatMessage> convertDtoMessagesToChatMessages(List<MessageDto> messageData) {
 		List<ChatMessage> chatMessages = new ArrayList<>();
-
+		
 		if (messageData == null || messageData.isEmpty()) {
 			log.warn("No messages provided in the request");
 			return chatMessages;
 		}
-
+		
 		for (MessageDto messageDto : messageData) {
 			if (messageDto == null || messageDto.getType() == null) {
 				log.warn("Skipping invalid message DTO: {}", messageDto);
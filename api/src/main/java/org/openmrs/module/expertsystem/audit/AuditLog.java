@@ -0,0 +1,343 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.audit;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.expertsystem.ExpertsystemActivator;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.api.ExpertSystemService;
+import org.openmrs.module.expertsystem.dto.AuditEntryDto;
+import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind audit log of every prompt, its answer, the model and the timings.
+ * <p>
+ * Entries are recorded from the completion callbacks of the streaming path, which must never wait
+ * for the database. {@link #record(AuditEntryDto)} therefore only offers the entry to a bounded
+ * lock-free queue. A single writer drains the queue on a daemon thread every
+ * {@code expertsystem.auditFlushSeconds}, or as soon as a batch of
+ * {@code expertsystem.auditBatchSize} entries is waiting, and inserts each batch with one JDBC batch
+ * statement into {@code expertsystem_audit}.
+ * </p>
+ * <p>
+ * When the queue holds {@code expertsystem.auditQueueCapacity} entries, because the database is
+ * slow or down, {@code expertsystem.auditOverflowPolicy} decides what is lost: {@code drop_newest}
+ * rejects the new entry, {@code drop_oldest} evicts the oldest queued one. Dropped entries are
+ * counted and logged. A batch the database fails to take is put back at the head of the queue,
+ * within the same bound and policy, and the drain stops until the next flush retries it.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemAuditLog")
+public class AuditLog implements DisposableBean {
+	
+	public static final String DROP_NEWEST = "drop_newest";
+	
+	public static final String DROP_OLDEST = "drop_oldest";
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final Deque<AuditEntryDto> queue = new ConcurrentLinkedDeque<>();
+	
+	private final AtomicInteger queued = new AtomicInteger();
+	
+	private final AtomicBoolean draining = new AtomicBoolean();
+	
+	private final AtomicLong dropped = new AtomicLong();
+	
+	private final AtomicLong written = new AtomicLong();
+	
+	private volatile Disposable flusher;
+	
+	private volatile int capacity = ConfigurationUtils.AUDIT_QUEUE_CAPACITY;
+	
+	private volatile int batchSize = ConfigurationUtils.AUDIT_BATCH_SIZE;
+	
+	private volatile boolean dropOldest;
+	
+	private volatile boolean enabled = true;
+	
+	/**
+	 * Reads the configuration and starts the periodic flush. Called when the module starts.
+	 */
+	public void initialize() {
+		enabled = Boolean.parseBoolean(ConfigurationUtils.getConfigurationValue(adminService, "AUDIT_ENABLED",
+		    "expertsystem.auditEnabled", "true"));
+		capacity = getInt("AUDIT_QUEUE_CAPACITY", "expertsystem.auditQueueCapacity",
+		    ConfigurationUtils.AUDIT_QUEUE_CAPACITY);
+		batchSize = getInt("AUDIT_BATCH_SIZE", "expertsystem.auditBatchSize", ConfigurationUtils.AUDIT_BATCH_SIZE);
+		dropOldest = DROP_OLDEST.equalsIgnoreCase(ConfigurationUtils.getConfigurationValue(adminService,
+		    "AUDIT_OVERFLOW_POLICY", "expertsystem.auditOverflowPolicy", DROP_NEWEST));
+		long period = getInt("AUDIT_FLUSH_SECONDS", "expertsystem.auditFlushSeconds",
+		    ConfigurationUtils.AUDIT_FLUSH_SECONDS);
+		if (enabled) {
+			flusher = Observable.interval(period, period, TimeUnit.SECONDS).subscribe(tick -> scheduleDrain());
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		if (flusher != null) {
+			flusher.dispose();
+		}
+		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
+		if (daemonToken != null && queued.get() > 0) {
+			try {
+				Daemon.runInDaemonThreadAndWait(this::drain, daemonToken);
+			}
+			catch (Exception e) {
+				log.warn("Failed to write {} audit entries on shutdown: {}", queued.get(), e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Starts the audit entry of a prompt.
+	 * 
+	 * @param promptRequest the prompt
+	 * @return the recording, to be completed from the response callbacks
+	 */
+	public Recording start(PromptRequest promptRequest) {
+		AuditEntryDto entry = new AuditEntryDto();
+		entry.setDateCreated(new Date());
+		entry.setModel(promptRequest.getModel());
+		entry.setPrompt(describe(promptRequest.getMessages()));
+		Map<String, Object> options = promptRequest.getOptions();
+		if (options != null) {
+			entry.setUserKey(options.get(PromptRequest.USER_OPTION) instanceof String
+			        ? (String) options.get(PromptRequest.USER_OPTION) : null);
+			entry.setConversationId(options.get("conversation_id") instanceof String
+			        ? (String) options.get("conversation_id") : null);
+		}
+		return new Recording(entry);
+	}
+	
+	/**
+	 * Queues an entry for writing. Never blocks.
+	 * 
+	 * @param entry the entry
+	 * @return false if the entry was dropped
+	 */
+	public boolean record(AuditEntryDto entry) {
+		if (!enabled) {
+			return false;
+		}
+		boolean accepted = true;
+		if (queued.incrementAndGet() > capacity) {
+			if (dropOldest && queue.pollFirst() != null) {
+				queued.decrementAndGet();
+			} else {
+				queued.decrementAndGet();
+				accepted = false;
+			}
+			if (dropped.incrementAndGet() % 1000 == 1) {
+				log.warn(ExpertsystemConstants.GOLD + "Audit queue full; {} entries dropped so far"
+				        + ExpertsystemConstants.RESET, dropped.get());
+			}
+		}
+		if (accepted) {
+			queue.offerLast(entry);
+			if (queued.get() >= batchSize) {
+				scheduleDrain();
+			}
+		}
+		return accepted;
+	}
+	
+	/**
+	 * @return the number of queued, written and dropped entries
+	 */
+	public long[] getCounts() {
+		return new long[] { queued.get(), written.get(), dropped.get() };
+	}
+	
+	private void scheduleDrain() {
+		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
+		if (daemonToken == null || queued.get() == 0 || !draining.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Daemon.runInDaemonThread(() -> {
+				try {
+					drain();
+				}
+				finally {
+					draining.set(false);
+				}
+			}, daemonToken);
+		}
+		catch (RuntimeException e) {
+			draining.set(false);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Writes all queued entries in batches, up to the first batch that fails. Must run on a daemon
+	 * thread; only one drain runs at a time.
+	 */
+	void drain() {
+		List<AuditEntryDto> batch = new ArrayList<>(batchSize);
+		AuditEntryDto entry;
+		while ((entry = queue.pollFirst()) != null) {
+			queued.decrementAndGet();
+			batch.add(entry);
+			if (batch.size() >= batchSize) {
+				if (!write(batch)) {
+					return;
+				}
+				batch = new ArrayList<>(batchSize);
+			}
+		}
+		if (!batch.isEmpty()) {
+			write(batch);
+		}
+	}
+	
+	private boolean write(List<AuditEntryDto> batch) {
+		try {
+			getService().saveAuditEntries(batch);
+			written.addAndGet(batch.size());
+			return true;
+		}
+		catch (RuntimeException e) {
+			log.error(ExpertsystemConstants.RED + "Failed to write {} audit entries; retrying on the next flush"
+			        + ExpertsystemConstants.RESET, batch.size(), e);
+			requeue(batch);
+			return false;
+		}
+	}
+	
+	/**
+	 * Puts a batch back at the head of the queue in its order. The batch holds the oldest entries, so
+	 * if the queue filled up meanwhile, {@code drop_oldest} drops them and {@code drop_newest} makes
+	 * room by evicting the newest queued ones.
+	 */
+	private void requeue(List<AuditEntryDto> batch) {
+		for (int i = batch.size() - 1; i >= 0; i--) {
+			if (queued.incrementAndGet() > capacity) {
+				AuditEntryDto evicted = dropOldest ? null : queue.pollLast();
+				queued.decrementAndGet();
+				dropped.incrementAndGet();
+				if (evicted == null) {
+					continue;
+				}
+			}
+			queue.offerFirst(batch.get(i));
+		}
+	}
+	
+	/**
+	 * Looked up lazily: the service records through this log, so injecting it would be circular.
+	 */
+	ExpertSystemService getService() {
+		return Context.getService(ExpertSystemService.class);
+	}
+	
+	private static String describe(List<MessageDto> messages) {
+		StringBuilder prompt = new StringBuilder();
+		if (messages != null) {
+			for (MessageDto message : messages) {
+				if (message != null) {
+					prompt.append(message.getType()).append(": ").append(message.getText()).append('\n');
+				}
+			}
+		}
+		return prompt.toString();
+	}
+	
+	private int getInt(String envVar, String globalProperty, int defaultValue) {
+		return Integer.parseInt(
+		    ConfigurationUtils.getConfigurationValue(adminService, envVar, globalProperty, String.valueOf(defaultValue)));
+	}
+	
+	/**
+	 * The audit entry of a prompt in progress, timing the response as it streams.
+	 */
+	public final class Recording {
+		
+		private final AuditEntryDto entry;
+		
+		private final long startNanos = System.nanoTime();
+		
+		private final AtomicLong firstTokenNanos = new AtomicLong();
+		
+		private final AtomicLong tokens = new AtomicLong();
+		
+		private final AtomicBoolean finished = new AtomicBoolean();
+		
+		Recording(AuditEntryDto entry) {
+			this.entry = entry;
+		}
+		
+		/**
+		 * @param model the model the prompt was sent to, after routing
+		 */
+		public void setModel(String model) {
+			entry.setModel(model);
+		}
+		
+		public void onToken() {
+			if (tokens.getAndIncrement() == 0) {
+				firstTokenNanos.set(System.nanoTime());
+			}
+		}
+		
+		public void complete(String response) {
+			finish(AuditEntryDto.STATUS_COMPLETED, response, null);
+		}
+		
+		public void fail(Throwable error) {
+			finish(AuditEntryDto.STATUS_FAILED, null, error != null ? String.valueOf(error.getMessage()) : "Unknown error");
+		}
+		
+		private void finish(String status, String response, String error) {
+			if (!finished.compareAndSet(false, true)) {
+				return;
+			}
+			long now = System.nanoTime();
+			entry.setStatus(status);
+			entry.setResponse(response);
+			entry.setError(error);
+			entry.setTokenCount(tokens.get());
+			entry.setDurationMillis(TimeUnit.NANOSECONDS.toMillis(now - startNanos));
+			if (firstTokenNanos.get() != 0) {
+				entry.setTimeToFirstTokenMillis(TimeUnit.NANOSECONDS.toMillis(firstTokenNanos.get() - startNanos));
+			}
+			record(entry);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.budget;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fits a conversation into a token budget before it is dispatched to the model.
+ * <p>
+ * System messages and the latest user turn are always kept. The remaining history is kept from the
+ * newest message backwards until the next message no longer fits; older messages are dropped, so
+ * the kept history stays contiguous. A tool call and its results are kept or dropped together.
+ * </p>
+ */
+public final class ContextWindowBudget {
+	
+	private static final int MIN_CONTEXT_SIZE = 2048;
+	
+	private ContextWindowBudget() {
+	}
+	
+	/**
+	 * Trims the messages to fit the budget.
+	 * 
+	 * @param messages the conversation, oldest first
+	 * @param budget the maximum number of prompt tokens
+	 * @param estimator the token count estimator of the target model
+	 * @return the kept messages in their original order
+	 */
+	public static List<ChatMessage> fit(List<ChatMessage> messages, int budget, TokenCountEstimator estimator) {
+		int size = messages.size();
+		int[] tokens = new int[size];
+		int total = 0;
+		for (int i = 0; i < size; i++) {
+			tokens[i] = estimator.estimateTokenCountInMessage(messages.get(i));
+			total += tokens[i];
+		}
+		if (total <= budget) {
+			return messages;
+		}
+		
+		boolean[] keep = new boolean[size];
+		int used = 0;
+		int latestUser = -1;
+		for (int i = 0; i < size; i++) {
+			if (messages.get(i) instanceof UserMessage) {
+				latestUser = i;
+			}
+			if (messages.get(i) instanceof SystemMessage) {
+				keep[i] = true;
+				used += tokens[i];
+			}
+		}
+		if (latestUser >= 0) {
+			keep[latestUser] = true;
+			used += tokens[latestUser];
+		}
+		
+		int end = size;
+		while (end > 0) {
+			// a group is a message, or a tool call together with the results that follow it
+			int start = end - 1;
+			while (start > 0 && messages.get(start) instanceof ToolExecutionResultMessage) {
+				start--;
+			}
+			int groupTokens = 0;
+			for (int i = start; i < end; i++) {
+				groupTokens += keep[i] ? 0 : tokens[i];
+			}
+			if (used + groupTokens > budget) {
+				break;
+			}
+			for (int i = start; i < end; i++) {
+				keep[i] = true;
+			}
+			used += groupTokens;
+			end = start;
+		}
+		
+		List<ChatMessage> kept = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			if (keep[i] && !isOrphanedToolResult(messages, keep, i)) {
+				kept.add(messages.get(i));
+			}
+		}
+		return kept;
+	}
+	
+	/**
+	 * Picks the context size to request for a prompt. Sizes are rounded up to a power of two so that
+	 * consecutive requests mostly ask for the same size, since Ollama reloads the model whenever the
+	 * context size changes.
+	 * 
+	 * @param requiredTokens the estimated prompt tokens plus the maximum output tokens
+	 * @param maxContextSize the configured context window
+	 * @return the context size, between 2048 and the configured context window
+	 */
+	public static int contextSizeFor(int requiredTokens, int maxContextSize) {
+		int size = MIN_CONTEXT_SIZE;
+		while (size < requiredTokens && size < maxContextSize) {
+			size <<= 1;
+		}
+		return Math.min(size, maxContextSize);
+	}
+	
+	private static boolean isOrphanedToolResult(List<ChatMessage> messages, boolean[] keep, int index) {
+		if (!(messages.get(index) instanceof ToolExecutionResultMessage)) {
+			return false;
+		}
+		for (int i = index - 1; i >= 0; i--) {
+			if (messages.get(i) instanceof AiMessage) {
+				return !keep[i];
+			}
+		}
+		return true;
+	}
+}
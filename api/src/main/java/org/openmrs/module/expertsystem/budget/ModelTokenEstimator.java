@@ -0,0 +1,121 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.budget;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.CustomMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+
+import java.util.Locale;
+
+/**
+ * A fast token count estimator that does not need the model's tokenizer.
+ * <p>
+ * Counts are derived from the number of characters per token typical for the model family, with
+ * non-ASCII characters, which tokenize less efficiently, counted separately. Every message adds a
+ * fixed overhead for its role and the chat template. The estimate is deliberately slightly
+ * pessimistic, so that a prompt that fits the estimate also fits the real context window.
+ * </p>
+ */
+public class ModelTokenEstimator implements TokenCountEstimator {
+	
+	static final int MESSAGE_OVERHEAD_TOKENS = 4;
+	
+	private static final double DEFAULT_CHARS_PER_TOKEN = 3.5;
+	
+	private static final double NON_ASCII_TOKENS_PER_CHAR = 0.6;
+	
+	private final double charsPerToken;
+	
+	public ModelTokenEstimator(double charsPerToken) {
+		this.charsPerToken = charsPerToken;
+	}
+	
+	/**
+	 * Creates an estimator for the model, picking the characters per token of its family.
+	 * 
+	 * @param modelName the Ollama model name, e.g. {@code meditron:7b}
+	 * @return the estimator
+	 */
+	public static ModelTokenEstimator forModel(String modelName) {
+		String name = modelName != null ? modelName.toLowerCase(Locale.ROOT) : "";
+		if (name.startsWith("llama3") || name.startsWith("deepseek") || name.startsWith("qwen")) {
+			// large vocabularies (128k+ tokens) compress English text better
+			return new ModelTokenEstimator(3.8);
+		}
+		if (name.startsWith("meditron") || name.startsWith("llama2") || name.startsWith("mistral")
+		        || name.startsWith("tinydolphin")) {
+			// 32k SentencePiece vocabularies
+			return new ModelTokenEstimator(3.2);
+		}
+		return new ModelTokenEstimator(DEFAULT_CHARS_PER_TOKEN);
+	}
+	
+	@Override
+	public int estimateTokenCountInText(String text) {
+		if (text == null || text.isEmpty()) {
+			return 0;
+		}
+		int ascii = 0;
+		int nonAscii = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) < 128) {
+				ascii++;
+			} else {
+				nonAscii++;
+			}
+		}
+		return (int) Math.ceil(ascii / charsPerToken + nonAscii * NON_ASCII_TOKENS_PER_CHAR);
+	}
+	
+	@Override
+	public int estimateTokenCountInMessage(ChatMessage message) {
+		int tokens = MESSAGE_OVERHEAD_TOKENS;
+		if (message instanceof SystemMessage) {
+			tokens += estimateTokenCountInText(((SystemMessage) message).text());
+		} else if (message instanceof UserMessage) {
+			for (Content content : ((UserMessage) message).contents()) {
+				if (content instanceof TextContent) {
+					tokens += estimateTokenCountInText(((TextContent) content).text());
+				}
+			}
+		} else if (message instanceof AiMessage) {
+			AiMessage aiMessage = (AiMessage) message;
+			tokens += estimateTokenCountInText(aiMessage.text());
+			if (aiMessage.hasToolExecutionRequests()) {
+				for (ToolExecutionRequest request : aiMessage.toolExecutionRequests()) {
+					tokens += estimateTokenCountInText(request.name()) + estimateTokenCountInText(request.arguments());
+				}
+			}
+		} else if (message instanceof ToolExecutionResultMessage) {
+			tokens += estimateTokenCountInText(((ToolExecutionResultMessage) message).text());
+		} else if (message instanceof CustomMessage) {
+			tokens += estimateTokenCountInText(String.valueOf(((CustomMessage) message).attributes()));
+		}
+		return tokens;
+	}
+	
+	@Override
+	public int estimateTokenCountInMessages(Iterable<ChatMessage> messages) {
+		int tokens = 0;
+		for (ChatMessage message : messages) {
+			tokens += estimateTokenCountInMessage(message);
+		}
+		return tokens;
+	}
+}
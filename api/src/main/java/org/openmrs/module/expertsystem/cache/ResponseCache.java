@@ -0,0 +1,241 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.cache;
+
+import dev.langchain4j.model.chat.request.ChatRequest;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.deidentify.PhiSession;
+import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps completed responses in a {@link ResponseSegmentFile} in the application data directory,
+ * so that a prompt answered before a restart or module reload is answered again without calling
+ * the model. Configured via:
+ * <ul>
+ * <li>{@code expertsystem.responseCacheEnabled} - whether responses are cached, false by
+ * default</li>
+ * <li>{@code expertsystem.responseCacheTtlMinutes} - how long a response is served from the
+ * cache</li>
+ * <li>{@code expertsystem.responseCacheMaxMegabytes} - the size of the file, beyond which the
+ * oldest responses are dropped</li>
+ * </ul>
+ * Only requests without tools are cached, as their answers depend on the data the tools read when
+ * they run. The file is plain text on disk, so requests about a patient, and requests in which the
+ * {@link PhiSession} finds protected health information, are never cached. The key is a hash of the
+ * model, the request parameters and the messages. The file is compacted hourly once a quarter of it
+ * is superseded or expired; lookups wait for the compaction to finish.
+ */
+@Slf4j
+@Component("expertSystemResponseCache")
+public class ResponseCache implements DisposableBean {
+	
+	/**
+	 * Request option that, set to false, bypasses the cache for one prompt.
+	 */
+	public static final String OPTION = "cache";
+	
+	private static final String CACHE_FILE = "response-cache.seg";
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private volatile ResponseSegmentFile file;
+	
+	private Disposable compaction;
+	
+	private long ttlMillis;
+	
+	private long maxBytes;
+	
+	/**
+	 * A response cache key, the first 128 bits of a SHA-256 hash.
+	 */
+	public static final class Key {
+		
+		private final long hash;
+		
+		private final long check;
+		
+		Key(long hash, long check) {
+			this.hash = hash;
+			this.check = check;
+		}
+	}
+	
+	/**
+	 * Opens the cache file and schedules its compaction. Does nothing when the cache is disabled.
+	 */
+	public synchronized void initialize() {
+		if (file != null || !Boolean.parseBoolean(ConfigurationUtils.getConfigurationValue(adminService,
+		    "RESPONSE_CACHE_ENABLED", "expertsystem.responseCacheEnabled", "false"))) {
+			return;
+		}
+		ttlMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(ConfigurationUtils.getConfigurationValue(adminService,
+		    "RESPONSE_CACHE_TTL_MINUTES", "expertsystem.responseCacheTtlMinutes",
+		    String.valueOf(ConfigurationUtils.RESPONSE_CACHE_TTL_MINUTES))));
+		maxBytes = Long.parseLong(ConfigurationUtils.getConfigurationValue(adminService, "RESPONSE_CACHE_MAX_MEGABYTES",
+		    "expertsystem.responseCacheMaxMegabytes", String.valueOf(ConfigurationUtils.RESPONSE_CACHE_MAX_MEGABYTES)))
+		        << 20;
+		try {
+			File directory = OpenmrsUtil.getDirectoryInApplicationDataDirectory(ExpertsystemConstants.EXPERT_SYSTEM_MODULE_ID);
+			ResponseSegmentFile opened = new ResponseSegmentFile(new File(directory, CACHE_FILE).toPath(),
+			        System::currentTimeMillis);
+			if (opened.getSize() > maxBytes) {
+				opened.compact(maxBytes / 2);
+			}
+			file = opened;
+			compaction = Observable.interval(1, 1, TimeUnit.HOURS).subscribe(tick -> compact());
+			log.info(ExpertsystemConstants.GREEN + "Loaded {} cached responses" + ExpertsystemConstants.RESET,
+			    opened.getEntryCount());
+		}
+		catch (IOException error) {
+			log.error(ExpertsystemConstants.RED + "Cannot open response cache!" + ExpertsystemConstants.RESET, error);
+		}
+	}
+	
+	@Override
+	public synchronized void destroy() throws IOException {
+		if (compaction != null) {
+			compaction.dispose();
+		}
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+	}
+	
+	/**
+	 * Computes the key of a request, if its response may be cached.
+	 * 
+	 * @param chatRequest the request sent to the model
+	 * @param phi the de-identification of the request
+	 * @param options the options of the prompt request, may be null
+	 * @return the key, or null if the cache is disabled, bypassed by the {@code cache} option, the
+	 *         request offers tools, is about a patient or holds protected health information
+	 */
+	public Key keyOf(ChatRequest chatRequest, PhiSession phi, Map<String, Object> options) {
+		if (file == null || options != null
+		        && (Boolean.FALSE.equals(options.get(OPTION)) || options.get(PromptRequest.PATIENT_OPTION) != null)
+		        || !chatRequest.toolSpecifications().isEmpty()) {
+			return null;
+		}
+		String messages = chatRequest.messages().toString();
+		if (phi.isEnabled() && !phi.restore(messages).equals(messages)) {
+			return null;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(chatRequest.parameters().toString().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(messages.getBytes(StandardCharsets.UTF_8));
+			ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+			return new Key(hash.getLong(), hash.getLong());
+		}
+		catch (NoSuchAlgorithmException error) {
+			throw new IllegalStateException(error);
+		}
+	}
+	
+	/**
+	 * @param key the key of the request
+	 * @return the cached response, or null if there is none
+	 */
+	public String get(Key key) {
+		ResponseSegmentFile current = file;
+		String response = current != null ? current.get(key.hash, key.check) : null;
+		(response != null ? hits : misses).incrementAndGet();
+		return response;
+	}
+	
+	/**
+	 * Caches the response of a request. A response that cannot be written is only logged.
+	 * 
+	 * @param key the key of the request
+	 * @param response the final response
+	 */
+	public void put(Key key, String response) {
+		ResponseSegmentFile current = file;
+		if (current == null) {
+			return;
+		}
+		try {
+			synchronized (current) {
+				if (current.getSize() + response.length() * 3L > maxBytes) {
+					current.compact(maxBytes / 2);
+				}
+				current.put(key.hash, key.check, response, System.currentTimeMillis() + ttlMillis);
+			}
+		}
+		catch (IOException error) {
+			log.warn(ExpertsystemConstants.GOLD + "Cannot cache response" + ExpertsystemConstants.RESET, error);
+		}
+	}
+	
+	/**
+	 * @return the number of cached responses, the size of the cache file, and the hits and misses
+	 *         since startup
+	 */
+	public Map<String, Object> getStatistics() {
+		ResponseSegmentFile current = file;
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("enabled", current != null);
+		statistics.put("entries", current != null ? current.getEntryCount() : 0);
+		statistics.put("bytes", current != null ? current.getSize() : 0L);
+		statistics.put("hits", hits.get());
+		statistics.put("misses", misses.get());
+		return statistics;
+	}
+	
+	private void compact() {
+		ResponseSegmentFile current = file;
+		if (current == null) {
+			return;
+		}
+		try {
+			synchronized (current) {
+				if (current.getReclaimableBytes() * 4 > current.getSize()) {
+					current.compact(maxBytes);
+				} else {
+					current.force();
+				}
+			}
+		}
+		catch (IOException error) {
+			log.error(ExpertsystemConstants.RED + "Response cache compaction failed!" + ExpertsystemConstants.RESET, error);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped file of cached responses keyed by a 128 bit hash.
+ * <p>
+ * The file starts with a fixed header (magic, format version and the end of the last complete
+ * record) followed by variable-size records
+ * {@code [int crc][int length][long expiresAt][long key][long keyCheck][byte x length]}, the text
+ * being UTF-8. A later record for the same key supersedes an earlier one. The end offset in the
+ * header is only advanced after a record has been written, and every record carries a CRC32 of its
+ * content, so on the next open the records are scanned up to the first one that is torn or was
+ * never completely flushed, and the file is truncated there.
+ * </p>
+ * <p>
+ * The texts stay in the mapped file. The heap only holds an open-addressing index from the key to
+ * the record offset in two primitive arrays, rebuilt by the scan on open.
+ * </p>
+ */
+public class ResponseSegmentFile implements Closeable {
+	
+	private static final int MAGIC = 0x45535243;
+	
+	private static final int FORMAT_VERSION = 1;
+	
+	private static final int HEADER_SIZE = 32;
+	
+	private static final int END_OFFSET = 16;
+	
+	private static final int RECORD_HEADER_SIZE = 32;
+	
+	private static final long INITIAL_CAPACITY = 1 << 20;
+	
+	private static final int INITIAL_INDEX_CAPACITY = 1024;
+	
+	private final Path path;
+	
+	private final LongSupplier clock;
+	
+	private FileChannel channel;
+	
+	private MappedByteBuffer buffer;
+	
+	private int end;
+	
+	private long[] indexKeys;
+	
+	private int[] indexOffsets;
+	
+	private int entryCount;
+	
+	private long discardedBytes;
+	
+	/**
+	 * Opens or creates the segment file, keeping the records written before a crash.
+	 * 
+	 * @param path the file location
+	 * @param clock the current time in milliseconds, which the expiry times are compared to
+	 * @throws IOException if the file cannot be opened
+	 */
+	public ResponseSegmentFile(Path path, LongSupplier clock) throws IOException {
+		this.path = path;
+		this.clock = clock;
+		open();
+	}
+	
+	private void open() throws IOException {
+		Files.createDirectories(path.getParent());
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY));
+		indexKeys = new long[INITIAL_INDEX_CAPACITY];
+		indexOffsets = new int[INITIAL_INDEX_CAPACITY];
+		entryCount = 0;
+		discardedBytes = 0;
+		if (size >= HEADER_SIZE && buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION) {
+			recover((int) Math.min(buffer.getLong(END_OFFSET), size));
+		} else {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, FORMAT_VERSION);
+			setEnd(HEADER_SIZE);
+		}
+	}
+	
+	private void recover(int committedEnd) {
+		int offset = HEADER_SIZE;
+		while (offset + RECORD_HEADER_SIZE <= committedEnd) {
+			int length = buffer.getInt(offset + 4);
+			if (length < 0 || length > committedEnd - offset - RECORD_HEADER_SIZE
+			        || buffer.getInt(offset) != checksum(offset, length)) {
+				break;
+			}
+			index(buffer.getLong(offset + 16), offset);
+			offset += RECORD_HEADER_SIZE + length;
+		}
+		setEnd(offset);
+	}
+	
+	private void setEnd(int newEnd) {
+		end = newEnd;
+		buffer.putLong(END_OFFSET, end);
+	}
+	
+	/**
+	 * @return the number of distinct keys, including expired ones not yet compacted away
+	 */
+	public synchronized int getEntryCount() {
+		return entryCount;
+	}
+	
+	/**
+	 * @return the bytes in use, including superseded records
+	 */
+	public synchronized long getSize() {
+		return end;
+	}
+	
+	/**
+	 * @return the bytes a compaction would give back: superseded and expired records
+	 */
+	public synchronized long getReclaimableBytes() {
+		long now = clock.getAsLong();
+		long expiredBytes = 0;
+		for (int offset : indexOffsets) {
+			if (offset != 0 && buffer.getLong(offset + 8) <= now) {
+				expiredBytes += RECORD_HEADER_SIZE + buffer.getInt(offset + 4);
+			}
+		}
+		return discardedBytes + expiredBytes;
+	}
+	
+	/**
+	 * Finds the text stored for the key.
+	 * 
+	 * @param key the key
+	 * @param keyCheck the second half of the key, which guards against index collisions
+	 * @return the text, or null if there is none or it has expired
+	 */
+	public synchronized String get(long key, long keyCheck) {
+		int offset = find(key);
+		if (offset == 0 || buffer.getLong(offset + 24) != keyCheck || buffer.getLong(offset + 8) <= clock.getAsLong()) {
+			return null;
+		}
+		byte[] bytes = new byte[buffer.getInt(offset + 4)];
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + RECORD_HEADER_SIZE);
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Appends a text for the key, superseding any earlier text for it.
+	 * 
+	 * @param key the key
+	 * @param keyCheck the second half of the key
+	 * @param text the text
+	 * @param expiresAt the time in milliseconds after which the text is no longer returned
+	 * @throws IOException if the file cannot be grown
+	 */
+	public synchronized void put(long key, long keyCheck, String text, long expiresAt) throws IOException {
+		append(key, keyCheck, expiresAt, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	private void append(long key, long keyCheck, long expiresAt, ByteBuffer text) throws IOException {
+		int length = text.remaining();
+		ensureCapacity((long) end + RECORD_HEADER_SIZE + length);
+		int offset = end;
+		buffer.putInt(offset + 4, length);
+		buffer.putLong(offset + 8, expiresAt);
+		buffer.putLong(offset + 16, key);
+		buffer.putLong(offset + 24, keyCheck);
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + RECORD_HEADER_SIZE);
+		record.put(text);
+		buffer.putInt(offset, checksum(offset, length));
+		index(key, offset);
+		setEnd(offset + RECORD_HEADER_SIZE + length);
+	}
+	
+	/**
+	 * Rewrites the file so it only holds the latest unexpired text of each key. If those take more
+	 * than the given number of bytes, the oldest are dropped as well.
+	 * 
+	 * @param maxBytes the size the compacted file may grow to
+	 * @throws IOException if the file cannot be rewritten
+	 */
+	public synchronized void compact(long maxBytes) throws IOException {
+		long now = clock.getAsLong();
+		long keptBytes = HEADER_SIZE;
+		for (int offset : indexOffsets) {
+			if (offset != 0 && buffer.getLong(offset + 8) > now) {
+				keptBytes += RECORD_HEADER_SIZE + buffer.getInt(offset + 4);
+			}
+		}
+		Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+		Files.deleteIfExists(compacted);
+		try (ResponseSegmentFile target = new ResponseSegmentFile(compacted, clock)) {
+			// records are in write order, so the oldest are the first to go when the kept ones do not fit
+			for (int offset = HEADER_SIZE; offset < end;) {
+				int length = buffer.getInt(offset + 4);
+				int size = RECORD_HEADER_SIZE + length;
+				long key = buffer.getLong(offset + 16);
+				long expiresAt = buffer.getLong(offset + 8);
+				if (find(key) == offset && expiresAt > now) {
+					if (keptBytes > maxBytes) {
+						keptBytes -= size;
+					} else {
+						ByteBuffer text = buffer.duplicate();
+						text.position(offset + RECORD_HEADER_SIZE).limit(offset + size);
+						target.append(key, buffer.getLong(offset + 24), expiresAt, text);
+					}
+				}
+				offset += size;
+			}
+			target.force();
+		}
+		close();
+		Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		open();
+	}
+	
+	/**
+	 * Flushes the mapped pages to disk.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null && channel.isOpen()) {
+			buffer.force();
+			channel.close();
+		}
+	}
+	
+	private int checksum(int offset, int length) {
+		ByteBuffer content = buffer.duplicate();
+		content.position(offset + 4).limit(offset + RECORD_HEADER_SIZE + length);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return (int) crc.getValue();
+	}
+	
+	private int find(long key) {
+		int mask = indexKeys.length - 1;
+		for (int slot = slot(key, mask);; slot = (slot + 1) & mask) {
+			if (indexOffsets[slot] == 0 || indexKeys[slot] == key) {
+				return indexOffsets[slot];
+			}
+		}
+	}
+	
+	private void index(long key, int offset) {
+		if ((entryCount + 1) * 2 > indexKeys.length) {
+			long[] oldKeys = indexKeys;
+			int[] oldOffsets = indexOffsets;
+			indexKeys = new long[oldKeys.length * 2];
+			indexOffsets = new int[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldOffsets[i] != 0) {
+					insert(oldKeys[i], oldOffsets[i]);
+				}
+			}
+		}
+		int previous = insert(key, offset);
+		if (previous == 0) {
+			entryCount++;
+		} else {
+			discardedBytes += RECORD_HEADER_SIZE + buffer.getInt(previous + 4);
+		}
+	}
+	
+	private int insert(long key, int offset) {
+		int mask = indexKeys.length - 1;
+		int slot = slot(key, mask);
+		while (indexOffsets[slot] != 0 && indexKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		int previous = indexOffsets[slot];
+		indexKeys[slot] = key;
+		indexOffsets[slot] = offset;
+		return previous;
+	}
+	
+	private static int slot(long key, int mask) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+	
+	private void ensureCapacity(long required) throws IOException {
+		if (required <= buffer.capacity()) {
+			return;
+		}
+		long capacity = buffer.capacity();
+		while (capacity < required) {
+			capacity *= 2;
+		}
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IOException("Response cache file " + path + " exceeds the maximum mappable size");
+		}
+		buffer.force();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.cache;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.deidentify.PhiSession;
+import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.module.expertsystem.retrieval.HnswIndex;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Answers a question from the answer to an earlier question worded differently, such as "How many
+ * diabetic patients do I have" and "count of my patients with diabetes". The final user turn is
+ * embedded and searched among the earlier questions of the same scope, and the answer of the
+ * nearest one is returned if it is at least {@code expertsystem.semanticCacheMinSimilarity} similar.
+ * <p>
+ * The scope is the model, the user, the patient, the earlier turns, and the numbers, names and
+ * abbreviations in the question, so that "patients over 60" never answers "patients over 70" and
+ * "HIV" never answers "HBV". Questions in which the {@link PhiSession} of the request finds a
+ * patient name or identifier are not cached at all. Requests that offer tools are not
+ * cached either. Each scope has its own {@link HnswIndex}, and the
+ * {@link ConfigurationUtils#SEMANTIC_CACHE_SIZE} most recently used answers are kept for
+ * {@code expertsystem.semanticCacheTtlMinutes}.
+ * </p>
+ * <p>
+ * The statistics count the hits and misses and, for every lookup that had a nearest question, its
+ * similarity in buckets of 0.05, which shows how many misses a lower threshold would turn into
+ * hits.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemSemanticCache")
+public class SemanticCache {
+	
+	private static final Pattern DISTINCTIVE = Pattern.compile("\\d+(?:[.,]\\d+)?|\\b\\p{Lu}[\\p{L}\\d]+");
+	
+	private static final int BUCKETS = 20;
+	
+	@Autowired
+	@Qualifier("expertSystemEmbeddingModel")
+	private EmbeddingModel expertSystemEmbeddingModel;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final LongSupplier clock;
+	
+	private final AtomicInteger nextKey = new AtomicInteger();
+	
+	private final Map<String, HnswIndex> indexes = new ConcurrentHashMap<>();
+	
+	private final Map<Integer, CachedAnswer> entries = Collections
+	        .synchronizedMap(new LinkedHashMap<Integer, CachedAnswer>(16, 0.75f, true) {
+		
+		        @Override
+		        protected boolean removeEldestEntry(Map.Entry<Integer, CachedAnswer> eldest) {
+			        if (size() <= ConfigurationUtils.SEMANTIC_CACHE_SIZE) {
+				        return false;
+			        }
+			        unindex(eldest.getKey(), eldest.getValue());
+			        return true;
+		        }
+	        });
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private final AtomicLongArray similarities = new AtomicLongArray(BUCKETS);
+	
+	public SemanticCache() {
+		this(System::currentTimeMillis);
+	}
+	
+	SemanticCache(LongSupplier clock) {
+		this.clock = clock;
+	}
+	
+	/**
+	 * A question prepared for lookup: its scope and embedding.
+	 */
+	public static final class Query {
+		
+		private final String scope;
+		
+		private final float[] vector;
+		
+		Query(String scope, float[] vector) {
+			this.scope = scope;
+			this.vector = vector;
+		}
+	}
+	
+	private static final class CachedAnswer {
+		
+		private final String scope;
+		
+		private final String answer;
+		
+		private final long expiresAt;
+		
+		private CachedAnswer(String scope, String answer, long expiresAt) {
+			this.scope = scope;
+			this.answer = answer;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	/**
+	 * @return true if the cache is enabled via {@code expertsystem.semanticCacheEnabled}
+	 */
+	public boolean isEnabled() {
+		return Boolean.parseBoolean(ConfigurationUtils.getConfigurationValue(adminService, "SEMANTIC_CACHE_ENABLED",
+		    "expertsystem.semanticCacheEnabled", "false"));
+	}
+	
+	/**
+	 * Prepares the final user turn of a request for lookup, embedding it.
+	 * 
+	 * @param promptRequest the prompt request, whose earlier turns and options make up the scope
+	 * @param chatRequest the request sent to the model
+	 * @param phi the de-identification of the request
+	 * @return the query, or null if the cache is disabled, bypassed by the {@code cache} option, the
+	 *         request offers tools, the question names a patient or cannot be embedded
+	 */
+	public Query query(PromptRequest promptRequest, ChatRequest chatRequest, PhiSession phi) {
+		Map<String, Object> options = promptRequest.getOptions();
+		List<ChatMessage> messages = chatRequest.messages();
+		if (!isEnabled() || options != null && Boolean.FALSE.equals(options.get(ResponseCache.OPTION))
+		        || !chatRequest.toolSpecifications().isEmpty() || messages.isEmpty()
+		        || !(messages.get(messages.size() - 1) instanceof UserMessage)
+		        || !((UserMessage) messages.get(messages.size() - 1)).hasSingleText()) {
+			return null;
+		}
+		String question = ((UserMessage) messages.get(messages.size() - 1)).singleText();
+		if (phi.isEnabled() && !phi.restore(question).equals(question)) {
+			return null;
+		}
+		StringBuilder scope = new StringBuilder(chatRequest.modelName());
+		if (options != null) {
+			scope.append('\u0000').append(options.get(PromptRequest.USER_OPTION)).append('\u0000')
+			        .append(options.get(PromptRequest.PATIENT_OPTION));
+		}
+		List<MessageDto> turns = promptRequest.getMessages();
+		for (int i = 0; i < turns.size() - 1; i++) {
+			scope.append('\u0000').append(turns.get(i).getType()).append(':').append(turns.get(i).getText());
+		}
+		scope.append('\u0000');
+		appendDistinctive(scope, question);
+		try {
+			return new Query(scope.toString(), expertSystemEmbeddingModel.embed(question).content().vector());
+		}
+		catch (RuntimeException error) {
+			log.warn(ExpertsystemConstants.GOLD + "Semantic cache skipped: {}" + ExpertsystemConstants.RESET,
+			    error.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * @param query the question
+	 * @return the answer to the nearest earlier question of the same scope, or null if there is
+	 *         none similar enough
+	 */
+	public String get(Query query) {
+		HnswIndex index = indexes.get(query.scope);
+		List<HnswIndex.Match> matches = index != null ? index.search(query.vector, 1)
+		        : Collections.<HnswIndex.Match> emptyList();
+		if (matches.isEmpty()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		HnswIndex.Match nearest = matches.get(0);
+		similarities.incrementAndGet(Math.max(0, Math.min(BUCKETS - 1, (int) (nearest.getSimilarity() * BUCKETS))));
+		CachedAnswer entry = entries.get(nearest.getKey());
+		if (entry == null || nearest.getSimilarity() < getMinSimilarity()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (entry.expiresAt <= clock.getAsLong()) {
+			synchronized (entries) {
+				if (entries.remove(nearest.getKey()) != null) {
+					unindex(nearest.getKey(), entry);
+				}
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.answer;
+	}
+	
+	/**
+	 * Caches the answer to a question.
+	 * 
+	 * @param query the question
+	 * @param answer the final response
+	 */
+	public void put(Query query, String answer) {
+		long ttlMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(ConfigurationUtils.getConfigurationValue(adminService,
+		    "SEMANTIC_CACHE_TTL_MINUTES", "expertsystem.semanticCacheTtlMinutes",
+		    String.valueOf(ConfigurationUtils.SEMANTIC_CACHE_TTL_MINUTES))));
+		int key = nextKey.incrementAndGet();
+		synchronized (entries) {
+			indexes.computeIfAbsent(query.scope, scope -> new HnswIndex()).add(key, query.vector);
+			entries.put(key, new CachedAnswer(query.scope, answer, clock.getAsLong() + ttlMillis));
+		}
+	}
+	
+	/**
+	 * @return the hits, misses, cached answers and scopes, the threshold, and the number of lookups
+	 *         by the similarity of the nearest question
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("hits", hits.get());
+		statistics.put("misses", misses.get());
+		statistics.put("entries", entries.size());
+		statistics.put("scopes", indexes.size());
+		statistics.put("minSimilarity", getMinSimilarity());
+		Map<String, Long> nearest = new LinkedHashMap<>();
+		for (int i = 0; i < BUCKETS; i++) {
+			if (similarities.get(i) > 0) {
+				nearest.put(String.format(Locale.ROOT, "%.2f", (double) i / BUCKETS), similarities.get(i));
+			}
+		}
+		statistics.put("nearestSimilarity", nearest);
+		return statistics;
+	}
+	
+	private double getMinSimilarity() {
+		return Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "SEMANTIC_CACHE_MIN_SIMILARITY",
+		    "expertsystem.semanticCacheMinSimilarity", ConfigurationUtils.SEMANTIC_CACHE_MIN_SIMILARITY));
+	}
+	
+	/**
+	 * Appends the numbers of the question and its capitalized words, other than those that only
+	 * start a sentence.
+	 */
+	static void appendDistinctive(StringBuilder scope, String question) {
+		Matcher token = DISTINCTIVE.matcher(question);
+		while (token.find()) {
+			if (Character.isUpperCase(question.charAt(token.start()))) {
+				int previous = token.start() - 1;
+				while (previous >= 0 && Character.isWhitespace(question.charAt(previous))) {
+					previous--;
+				}
+				if (previous < 0 || ".!?".indexOf(question.charAt(previous)) >= 0) {
+					continue;
+				}
+			}
+			scope.append(token.group()).append(' ');
+		}
+	}
+	
+	private void unindex(Integer key, CachedAnswer entry) {
+		HnswIndex index = indexes.get(entry.scope);
+		if (index != null) {
+			index.remove(key);
+			if (index.size() == 0) {
+				indexes.remove(entry.scope);
+			}
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.concurrency;
+
+import org.openmrs.api.APIException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * An additive-increase, multiplicative-decrease limit on the calls in flight to a backend.
+ * <p>
+ * Every finished call is a latency sample: its time to first token, or its total time if it
+ * produced no tokens. The limiter keeps a baseline of the unloaded latency, which follows lower
+ * samples at once and drifts slowly towards higher ones, so it adapts when the model or hardware
+ * changes. A sample above {@code tolerance} times the baseline, or a failed call, means requests
+ * are queueing inside the backend: the limit is multiplied by {@code backoffRatio}, at most once
+ * per sample latency so that one burst of slow calls counts once. Any other sample, taken while at
+ * least half the limit was in use, raises the limit by {@code 1 / limit}, i.e. by one per limit's
+ * worth of calls.
+ * </p>
+ * <p>
+ * Calls over the limit wait without holding a thread and start as earlier calls finish. Each
+ * {@link Priority} has its own FIFO lane of up to {@code queueCapacity} waiting calls, beyond which
+ * new calls of that priority are rejected. A freed slot goes to the highest priority lane with a
+ * waiting call, so interactive calls overtake queued background work. Standard and background
+ * calls may hold at most {@code standardShare} and {@code backgroundShare} of the limit (at least
+ * one slot), which keeps the rest free for interactive calls.
+ * </p>
+ */
+public class AdaptiveLimit {
+	
+	private static final double BASELINE_DRIFT = 0.01;
+	
+	private final int minLimit;
+	
+	private final int maxLimit;
+	
+	private final double tolerance;
+	
+	private final double backoffRatio;
+	
+	private final int queueCapacity;
+	
+	private final LongSupplier nanoClock;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	private final Lane[] lanes = new Lane[Priority.values().length];
+	
+	private final AtomicLong rejected = new AtomicLong();
+	
+	private final AtomicLong completed = new AtomicLong();
+	
+	private volatile double limit;
+	
+	private double baselineNanos = -1;
+	
+	private long lastDecreaseNanos;
+	
+	public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, double tolerance, double backoffRatio,
+	    int queueCapacity, double standardShare, double backgroundShare, LongSupplier nanoClock) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+		this.tolerance = tolerance;
+		this.backoffRatio = backoffRatio;
+		this.queueCapacity = queueCapacity;
+		this.nanoClock = nanoClock;
+		this.lastDecreaseNanos = nanoClock.getAsLong();
+		lanes[Priority.INTERACTIVE.ordinal()] = new Lane(Priority.INTERACTIVE, 1.0);
+		lanes[Priority.STANDARD.ordinal()] = new Lane(Priority.STANDARD, standardShare);
+		lanes[Priority.BACKGROUND.ordinal()] = new Lane(Priority.BACKGROUND, backgroundShare);
+	}
+	
+	/**
+	 * Runs a call when the limit allows, immediately or after the calls ahead of it finish. The call
+	 * must release its permit exactly once when the backend is done with it.
+	 * 
+	 * @param priority the priority of the call
+	 * @param call the call, given its permit
+	 * @param onError receives the rejection when the lane is full, or the failure of the call
+	 */
+	public void submit(Priority priority, Consumer<Permit> call, Consumer<Throwable> onError) {
+		Lane lane = lanes[priority.ordinal()];
+		if (lane.queued.incrementAndGet() > queueCapacity) {
+			lane.queued.decrementAndGet();
+			rejected.incrementAndGet();
+			onError.accept(new APIException("The model backend is at capacity, please try again later"));
+			return;
+		}
+		lane.queue.offer(new Pending(call, onError));
+		drain();
+	}
+	
+	/**
+	 * Starts waiting calls while slots are free, always taking the highest priority lane that may
+	 * use another slot.
+	 */
+	private void drain() {
+		while (true) {
+			Lane lane = reserve();
+			if (lane == null) {
+				return;
+			}
+			Pending next = lane.queue.poll();
+			if (next == null) {
+				// another thread took the call between the check and the poll
+				lane.inFlight.decrementAndGet();
+				inFlight.decrementAndGet();
+				continue;
+			}
+			lane.queued.decrementAndGet();
+			Permit permit = new Permit(lane, inFlight.get());
+			try {
+				next.call.accept(permit);
+			}
+			catch (RuntimeException e) {
+				permit.release(false);
+				next.onError.accept(e);
+			}
+		}
+	}
+	
+	/**
+	 * Reserves a slot for the highest priority lane with a waiting call and room in its share.
+	 * 
+	 * @return the lane, or null if no waiting call may start
+	 */
+	private Lane reserve() {
+		for (Lane lane : lanes) {
+			if (lane.queue.isEmpty() || !lane.tryReserve((int) Math.max(1, limit * lane.share))) {
+				continue;
+			}
+			if (tryReserve(inFlight, (int) limit)) {
+				return lane;
+			}
+			// the limit is reached: no lane may start a call
+			lane.inFlight.decrementAndGet();
+			return null;
+		}
+		return null;
+	}
+	
+	private static boolean tryReserve(AtomicInteger counter, int max) {
+		while (true) {
+			int current = counter.get();
+			if (current >= max) {
+				return false;
+			}
+			if (counter.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	private synchronized void onSample(long startNanos, long sampleNanos, int inFlightAtStart, boolean success) {
+		long now = nanoClock.getAsLong();
+		if (success) {
+			if (baselineNanos < 0 || sampleNanos < baselineNanos) {
+				baselineNanos = sampleNanos;
+			} else {
+				baselineNanos += (sampleNanos - baselineNanos) * BASELINE_DRIFT;
+			}
+		}
+		if (!success || sampleNanos > baselineNanos * tolerance) {
+			// only one decrease per round trip: calls started before the last decrease saw the old load
+			if (startNanos >= lastDecreaseNanos) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+				lastDecreaseNanos = now;
+			}
+		} else if (inFlightAtStart * 2 >= limit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+	
+	public int getLimit() {
+		return (int) limit;
+	}
+	
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<>();
+		statistics.put("limit", getLimit());
+		statistics.put("inFlight", inFlight.get());
+		for (Lane lane : lanes) {
+			Map<String, Object> laneStatistics = new HashMap<>();
+			laneStatistics.put("inFlight", lane.inFlight.get());
+			laneStatistics.put("queued", lane.queued.get());
+			statistics.put(lane.priority.name().toLowerCase(), laneStatistics);
+		}
+		statistics.put("rejected", rejected.get());
+		statistics.put("completed", completed.get());
+		synchronized (this) {
+			statistics.put("baselineMillis", baselineNanos < 0 ? null : baselineNanos / TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		return statistics;
+	}
+	
+	private static final class Lane {
+		
+		private final Priority priority;
+		
+		private final double share;
+		
+		private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+		
+		private final AtomicInteger queued = new AtomicInteger();
+		
+		private final AtomicInteger inFlight = new AtomicInteger();
+		
+		private Lane(Priority priority, double share) {
+			this.priority = priority;
+			this.share = share;
+		}
+		
+		private boolean tryReserve(int max) {
+			return AdaptiveLimit.tryReserve(inFlight, max);
+		}
+	}
+	
+	private static final class Pending {
+		
+		private final Consumer<Permit> call;
+		
+		private final Consumer<Throwable> onError;
+		
+		private Pending(Consumer<Permit> call, Consumer<Throwable> onError) {
+			this.call = call;
+			this.onError = onError;
+		}
+	}
+	
+	/**
+	 * A slot in the limit, held for the duration of one backend call.
+	 */
+	public final class Permit {
+		
+		private final long startNanos = nanoClock.getAsLong();
+		
+		private final Lane lane;
+		
+		private final int inFlightAtStart;
+		
+		private final AtomicBoolean released = new AtomicBoolean();
+		
+		private volatile long firstTokenNanos;
+		
+		private Permit(Lane lane, int inFlightAtStart) {
+			this.lane = lane;
+			this.inFlightAtStart = inFlightAtStart;
+		}
+		
+		/**
+		 * Records the first token of the response; later calls are cheap no-ops.
+		 */
+		public void onToken() {
+			if (firstTokenNanos == 0) {
+				firstTokenNanos = nanoClock.getAsLong();
+			}
+		}
+		
+		/**
+		 * Frees the slot without a latency sample, for a call that never reached the backend.
+		 */
+		public void cancel() {
+			if (released.compareAndSet(false, true)) {
+				lane.inFlight.decrementAndGet();
+				inFlight.decrementAndGet();
+				drain();
+			}
+		}
+		
+		/**
+		 * Frees the slot, adapts the limit and starts the next waiting call. Only the first call
+		 * counts.
+		 * 
+		 * @param success false if the backend failed, which counts as overload
+		 */
+		public void release(boolean success) {
+			if (!released.compareAndSet(false, true)) {
+				return;
+			}
+			long end = firstTokenNanos != 0 ? firstTokenNanos : nanoClock.getAsLong();
+			onSample(startNanos, end - startNanos, inFlightAtStart, success);
+			completed.incrementAndGet();
+			lane.inFlight.decrementAndGet();
+			inFlight.decrementAndGet();
+			drain();
+		}
+	}
+}
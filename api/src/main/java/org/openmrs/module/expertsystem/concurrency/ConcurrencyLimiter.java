@@ -0,0 +1,152 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.concurrency;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Limits the concurrent calls to the streaming chat model to what the Ollama backend can serve
+ * without queueing internally. The limit adapts to the observed time to first token, see
+ * {@link AdaptiveLimit}; it is configured via {@code expertsystem.concurrencyLimitInitial},
+ * {@code expertsystem.concurrencyLimitMin}, {@code expertsystem.concurrencyLimitMax},
+ * {@code expertsystem.concurrencyLatencyTolerance}, {@code expertsystem.concurrencyBackoffRatio}
+ * and {@code expertsystem.concurrencyQueueCapacity}.
+ * <p>
+ * Calls are queued by {@link Priority}. Standard and background calls may hold at most
+ * {@code expertsystem.standardConcurrencyShare} and {@code expertsystem.backgroundConcurrencyShare}
+ * of the limit.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemConcurrencyLimiter")
+public class ConcurrencyLimiter {
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private volatile AdaptiveLimit limit = new AdaptiveLimit(ConfigurationUtils.CONCURRENCY_LIMIT_INITIAL,
+	        ConfigurationUtils.CONCURRENCY_LIMIT_MIN, ConfigurationUtils.CONCURRENCY_LIMIT_MAX,
+	        Double.parseDouble(ConfigurationUtils.CONCURRENCY_LATENCY_TOLERANCE),
+	        Double.parseDouble(ConfigurationUtils.CONCURRENCY_BACKOFF_RATIO), ConfigurationUtils.CONCURRENCY_QUEUE_CAPACITY,
+	        Double.parseDouble(ConfigurationUtils.STANDARD_CONCURRENCY_SHARE),
+	        Double.parseDouble(ConfigurationUtils.BACKGROUND_CONCURRENCY_SHARE), System::nanoTime);
+	
+	/**
+	 * Reads the configuration. Called when the module starts.
+	 */
+	public void initialize() {
+		limit = new AdaptiveLimit(
+		        getInt("CONCURRENCY_LIMIT_INITIAL", "expertsystem.concurrencyLimitInitial",
+		            ConfigurationUtils.CONCURRENCY_LIMIT_INITIAL),
+		        getInt("CONCURRENCY_LIMIT_MIN", "expertsystem.concurrencyLimitMin", ConfigurationUtils.CONCURRENCY_LIMIT_MIN),
+		        getInt("CONCURRENCY_LIMIT_MAX", "expertsystem.concurrencyLimitMax", ConfigurationUtils.CONCURRENCY_LIMIT_MAX),
+		        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "CONCURRENCY_LATENCY_TOLERANCE",
+		            "expertsystem.concurrencyLatencyTolerance", ConfigurationUtils.CONCURRENCY_LATENCY_TOLERANCE)),
+		        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "CONCURRENCY_BACKOFF_RATIO",
+		            "expertsystem.concurrencyBackoffRatio", ConfigurationUtils.CONCURRENCY_BACKOFF_RATIO)),
+		        getInt("CONCURRENCY_QUEUE_CAPACITY", "expertsystem.concurrencyQueueCapacity",
+		            ConfigurationUtils.CONCURRENCY_QUEUE_CAPACITY),
+		        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "STANDARD_CONCURRENCY_SHARE",
+		            "expertsystem.standardConcurrencyShare", ConfigurationUtils.STANDARD_CONCURRENCY_SHARE)),
+		        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "BACKGROUND_CONCURRENCY_SHARE",
+		            "expertsystem.backgroundConcurrencyShare", ConfigurationUtils.BACKGROUND_CONCURRENCY_SHARE)),
+		        System::nanoTime);
+		log.info(ExpertsystemConstants.GREEN + "Model concurrency limit starts at {}" + ExpertsystemConstants.RESET,
+		    limit.getLimit());
+	}
+	
+	/**
+	 * @see AdaptiveLimit#submit(Priority, Consumer, Consumer)
+	 */
+	public void submit(Priority priority, Consumer<AdaptiveLimit.Permit> call, Consumer<Throwable> onError) {
+		limit.submit(priority, call, onError);
+	}
+	
+	/**
+	 * Runs a blocking model call while holding a slot, for calls made on a thread of their own. The
+	 * call gives no latency sample, since its duration includes the whole generation rather than
+	 * the time to first token.
+	 * 
+	 * @param priority the priority of the call
+	 * @param timeoutMillis the longest time to wait for a slot
+	 * @param call the call
+	 * @return the result of the call
+	 * @throws APIException if no slot was free in time, or the lane is full
+	 */
+	public <T> T call(Priority priority, long timeoutMillis, Supplier<T> call) {
+		AdaptiveLimit.Permit permit = acquire(priority, timeoutMillis);
+		try {
+			return call.get();
+		}
+		finally {
+			permit.cancel();
+		}
+	}
+	
+	private AdaptiveLimit.Permit acquire(Priority priority, long timeoutMillis) {
+		CompletableFuture<AdaptiveLimit.Permit> slot = new CompletableFuture<>();
+		limit.submit(priority, permit -> {
+			if (!slot.complete(permit)) {
+				// the waiter timed out
+				permit.cancel();
+			}
+		}, slot::completeExceptionally);
+		try {
+			return slot.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw abandon(slot, e);
+		}
+		catch (ExecutionException e) {
+			throw new APIException(e.getCause().getMessage(), e.getCause());
+		}
+		catch (TimeoutException e) {
+			throw abandon(slot, e);
+		}
+	}
+	
+	private static APIException abandon(CompletableFuture<AdaptiveLimit.Permit> slot, Exception cause) {
+		if (!slot.completeExceptionally(cause)) {
+			// the slot was granted just now
+			slot.join().cancel();
+		}
+		return new APIException("No model slot became free in time", cause);
+	}
+	
+	/**
+	 * @return the current limit, the calls in flight and waiting, and the latency baseline
+	 */
+	public Map<String, Object> getStatistics() {
+		return limit.getStatistics();
+	}
+	
+	private int getInt(String envVar, String globalProperty, int defaultValue) {
+		return Integer.parseInt(
+		    ConfigurationUtils.getConfigurationValue(adminService, envVar, globalProperty, String.valueOf(defaultValue)));
+	}
+}
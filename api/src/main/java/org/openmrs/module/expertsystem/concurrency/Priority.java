@@ -0,0 +1,55 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.concurrency;
+
+/**
+ * The priority class of a model call. Waiting calls of a higher class start before those of a
+ * lower one, and lower classes may only use a share of the concurrency limit, so that heavy
+ * background work cannot delay clinicians waiting at the point of care.
+ */
+public enum Priority {
+	
+	/**
+	 * A clinician waiting for a streamed answer.
+	 */
+	INTERACTIVE,
+	
+	/**
+	 * Integrations calling the REST API.
+	 */
+	STANDARD,
+	
+	/**
+	 * Work nobody is waiting for, such as conversation summaries and batch jobs.
+	 */
+	BACKGROUND;
+	
+	public static final String OPTION = "priority";
+	
+	/**
+	 * Reads a priority requested by a caller, which may lower but never raise the priority of its
+	 * channel.
+	 * 
+	 * @param value the requested priority, e.g. the {@code priority} option, may be null
+	 * @param highest the default and highest priority allowed for the caller
+	 * @return the priority
+	 */
+	public static Priority parse(Object value, Priority highest) {
+		if (value != null) {
+			for (Priority priority : values()) {
+				if (priority.name().equalsIgnoreCase(value.toString().trim())) {
+					return priority.ordinal() < highest.ordinal() ? highest : priority;
+				}
+			}
+		}
+		return highest;
+	}
+}
@@ -12,24 +12,32 @@ package org.openmrs.module.expertsystem.config;
 
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.model.ollama.OllamaEmbeddingModel;
 import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
 import io.reactivex.rxjava3.core.Scheduler;
 import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.http.SharedHttpClientBuilder;
+import org.openmrs.module.expertsystem.logging.ChatModelLogger;
+import org.openmrs.module.expertsystem.replay.ModelRecorder;
 import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 
-import java.time.Duration;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Component("expertSystemConfig")
 public class ExpertSystemConfig {
 	
@@ -37,18 +45,33 @@ public class ExpertSystemConfig {
 	@Qualifier("adminService")
 	private AdministrationService adminService;
 	
+	@Autowired
+	@Qualifier("expertSystemChatModelLogger")
+	private ChatModelLogger chatModelLogger;
+	
+	@Autowired
+	@Qualifier("expertSystemHttpClientBuilder")
+	private SharedHttpClientBuilder httpClientBuilder;
+	
+	@Autowired
+	@Qualifier("expertSystemModelRecorder")
+	private ModelRecorder modelRecorder;
+	
 	/**
 	 * Creates and configures an Ollama ChatModel bean for the expertsystem.
 	 * <p>
 	 * This method builds an Ollama chat model with the following configurations:
 	 * <ul>
-	 * <li>Timeout: Configured via {@code config.timeoutMinutes}</li>
+	 * <li>HTTP client: The shared, pooled client of {@link SharedHttpClientBuilder}, which also owns
+	 * the timeouts</li>
 	 * <li>Base URL: Configured via {@code config.baseUrl}</li>
 	 * <li>Model name: Configured via {@code config.modelName}</li>
 	 * <li>Think parameter: Configured via {@code config.think}</li>
 	 * <li>Temperature: Configured via {@code config.temperature}</li>
-	 * <li>Request logging: Enabled (true)</li>
-	 * <li>Response logging: Enabled (true)</li>
+	 * <li>Request and response logging: Sampled, redacted and asynchronous via
+	 * {@link ChatModelLogger}</li>
+	 * <li>Recording or replay: Configured via {@code expertsystem.modelRecordingMode}, see
+	 * {@link ModelRecorder}</li>
 	 * </ul>
 	 * 
 	 * @return An OllamaChatModel instance configured for the expert system
@@ -59,9 +82,9 @@ public class ExpertSystemConfig {
 	@Bean
 	public ChatModel expertSystemChatModel() {
 		ModelConfig config = getModelConfig();
-		return OllamaChatModel.builder().timeout(Duration.ofMinutes(config.timeoutMinutes)).baseUrl(config.baseUrl)
-		        .modelName(config.modelName).think(config.think).temperature(config.temperature).logRequests(true)
-		        .logResponses(true).build();
+		return modelRecorder.wrap(OllamaChatModel.builder().httpClientBuilder(httpClientBuilder)
+		        .baseUrl(config.baseUrl).modelName(config.modelName).think(config.think).temperature(config.temperature)
+		        .listeners(Collections.singletonList(chatModelLogger)).build());
 	}
 	
 	/**
@@ -69,17 +92,21 @@ public class ExpertSystemConfig {
 	 * <p>
 	 * This method builds a streaming Ollama chat model with the following configurations:
 	 * <ul>
-	 * <li>Timeout: Configured via {@code config.timeoutMinutes}</li>
+	 * <li>HTTP client: The shared, pooled client of {@link SharedHttpClientBuilder}, which also owns
+	 * the timeouts</li>
 	 * <li>Base URL: Configured via {@code config.baseUrl}</li>
 	 * <li>Model name: Configured via {@code config.modelName}</li>
 	 * <li>Think parameter: Configured via {@code config.think}</li>
 	 * <li>Temperature: Configured via {@code config.temperature}</li>
-	 * <li>Request logging: Enabled (true)</li>
-	 * <li>Response logging: Enabled (true)</li>
+	 * <li>Request and response logging: Sampled, redacted and asynchronous via
+	 * {@link ChatModelLogger}</li>
+	 * <li>Recording or replay: Configured via {@code expertsystem.modelRecordingMode}, see
+	 * {@link ModelRecorder}</li>
 	 * </ul>
 	 * <p>
 	 * The streaming capability allows for real-time response processing as the model generates
-	 * output.
+	 * output. Thinking the model returns apart from its answer is passed to
+	 * {@code StreamingChatResponseHandler#onPartialThinking}, where the service splits it off.
 	 * 
 	 * @return A StreamingChatModel instance configured for the expert system
 	 * @throws IllegalArgumentException if any required configuration parameters are invalid
@@ -90,15 +117,37 @@ public class ExpertSystemConfig {
 	@Bean
 	public StreamingChatModel expertSystemStreamingChatModel() {
 		ModelConfig config = getModelConfig();
-		return OllamaStreamingChatModel.builder().timeout(Duration.ofMinutes(config.timeoutMinutes)).baseUrl(config.baseUrl)
-		        .modelName(config.modelName).think(config.think).temperature(config.temperature).logRequests(true)
-		        .logResponses(true).build();
+		return modelRecorder.wrap(OllamaStreamingChatModel.builder().httpClientBuilder(httpClientBuilder)
+		        .baseUrl(config.baseUrl).modelName(config.modelName).think(config.think).returnThinking(true)
+		        .temperature(config.temperature).listeners(Collections.singletonList(chatModelLogger)).build());
+	}
+	
+	/**
+	 * Creates and configures an Ollama EmbeddingModel bean for the expertsystem.
+	 * <p>
+	 * The embedding model backs the retrieval indexes. It shares the base URL and HTTP client of
+	 * the chat models; the model name is configured via {@code expertsystem.ollamaEmbeddingModel}.
+	 * </p>
+	 * 
+	 * @return An OllamaEmbeddingModel instance configured for the expert system
+	 * @see OllamaEmbeddingModel
+	 */
+	@Bean
+	public EmbeddingModel expertSystemEmbeddingModel() {
+		ModelConfig config = getModelConfig();
+		String embeddingModel = ConfigurationUtils.getConfigurationValue(adminService, "OLLAMA_EMBEDDING_MODEL",
+		    "expertsystem.ollamaEmbeddingModel", ConfigurationUtils.OllamaDefaults.DEFAULT_EMBEDDING_MODEL_NAME);
+		return OllamaEmbeddingModel.builder().httpClientBuilder(httpClientBuilder).baseUrl(config.baseUrl)
+		        .modelName(embeddingModel).build();
 	}
 	
 	/**
-	 * Creates a thread pool executor for AI processing tasks with controlled resource usage.
+	 * Creates the executor for AI processing tasks.
 	 * <p>
-	 * The executor is configured with:
+	 * Almost all of this work waits on network I/O to Ollama. The executor mode is configured via
+	 * {@code expertsystem.executorMode}:
+	 * <ul>
+	 * <li>{@code platform} (default) - a thread pool with controlled resource usage:
 	 * <ul>
 	 * <li>2 core threads to handle baseline workload</li>
 	 * <li>4 maximum threads to handle peak loads</li>
@@ -106,11 +155,32 @@ public class ExpertSystemConfig {
 	 * <li>50-task bounded queue for back-pressure</li>
 	 * <li>Custom thread factory for named daemon threads</li>
 	 * </ul>
+	 * </li>
+	 * <li>{@code virtual} - a virtual thread per task on JDK 21 and later, so that thousands of
+	 * waiting requests cost almost nothing. At most {@code expertsystem.virtualThreadConcurrency}
+	 * tasks run at a time, so the backend is not flooded; the others wait for a permit. On older
+	 * JDKs this mode falls back to the platform pool.</li>
+	 * </ul>
 	 * 
 	 * @return configured {@link ExecutorService} for AI processing
+	 * @see LimitedExecutorService
 	 */
 	@Bean(destroyMethod = "shutdown")
 	public ExecutorService expertSystemExecutor() {
+		String executorMode = ConfigurationUtils.getConfigurationValue(adminService, "EXECUTOR_MODE",
+		    "expertsystem.executorMode", ConfigurationUtils.EXECUTOR_MODE_PLATFORM);
+		if (ConfigurationUtils.EXECUTOR_MODE_VIRTUAL.equalsIgnoreCase(executorMode)) {
+			ExecutorService virtualThreads = VirtualThreads.newThreadPerTaskExecutor("expertsystem-reactor-");
+			if (virtualThreads != null) {
+				int concurrency = Integer.parseInt(getExecutorConfig("expertsystem.virtualThreadConcurrency",
+				    ConfigurationUtils.VIRTUAL_THREAD_CONCURRENCY));
+				log.info(ExpertsystemConstants.GREEN + "Using virtual threads, at most {} concurrent tasks"
+				        + ExpertsystemConstants.RESET, concurrency);
+				return new LimitedExecutorService(virtualThreads, concurrency);
+			}
+			log.warn(ExpertsystemConstants.GOLD + "Virtual threads require Java 21 or later, running on Java {}; "
+			        + "using the platform thread pool" + ExpertsystemConstants.RESET, System.getProperty("java.version"));
+		}
 		return new ThreadPoolExecutor(
 		        Integer.parseInt(getExecutorConfig("expertsystem.corePoolSize", ConfigurationUtils.CORE_POOL_SIZE)),
 		        Integer.parseInt(getExecutorConfig("expertsystem.maximumPoolSize", ConfigurationUtils.MAXIMUM_POOL_SIZE)),
@@ -127,6 +197,56 @@ public class ExpertSystemConfig {
 		        });
 	}
 	
+	/**
+	 * Creates the bounded thread pool that runs tool calls requested by the model.
+	 * <p>
+	 * Tool calls are kept off the {@link #expertSystemExecutor()} so that slow tools cannot starve
+	 * the chat requests. The pool size and queue capacity are configured via
+	 * {@code expertsystem.toolPoolSize} and {@code expertsystem.toolQueueCapacity}.
+	 * </p>
+	 * 
+	 * @return configured {@link ExecutorService} for tool execution
+	 */
+	@Bean(destroyMethod = "shutdownNow")
+	public ExecutorService expertSystemToolExecutor() {
+		int poolSize = Integer.parseInt(getExecutorConfig("expertsystem.toolPoolSize", ConfigurationUtils.TOOL_POOL_SIZE));
+		return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+		        new LinkedBlockingQueue<>(Integer.parseInt(
+		            getExecutorConfig("expertsystem.toolQueueCapacity", ConfigurationUtils.TOOL_QUEUE_CAPACITY))),
+		        runnable -> {
+			        Thread thread = new Thread(runnable);
+			        thread.setName("expertsystem-tool");
+			        thread.setDaemon(true);
+			        return thread;
+		        });
+	}
+	
+	/**
+	 * Creates the single-threaded, low-priority executor for background work such as conversation
+	 * summaries.
+	 * <p>
+	 * Background work never runs on the {@link #expertSystemExecutor()}, so it cannot delay chat
+	 * requests. Its thread runs at minimum priority and its queue is bounded via
+	 * {@code expertsystem.backgroundQueueCapacity}; submissions beyond the capacity are rejected and
+	 * retried by their owners later.
+	 * </p>
+	 * 
+	 * @return configured {@link ExecutorService} for background work
+	 */
+	@Bean(destroyMethod = "shutdownNow")
+	public ExecutorService expertSystemBackgroundExecutor() {
+		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+		        new LinkedBlockingQueue<>(Integer.parseInt(getExecutorConfig("expertsystem.backgroundQueueCapacity",
+		            ConfigurationUtils.BACKGROUND_QUEUE_CAPACITY))),
+		        runnable -> {
+			        Thread thread = new Thread(runnable);
+			        thread.setName("expertsystem-background");
+			        thread.setPriority(Thread.MIN_PRIORITY);
+			        thread.setDaemon(true);
+			        return thread;
+		        });
+	}
+	
 	/**
 	 * Creates a reactive scheduler backed by the expertsystem executor.
 	 * <p>
@@ -138,7 +258,7 @@ public class ExpertSystemConfig {
 	 * @return {@link Scheduler} for reactive AI processing
 	 */
 	@Bean
-	public Scheduler expertSystemScheduler(ExecutorService expertSystemExecutor) {
+	public Scheduler expertSystemScheduler(@Qualifier("expertSystemExecutor") ExecutorService expertSystemExecutor) {
 		return Schedulers.from(expertSystemExecutor);
 	}
 	
@@ -174,12 +294,11 @@ public class ExpertSystemConfig {
 	 * <li>Base URL for the Ollama service</li>
 	 * <li>Chat model name to use</li>
 	 * <li>Temperature parameter for response randomness</li>
-	 * <li>Timeout duration in minutes</li>
 	 * <li>Thinking mode flag</li>
 	 * </ul>
 	 * 
 	 * @return a fully configured ModelConfig instance containing all Ollama model parameters
-	 * @throws NumberFormatException if temperature or timeout values cannot be parsed as numbers
+	 * @throws NumberFormatException if the temperature cannot be parsed as a number
 	 * @throws IllegalArgumentException if boolean parsing fails for the thinking parameter
 	 * @see ModelConfig
 	 * @see ConfigurationUtils#getConfigurationValue(AdministrationService, String, String, String)
@@ -191,16 +310,13 @@ public class ExpertSystemConfig {
 		    "expertsystem.ollamaChatModel", ConfigurationUtils.OllamaDefaults.DEFAULT_MODEL_NAME);
 		String modelTemperature = ConfigurationUtils.getConfigurationValue(adminService, "MODEL_TEMPERATURE",
 		    "expertsystem.modelTemperature", ConfigurationUtils.OllamaDefaults.DEFAULT_TEMPERATURE);
-		String timeoutDuration = ConfigurationUtils.getConfigurationValue(adminService, "TIMEOUT_DURATION",
-		    "expertsystem.timeoutDuration", ConfigurationUtils.OllamaDefaults.DEFAULT_TIMEOUT_MINUTES);
 		String enableThinking = ConfigurationUtils.getConfigurationValue(adminService, "ENABLE_THINKING",
 		    "expertsystem.enableThinking", ConfigurationUtils.OllamaDefaults.DEFAULT_THINKING_STATUS);
 		
 		double temperature = Double.parseDouble(modelTemperature);
-		long timeoutMinutes = Long.parseLong(timeoutDuration);
 		boolean think = Boolean.parseBoolean(enableThinking);
 		
-		return new ModelConfig(ollamaBaseUrl, ollamaChatModel, temperature, timeoutMinutes, think);
+		return new ModelConfig(ollamaBaseUrl, ollamaChatModel, temperature, think);
 	}
 	
 	/**
@@ -211,7 +327,6 @@ public class ExpertSystemConfig {
 	 * <li>Base URL for the Ollama service</li>
 	 * <li>Model name to use</li>
 	 * <li>Temperature parameter for response randomness</li>
-	 * <li>Timeout duration in minutes</li>
 	 * <li>Thinking mode flag</li>
 	 * </ul>
 	 * <p>
@@ -226,8 +341,6 @@ public class ExpertSystemConfig {
 		
 		final double temperature;
 		
-		final long timeoutMinutes;
-		
 		final boolean think;
 		
 		/**
@@ -236,14 +349,12 @@ public class ExpertSystemConfig {
 		 * @param baseUrl the base URL of the Ollama service
 		 * @param modelName the name of the Ollama model
 		 * @param temperature the temperature parameter (0.0-1.0)
-		 * @param timeoutMinutes the timeout duration in minutes
 		 * @param think flag indicating thinking mode enabled
 		 */
-		ModelConfig(String baseUrl, String modelName, double temperature, long timeoutMinutes, boolean think) {
+		ModelConfig(String baseUrl, String modelName, double temperature, boolean think) {
 			this.baseUrl = baseUrl;
 			this.modelName = modelName;
 			this.temperature = temperature;
-			this.timeoutMinutes = timeoutMinutes;
 			this.think = think;
 		}
 	}
@@ -0,0 +1,88 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.config;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor that caps how many of its tasks run at the same time.
+ * <p>
+ * Meant for thread-per-task executors, where the number of threads no longer limits the load put
+ * on the Ollama backend. Tasks are always accepted; each one waits for a permit on its own thread
+ * before running, which is cheap when that thread is virtual, so callers are never blocked.
+ * </p>
+ */
+public class LimitedExecutorService extends AbstractExecutorService {
+	
+	private final ExecutorService delegate;
+	
+	private final Semaphore permits;
+	
+	public LimitedExecutorService(ExecutorService delegate, int maxConcurrency) {
+		this.delegate = delegate;
+		this.permits = new Semaphore(maxConcurrency, true);
+	}
+	
+	@Override
+	public void execute(Runnable command) {
+		delegate.execute(() -> {
+			try {
+				permits.acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try {
+				command.run();
+			}
+			finally {
+				permits.release();
+			}
+		});
+	}
+	
+	/**
+	 * @return the number of tasks that may start right now
+	 */
+	public int getAvailablePermits() {
+		return permits.availablePermits();
+	}
+	
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+	}
+	
+	@Override
+	public List<Runnable> shutdownNow() {
+		return delegate.shutdownNow();
+	}
+	
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+	
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+	
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+}
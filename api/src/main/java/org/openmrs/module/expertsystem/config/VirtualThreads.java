@@ -0,0 +1,71 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.config;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual-thread executors when the running JDK supports them.
+ * <p>
+ * The module is compiled for Java 11, so the JDK 21 APIs ({@code Thread.ofVirtual()} and
+ * {@code Executors.newThreadPerTaskExecutor}) are looked up reflectively. On older JDKs
+ * {@link #newThreadPerTaskExecutor(String)} returns null and callers fall back to platform threads.
+ * </p>
+ */
+@Slf4j
+final class VirtualThreads {
+	
+	private VirtualThreads() {
+	}
+	
+	/**
+	 * @return true if the running JDK supports virtual threads
+	 */
+	static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates an executor that starts a new virtual thread for each task.
+	 * 
+	 * @param namePrefix the prefix of the thread names, followed by a counter
+	 * @return the executor, or null if virtual threads are not available
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+		if (!isSupported()) {
+			return null;
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			// invoke through the public interface, the builder implementation class is not accessible
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			log.warn("Virtual threads are not available: {}", e.toString());
+			return null;
+		}
+	}
+}
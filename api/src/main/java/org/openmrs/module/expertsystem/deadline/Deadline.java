@@ -0,0 +1,86 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.deadline;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The moment by which the answer to a prompt is no longer useful to the caller.
+ * <p>
+ * Callers set it with the {@code timeout_ms} option, relative to when the prompt is received, or
+ * the {@code deadline} option, in milliseconds since the epoch. It is kept on the monotonic clock,
+ * so later changes of the wall clock do not move it.
+ * </p>
+ */
+public class Deadline {
+	
+	public static final String TIMEOUT_OPTION = "timeout_ms";
+	
+	public static final String DEADLINE_OPTION = "deadline";
+	
+	private final long deadlineNanos;
+	
+	private Deadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+	
+	/**
+	 * @param millis the time from now
+	 * @return the deadline that many milliseconds from now
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+	
+	/**
+	 * Reads the deadline from the request options. A deadline later than the default is capped to
+	 * it, so callers cannot hold the backend longer than the configured timeout.
+	 * 
+	 * @param options the request options, may be null
+	 * @param defaultMillis the timeout when the options set none
+	 * @return the deadline
+	 */
+	public static Deadline fromOptions(Map<String, Object> options, long defaultMillis) {
+		long millis = defaultMillis;
+		if (options != null) {
+			Object timeout = options.get(TIMEOUT_OPTION);
+			Object deadline = options.get(DEADLINE_OPTION);
+			if (timeout instanceof Number) {
+				millis = ((Number) timeout).longValue();
+			} else if (deadline instanceof Number) {
+				millis = ((Number) deadline).longValue() - System.currentTimeMillis();
+			}
+		}
+		return after(Math.min(millis, defaultMillis));
+	}
+	
+	public boolean isExpired() {
+		return System.nanoTime() - deadlineNanos >= 0;
+	}
+	
+	/**
+	 * @return the milliseconds left, 0 when expired
+	 */
+	public long getRemainingMillis() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+	}
+	
+	/**
+	 * @param stage where the request is, for the error message
+	 * @throws DeadlineExceededException if the deadline has passed
+	 */
+	public void check(String stage) {
+		if (isExpired()) {
+			throw new DeadlineExceededException("Deadline passed " + stage);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.deidentify;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.expertsystem.ExpertsystemActivator;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.api.dao.ExpertSystemDao;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * De-identifies prompts before they are sent to a model, when
+ * {@code expertsystem.phiDeidentification} is true.
+ * <p>
+ * Values are recognised in two ways. E-mail addresses, phone numbers, numbers of six or more digits
+ * and the values matching {@code expertsystem.phiPatterns}, one regular expression per line, are
+ * found by their form. Person names and patient identifiers are looked up in dictionaries read from
+ * the {@code person_name} and {@code patient_identifier} tables: a name matches a capitalised word
+ * of at least three letters, an identifier any word regardless of case. The words of the
+ * {@code concept_name} table are read as well, so that a name that is also a clinical term, such as
+ * "Graves" or "Down", is only replaced next to another name.
+ * </p>
+ * <p>
+ * The dictionaries are loaded in the background when the module starts, and then extended every
+ * {@code expertsystem.phiRefreshMinutes} with the rows added since, so a refresh reads only new
+ * rows. Names, terms and identifiers that are voided later stay in the dictionaries until the module
+ * restarts, which can only cause a harmless extra placeholder.
+ * </p>
+ * 
+ * @see PhiSession
+ */
+@Slf4j
+@Component("expertSystemDeidentifier")
+public class Deidentifier implements DisposableBean {
+	
+	static final int MIN_NAME = 3;
+	
+	static final int MIN_IDENTIFIER = 4;
+	
+	private static final int BATCH_SIZE = 10000;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	@Autowired
+	@Qualifier("expertSystemDao")
+	private ExpertSystemDao dao;
+	
+	private final long key = new SecureRandom().nextLong();
+	
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	
+	private volatile boolean enabled;
+	
+	private volatile Pattern pattern;
+	
+	private volatile int customPatterns;
+	
+	private volatile TokenDictionary names = TokenDictionary.EMPTY;
+	
+	private volatile TokenDictionary terms = TokenDictionary.EMPTY;
+	
+	private volatile TokenDictionary identifiers = TokenDictionary.EMPTY;
+	
+	private volatile int lastNameId;
+	
+	private volatile int lastConceptNameId;
+	
+	private volatile int lastIdentifierId;
+	
+	private volatile Disposable refresher;
+	
+	/**
+	 * Reads the configuration and starts loading the dictionaries. Called when the module starts.
+	 */
+	public void initialize() {
+		enabled = Boolean.parseBoolean(ConfigurationUtils.getConfigurationValue(adminService, "PHI_DEIDENTIFICATION",
+		    "expertsystem.phiDeidentification", "false"));
+		if (!enabled) {
+			return;
+		}
+		List<String> custom = new ArrayList<>();
+		for (String line : StringUtils.split(ConfigurationUtils.getConfigurationValue(adminService, "PHI_PATTERNS",
+		    "expertsystem.phiPatterns", ""), "\r\n")) {
+			try {
+				custom.add(Pattern.compile(line.trim()).pattern());
+			}
+			catch (PatternSyntaxException error) {
+				log.warn(ExpertsystemConstants.GOLD + "Ignoring invalid PHI pattern: {}" + ExpertsystemConstants.RESET,
+				    error.getDescription());
+			}
+		}
+		customPatterns = custom.size();
+		pattern = PhiSession.compile(custom);
+		long period = Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "PHI_REFRESH_MINUTES",
+		    "expertsystem.phiRefreshMinutes", String.valueOf(ConfigurationUtils.PHI_REFRESH_MINUTES)));
+		refresh();
+		if (period > 0 && refresher == null) {
+			refresher = Observable.interval(period, period, TimeUnit.MINUTES).subscribe(tick -> refresh());
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		if (refresher != null) {
+			refresher.dispose();
+		}
+	}
+	
+	/**
+	 * Starts the de-identification of one request. Values recognised before the dictionaries are
+	 * loaded are still replaced, names and identifiers only once they are.
+	 * 
+	 * @return the session, or {@link PhiSession#DISABLED} when de-identification is disabled
+	 */
+	public PhiSession start() {
+		if (!enabled) {
+			return PhiSession.DISABLED;
+		}
+		return new PhiSession(names, terms, identifiers, pattern, customPatterns, key);
+	}
+	
+	/**
+	 * Adds the names, terms and identifiers created since the last refresh on a daemon thread. The new
+	 * dictionaries replace the old ones at once, so running requests keep a consistent view.
+	 */
+	void refresh() {
+		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
+		if (daemonToken == null || !refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		Daemon.runInDaemonThread(() -> {
+			try {
+				int added = loadNames() + loadTerms() + loadIdentifiers();
+				if (added > 0) {
+					log.info(ExpertsystemConstants.GREEN + "PHI dictionaries hold {} names, {} terms and {} identifiers"
+					        + ExpertsystemConstants.RESET, names.size(), terms.size(), identifiers.size());
+				}
+			}
+			catch (Exception error) {
+				log.error(ExpertsystemConstants.RED + "Loading the PHI dictionaries failed!"
+				        + ExpertsystemConstants.RESET, error);
+			}
+			finally {
+				refreshing.set(false);
+			}
+		}, daemonToken);
+	}
+	
+	private int loadNames() {
+		int added = 0;
+		List<String> words = new ArrayList<>();
+		Map<Integer, String> page;
+		do {
+			page = dao.getPersonNamesAfter(lastNameId, BATCH_SIZE);
+			for (Map.Entry<Integer, String> name : page.entrySet()) {
+				for (String part : StringUtils.split(name.getValue())) {
+					if (part.length() >= MIN_NAME) {
+						words.add(part);
+					}
+				}
+				lastNameId = name.getKey();
+			}
+			added += page.size();
+		} while (page.size() == BATCH_SIZE);
+		if (!words.isEmpty()) {
+			names = names.withAdded(words);
+		}
+		return added;
+	}
+	
+	private int loadTerms() {
+		int added = 0;
+		List<String> words = new ArrayList<>();
+		Map<Integer, String> page;
+		do {
+			page = dao.getConceptNamesAfter(lastConceptNameId, BATCH_SIZE);
+			for (Map.Entry<Integer, String> name : page.entrySet()) {
+				for (String part : StringUtils.split(name.getValue(), " ,;:()[]/-'\"")) {
+					if (part.length() >= MIN_NAME) {
+						words.add(part);
+					}
+				}
+				lastConceptNameId = name.getKey();
+			}
+			added += page.size();
+		} while (page.size() == BATCH_SIZE);
+		if (!words.isEmpty()) {
+			terms = terms.withAdded(words);
+		}
+		return added;
+	}
+	
+	private int loadIdentifiers() {
+		int added = 0;
+		List<String> words = new ArrayList<>();
+		Map<Integer, String> page;
+		do {
+			page = dao.getPatientIdentifiersAfter(lastIdentifierId, BATCH_SIZE);
+			for (Map.Entry<Integer, String> identifier : page.entrySet()) {
+				String value = StringUtils.trimToEmpty(identifier.getValue());
+				if (value.length() >= MIN_IDENTIFIER) {
+					words.add(value);
+				}
+				lastIdentifierId = identifier.getKey();
+			}
+			added += page.size();
+		} while (page.size() == BATCH_SIZE);
+		if (!words.isEmpty()) {
+			identifiers = identifiers.withAdded(words);
+		}
+		return added;
+	}
+}
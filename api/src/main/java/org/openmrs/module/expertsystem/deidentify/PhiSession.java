@@ -0,0 +1,364 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.deidentify;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import org.openmrs.module.expertsystem.dto.MessageDto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces the protected health information in the prompts of one request with placeholders, and
+ * the placeholders in the output of the model with the original values.
+ * <p>
+ * A placeholder names the kind of value, e.g. {@code [NAME_3f09a1]} or {@code [ID_b27c44]}. Its
+ * suffix is a keyed hash of the value, so the same value gets the same placeholder in every request
+ * while the module runs, and the model can relate the turns of a conversation. Only this session
+ * can map a placeholder back; one the model invents, or one that an earlier request left in a
+ * conversation summary, reaches the client as it is.
+ * </p>
+ * <p>
+ * Dates are deliberately left alone: they carry most of the clinical meaning of a history and the
+ * model cannot reason about a placeholder in their place. For the same reason a word that is also a
+ * clinical term, such as "Graves" or "Down", or that starts a sentence, such as "Given" or "Hope",
+ * is only taken for a name next to another name or once it was replaced elsewhere in the request.
+ * </p>
+ */
+public class PhiSession {
+	
+	/**
+	 * A session that changes nothing, used while de-identification is disabled.
+	 */
+	public static final PhiSession DISABLED = new PhiSession(TokenDictionary.EMPTY, TokenDictionary.EMPTY,
+	        TokenDictionary.EMPTY, null, 0, 0);
+	
+	static final String NAME = "NAME";
+	
+	static final String ID = "ID";
+	
+	static final String EMAIL = "EMAIL";
+	
+	static final String PHONE = "PHONE";
+	
+	static final String NUMBER = "NUMBER";
+	
+	static final String PHI = "PHI";
+	
+	private static final String BUILT_IN = "(?<" + EMAIL + ">[\\w.%+-]+@[\\w-]+(?:\\.[\\w-]+)*\\.[A-Za-z]{2,})" + "|(?<"
+	        + PHONE + ">(?<![\\w+])(?:\\+\\d{1,3}[ .-]?)?(?:\\(\\d{2,4}\\)|\\d{2,4})[ .-]\\d{3,4}[ .-]\\d{3,4}(?!\\w))"
+	        + "|(?<" + NUMBER + ">\\b\\d{6,}\\b)";
+	
+	/**
+	 * Characters that join the parts of a word such as {@code 1000-8Y} or {@code O'Brien}.
+	 */
+	private static final String JOINERS = "-'/._";
+	
+	/**
+	 * Longer runs of joined parts are checked part by part only.
+	 */
+	private static final int MAX_WORD = 48;
+	
+	private static final int MIN_NAME = 3;
+	
+	private final TokenDictionary names;
+	
+	private final TokenDictionary terms;
+	
+	private final TokenDictionary identifiers;
+	
+	private final Pattern pattern;
+	
+	private final int customPatterns;
+	
+	private final long key;
+	
+	private final Map<String, String> originals = new ConcurrentHashMap<>();
+	
+	private final Map<String, String> placeholders = new ConcurrentHashMap<>();
+	
+	PhiSession(TokenDictionary names, TokenDictionary terms, TokenDictionary identifiers, Pattern pattern,
+	        int customPatterns, long key) {
+		this.names = names;
+		this.terms = terms;
+		this.identifiers = identifiers;
+		this.pattern = pattern;
+		this.customPatterns = customPatterns;
+		this.key = key;
+	}
+	
+	/**
+	 * Compiles the patterns of the values that are recognised by their form.
+	 * 
+	 * @param custom additional patterns, each matching a whole value
+	 * @return one pattern with a named group for each kind of value
+	 */
+	static Pattern compile(List<String> custom) {
+		StringBuilder regex = new StringBuilder(BUILT_IN);
+		for (int i = 0; i < custom.size(); i++) {
+			regex.append("|(?<").append(PHI).append(i).append(">").append(custom.get(i)).append(')');
+		}
+		return Pattern.compile(regex.toString());
+	}
+	
+	/**
+	 * @return true if the session replaces anything
+	 */
+	public boolean isEnabled() {
+		return pattern != null;
+	}
+	
+	/**
+	 * @param messages the messages of a prompt request, not modified
+	 * @return copies of the messages with their protected health information replaced
+	 */
+	public List<MessageDto> deidentify(List<MessageDto> messages) {
+		if (!isEnabled() || messages == null) {
+			return messages;
+		}
+		List<MessageDto> copies = new ArrayList<>(messages.size());
+		for (MessageDto message : messages) {
+			if (message == null) {
+				copies.add(null);
+				continue;
+			}
+			MessageDto copy = new MessageDto();
+			copy.setType(message.getType());
+			copy.setText(deidentify(message.getText()));
+			copies.add(copy);
+		}
+		return copies;
+	}
+	
+	/**
+	 * @param result the result of a tool call, which may read patient data
+	 * @return the result with its protected health information replaced
+	 */
+	public ToolExecutionResultMessage deidentify(ToolExecutionResultMessage result) {
+		if (!isEnabled()) {
+			return result;
+		}
+		return ToolExecutionResultMessage.from(result.id(), result.toolName(), deidentify(result.text()));
+	}
+	
+	/**
+	 * @param request a tool call of the model, whose arguments may contain placeholders
+	 * @return the call with the original values in its arguments
+	 */
+	public ToolExecutionRequest restore(ToolExecutionRequest request) {
+		if (!isEnabled() || originals.isEmpty()) {
+			return request;
+		}
+		return ToolExecutionRequest.builder().id(request.id()).name(request.name())
+		        .arguments(restore(request.arguments())).build();
+	}
+	
+	/**
+	 * @param text a text, may be null
+	 * @return the text with its protected health information replaced
+	 */
+	public String deidentify(String text) {
+		if (!isEnabled() || text == null || text.isEmpty()) {
+			return text;
+		}
+		int replaced = placeholders.size();
+		boolean[] skipped = new boolean[1];
+		String deidentified = replace(text, skipped);
+		// a name skipped at the start of a sentence may have been replaced further on
+		return skipped[0] && placeholders.size() > replaced ? replace(text, skipped) : deidentified;
+	}
+	
+	private String replace(String text, boolean[] skipped) {
+		StringBuilder out = null;
+		int copied = 0;
+		Matcher matcher = pattern.matcher(text);
+		int nextMatch = matcher.find() ? matcher.start() : text.length();
+		int i = 0;
+		while (i < text.length()) {
+			if (i == nextMatch) {
+				out = append(out, text, copied, i).append(placeholder(kindOf(matcher), matcher.group()));
+				i = copied = matcher.end();
+				nextMatch = matcher.find() ? matcher.start() : text.length();
+				continue;
+			}
+			if (!Character.isLetterOrDigit(text.charAt(i))) {
+				i++;
+				continue;
+			}
+			int end = wordEnd(text, i, Math.min(nextMatch, i + MAX_WORD));
+			String kind = kindOf(text, i, end, skipped);
+			if (kind == null) {
+				// a joined word may still hold a name or identifier in one of its parts
+				int partEnd = partEnd(text, i, end);
+				if (partEnd < end) {
+					end = partEnd;
+					kind = kindOf(text, i, end, skipped);
+				}
+			}
+			if (kind != null) {
+				out = append(out, text, copied, i).append(placeholder(kind, text.substring(i, end)));
+				copied = end;
+			}
+			i = end;
+		}
+		return out == null ? text : append(out, text, copied, text.length()).toString();
+	}
+	
+	/**
+	 * @param text a text, may be null
+	 * @return the text with the placeholders of this session replaced by the original values
+	 */
+	public String restore(String text) {
+		if (!isEnabled() || originals.isEmpty() || text == null) {
+			return text;
+		}
+		StringBuilder restored = new StringBuilder(text.length());
+		RestoringStream stream = restore(restored::append);
+		stream.accept(text);
+		stream.finish();
+		return restored.toString();
+	}
+	
+	/**
+	 * Starts restoring a stream of tokens.
+	 * 
+	 * @param downstream receives the restored text
+	 * @return the stream to feed the tokens into
+	 */
+	public RestoringStream restore(Consumer<String> downstream) {
+		return new RestoringStream(originals::get, downstream);
+	}
+	
+	/**
+	 * @return the number of distinct values replaced so far
+	 */
+	public int size() {
+		return originals.size();
+	}
+	
+	private String kindOf(Matcher matcher) {
+		if (matcher.start(EMAIL) >= 0) {
+			return EMAIL;
+		}
+		if (matcher.start(PHONE) >= 0) {
+			return PHONE;
+		}
+		if (matcher.start(NUMBER) >= 0) {
+			return NUMBER;
+		}
+		return PHI;
+	}
+	
+	private String kindOf(String text, int start, int end, boolean[] skipped) {
+		if (identifiers.contains(text, start, end)) {
+			return ID;
+		}
+		if (!isName(text, start, end)) {
+			return null;
+		}
+		if ((!terms.contains(text, start, end) && !startsSentence(text, start))
+		        || placeholders.containsKey(text.substring(start, end)) || isNextToName(text, start, end)) {
+			return NAME;
+		}
+		skipped[0] = true;
+		return null;
+	}
+	
+	private boolean isName(String text, int start, int end) {
+		return end - start >= MIN_NAME && Character.isUpperCase(text.charAt(start)) && names.contains(text, start, end);
+	}
+	
+	/**
+	 * @return true if the word before or after, separated by spaces only, is a name as well
+	 */
+	private boolean isNextToName(String text, int start, int end) {
+		int next = end;
+		while (next < text.length() && text.charAt(next) == ' ') {
+			next++;
+		}
+		int nextEnd = next;
+		while (nextEnd < text.length() && Character.isLetter(text.charAt(nextEnd))) {
+			nextEnd++;
+		}
+		if (next > end && isName(text, next, nextEnd)) {
+			return true;
+		}
+		int previousEnd = start;
+		while (previousEnd > 0 && text.charAt(previousEnd - 1) == ' ') {
+			previousEnd--;
+		}
+		int previous = previousEnd;
+		while (previous > 0 && Character.isLetter(text.charAt(previous - 1))) {
+			previous--;
+		}
+		return previousEnd < start && isName(text, previous, previousEnd);
+	}
+	
+	private static boolean startsSentence(String text, int start) {
+		int previous = start - 1;
+		while (previous >= 0 && Character.isWhitespace(text.charAt(previous))) {
+			previous--;
+		}
+		return previous < 0 || ".!?".indexOf(text.charAt(previous)) >= 0;
+	}
+	
+	private String placeholder(String kind, String value) {
+		return placeholders.computeIfAbsent(value, v -> {
+			long hash = key;
+			for (int i = 0; i < v.length(); i++) {
+				hash ^= v.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			hash ^= hash >>> 29;
+			String base = "[" + kind + "_" + String.format("%06x", hash & 0xffffff);
+			String candidate = base + "]";
+			for (int n = 2; originals.putIfAbsent(candidate, v) != null; n++) {
+				candidate = base + "_" + n + "]";
+			}
+			return candidate;
+		});
+	}
+	
+	private static int wordEnd(String text, int start, int limit) {
+		int end = start;
+		while (end < limit) {
+			char c = text.charAt(end);
+			if (Character.isLetterOrDigit(c) || JOINERS.indexOf(c) >= 0 && end + 1 < limit
+			        && Character.isLetterOrDigit(text.charAt(end + 1))) {
+				end++;
+			} else {
+				break;
+			}
+		}
+		return end;
+	}
+	
+	private static int partEnd(String text, int start, int end) {
+		int partEnd = start;
+		while (partEnd < end && Character.isLetterOrDigit(text.charAt(partEnd))) {
+			partEnd++;
+		}
+		return partEnd;
+	}
+	
+	private static StringBuilder append(StringBuilder out, String text, int from, int to) {
+		if (out == null) {
+			out = new StringBuilder(text.length() + 16);
+		}
+		return out.append(text, from, to);
+	}
+}
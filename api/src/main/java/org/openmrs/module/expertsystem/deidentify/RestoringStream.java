@@ -0,0 +1,85 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.deidentify;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Puts the original values back in place of the placeholders of a {@link PhiSession} in a stream
+ * of tokens, whichever way the model splits a placeholder across tokens.
+ * <p>
+ * Text that could still be the start of a placeholder, a {@code [} followed by letters, digits or
+ * underscores, is held back until it either closes with {@code ]} or turns out to be something
+ * else. Everything else passes straight through.
+ * </p>
+ */
+public class RestoringStream implements Consumer<String> {
+	
+	/**
+	 * Longer than any placeholder, so a stray {@code [} holds back little text.
+	 */
+	static final int MAX_PLACEHOLDER = 32;
+	
+	private final Function<String, String> originals;
+	
+	private final Consumer<String> downstream;
+	
+	private final StringBuilder pending = new StringBuilder(MAX_PLACEHOLDER);
+	
+	RestoringStream(Function<String, String> originals, Consumer<String> downstream) {
+		this.originals = originals;
+		this.downstream = downstream;
+	}
+	
+	@Override
+	public void accept(String token) {
+		if (token == null || token.isEmpty()) {
+			return;
+		}
+		StringBuilder out = new StringBuilder(token.length());
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if (pending.length() == 0) {
+				if (c == '[') {
+					pending.append(c);
+				} else {
+					out.append(c);
+				}
+			} else if (c == ']') {
+				pending.append(c);
+				String original = originals.apply(pending.toString());
+				out.append(original != null ? original : pending);
+				pending.setLength(0);
+			} else if ((Character.isLetterOrDigit(c) || c == '_') && pending.length() < MAX_PLACEHOLDER) {
+				pending.append(c);
+			} else {
+				out.append(pending);
+				pending.setLength(0);
+				i--;
+			}
+		}
+		if (out.length() > 0) {
+			downstream.accept(out.toString());
+		}
+	}
+	
+	/**
+	 * Passes on the text held back at the end of the stream.
+	 */
+	public void finish() {
+		if (pending.length() > 0) {
+			String rest = pending.toString();
+			pending.setLength(0);
+			downstream.accept(rest);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.deidentify;
+
+import java.util.Collection;
+
+/**
+ * An immutable set of words, such as person names or patient identifiers, that can be looked up
+ * straight from a region of a text without creating a string.
+ * <p>
+ * Only a 64-bit hash of each lower-cased word is kept, in an open-addressing table, so the
+ * dictionary of a large site takes a few megabytes and holds no readable patient data. A hash
+ * collision can only make an innocent word count as a match.
+ * </p>
+ */
+final class TokenDictionary {
+	
+	static final TokenDictionary EMPTY = new TokenDictionary(new long[2], 0);
+	
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	private final long[] table;
+	
+	private final int size;
+	
+	private TokenDictionary(long[] table, int size) {
+		this.table = table;
+		this.size = size;
+	}
+	
+	/**
+	 * @param words the words to add
+	 * @return a dictionary with the words of this one and the given words
+	 */
+	TokenDictionary withAdded(Collection<String> words) {
+		int capacity = Integer.highestOneBit(Math.max(2, (size + words.size()) * 2 - 1)) << 1;
+		long[] grown = new long[capacity];
+		int count = 0;
+		for (long hash : table) {
+			if (hash != 0 && insert(grown, hash)) {
+				count++;
+			}
+		}
+		for (String word : words) {
+			if (insert(grown, hash(word, 0, word.length()))) {
+				count++;
+			}
+		}
+		return new TokenDictionary(grown, count);
+	}
+	
+	/**
+	 * @param text the text
+	 * @param start the start of the word in the text
+	 * @param end the end of the word in the text
+	 * @return true if the word, ignoring case, is in the dictionary
+	 */
+	boolean contains(CharSequence text, int start, int end) {
+		if (size == 0) {
+			return false;
+		}
+		long hash = hash(text, start, end);
+		int mask = table.length - 1;
+		for (int slot = (int) (hash ^ (hash >>> 32)) & mask;; slot = (slot + 1) & mask) {
+			if (table[slot] == hash) {
+				return true;
+			}
+			if (table[slot] == 0) {
+				return false;
+			}
+		}
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	private static boolean insert(long[] table, long hash) {
+		int mask = table.length - 1;
+		for (int slot = (int) (hash ^ (hash >>> 32)) & mask;; slot = (slot + 1) & mask) {
+			if (table[slot] == hash) {
+				return false;
+			}
+			if (table[slot] == 0) {
+				table[slot] = hash;
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * @return the FNV-1a hash of the lower-cased word, never 0, which marks a free slot
+	 */
+	static long hash(CharSequence text, int start, int end) {
+		long hash = FNV_OFFSET;
+		for (int i = start; i < end; i++) {
+			hash ^= Character.toLowerCase(text.charAt(i));
+			hash *= FNV_PRIME;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+}
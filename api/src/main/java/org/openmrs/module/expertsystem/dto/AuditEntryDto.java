@@ -0,0 +1,49 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.dto;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * One row of the audit log: a prompt, its answer or error, the model that produced it and its
+ * timings.
+ */
+@Data
+public class AuditEntryDto {
+	
+	public static final String STATUS_COMPLETED = "COMPLETED";
+	
+	public static final String STATUS_FAILED = "FAILED";
+	
+	private Date dateCreated;
+	
+	private String userKey;
+	
+	private String conversationId;
+	
+	private String model;
+	
+	private String prompt;
+	
+	private String response;
+	
+	private String status;
+	
+	private String error;
+	
+	private long tokenCount;
+	
+	private Long timeToFirstTokenMillis;
+	
+	private long durationMillis;
+}
@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The searchable text of a concept: its non-voided names and its descriptions, along with when it
+ * was last changed.
+ */
+@Data
+public class ConceptTextDto {
+	
+	private Integer conceptId;
+	
+	private Date dateChanged;
+	
+	private boolean retired;
+	
+	private List<String> names = new ArrayList<>();
+	
+	private List<String> descriptions = new ArrayList<>();
+	
+	public ConceptTextDto() {
+	}
+	
+	public ConceptTextDto(Integer conceptId) {
+		this.conceptId = conceptId;
+	}
+	
+	/**
+	 * @return the names and descriptions as a single line, e.g. {@code Weight; Body weight - Patient's
+	 *         weight in kilograms}
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder(String.join("; ", names));
+		for (String description : descriptions) {
+			text.append(text.length() > 0 ? " - " : "").append(description);
+		}
+		return text.toString();
+	}
+}
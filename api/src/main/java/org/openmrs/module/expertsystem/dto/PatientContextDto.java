@@ -0,0 +1,78 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.dto;
+
+import lombok.Data;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The clinical summary of a patient that is put into prompts: sex and age, active conditions and
+ * orders, and the latest observations and encounters, each as one short line.
+ */
+@Data
+public class PatientContextDto {
+	
+	private Integer patientId;
+	
+	private String gender;
+	
+	private Date birthdate;
+	
+	private List<String> conditions = new ArrayList<>();
+	
+	private List<String> orders = new ArrayList<>();
+	
+	private List<String> observations = new ArrayList<>();
+	
+	private List<String> encounters = new ArrayList<>();
+	
+	public PatientContextDto() {
+	}
+	
+	public PatientContextDto(Integer patientId) {
+		this.patientId = patientId;
+	}
+	
+	/**
+	 * @param today the day the age is computed for
+	 * @return the summary as text, e.g. {@code Sex: F, age 34} followed by a section per non-empty
+	 *         list
+	 */
+	public String toText(LocalDate today) {
+		StringBuilder text = new StringBuilder("Patient summary\nSex: ").append(gender != null ? gender : "unknown");
+		if (birthdate != null) {
+			// Hibernate returns a java.sql.Date, which does not support toInstant()
+			LocalDate born = new Date(birthdate.getTime()).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+			text.append(", age ").append(Period.between(born, today).getYears());
+		}
+		appendSection(text, "Active conditions", conditions);
+		appendSection(text, "Active orders", orders);
+		appendSection(text, "Latest observations", observations);
+		appendSection(text, "Recent encounters", encounters);
+		return text.toString();
+	}
+	
+	private static void appendSection(StringBuilder text, String title, List<String> lines) {
+		if (lines.isEmpty()) {
+			return;
+		}
+		text.append('\n').append(title).append(':');
+		for (String line : lines) {
+			text.append("\n- ").append(line);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.dto;
+
+import lombok.Data;
+
+/**
+ * The requests and generated tokens of a user on one day, or the increment of them to persist.
+ */
+@Data
+public class UsageDto {
+	
+	private String userKey;
+	
+	private long requestCount;
+	
+	private long tokenCount;
+	
+	public UsageDto() {
+	}
+	
+	public UsageDto(String userKey, long requestCount, long tokenCount) {
+		this.userKey = userKey;
+		this.requestCount = requestCount;
+		this.tokenCount = tokenCount;
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.guardrail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * An Aho-Corasick automaton over a set of phrases, fed one character at a time.
+ * <p>
+ * Characters are folded before matching: letters to lower case and every digit to {@code #}, so
+ * that {@code ###-###-####} matches any phone number written that way, and {@code 500 mg} any
+ * three-digit dose in milligrams. A state is a node of the phrase trie; its depth is the number of
+ * the last characters that may still become part of a match.
+ * </p>
+ */
+final class AhoCorasick {
+	
+	static final int ROOT = 0;
+	
+	private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+	
+	private final List<Integer> fail = new ArrayList<>();
+	
+	private final List<Integer> depth = new ArrayList<>();
+	
+	/**
+	 * The longest phrase that ends in each state, -1 for none.
+	 */
+	private final List<Integer> match = new ArrayList<>();
+	
+	private final int[] lengths;
+	
+	/**
+	 * @param phrases the phrases, none of them empty
+	 */
+	AhoCorasick(List<String> phrases) {
+		lengths = new int[phrases.size()];
+		newState(0);
+		for (int i = 0; i < phrases.size(); i++) {
+			String phrase = phrases.get(i);
+			int state = ROOT;
+			for (int j = 0; j < phrase.length(); j++) {
+				char c = fold(phrase.charAt(j));
+				Integer next = transitions.get(state).get(c);
+				if (next == null) {
+					next = newState(depth.get(state) + 1);
+					transitions.get(state).put(c, next);
+				}
+				state = next;
+			}
+			lengths[i] = phrase.length();
+			match.set(state, i);
+		}
+		linkFailures();
+	}
+	
+	/**
+	 * @param state the current state
+	 * @param c the next character
+	 * @return the state after the character
+	 */
+	int step(int state, char c) {
+		char folded = fold(c);
+		Integer next = transitions.get(state).get(folded);
+		while (next == null && state != ROOT) {
+			state = fail.get(state);
+			next = transitions.get(state).get(folded);
+		}
+		return next == null ? ROOT : next;
+	}
+	
+	/**
+	 * @return the number of the last characters that may still become part of a match
+	 */
+	int depth(int state) {
+		return depth.get(state);
+	}
+	
+	/**
+	 * @return the index of the longest phrase that ends in the state, -1 for none
+	 */
+	int match(int state) {
+		return match.get(state);
+	}
+	
+	/**
+	 * @return the length of the phrase
+	 */
+	int length(int phrase) {
+		return lengths[phrase];
+	}
+	
+	static char fold(char c) {
+		return Character.isDigit(c) ? '#' : Character.toLowerCase(c);
+	}
+	
+	private int newState(int stateDepth) {
+		transitions.add(new HashMap<>());
+		fail.add(ROOT);
+		depth.add(stateDepth);
+		match.add(-1);
+		return transitions.size() - 1;
+	}
+	
+	/**
+	 * Links each state to the state of its longest proper suffix, breadth first, and lets a state
+	 * without a phrase of its own report the longest phrase ending in its suffixes.
+	 */
+	private void linkFailures() {
+		Queue<Integer> queue = new ArrayDeque<>(transitions.get(ROOT).values());
+		while (!queue.isEmpty()) {
+			int state = queue.remove();
+			for (Map.Entry<Character, Integer> transition : transitions.get(state).entrySet()) {
+				int child = transition.getValue();
+				int suffix = step(fail.get(state), transition.getKey());
+				fail.set(child, suffix);
+				if (match.get(child) < 0) {
+					match.set(child, match.get(suffix));
+				}
+				queue.add(child);
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.guardrail;
+
+import java.util.function.Consumer;
+
+/**
+ * Applies the {@link OutputGuardrail} to one stream of tokens.
+ * <p>
+ * Each character costs one step of the automaton. Only the last characters that may still become
+ * part of a phrase are held back, never more than the longest phrase; all others are passed on
+ * with the token they arrived in. A redacted phrase is passed on as the mask, and a blocked phrase
+ * fails the token with an {@link OutputBlockedException} before any of it is passed on.
+ * </p>
+ * <p>
+ * A stream serves one sequence of tokens, which arrive one at a time; it is not thread-safe.
+ * </p>
+ */
+public class GuardedStream implements Consumer<String> {
+	
+	private final AhoCorasick automaton;
+	
+	private final boolean[] blocked;
+	
+	private final String mask;
+	
+	private final Consumer<String> downstream;
+	
+	private final StringBuilder held = new StringBuilder();
+	
+	private int state = AhoCorasick.ROOT;
+	
+	/**
+	 * @param automaton the phrases, null to pass every token on unchanged
+	 * @param blocked whether each phrase blocks the output rather than being redacted
+	 * @param mask the replacement of a redacted phrase
+	 * @param downstream receives the checked text
+	 */
+	GuardedStream(AhoCorasick automaton, boolean[] blocked, String mask, Consumer<String> downstream) {
+		this.automaton = automaton;
+		this.blocked = blocked;
+		this.mask = mask;
+		this.downstream = downstream;
+	}
+	
+	/**
+	 * Checks a token and passes on the text that can no longer become part of a phrase.
+	 * 
+	 * @param token the token
+	 * @throws OutputBlockedException if a blocked phrase is complete
+	 */
+	@Override
+	public void accept(String token) {
+		if (automaton == null) {
+			downstream.accept(token);
+			return;
+		}
+		StringBuilder checked = new StringBuilder(token.length());
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			held.append(c);
+			state = automaton.step(state, c);
+			int phrase = automaton.match(state);
+			if (phrase >= 0) {
+				if (blocked[phrase]) {
+					held.setLength(0);
+					state = AhoCorasick.ROOT;
+					throw new OutputBlockedException("The response was blocked by the output guardrail");
+				}
+				held.setLength(held.length() - automaton.length(phrase));
+				checked.append(held).append(mask);
+				held.setLength(0);
+				state = AhoCorasick.ROOT;
+			} else {
+				int release = held.length() - automaton.depth(state);
+				if (release > 0) {
+					checked.append(held, 0, release);
+					held.delete(0, release);
+				}
+			}
+		}
+		if (checked.length() > 0) {
+			downstream.accept(checked.toString());
+		}
+	}
+	
+	/**
+	 * Passes on the characters held back at the end of the stream, which completed no phrase.
+	 */
+	public void finish() {
+		if (held.length() > 0) {
+			String rest = held.toString();
+			held.setLength(0);
+			state = AhoCorasick.ROOT;
+			downstream.accept(rest);
+		}
+	}
+}
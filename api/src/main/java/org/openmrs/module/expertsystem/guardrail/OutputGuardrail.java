@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.guardrail;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Redacts or blocks phrases in the output of the models before it reaches a client.
+ * <p>
+ * The phrases are read from {@code expertsystem.outputGuardrailRules}, one per line:
+ * {@code redact:<phrase>} replaces the phrase with {@code expertsystem.outputGuardrailMask} and
+ * {@code block:<phrase>} fails the response; a line without a prefix redacts. Matching ignores
+ * case, and {@code #} stands for any digit, e.g. {@code redact:###-###-####}. Without rules the
+ * guardrail passes the output on unchanged.
+ * </p>
+ * <p>
+ * All phrases are matched at once by an {@link AhoCorasick} automaton, so the cost per token
+ * depends on the token alone, not on the text before it or the number of phrases.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemOutputGuardrail")
+public class OutputGuardrail {
+	
+	static final String BLOCK = "block:";
+	
+	static final String REDACT = "redact:";
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private volatile Rules rules = new Rules(null, new boolean[0], ConfigurationUtils.OUTPUT_GUARDRAIL_MASK);
+	
+	/**
+	 * Reads the rules. Called when the module starts.
+	 */
+	public void initialize() {
+		String mask = ConfigurationUtils.getConfigurationValue(adminService, "OUTPUT_GUARDRAIL_MASK",
+		    "expertsystem.outputGuardrailMask", ConfigurationUtils.OUTPUT_GUARDRAIL_MASK);
+		rules = parse(ConfigurationUtils.getConfigurationValue(adminService, "OUTPUT_GUARDRAIL_RULES",
+		    "expertsystem.outputGuardrailRules", ""), mask);
+		if (rules.automaton != null) {
+			log.info(ExpertsystemConstants.GREEN + "Output guardrail checks {} phrases" + ExpertsystemConstants.RESET,
+			    rules.blocked.length);
+		}
+	}
+	
+	/**
+	 * Starts checking a stream of tokens.
+	 * 
+	 * @param downstream receives the checked text
+	 * @return the stream to feed the tokens into
+	 */
+	public GuardedStream guard(Consumer<String> downstream) {
+		Rules current = rules;
+		return new GuardedStream(current.automaton, current.blocked, current.mask, downstream);
+	}
+	
+	/**
+	 * Checks a complete text.
+	 * 
+	 * @param text the text, may be null
+	 * @return the text with its redacted phrases masked
+	 * @throws OutputBlockedException if the text contains a blocked phrase
+	 */
+	public String apply(String text) {
+		if (text == null || rules.automaton == null) {
+			return text;
+		}
+		StringBuilder checked = new StringBuilder(text.length());
+		GuardedStream stream = guard(checked::append);
+		stream.accept(text);
+		stream.finish();
+		return checked.toString();
+	}
+	
+	static Rules parse(String lines, String mask) {
+		List<String> phrases = new ArrayList<>();
+		List<Boolean> blocked = new ArrayList<>();
+		for (String line : StringUtils.split(StringUtils.defaultString(lines), "\r\n")) {
+			String rule = line.trim();
+			boolean block = StringUtils.startsWithIgnoreCase(rule, BLOCK);
+			if (block) {
+				rule = rule.substring(BLOCK.length());
+			} else if (StringUtils.startsWithIgnoreCase(rule, REDACT)) {
+				rule = rule.substring(REDACT.length());
+			}
+			rule = rule.trim();
+			if (!rule.isEmpty()) {
+				phrases.add(rule);
+				blocked.add(block);
+			}
+		}
+		boolean[] blocks = new boolean[blocked.size()];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = blocked.get(i);
+		}
+		return new Rules(phrases.isEmpty() ? null : new AhoCorasick(phrases), blocks, mask);
+	}
+	
+	static final class Rules {
+		
+		final AhoCorasick automaton;
+		
+		final boolean[] blocked;
+		
+		final String mask;
+		
+		Rules(AhoCorasick automaton, boolean[] blocked, String mask) {
+			this.automaton = automaton;
+			this.blocked = blocked;
+			this.mask = mask;
+		}
+	}
+}
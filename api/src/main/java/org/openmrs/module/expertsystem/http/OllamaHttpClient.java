@@ -0,0 +1,351 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.http;
+
+import dev.langchain4j.exception.HttpException;
+import dev.langchain4j.exception.TimeoutException;
+import dev.langchain4j.http.client.HttpClient;
+import dev.langchain4j.http.client.HttpRequest;
+import dev.langchain4j.http.client.SuccessfulHttpResponse;
+import dev.langchain4j.http.client.sse.ServerSentEvent;
+import dev.langchain4j.http.client.sse.ServerSentEventContext;
+import dev.langchain4j.http.client.sse.ServerSentEventListener;
+import dev.langchain4j.http.client.sse.ServerSentEventListenerUtils;
+import dev.langchain4j.http.client.sse.ServerSentEventParser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A langchain4j {@link HttpClient} over one shared JDK client, so that every model and the
+ * {@code /models} endpoint reuse the same pool of keep-alive connections to Ollama.
+ * <p>
+ * Three timeouts apply:
+ * <ul>
+ * <li>connect - set on the shared JDK client</li>
+ * <li>first byte - the longest wait for the response headers of a streamed request. Ollama sends
+ * them with the first chunk. A plain request gets its headers only once the whole answer is ready,
+ * so it waits up to the response timeout instead</li>
+ * <li>idle - the longest gap between two reads of a streamed body. {@link #closeIdleStreams()}
+ * closes the stream once the gap is exceeded, and the listener gets a {@link TimeoutException}</li>
+ * </ul>
+ * The client counts requests, failures and each kind of timeout, the requests in flight and the
+ * streams open, and the mean time to the response headers.
+ * </p>
+ */
+public class OllamaHttpClient implements HttpClient {
+	
+	private final java.net.http.HttpClient client;
+	
+	private final Duration firstByteTimeout;
+	
+	private final Duration responseTimeout;
+	
+	private final long idleTimeoutNanos;
+	
+	private final LongSupplier clock;
+	
+	private final Set<WatchedStream> streams = ConcurrentHashMap.newKeySet();
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	private final AtomicLong requests = new AtomicLong();
+	
+	private final AtomicLong failures = new AtomicLong();
+	
+	private final AtomicLong connectTimeouts = new AtomicLong();
+	
+	private final AtomicLong firstByteTimeouts = new AtomicLong();
+	
+	private final AtomicLong idleTimeouts = new AtomicLong();
+	
+	private final AtomicLong headersReceived = new AtomicLong();
+	
+	private final AtomicLong headersNanos = new AtomicLong();
+	
+	/**
+	 * @param client the shared JDK client
+	 * @param firstByteTimeout the longest wait for the headers of a streamed response
+	 * @param responseTimeout the longest wait for a response that is not streamed
+	 * @param idleTimeout the longest gap between two reads of a streamed body
+	 * @param clock the time source, in nanoseconds
+	 */
+	public OllamaHttpClient(java.net.http.HttpClient client, Duration firstByteTimeout, Duration responseTimeout,
+	        Duration idleTimeout, LongSupplier clock) {
+		this.client = client;
+		this.firstByteTimeout = firstByteTimeout;
+		this.responseTimeout = responseTimeout;
+		this.idleTimeoutNanos = idleTimeout.toNanos();
+		this.clock = clock;
+	}
+	
+	@Override
+	public SuccessfulHttpResponse execute(HttpRequest request) {
+		long start = begin();
+		try {
+			HttpResponse<String> response = client.send(toJdkRequest(request, responseTimeout),
+			    HttpResponse.BodyHandlers.ofString());
+			headersReceived(start);
+			if (!isSuccessful(response)) {
+				failures.incrementAndGet();
+				throw new HttpException(response.statusCode(), response.body());
+			}
+			return fromJdkResponse(response, response.body());
+		}
+		catch (HttpTimeoutException e) {
+			countTimeout(e);
+			throw new TimeoutException(e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failures.incrementAndGet();
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			failures.incrementAndGet();
+			throw new RuntimeException(e);
+		}
+		finally {
+			inFlight.decrementAndGet();
+		}
+	}
+	
+	@Override
+	public void execute(HttpRequest request, ServerSentEventParser parser, ServerSentEventListener listener) {
+		long start = begin();
+		client.sendAsync(toJdkRequest(request, firstByteTimeout), HttpResponse.BodyHandlers.ofInputStream())
+		        .thenAccept(response -> {
+			        headersReceived(start);
+			        if (!isSuccessful(response)) {
+				        failures.incrementAndGet();
+				        HttpException error = new HttpException(response.statusCode(), readBody(response));
+				        ServerSentEventListenerUtils.ignoringExceptions(() -> listener.onError(error));
+				        return;
+			        }
+			        ServerSentEventListenerUtils.ignoringExceptions(() -> listener.onOpen(fromJdkResponse(response, null)));
+			        stream(response.body(), parser, listener);
+		        }).exceptionally(error -> {
+			        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause()
+			                : error;
+			        if (cause instanceof HttpTimeoutException) {
+				        countTimeout((HttpTimeoutException) cause);
+				        cause = new TimeoutException(cause);
+			        } else {
+				        failures.incrementAndGet();
+			        }
+			        Throwable reported = cause;
+			        ServerSentEventListenerUtils.ignoringExceptions(() -> listener.onError(reported));
+			        return null;
+		        }).whenComplete((ignored, error) -> inFlight.decrementAndGet());
+	}
+	
+	private void stream(InputStream body, ServerSentEventParser parser, ServerSentEventListener listener) {
+		WatchedStream stream = new WatchedStream(body);
+		streams.add(stream);
+		IdleAwareListener idleAware = new IdleAwareListener(stream, listener);
+		try {
+			parser.parse(stream, idleAware);
+		}
+		finally {
+			streams.remove(stream);
+			try {
+				stream.close();
+			}
+			catch (IOException ignored) {
+				// the stream is finished either way
+			}
+		}
+		if (stream.idle && !idleAware.failed) {
+			// the parser saw the closed stream as its end
+			ServerSentEventListenerUtils.ignoringExceptions(() -> listener.onError(idleTimeout()));
+		}
+		ServerSentEventListenerUtils.ignoringExceptions(listener::onClose);
+	}
+	
+	/**
+	 * Closes the streams that have not delivered data within the idle timeout. Called once a second
+	 * by {@link SharedHttpClientBuilder}.
+	 * 
+	 * @return the number of streams closed
+	 */
+	public int closeIdleStreams() {
+		long now = clock.getAsLong();
+		int closed = 0;
+		for (WatchedStream stream : streams) {
+			if (now - stream.lastReadNanos > idleTimeoutNanos && !stream.idle) {
+				stream.idle = true;
+				idleTimeouts.incrementAndGet();
+				failures.incrementAndGet();
+				streams.remove(stream);
+				try {
+					stream.close();
+				}
+				catch (IOException ignored) {
+					// the parser fails on its next read instead
+				}
+				closed++;
+			}
+		}
+		return closed;
+	}
+	
+	/**
+	 * @return the request, failure and timeout counts, the requests in flight and the streams open,
+	 *         and the mean time to the response headers
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("requests", requests.get());
+		statistics.put("inFlight", inFlight.get());
+		statistics.put("openStreams", streams.size());
+		statistics.put("failures", failures.get());
+		statistics.put("connectTimeouts", connectTimeouts.get());
+		statistics.put("firstByteTimeouts", firstByteTimeouts.get());
+		statistics.put("idleTimeouts", idleTimeouts.get());
+		long received = headersReceived.get();
+		statistics.put("meanMillisToHeaders",
+		    received == 0 ? 0.0 : TimeUnit.NANOSECONDS.toMicros(headersNanos.get() / received) / 1000.0);
+		statistics.put("connectTimeoutMillis", client.connectTimeout().map(Duration::toMillis).orElse(0L));
+		statistics.put("firstByteTimeoutMillis", firstByteTimeout.toMillis());
+		statistics.put("idleTimeoutMillis", TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos));
+		return statistics;
+	}
+	
+	private long begin() {
+		requests.incrementAndGet();
+		inFlight.incrementAndGet();
+		return clock.getAsLong();
+	}
+	
+	private void headersReceived(long start) {
+		headersReceived.incrementAndGet();
+		headersNanos.addAndGet(clock.getAsLong() - start);
+	}
+	
+	private void countTimeout(HttpTimeoutException timeout) {
+		if (timeout instanceof HttpConnectTimeoutException) {
+			connectTimeouts.incrementAndGet();
+		} else {
+			firstByteTimeouts.incrementAndGet();
+		}
+	}
+	
+	private TimeoutException idleTimeout() {
+		return new TimeoutException(
+		        "No data from Ollama for " + TimeUnit.NANOSECONDS.toSeconds(idleTimeoutNanos) + " seconds");
+	}
+	
+	private static java.net.http.HttpRequest toJdkRequest(HttpRequest request, Duration timeout) {
+		java.net.http.HttpRequest.Builder builder = java.net.http.HttpRequest.newBuilder().uri(URI.create(request.url()))
+		        .timeout(timeout);
+		request.headers().forEach((name, values) -> values.forEach(value -> builder.header(name, value)));
+		java.net.http.HttpRequest.BodyPublisher body = request.body() == null
+		        ? java.net.http.HttpRequest.BodyPublishers.noBody()
+		        : java.net.http.HttpRequest.BodyPublishers.ofString(request.body());
+		return builder.method(request.method().name(), body).build();
+	}
+	
+	private static boolean isSuccessful(HttpResponse<?> response) {
+		return response.statusCode() >= 200 && response.statusCode() < 300;
+	}
+	
+	private static SuccessfulHttpResponse fromJdkResponse(HttpResponse<?> response, String body) {
+		return SuccessfulHttpResponse.builder().statusCode(response.statusCode()).headers(response.headers().map())
+		        .body(body).build();
+	}
+	
+	private static String readBody(HttpResponse<InputStream> response) {
+		try (InputStream body = response.body()) {
+			return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * A response body that remembers when it last delivered data.
+	 */
+	private class WatchedStream extends FilterInputStream {
+		
+		volatile long lastReadNanos = clock.getAsLong();
+		
+		volatile boolean idle;
+		
+		WatchedStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			lastReadNanos = clock.getAsLong();
+			return read;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			lastReadNanos = clock.getAsLong();
+			return read;
+		}
+	}
+	
+	/**
+	 * Reports the error of a stream closed for idleness as a timeout.
+	 */
+	private class IdleAwareListener implements ServerSentEventListener {
+		
+		private final WatchedStream stream;
+		
+		private final ServerSentEventListener delegate;
+		
+		volatile boolean failed;
+		
+		IdleAwareListener(WatchedStream stream, ServerSentEventListener delegate) {
+			this.stream = stream;
+			this.delegate = delegate;
+		}
+		
+		@Override
+		public void onEvent(ServerSentEvent event, ServerSentEventContext context) {
+			delegate.onEvent(event, context);
+		}
+		
+		@Override
+		public void onEvent(ServerSentEvent event) {
+			delegate.onEvent(event);
+		}
+		
+		@Override
+		public void onError(Throwable error) {
+			failed = true;
+			delegate.onError(stream.idle ? idleTimeout() : error);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.http;
+
+import dev.langchain4j.http.client.HttpClientBuilder;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the same {@link OllamaHttpClient} to every Ollama model, so that they share one pool of
+ * keep-alive connections instead of each building a client of its own. The client is created on
+ * first use and configured via:
+ * <ul>
+ * <li>{@code expertsystem.httpConnectTimeoutSeconds} - the longest wait for a new connection</li>
+ * <li>{@code expertsystem.httpFirstByteTimeoutSeconds} - the longest wait for the first chunk of a
+ * streamed response</li>
+ * <li>{@code expertsystem.httpIdleTimeoutSeconds} - the longest gap between two chunks of a
+ * streamed response</li>
+ * <li>{@code expertsystem.httpKeepAliveSeconds} - how long an unused connection stays in the pool.
+ * The JDK reads this once per JVM, so it applies only when the JVM has not set
+ * {@code jdk.httpclient.keepalive.timeout} and no JDK HTTP client was used before</li>
+ * </ul>
+ * A response that is not streamed arrives in one piece, so it may take up to
+ * {@code expertsystem.timeoutDuration} minutes.
+ * <p>
+ * The timeouts belong to the module: the values a model builder passes to
+ * {@link #connectTimeout(Duration)} and {@link #readTimeout(Duration)} are ignored.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemHttpClientBuilder")
+public class SharedHttpClientBuilder implements HttpClientBuilder, DisposableBean {
+	
+	private static final String KEEP_ALIVE_PROPERTY = "jdk.httpclient.keepalive.timeout";
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private OllamaHttpClient client;
+	
+	private Disposable idleWatchdog;
+	
+	@Override
+	public synchronized OllamaHttpClient build() {
+		if (client == null) {
+			Duration connectTimeout = connectTimeout();
+			Duration firstByteTimeout = readTimeout();
+			Duration responseTimeout = Duration.ofMinutes(Long.parseLong(ConfigurationUtils.getConfigurationValue(
+			    adminService, "TIMEOUT_DURATION", "expertsystem.timeoutDuration",
+			    ConfigurationUtils.OllamaDefaults.DEFAULT_TIMEOUT_MINUTES)));
+			Duration idleTimeout = Duration.ofSeconds(
+			    getInt("HTTP_IDLE_TIMEOUT_SECONDS", "expertsystem.httpIdleTimeoutSeconds",
+			        ConfigurationUtils.HTTP_IDLE_TIMEOUT_SECONDS));
+			if (System.getProperty(KEEP_ALIVE_PROPERTY) == null) {
+				System.setProperty(KEEP_ALIVE_PROPERTY, String.valueOf(getInt("HTTP_KEEP_ALIVE_SECONDS",
+				    "expertsystem.httpKeepAliveSeconds", ConfigurationUtils.HTTP_KEEP_ALIVE_SECONDS)));
+			}
+			// Ollama speaks HTTP/1.1 only; asking for HTTP/2 would add an upgrade attempt to each connection
+			java.net.http.HttpClient shared = java.net.http.HttpClient.newBuilder()
+			        .version(java.net.http.HttpClient.Version.HTTP_1_1).connectTimeout(connectTimeout).build();
+			client = new OllamaHttpClient(shared, firstByteTimeout, responseTimeout, idleTimeout, System::nanoTime);
+			idleWatchdog = Observable.interval(1, 1, TimeUnit.SECONDS).subscribe(tick -> client.closeIdleStreams());
+			log.info(ExpertsystemConstants.GREEN + "Ollama HTTP client: connect timeout {}s, first byte timeout {}s, "
+			        + "idle timeout {}s" + ExpertsystemConstants.RESET,
+			    connectTimeout.getSeconds(), firstByteTimeout.getSeconds(), idleTimeout.getSeconds());
+		}
+		return client;
+	}
+	
+	/**
+	 * @return the connect timeout, from {@code expertsystem.httpConnectTimeoutSeconds}
+	 */
+	@Override
+	public Duration connectTimeout() {
+		return Duration.ofSeconds(getInt("HTTP_CONNECT_TIMEOUT_SECONDS", "expertsystem.httpConnectTimeoutSeconds",
+		    ConfigurationUtils.HTTP_CONNECT_TIMEOUT_SECONDS));
+	}
+	
+	/**
+	 * Ignored, the connect timeout is configured by the module.
+	 */
+	@Override
+	public HttpClientBuilder connectTimeout(Duration timeout) {
+		return this;
+	}
+	
+	/**
+	 * @return the first byte timeout, from {@code expertsystem.httpFirstByteTimeoutSeconds}
+	 */
+	@Override
+	public Duration readTimeout() {
+		return Duration.ofSeconds(getInt("HTTP_FIRST_BYTE_TIMEOUT_SECONDS", "expertsystem.httpFirstByteTimeoutSeconds",
+		    ConfigurationUtils.HTTP_FIRST_BYTE_TIMEOUT_SECONDS));
+	}
+	
+	/**
+	 * Ignored, the read timeouts are configured by the module.
+	 */
+	@Override
+	public HttpClientBuilder readTimeout(Duration timeout) {
+		return this;
+	}
+	
+	/**
+	 * @see OllamaHttpClient#getStatistics()
+	 */
+	public Map<String, Object> getStatistics() {
+		return build().getStatistics();
+	}
+	
+	@Override
+	public synchronized void destroy() {
+		if (idleWatchdog != null) {
+			idleWatchdog.dispose();
+		}
+	}
+	
+	private int getInt(String envVar, String globalProperty, int defaultValue) {
+		return Integer.parseInt(
+		    ConfigurationUtils.getConfigurationValue(adminService, envVar, globalProperty, String.valueOf(defaultValue)));
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.logging;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.listener.ChatModelErrorContext;
+import dev.langchain4j.model.chat.listener.ChatModelListener;
+import dev.langchain4j.model.chat.listener.ChatModelRequestContext;
+import dev.langchain4j.model.chat.listener.ChatModelResponseContext;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.memory.ConversationSummarizer;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs a sample of the requests sent to the chat models and their responses.
+ * <p>
+ * Logging every prompt and answer synchronously costs CPU and disk at volume and copies patient
+ * details into the logs. This listener replaces the models' own {@code logRequests} and
+ * {@code logResponses}:
+ * <ul>
+ * <li>{@code expertsystem.modelLogSampleRate} - fraction of requests logged, 0 (default) to 1. A
+ * response is logged exactly when its request was, so pairs stay together</li>
+ * <li>{@code expertsystem.modelLogMaxChars} - each message is truncated to this length</li>
+ * <li>{@code expertsystem.modelLogRedact} - mask e-mail addresses, dates, phone numbers and
+ * identifiers, plus the regular expressions in {@code expertsystem.modelLogRedactPatterns}, one per
+ * line</li>
+ * </ul>
+ * The model thread only draws the sample; rendering, redaction and the write to the log happen on a
+ * single background thread fed by a bounded queue. When the queue is full the log line is dropped
+ * rather than slowing the request. The settings are re-read every
+ * {@value #SETTINGS_REFRESH_MILLIS} ms, so full logging can be switched on for debugging without a
+ * restart.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemChatModelLogger")
+public class ChatModelLogger implements ChatModelListener, DisposableBean {
+	
+	static final long SETTINGS_REFRESH_MILLIS = 30000;
+	
+	private static final String SAMPLED = ChatModelLogger.class.getName() + ".sampled";
+	
+	private static final String START_NANOS = ChatModelLogger.class.getName() + ".start";
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final AtomicLong dropped = new AtomicLong();
+	
+	private final AtomicLong logged = new AtomicLong();
+	
+	private final ThreadPoolExecutor appender = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+	        new ArrayBlockingQueue<>(ConfigurationUtils.MODEL_LOG_QUEUE_CAPACITY), runnable -> {
+		        Thread thread = new Thread(runnable);
+		        thread.setName("expertsystem-model-log");
+		        thread.setDaemon(true);
+		        thread.setPriority(Thread.MIN_PRIORITY);
+		        return thread;
+	        }, (runnable, executor) -> dropped.incrementAndGet());
+	
+	private volatile Settings settings;
+	
+	@Override
+	public void onRequest(ChatModelRequestContext context) {
+		Settings current = getSettings();
+		if (current.sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= current.sampleRate) {
+			return;
+		}
+		context.attributes().put(SAMPLED, Boolean.TRUE);
+		context.attributes().put(START_NANOS, System.nanoTime());
+		ChatRequest request = context.chatRequest();
+		append(() -> log.info("Model request to {}:\n{}", request.modelName(), render(request, current)));
+	}
+	
+	@Override
+	public void onResponse(ChatModelResponseContext context) {
+		if (!Boolean.TRUE.equals(context.attributes().get(SAMPLED))) {
+			return;
+		}
+		long millis = elapsedMillis(context.attributes());
+		Settings current = getSettings();
+		ChatResponse response = context.chatResponse();
+		append(() -> log.info("Model response from {} after {} ms ({}):\n{}", response.modelName(), millis,
+		    response.tokenUsage(), render(response.aiMessage(), current)));
+	}
+	
+	@Override
+	public void onError(ChatModelErrorContext context) {
+		if (!Boolean.TRUE.equals(context.attributes().get(SAMPLED))) {
+			return;
+		}
+		long millis = elapsedMillis(context.attributes());
+		Settings current = getSettings();
+		Throwable error = context.error();
+		append(() -> log.info("Model request to {} failed after {} ms: {}", context.chatRequest().modelName(),
+		    millis, current.clean(String.valueOf(error.getMessage()))));
+	}
+	
+	@Override
+	public void destroy() {
+		appender.shutdown();
+	}
+	
+	/**
+	 * @return the number of logged and dropped log lines
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<>();
+		statistics.put("sampleRate", getSettings().sampleRate);
+		statistics.put("logged", logged.get());
+		statistics.put("dropped", dropped.get());
+		statistics.put("queued", appender.getQueue().size());
+		return statistics;
+	}
+	
+	String render(ChatRequest request, Settings settings) {
+		StringBuilder text = new StringBuilder();
+		for (ChatMessage message : request.messages()) {
+			text.append(message.type()).append(": ").append(render(message, settings)).append('\n');
+		}
+		return text.toString();
+	}
+	
+	String render(ChatMessage message, Settings settings) {
+		String text = settings.clean(ConversationSummarizer.textOf(message));
+		if (message instanceof AiMessage && ((AiMessage) message).hasToolExecutionRequests()) {
+			text += " [tool calls: " + ((AiMessage) message).toolExecutionRequests().size() + "]";
+		}
+		return text;
+	}
+	
+	/**
+	 * Hands a log write to the background thread, dropping it when the queue is full.
+	 */
+	private void append(Runnable write) {
+		appender.execute(() -> {
+			write.run();
+			logged.incrementAndGet();
+		});
+	}
+	
+	private static long elapsedMillis(Map<Object, Object> attributes) {
+		Object start = attributes.get(START_NANOS);
+		return start instanceof Long ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (Long) start) : -1;
+	}
+	
+	Settings getSettings() {
+		Settings current = settings;
+		if (current == null || System.currentTimeMillis() - current.loadedAt > SETTINGS_REFRESH_MILLIS) {
+			current = new Settings(
+			        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "MODEL_LOG_SAMPLE_RATE",
+			            "expertsystem.modelLogSampleRate", ConfigurationUtils.MODEL_LOG_SAMPLE_RATE)),
+			        Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "MODEL_LOG_MAX_CHARS",
+			            "expertsystem.modelLogMaxChars", String.valueOf(ConfigurationUtils.MODEL_LOG_MAX_CHARS))),
+			        Boolean.parseBoolean(ConfigurationUtils.getConfigurationValue(adminService, "MODEL_LOG_REDACT",
+			            "expertsystem.modelLogRedact", "true"))
+			                ? new Redactor(ConfigurationUtils.getConfigurationValue(adminService,
+			                    "MODEL_LOG_REDACT_PATTERNS", "expertsystem.modelLogRedactPatterns", ""))
+			                : null);
+			settings = current;
+		}
+		return current;
+	}
+	
+	/**
+	 * A snapshot of the logging settings.
+	 */
+	static final class Settings {
+		
+		private final long loadedAt = System.currentTimeMillis();
+		
+		private final double sampleRate;
+		
+		private final int maxChars;
+		
+		private final Redactor redactor;
+		
+		Settings(double sampleRate, int maxChars, Redactor redactor) {
+			this.sampleRate = sampleRate;
+			this.maxChars = maxChars;
+			this.redactor = redactor;
+		}
+		
+		String clean(String text) {
+			if (text == null) {
+				return "";
+			}
+			String cleaned = redactor != null ? redactor.redact(text) : text;
+			if (maxChars > 0 && cleaned.length() > maxChars) {
+				cleaned = cleaned.substring(0, maxChars) + "... (" + (cleaned.length() - maxChars) + " more chars)";
+			}
+			return cleaned;
+		}
+	}
+}
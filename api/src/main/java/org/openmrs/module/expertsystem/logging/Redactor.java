@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.logging;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Masks identifying details in text before it is written to a log: e-mail addresses, dates, phone
+ * numbers and other long digit runs such as identifiers, plus any configured patterns. Redaction
+ * is pattern based and does not catch names in free text, so logged prompts should still be
+ * treated as sensitive.
+ */
+public class Redactor {
+	
+	public static final String MASK = "[REDACTED]";
+	
+	private static final List<Pattern> BUILT_IN_PATTERNS = new ArrayList<>();
+	
+	static {
+		// e-mail addresses
+		BUILT_IN_PATTERNS.add(Pattern.compile("[\\w.+-]+@[\\w-]+(\\.[\\w-]+)+"));
+		// dates such as 2024-03-01, 01/03/2024 and 1.3.24
+		BUILT_IN_PATTERNS.add(Pattern.compile("\\b\\d{4}[-/.]\\d{1,2}[-/.]\\d{1,2}\\b"));
+		BUILT_IN_PATTERNS.add(Pattern.compile("\\b\\d{1,2}[-/.]\\d{1,2}[-/.]\\d{2,4}\\b"));
+		// phone numbers, record numbers and other identifiers of six or more digits
+		BUILT_IN_PATTERNS.add(Pattern.compile("\\+?\\d(?:[\\s-]?\\d){5,}"));
+	}
+	
+	private final List<Pattern> patterns;
+	
+	/**
+	 * @param extraPatterns additional regular expressions to mask, separated by new lines, may be
+	 *            blank
+	 */
+	public Redactor(String extraPatterns) {
+		patterns = new ArrayList<>(BUILT_IN_PATTERNS);
+		if (StringUtils.isNotBlank(extraPatterns)) {
+			for (String pattern : extraPatterns.split("\\R")) {
+				if (StringUtils.isNotBlank(pattern)) {
+					patterns.add(Pattern.compile(pattern.trim()));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param text the text, may be null
+	 * @return the text with all matches masked
+	 */
+	public String redact(String text) {
+		if (StringUtils.isEmpty(text)) {
+			return text;
+		}
+		String redacted = text;
+		for (Pattern pattern : patterns) {
+			Matcher matcher = pattern.matcher(redacted);
+			if (matcher.find()) {
+				redacted = matcher.replaceAll(MASK);
+			}
+		}
+		return redacted;
+	}
+}
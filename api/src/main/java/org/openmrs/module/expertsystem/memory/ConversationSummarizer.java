@@ -0,0 +1,310 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.memory;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.concurrency.Priority;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps long conversations short by replacing their older turns with a rolling summary.
+ * <p>
+ * Clients send the whole conversation with every prompt, so without memory every turn pays the
+ * prefill of the entire history. When the summary memory mode is enabled for a conversation, the
+ * messages older than the most recent {@code expertsystem.summaryThresholdMessages} are summarized
+ * by the chat model on the low-priority background executor, never on the request path. Later
+ * prompts of the same conversation get the cached summary in place of the turns it covers.
+ * </p>
+ * <p>
+ * Summaries are updated incrementally: each update summarizes the previous summary together with
+ * the turns that aged out since, so the work per update and the prompt size per turn stay bounded.
+ * A summary is only applied while the conversation still starts with the turns it covers; if the
+ * client edits its history the summary is discarded and rebuilt.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemConversationSummarizer")
+public class ConversationSummarizer {
+	
+	public static final String MEMORY_SUMMARY = "summary";
+	
+	private static final long SLOT_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	
+	static final String SUMMARY_PREFIX = "Summary of the earlier conversation:\n";
+	
+	private static final String SUMMARIZE_INSTRUCTIONS = "You maintain the running summary of a conversation between a "
+	        + "clinician and a clinical assistant. Update the summary with the new turns. Keep patient facts, findings, "
+	        + "medications, doses, decisions and open questions; drop pleasantries. Answer with the summary only.";
+	
+	@Autowired
+	private ChatModel expertSystemChatModel;
+	
+	@Autowired
+	@Qualifier("expertSystemBackgroundExecutor")
+	private ExecutorService backgroundExecutor;
+	
+	@Autowired
+	@Qualifier("expertSystemConcurrencyLimiter")
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final Map<String, ConversationSummary> summaries = Collections
+	        .synchronizedMap(new LinkedHashMap<String, ConversationSummary>(16, 0.75f, true) {
+		        
+		        @Override
+		        protected boolean removeEldestEntry(Map.Entry<String, ConversationSummary> eldest) {
+			        return size() > ConfigurationUtils.SUMMARY_CACHE_SIZE;
+		        }
+	        });
+	
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Checks whether the summary memory mode applies to a prompt.
+	 * 
+	 * @param options the request options, may be null
+	 * @return true if the prompt has a {@code conversation_id} and the {@code memory} option, or
+	 *         else {@code expertsystem.conversationMemory}, is {@value #MEMORY_SUMMARY}
+	 */
+	public boolean isEnabled(Map<String, Object> options) {
+		if (options == null || !(options.get("conversation_id") instanceof String)) {
+			return false;
+		}
+		Object memory = options.get("memory");
+		if (memory instanceof String) {
+			return MEMORY_SUMMARY.equalsIgnoreCase((String) memory);
+		}
+		return MEMORY_SUMMARY.equalsIgnoreCase(ConfigurationUtils.getConfigurationValue(adminService,
+		    "CONVERSATION_MEMORY", "expertsystem.conversationMemory", "none"));
+	}
+	
+	/**
+	 * Replaces the summarized turns of a conversation with its cached summary and schedules a
+	 * summary update when enough turns have aged out. Never blocks on the model.
+	 * 
+	 * @param conversationId the id of the conversation
+	 * @param messages the conversation, oldest first
+	 * @return the messages to send, with the leading system messages, the summary and the turns not
+	 *         covered by it
+	 */
+	public List<ChatMessage> apply(String conversationId, List<ChatMessage> messages) {
+		int start = 0;
+		while (start < messages.size() && messages.get(start) instanceof SystemMessage) {
+			start++;
+		}
+		List<ChatMessage> system = messages.subList(0, start);
+		List<ChatMessage> history = messages.subList(start, messages.size());
+		
+		ConversationSummary summary = summaries.get(conversationId);
+		if (summary != null && !summary.covers(history)) {
+			log.debug("Conversation {} diverged from its summary; discarding it", conversationId);
+			summaries.remove(conversationId, summary);
+			summary = null;
+		}
+		int covered = summary != null ? summary.getMessageCount() : 0;
+		
+		int keep = getThresholdMessages();
+		int end = cutBefore(history, history.size() - keep);
+		if (end - covered >= Math.max(2, keep / 2)) {
+			scheduleUpdate(conversationId, summary, new ArrayList<>(history.subList(0, end)));
+		}
+		
+		if (summary == null) {
+			return messages;
+		}
+		List<ChatMessage> result = new ArrayList<>(system);
+		result.add(SystemMessage.from(SUMMARY_PREFIX + summary.getText()));
+		result.addAll(history.subList(covered, history.size()));
+		log.debug("Replaced {} turns of conversation {} with its summary", covered, conversationId);
+		return result;
+	}
+	
+	/**
+	 * Drops the cached summary of a conversation.
+	 * 
+	 * @param conversationId the id of the conversation
+	 */
+	public void evict(String conversationId) {
+		summaries.remove(conversationId);
+	}
+	
+	private void scheduleUpdate(String conversationId, ConversationSummary previous, List<ChatMessage> history) {
+		if (!pending.add(conversationId)) {
+			return;
+		}
+		try {
+			backgroundExecutor.execute(() -> {
+				try {
+					ConversationSummary updated = summarize(previous, history);
+					// a concurrent divergence may have replaced the summary this update builds on
+					if (previous == null ? summaries.putIfAbsent(conversationId, updated) == null
+					        : summaries.replace(conversationId, previous, updated)) {
+						log.debug("Summarized {} turns of conversation {}", updated.getMessageCount(), conversationId);
+					}
+				}
+				catch (Exception e) {
+					log.warn(ExpertsystemConstants.GOLD + "Failed to summarize conversation {}: {}"
+					        + ExpertsystemConstants.RESET, conversationId, e.getMessage());
+				}
+				finally {
+					pending.remove(conversationId);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			pending.remove(conversationId);
+			log.debug("Background executor busy; postponing summary of conversation {}", conversationId);
+		}
+	}
+	
+	private ConversationSummary summarize(ConversationSummary previous, List<ChatMessage> history) {
+		int from = previous != null ? previous.getMessageCount() : 0;
+		StringBuilder prompt = new StringBuilder();
+		if (previous != null) {
+			prompt.append("Current summary:\n").append(previous.getText()).append("\n\n");
+		}
+		prompt.append("New turns:\n");
+		for (ChatMessage message : history.subList(from, history.size())) {
+			String text = textOf(message);
+			if (StringUtils.isNotBlank(text)) {
+				prompt.append(message.type()).append(": ").append(text).append('\n');
+			}
+		}
+		ChatRequest request = ChatRequest.builder()
+		        .messages(SystemMessage.from(SUMMARIZE_INSTRUCTIONS), UserMessage.from(prompt.toString()))
+		        .maxOutputTokens(getSummaryMaxTokens()).build();
+		// summaries compete with clinicians for the backend only through the background lane
+		String text = concurrencyLimiter.call(Priority.BACKGROUND, SLOT_WAIT_MILLIS,
+		    () -> expertSystemChatModel.chat(request).aiMessage().text());
+		return new ConversationSummary(StringUtils.trimToEmpty(text), history.size(), ConversationSummary.fingerprint(history,
+		    history.size()));
+	}
+	
+	/**
+	 * Moves a cut point back so that tool results stay with the tool call they answer.
+	 */
+	static int cutBefore(List<ChatMessage> history, int index) {
+		int cut = Math.max(0, index);
+		while (cut > 0 && cut < history.size() && history.get(cut) instanceof ToolExecutionResultMessage) {
+			cut--;
+		}
+		return cut;
+	}
+	
+	/**
+	 * @param message a chat message
+	 * @return the text of the message, or null for messages without text
+	 */
+	public static String textOf(ChatMessage message) {
+		if (message instanceof SystemMessage) {
+			return ((SystemMessage) message).text();
+		}
+		if (message instanceof AiMessage) {
+			return ((AiMessage) message).text();
+		}
+		if (message instanceof ToolExecutionResultMessage) {
+			return ((ToolExecutionResultMessage) message).text();
+		}
+		if (message instanceof UserMessage) {
+			StringBuilder text = new StringBuilder();
+			for (Content content : ((UserMessage) message).contents()) {
+				if (content instanceof TextContent) {
+					text.append(((TextContent) content).text());
+				}
+			}
+			return text.toString();
+		}
+		return null;
+	}
+	
+	private int getThresholdMessages() {
+		return Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "SUMMARY_THRESHOLD_MESSAGES",
+		    "expertsystem.summaryThresholdMessages", String.valueOf(ConfigurationUtils.SUMMARY_THRESHOLD_MESSAGES)));
+	}
+	
+	private int getSummaryMaxTokens() {
+		return Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "SUMMARY_MAX_TOKENS",
+		    "expertsystem.summaryMaxTokens", String.valueOf(ConfigurationUtils.SUMMARY_MAX_TOKENS)));
+	}
+	
+	/**
+	 * The cached summary of a conversation's leading turns.
+	 */
+	static final class ConversationSummary {
+		
+		private final String text;
+		
+		private final int messageCount;
+		
+		private final long fingerprint;
+		
+		ConversationSummary(String text, int messageCount, long fingerprint) {
+			this.text = text;
+			this.messageCount = messageCount;
+			this.fingerprint = fingerprint;
+		}
+		
+		String getText() {
+			return text;
+		}
+		
+		int getMessageCount() {
+			return messageCount;
+		}
+		
+		/**
+		 * @return true if the history still starts with the turns this summary was built from
+		 */
+		boolean covers(List<ChatMessage> history) {
+			return history.size() >= messageCount && fingerprint(history, messageCount) == fingerprint;
+		}
+		
+		static long fingerprint(List<ChatMessage> history, int count) {
+			long hash = 17;
+			for (int i = 0; i < count; i++) {
+				ChatMessage message = history.get(i);
+				hash = 31 * hash + message.type().ordinal();
+				hash = 31 * hash + String.valueOf(textOf(message)).hashCode();
+			}
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.patient;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.api.dao.ExpertSystemDao;
+import org.openmrs.module.expertsystem.dto.PatientContextDto;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the clinical summaries of patients that are put into prompts, so that the questions of a
+ * consultation about the same patient read the database once.
+ * <p>
+ * A summary is dropped as soon as data of its patient is saved, voided or purged through the
+ * OpenMRS services, see {@code PatientContextAdvice}. Data written around the services, and orders
+ * that expire, are caught up with after {@code expertsystem.patientContextTtlMinutes}. The least
+ * recently used summaries are evicted first.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemPatientContext")
+public class PatientContextCache {
+	
+	@Autowired
+	@Qualifier("expertSystemDao")
+	private ExpertSystemDao dao;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final LongSupplier clock;
+	
+	/**
+	 * Counts invalidations. A summary read while one happened may be stale, so it is not cached.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	
+	private final LongAdder hits = new LongAdder();
+	
+	private final LongAdder misses = new LongAdder();
+	
+	private final Map<Integer, Summary> summaries = Collections
+	        .synchronizedMap(new LinkedHashMap<Integer, Summary>(16, 0.75f, true) {
+		
+		        @Override
+		        protected boolean removeEldestEntry(Map.Entry<Integer, Summary> eldest) {
+			        return size() > ConfigurationUtils.PATIENT_CONTEXT_CACHE_SIZE;
+		        }
+	        });
+	
+	public PatientContextCache() {
+		this(System::nanoTime);
+	}
+	
+	PatientContextCache(LongSupplier clock) {
+		this.clock = clock;
+	}
+	
+	/**
+	 * @param patientId the patient id
+	 * @return the clinical summary of the patient, or null if there is no such patient
+	 */
+	public String get(int patientId) {
+		long now = clock.getAsLong();
+		Summary cached = summaries.get(patientId);
+		if (cached != null && now - cached.loadedAt < TimeUnit.MINUTES.toNanos(getInt("PATIENT_CONTEXT_TTL_MINUTES",
+		    "expertsystem.patientContextTtlMinutes", ConfigurationUtils.PATIENT_CONTEXT_TTL_MINUTES))) {
+			hits.increment();
+			return cached.text;
+		}
+		misses.increment();
+		long startGeneration = generation.get();
+		PatientContextDto context = dao.getPatientContext(patientId,
+		    getInt("PATIENT_CONTEXT_OBS_LIMIT", "expertsystem.patientContextObsLimit",
+		        ConfigurationUtils.PATIENT_CONTEXT_OBS_LIMIT),
+		    getInt("PATIENT_CONTEXT_ENCOUNTER_LIMIT", "expertsystem.patientContextEncounterLimit",
+		        ConfigurationUtils.PATIENT_CONTEXT_ENCOUNTER_LIMIT),
+		    new Date());
+		if (context == null) {
+			return null;
+		}
+		String text = context.toText(LocalDate.now());
+		synchronized (summaries) {
+			if (generation.get() == startGeneration) {
+				summaries.put(patientId, new Summary(text, now));
+			}
+		}
+		log.debug("Read the clinical summary of patient {} in {} ms", patientId,
+		    TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - now));
+		return text;
+	}
+	
+	/**
+	 * Drops the cached summary of a patient whose data changed.
+	 * 
+	 * @param patientId the patient id, ignored if null
+	 */
+	public void invalidate(Integer patientId) {
+		if (patientId != null) {
+			synchronized (summaries) {
+				generation.incrementAndGet();
+				summaries.remove(patientId);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of cached summaries, and the hits and misses since the module started
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("cached", summaries.size());
+		statistics.put("hits", hits.sum());
+		statistics.put("misses", misses.sum());
+		return statistics;
+	}
+	
+	private int getInt(String envVar, String globalProperty, int defaultValue) {
+		return Integer.parseInt(
+		    ConfigurationUtils.getConfigurationValue(adminService, envVar, globalProperty, String.valueOf(defaultValue)));
+	}
+	
+	private static final class Summary {
+		
+		private final String text;
+		
+		private final long loadedAt;
+		
+		private Summary(String text, long loadedAt) {
+			this.text = text;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
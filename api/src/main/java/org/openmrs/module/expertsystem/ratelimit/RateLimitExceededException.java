@@ -0,0 +1,33 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.ratelimit;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Thrown when a user exceeds the request rate or the daily token quota.
+ */
+public class RateLimitExceededException extends APIException {
+	
+	private final long retryAfterSeconds;
+	
+	public RateLimitExceededException(String message, long retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+	
+	/**
+	 * @return the seconds after which the request may succeed
+	 */
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
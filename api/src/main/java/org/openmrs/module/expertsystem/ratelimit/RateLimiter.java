@@ -0,0 +1,317 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.ratelimit;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.expertsystem.ExpertsystemActivator;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.api.ExpertSystemService;
+import org.openmrs.module.expertsystem.dto.UsageDto;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user rate limits and daily token quotas.
+ * <p>
+ * Every user has two {@link TokenBucket}s:
+ * <ul>
+ * <li>requests - {@code expertsystem.rateLimitRequestsPerSecond} with bursts of up to
+ * {@code expertsystem.rateLimitBurst} requests</li>
+ * <li>generated tokens - {@code expertsystem.dailyTokenQuota}, refilled evenly over a day. Tokens are
+ * charged as they are generated, so a request is admitted while any quota is left and may overdraw
+ * it; the debt delays the next request.</li>
+ * </ul>
+ * A limit of 0 disables it. The limits are read again every {@code expertsystem.usageFlushSeconds}
+ * and changed limits apply from the next request of each user. New buckets, and the buckets rebuilt
+ * for changed limits, are charged with the tokens the user generated today, so neither a changed
+ * limit nor a restart resets a daily quota. The buckets of a user are dropped once both are full
+ * again and the user generated no tokens today, which is when they are no different from new ones.
+ * </p>
+ * <p>
+ * Usage is counted in memory and added to the {@code expertsystem_usage} table in batches every
+ * {@code expertsystem.usageFlushSeconds}. On startup the tokens generated on the current day are
+ * read back into the running totals of the day, which are forgotten when the day changes.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemRateLimiter")
+public class RateLimiter implements DisposableBean {
+	
+	private static final double SECONDS_PER_DAY = TimeUnit.DAYS.toSeconds(1);
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	@Autowired
+	@Qualifier("expertSystemService")
+	private ExpertSystemService expertSystemService;
+	
+	private final Map<String, UserLimits> limits = new ConcurrentHashMap<>();
+	
+	private final Map<String, Usage> pending = new ConcurrentHashMap<>();
+	
+	private final Map<String, Long> tokensToday = new ConcurrentHashMap<>();
+	
+	private volatile LocalDate day = LocalDate.now();
+	
+	private volatile Config config;
+	
+	private volatile Disposable flusher;
+	
+	/**
+	 * Restores today's usage and starts flushing usage to the database. Called when the module
+	 * starts.
+	 */
+	public void initialize() {
+		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
+		if (daemonToken == null) {
+			log.warn(ExpertsystemConstants.GOLD + "Daemon token not available; usage will not be persisted"
+			        + ExpertsystemConstants.RESET);
+			return;
+		}
+		Daemon.runInDaemonThread(() -> {
+			List<UsageDto> usages = expertSystemService.getUsage(today());
+			for (UsageDto usage : usages) {
+				// added to the tokens counted since startup
+				tokensToday.merge(usage.getUserKey(), usage.getTokenCount(), Long::sum);
+			}
+			log.info("Restored the usage of {} users", usages.size());
+		}, daemonToken);
+		
+		long period = Long.parseLong(ConfigurationUtils.getConfigurationValue(adminService, "USAGE_FLUSH_SECONDS",
+		    "expertsystem.usageFlushSeconds", String.valueOf(ConfigurationUtils.USAGE_FLUSH_SECONDS)));
+		flusher = Observable.interval(period, period, TimeUnit.SECONDS)
+		        .subscribe(tick -> Daemon.runInDaemonThread(this::maintain, daemonToken));
+	}
+	
+	@Override
+	public void destroy() {
+		if (flusher != null) {
+			flusher.dispose();
+		}
+		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
+		if (daemonToken != null) {
+			try {
+				Daemon.runInDaemonThreadAndWait(this::flush, daemonToken);
+			}
+			catch (Exception e) {
+				log.warn("Failed to persist usage on shutdown: {}", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Admits a request of a user or rejects it.
+	 * 
+	 * @param userKey the user
+	 * @throws RateLimitExceededException if the user sends requests too fast or has no tokens left
+	 *             today
+	 */
+	public void acquire(String userKey) {
+		UserLimits userLimits = getLimits(userKey);
+		if (userLimits.requests != null && !userLimits.requests.tryAcquire(1)) {
+			throw new RateLimitExceededException("Too many requests; please slow down",
+			        userLimits.requests.getSecondsUntilAvailable(1));
+		}
+		if (userLimits.tokens != null && userLimits.tokens.getAvailable() <= 0) {
+			throw new RateLimitExceededException(
+			        "Daily quota of " + (long) userLimits.config.dailyTokens + " generated tokens exhausted",
+			        userLimits.tokens.getSecondsUntilAvailable(1));
+		}
+		count(userKey, 1, 0);
+	}
+	
+	/**
+	 * Charges generated tokens to a user's daily quota.
+	 * 
+	 * @param userKey the user
+	 * @param tokens the number of generated tokens
+	 */
+	public void recordTokens(String userKey, long tokens) {
+		UserLimits userLimits = limits.get(userKey);
+		if (userLimits != null && userLimits.tokens != null) {
+			userLimits.tokens.consume(tokens);
+		}
+		tokensToday.merge(userKey, tokens, Long::sum);
+		count(userKey, 0, tokens);
+	}
+	
+	/**
+	 * Reads the limits again, drops idle users and the token totals of a past day, and flushes the
+	 * usage. Must run on a daemon thread.
+	 */
+	void maintain() {
+		config = readConfig();
+		LocalDate now = LocalDate.now();
+		if (!now.equals(day)) {
+			tokensToday.clear();
+			day = now;
+		}
+		// a user with tokens today keeps the bucket, a new one would charge them again in full
+		limits.entrySet().removeIf(entry -> entry.getValue().isIdle()
+		        && (entry.getValue().tokens == null || !tokensToday.containsKey(entry.getKey())));
+		flush();
+	}
+	
+	/**
+	 * Adds the usage counted since the last flush to the database. Must run on a daemon thread.
+	 */
+	void flush() {
+		List<UsageDto> batch = new ArrayList<>();
+		for (String userKey : pending.keySet()) {
+			// taken out under the lock of its entry, so no count made meanwhile is lost
+			pending.computeIfPresent(userKey, (key, usage) -> {
+				if (usage.requests > 0 || usage.tokens > 0) {
+					batch.add(new UsageDto(key, usage.requests, usage.tokens));
+				}
+				return null;
+			});
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			expertSystemService.saveUsage(today(), batch);
+			log.debug("Persisted the usage of {} users", batch.size());
+		}
+		catch (RuntimeException e) {
+			// keep the counts for the next flush
+			for (UsageDto usage : batch) {
+				count(usage.getUserKey(), usage.getRequestCount(), usage.getTokenCount());
+			}
+			log.warn(ExpertsystemConstants.GOLD + "Failed to persist usage: {}" + ExpertsystemConstants.RESET,
+			    e.getMessage());
+		}
+	}
+	
+	private UserLimits getLimits(String userKey) {
+		Config config = getConfig();
+		UserLimits userLimits = limits.get(userKey);
+		if (userLimits != null && userLimits.config.equals(config)) {
+			return userLimits;
+		}
+		return limits.compute(userKey, (key, existing) -> existing != null && existing.config.equals(config) ? existing
+		        : new UserLimits(config, tokensToday.getOrDefault(key, 0L)));
+	}
+	
+	private void count(String userKey, long requests, long tokens) {
+		pending.compute(userKey, (key, usage) -> {
+			Usage counted = usage != null ? usage : new Usage();
+			counted.requests += requests;
+			counted.tokens += tokens;
+			return counted;
+		});
+	}
+	
+	private Config getConfig() {
+		Config current = config;
+		if (current == null) {
+			current = readConfig();
+			config = current;
+		}
+		return current;
+	}
+	
+	private Config readConfig() {
+		return new Config(
+		        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "RATE_LIMIT_REQUESTS_PER_SECOND",
+		            "expertsystem.rateLimitRequestsPerSecond", ConfigurationUtils.RATE_LIMIT_REQUESTS_PER_SECOND)),
+		        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "RATE_LIMIT_BURST",
+		            "expertsystem.rateLimitBurst", String.valueOf(ConfigurationUtils.RATE_LIMIT_BURST))),
+		        Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "DAILY_TOKEN_QUOTA",
+		            "expertsystem.dailyTokenQuota", String.valueOf(ConfigurationUtils.DAILY_TOKEN_QUOTA))));
+	}
+	
+	private static Date today() {
+		return Date.from(LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+	
+	private static final class Config {
+		
+		final double requestsPerSecond;
+		
+		final double burst;
+		
+		final double dailyTokens;
+		
+		Config(double requestsPerSecond, double burst, double dailyTokens) {
+			this.requestsPerSecond = requestsPerSecond;
+			this.burst = burst;
+			this.dailyTokens = dailyTokens;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Config)) {
+				return false;
+			}
+			Config config = (Config) other;
+			return requestsPerSecond == config.requestsPerSecond && burst == config.burst
+			        && dailyTokens == config.dailyTokens;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Double.hashCode(requestsPerSecond) * 31 * 31 + Double.hashCode(burst) * 31 + Double.hashCode(dailyTokens);
+		}
+	}
+	
+	private static final class UserLimits {
+		
+		final Config config;
+		
+		final TokenBucket requests;
+		
+		final TokenBucket tokens;
+		
+		UserLimits(Config config, long tokensUsedToday) {
+			this.config = config;
+			this.requests = config.requestsPerSecond > 0
+			        ? new TokenBucket(Math.max(1, config.burst), config.requestsPerSecond)
+			        : null;
+			this.tokens = config.dailyTokens > 0 ? new TokenBucket(config.dailyTokens, config.dailyTokens / SECONDS_PER_DAY,
+			        config.dailyTokens - tokensUsedToday, System::nanoTime) : null;
+		}
+		
+		boolean isIdle() {
+			return (requests == null || requests.getAvailable() >= Math.max(1, config.burst))
+			        && (tokens == null || tokens.getAvailable() >= config.dailyTokens);
+		}
+	}
+	
+	/**
+	 * The usage of a user since the last flush, only changed under the lock of its map entry.
+	 */
+	private static final class Usage {
+		
+		long requests;
+		
+		long tokens;
+	}
+}
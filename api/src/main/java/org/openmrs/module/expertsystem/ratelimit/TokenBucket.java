@@ -0,0 +1,131 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free token bucket.
+ * <p>
+ * The bucket holds up to {@code capacity} permits and refills continuously at
+ * {@code refillPerSecond}. The level and the time it was computed at are kept in one immutable
+ * state that is replaced with compare-and-set, so concurrent callers never block each other.
+ * {@link #consume(double)} may drive the level below zero, to charge usage that is only known
+ * after the fact (e.g. generated tokens); the debt is repaid by later refills.
+ * </p>
+ */
+public class TokenBucket {
+	
+	private final double capacity;
+	
+	private final double refillPerNano;
+	
+	private final LongSupplier nanoClock;
+	
+	private final AtomicReference<State> state;
+	
+	public TokenBucket(double capacity, double refillPerSecond) {
+		this(capacity, refillPerSecond, capacity, System::nanoTime);
+	}
+	
+	/**
+	 * @param capacity the maximum number of permits
+	 * @param refillPerSecond the permits added per second
+	 * @param initial the permits available at creation, e.g. the capacity minus usage restored from
+	 *            the database
+	 * @param nanoClock the time source
+	 */
+	public TokenBucket(double capacity, double refillPerSecond, double initial, LongSupplier nanoClock) {
+		this.capacity = capacity;
+		this.refillPerNano = refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.nanoClock = nanoClock;
+		this.state = new AtomicReference<>(new State(Math.min(initial, capacity), nanoClock.getAsLong()));
+	}
+	
+	/**
+	 * Takes permits if enough are available.
+	 * 
+	 * @param permits the permits to take
+	 * @return true if the permits were taken
+	 */
+	public boolean tryAcquire(double permits) {
+		while (true) {
+			State current = state.get();
+			State refilled = refill(current);
+			if (refilled.level < permits) {
+				return false;
+			}
+			if (state.compareAndSet(current, new State(refilled.level - permits, refilled.nanos))) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Takes permits unconditionally, possibly leaving the bucket in debt.
+	 * 
+	 * @param permits the permits to take
+	 */
+	public void consume(double permits) {
+		while (true) {
+			State current = state.get();
+			State refilled = refill(current);
+			if (state.compareAndSet(current, new State(refilled.level - permits, refilled.nanos))) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return the permits available now, negative while in debt
+	 */
+	public double getAvailable() {
+		return refill(state.get()).level;
+	}
+	
+	/**
+	 * @param permits the permits needed
+	 * @return the seconds until that many permits are available, 0 if they are available now
+	 */
+	public long getSecondsUntilAvailable(double permits) {
+		double missing = permits - getAvailable();
+		if (missing <= 0) {
+			return 0;
+		}
+		if (refillPerNano <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return (long) Math.ceil(missing / refillPerNano / TimeUnit.SECONDS.toNanos(1));
+	}
+	
+	private State refill(State current) {
+		long now = nanoClock.getAsLong();
+		long elapsed = now - current.nanos;
+		if (elapsed <= 0 || current.level >= capacity) {
+			return elapsed > 0 ? new State(current.level, now) : current;
+		}
+		return new State(Math.min(capacity, current.level + elapsed * refillPerNano), now);
+	}
+	
+	private static final class State {
+		
+		final double level;
+		
+		final long nanos;
+		
+		State(double level, long nanos) {
+			this.level = level;
+			this.nanos = nanos;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.reasoning;
+
+/**
+ * What happens to the reasoning ("thinking") a model produces before its answer. Most clients never
+ * show it, so by default it is not sent at all.
+ */
+public enum ReasoningMode {
+	
+	/**
+	 * The reasoning is discarded on the server.
+	 */
+	DROP,
+	
+	/**
+	 * Each reasoning passage is sent once it ends, shortened to its opening and its length.
+	 */
+	SUMMARY,
+	
+	/**
+	 * The reasoning is sent in separate reasoning frames, coalesced into larger chunks.
+	 */
+	SEPARATE;
+	
+	public static final String OPTION = "reasoning";
+	
+	/**
+	 * Reads the reasoning mode requested by a caller.
+	 * 
+	 * @param value the requested mode, e.g. the {@code reasoning} option, may be null
+	 * @param defaultMode the mode for a missing or unknown value
+	 * @return the mode
+	 */
+	public static ReasoningMode parse(Object value, ReasoningMode defaultMode) {
+		if (value != null) {
+			for (ReasoningMode mode : values()) {
+				if (mode.name().equalsIgnoreCase(value.toString().trim())) {
+					return mode;
+				}
+			}
+		}
+		return defaultMode;
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.reasoning;
+
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Separates the reasoning of a streamed response from its answer, token by token.
+ * <p>
+ * Reasoning arrives in two ways: models such as deepseek-r1 write it into the answer between
+ * {@code <think>} and {@code </think>}, and models run with {@code expertsystem.enableThinking}
+ * deliver it apart from the answer, see {@link #acceptReasoning(String)}. A tag split over several
+ * tokens is held back until it is complete, so no part of it reaches the answer. Reasoning is then
+ * handled according to the {@link ReasoningMode}.
+ * </p>
+ * <p>
+ * A splitter serves one response, whose tokens arrive one at a time; it is not thread-safe.
+ * </p>
+ */
+public class ReasoningSplitter {
+	
+	static final String OPEN_TAG = "<think>";
+	
+	static final String CLOSE_TAG = "</think>";
+	
+	/**
+	 * The reasoning collected into one frame in {@link ReasoningMode#SEPARATE} mode.
+	 */
+	static final int CHUNK_CHARS = 256;
+	
+	/**
+	 * The opening of a reasoning passage kept in {@link ReasoningMode#SUMMARY} mode.
+	 */
+	static final int SUMMARY_CHARS = 200;
+	
+	private static final Pattern REASONING = Pattern.compile("<think>.*?(</think>\\s*|$)", Pattern.DOTALL);
+	
+	private final ReasoningMode mode;
+	
+	private final Consumer<String> onAnswer;
+	
+	private final Consumer<String> onReasoning;
+	
+	private final StringBuilder pending = new StringBuilder();
+	
+	private final StringBuilder passage = new StringBuilder();
+	
+	private boolean inTag;
+	
+	private boolean inPassage;
+	
+	private int passageChars;
+	
+	private boolean trimAnswer;
+	
+	/**
+	 * @param mode what happens to the reasoning
+	 * @param onAnswer receives the answer text
+	 * @param onReasoning receives the reasoning chunks or summaries
+	 */
+	public ReasoningSplitter(ReasoningMode mode, Consumer<String> onAnswer, Consumer<String> onReasoning) {
+		this.mode = mode;
+		this.onAnswer = onAnswer;
+		this.onReasoning = onReasoning;
+	}
+	
+	/**
+	 * Splits a token of the model's text.
+	 * 
+	 * @param token the token
+	 */
+	public void accept(String token) {
+		String text = pending.length() == 0 ? token : pending.append(token).toString();
+		pending.setLength(0);
+		while (!text.isEmpty()) {
+			String tag = inTag ? CLOSE_TAG : OPEN_TAG;
+			int index = text.indexOf(tag);
+			if (index < 0) {
+				int held = heldBack(text, tag);
+				emit(text.substring(0, text.length() - held), inTag);
+				pending.append(text, text.length() - held, text.length());
+				return;
+			}
+			emit(text.substring(0, index), inTag);
+			inTag = !inTag;
+			if (!inTag) {
+				endPassage();
+				trimAnswer = true;
+			}
+			text = text.substring(index + tag.length());
+		}
+	}
+	
+	/**
+	 * Takes reasoning the model delivered apart from its answer.
+	 * 
+	 * @param reasoning the reasoning text
+	 */
+	public void acceptReasoning(String reasoning) {
+		emit(reasoning, true);
+	}
+	
+	/**
+	 * Ends the response: passes on text held back as a possible tag and ends an open reasoning
+	 * passage.
+	 */
+	public void finish() {
+		if (pending.length() > 0) {
+			String text = pending.toString();
+			pending.setLength(0);
+			emit(text, inTag);
+		}
+		endPassage();
+	}
+	
+	/**
+	 * Removes the reasoning from a complete response, including a passage the model never closed.
+	 * 
+	 * @param text the response, may be null
+	 * @return the answer
+	 */
+	public static String strip(String text) {
+		return text == null || !text.contains(OPEN_TAG) ? text : REASONING.matcher(text).replaceAll("");
+	}
+	
+	private void emit(String text, boolean reasoning) {
+		if (text.isEmpty()) {
+			return;
+		}
+		if (reasoning) {
+			reason(text);
+			return;
+		}
+		if (inPassage) {
+			// reasoning delivered apart from the answer ends with the first answer token
+			endPassage();
+			trimAnswer = true;
+		}
+		if (trimAnswer) {
+			text = stripLeading(text);
+			if (text.isEmpty()) {
+				return;
+			}
+			trimAnswer = false;
+		}
+		onAnswer.accept(text);
+	}
+	
+	private void reason(String text) {
+		inPassage = true;
+		passageChars += text.length();
+		if (mode == ReasoningMode.SEPARATE) {
+			passage.append(text);
+			if (passage.length() >= CHUNK_CHARS) {
+				onReasoning.accept(passage.toString());
+				passage.setLength(0);
+			}
+		} else if (mode == ReasoningMode.SUMMARY && passage.length() < SUMMARY_CHARS) {
+			passage.append(text, 0, Math.min(text.length(), SUMMARY_CHARS - passage.length()));
+		}
+	}
+	
+	private void endPassage() {
+		if (!inPassage) {
+			return;
+		}
+		if (mode == ReasoningMode.SEPARATE && passage.length() > 0) {
+			onReasoning.accept(passage.toString());
+		} else if (mode == ReasoningMode.SUMMARY) {
+			String opening = passage.toString().trim();
+			onReasoning.accept(passageChars > passage.length() ? opening + "… (" + passageChars + " characters)"
+			        : opening);
+		}
+		passage.setLength(0);
+		passageChars = 0;
+		inPassage = false;
+	}
+	
+	/**
+	 * @return the length of the longest end of the text that could be the start of the tag
+	 */
+	private static int heldBack(String text, String tag) {
+		for (int length = Math.min(text.length(), tag.length() - 1); length > 0; length--) {
+			if (text.regionMatches(text.length() - length, tag, 0, length)) {
+				return length;
+			}
+		}
+		return 0;
+	}
+	
+	private static String stripLeading(String text) {
+		int start = 0;
+		while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		return text.substring(start);
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Records the calls of the chat models to a file, or replays them in place of Ollama, as chosen by
+ * {@code expertsystem.modelRecordingMode}:
+ * <ul>
+ * <li>{@code off} (default) - the models are used as they are</li>
+ * <li>{@code record} - every completed call is appended to {@code expertsystem.modelRecordingFile}
+ * with the arrival time of each token</li>
+ * <li>{@code replay} - the calls are answered from that file, at the recorded pace divided by
+ * {@code expertsystem.replaySpeed}, so the module can be load tested without Ollama</li>
+ * </ul>
+ * A relative file name is resolved in the application data directory of the module. Recordings
+ * contain the prompts and answers verbatim, so they must be handled like the patient data they
+ * may hold.
+ */
+@Slf4j
+@Component("expertSystemModelRecorder")
+public class ModelRecorder {
+	
+	public static final String OFF = "off";
+	
+	public static final String RECORD = "record";
+	
+	public static final String REPLAY = "replay";
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private RecordingFile file;
+	
+	private Recordings recordings;
+	
+	/**
+	 * @param model the model to record or replace
+	 * @return the model to use
+	 */
+	public ChatModel wrap(ChatModel model) {
+		String mode = getMode();
+		if (RECORD.equalsIgnoreCase(mode)) {
+			return new RecordingChatModel(model, getFile(), System::nanoTime);
+		}
+		if (REPLAY.equalsIgnoreCase(mode)) {
+			return new ReplayChatModel(getRecordings(), getSpeed());
+		}
+		return model;
+	}
+	
+	/**
+	 * @param model the model to record or replace
+	 * @return the model to use
+	 */
+	public StreamingChatModel wrap(StreamingChatModel model) {
+		String mode = getMode();
+		if (RECORD.equalsIgnoreCase(mode)) {
+			return new RecordingStreamingChatModel(model, getFile(), System::nanoTime);
+		}
+		if (REPLAY.equalsIgnoreCase(mode)) {
+			return new ReplayStreamingChatModel(getRecordings(), Schedulers.io(), getSpeed());
+		}
+		return model;
+	}
+	
+	private String getMode() {
+		return ConfigurationUtils.getConfigurationValue(adminService, "MODEL_RECORDING_MODE",
+		    "expertsystem.modelRecordingMode", OFF);
+	}
+	
+	private double getSpeed() {
+		return Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService, "REPLAY_SPEED",
+		    "expertsystem.replaySpeed", ConfigurationUtils.REPLAY_SPEED));
+	}
+	
+	private synchronized RecordingFile getFile() {
+		if (file == null) {
+			Path path = Paths.get(ConfigurationUtils.getConfigurationValue(adminService, "MODEL_RECORDING_FILE",
+			    "expertsystem.modelRecordingFile", ConfigurationUtils.MODEL_RECORDING_FILE));
+			if (!path.isAbsolute()) {
+				File directory = OpenmrsUtil
+				        .getDirectoryInApplicationDataDirectory(ExpertsystemConstants.EXPERT_SYSTEM_MODULE_ID);
+				path = directory.toPath().resolve(path);
+			}
+			file = new RecordingFile(path);
+			log.info(ExpertsystemConstants.GOLD + "Model recording file: {}" + ExpertsystemConstants.RESET, path);
+		}
+		return file;
+	}
+	
+	private synchronized Recordings getRecordings() {
+		if (recordings == null) {
+			try {
+				recordings = new Recordings(getFile().readAll());
+			}
+			catch (IOException error) {
+				throw new UncheckedIOException("Cannot read model recordings from " + getFile().getPath(), error);
+			}
+			log.info(ExpertsystemConstants.GOLD + "Replaying {} recorded model calls" + ExpertsystemConstants.RESET,
+			    recordings.size());
+		}
+		return recordings;
+	}
+}
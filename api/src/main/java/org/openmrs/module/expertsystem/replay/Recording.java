@@ -0,0 +1,184 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.output.FinishReason;
+import dev.langchain4j.model.output.TokenUsage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One recorded model call: the request it answered, the partial responses with the time each took
+ * to arrive, and the final response.
+ * <p>
+ * Times are kept in microseconds since the previous event, the first one counted from the request,
+ * so that a replay can reproduce both the time to the first token and the pace of the stream.
+ * </p>
+ */
+public final class Recording {
+	
+	static final byte ANSWER = 0;
+	
+	static final byte THINKING = 1;
+	
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	final long key;
+	
+	final List<Event> events;
+	
+	final long completionMicros;
+	
+	final ChatResponse response;
+	
+	Recording(long key, List<Event> events, long completionMicros, ChatResponse response) {
+		this.key = key;
+		this.events = events;
+		this.completionMicros = completionMicros;
+		this.response = response;
+	}
+	
+	/**
+	 * @param request a chat request
+	 * @return a hash of the model and the messages of the request, which identifies its recordings
+	 */
+	static long keyOf(ChatRequest request) {
+		long hash = FNV_OFFSET;
+		String text = request.modelName() + '\n' + request.messages();
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+	
+	/**
+	 * @return the microseconds from the request to the final response
+	 */
+	long getDurationMicros() {
+		long duration = completionMicros;
+		for (Event event : events) {
+			duration += event.delayMicros;
+		}
+		return duration;
+	}
+	
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeLong(key);
+		out.writeInt(events.size());
+		for (Event event : events) {
+			out.writeLong(event.delayMicros);
+			out.writeByte(event.kind);
+			writeString(out, event.text);
+		}
+		out.writeLong(completionMicros);
+		AiMessage message = response.aiMessage();
+		writeString(out, message.text());
+		writeString(out, message.thinking());
+		List<ToolExecutionRequest> toolRequests = message.hasToolExecutionRequests() ? message.toolExecutionRequests()
+		        : Collections.emptyList();
+		out.writeInt(toolRequests.size());
+		for (ToolExecutionRequest toolRequest : toolRequests) {
+			writeString(out, toolRequest.id());
+			writeString(out, toolRequest.name());
+			writeString(out, toolRequest.arguments());
+		}
+		writeString(out, response.modelName());
+		TokenUsage tokenUsage = response.tokenUsage();
+		out.writeInt(tokenUsage != null && tokenUsage.inputTokenCount() != null ? tokenUsage.inputTokenCount() : -1);
+		out.writeInt(tokenUsage != null && tokenUsage.outputTokenCount() != null ? tokenUsage.outputTokenCount() : -1);
+		writeString(out, response.finishReason() != null ? response.finishReason().name() : null);
+	}
+	
+	static Recording readFrom(DataInputStream in) throws IOException {
+		long key = in.readLong();
+		int eventCount = in.readInt();
+		List<Event> events = new ArrayList<>(eventCount);
+		for (int i = 0; i < eventCount; i++) {
+			long delayMicros = in.readLong();
+			byte kind = in.readByte();
+			events.add(new Event(delayMicros, kind, readString(in)));
+		}
+		long completionMicros = in.readLong();
+		AiMessage.Builder message = AiMessage.builder().text(readString(in)).thinking(readString(in));
+		int toolCount = in.readInt();
+		if (toolCount > 0) {
+			List<ToolExecutionRequest> toolRequests = new ArrayList<>(toolCount);
+			for (int i = 0; i < toolCount; i++) {
+				toolRequests.add(ToolExecutionRequest.builder().id(readString(in)).name(readString(in))
+				        .arguments(readString(in)).build());
+			}
+			message.toolExecutionRequests(toolRequests);
+		}
+		ChatResponse.Builder response = ChatResponse.builder().aiMessage(message.build()).modelName(readString(in));
+		int inputTokens = in.readInt();
+		int outputTokens = in.readInt();
+		if (inputTokens >= 0 || outputTokens >= 0) {
+			response.tokenUsage(new TokenUsage(inputTokens >= 0 ? inputTokens : null,
+			        outputTokens >= 0 ? outputTokens : null));
+		}
+		String finishReason = readString(in);
+		if (finishReason != null) {
+			response.finishReason(FinishReason.valueOf(finishReason));
+		}
+		return new Recording(key, events, completionMicros, response.build());
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * A partial response of the answer or of the thinking of the model.
+	 */
+	static final class Event {
+		
+		final long delayMicros;
+		
+		final byte kind;
+		
+		final String text;
+		
+		Event(long delayMicros, byte kind, String text) {
+			this.delayMicros = delayMicros;
+			this.kind = kind;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Calls another model and appends each successful call, with its duration, to a
+ * {@link RecordingFile}.
+ * 
+ * @see ReplayChatModel
+ */
+@Slf4j
+public class RecordingChatModel implements ChatModel {
+	
+	private final ChatModel delegate;
+	
+	private final RecordingFile file;
+	
+	private final LongSupplier clock;
+	
+	public RecordingChatModel(ChatModel delegate, RecordingFile file, LongSupplier clock) {
+		this.delegate = delegate;
+		this.file = file;
+		this.clock = clock;
+	}
+	
+	@Override
+	public ChatResponse chat(ChatRequest request) {
+		long start = clock.getAsLong();
+		ChatResponse response = delegate.chat(request);
+		try {
+			file.append(new Recording(Recording.keyOf(request), Collections.emptyList(),
+			        TimeUnit.NANOSECONDS.toMicros(clock.getAsLong() - start), response));
+		}
+		catch (IOException error) {
+			log.warn(ExpertsystemConstants.GOLD + "Cannot record model call to {}: {}" + ExpertsystemConstants.RESET,
+			    file.getPath(), error.getMessage());
+		}
+		return response;
+	}
+	
+	@Override
+	public ChatRequestParameters defaultRequestParameters() {
+		return delegate.defaultRequestParameters();
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An append-only file of {@link Recording}s. Each recording is written as a gzip member of its own,
+ * so the file stays compact, an interrupted write loses only the last recording, and the whole file
+ * reads as one gzip stream.
+ */
+public class RecordingFile {
+	
+	private static final byte RECORD = 1;
+	
+	private final Path path;
+	
+	public RecordingFile(Path path) {
+		this.path = path;
+	}
+	
+	/**
+	 * @param recording the recording to add at the end of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void append(Recording recording) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+		        Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND))))) {
+			out.writeByte(RECORD);
+			recording.writeTo(out);
+		}
+	}
+	
+	/**
+	 * @return the recordings in the order they were recorded, none if the file does not exist
+	 * @throws IOException if the file cannot be read
+	 */
+	public synchronized List<Recording> readAll() throws IOException {
+		List<Recording> recordings = new ArrayList<>();
+		if (!Files.exists(path) || Files.size(path) == 0) {
+			return recordings;
+		}
+		try (InputStream file = new BufferedInputStream(Files.newInputStream(path));
+		        DataInputStream in = new DataInputStream(new GZIPInputStream(file))) {
+			while (in.read() == RECORD) {
+				recordings.add(Recording.readFrom(in));
+			}
+		}
+		return recordings;
+	}
+	
+	public Path getPath() {
+		return path;
+	}
+}
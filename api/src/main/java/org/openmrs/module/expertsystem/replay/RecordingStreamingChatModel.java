@@ -0,0 +1,114 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.CompleteToolCall;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
+import dev.langchain4j.model.chat.response.PartialToolCall;
+import dev.langchain4j.model.chat.response.PartialToolCallContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Streams from another model and appends each completed call, with the arrival time of every
+ * partial response, to a {@link RecordingFile}. Failed calls are not recorded.
+ * 
+ * @see ReplayStreamingChatModel
+ */
+@Slf4j
+public class RecordingStreamingChatModel implements StreamingChatModel {
+	
+	private final StreamingChatModel delegate;
+	
+	private final RecordingFile file;
+	
+	private final LongSupplier clock;
+	
+	public RecordingStreamingChatModel(StreamingChatModel delegate, RecordingFile file, LongSupplier clock) {
+		this.delegate = delegate;
+		this.file = file;
+		this.clock = clock;
+	}
+	
+	@Override
+	public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+		long key = Recording.keyOf(request);
+		List<Recording.Event> events = new ArrayList<>();
+		long[] last = { clock.getAsLong() };
+		delegate.chat(request, new StreamingChatResponseHandler() {
+			
+			@Override
+			public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+				events.add(new Recording.Event(elapsedMicros(), Recording.ANSWER, partialResponse.text()));
+				handler.onPartialResponse(partialResponse, context);
+			}
+			
+			@Override
+			public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+				events.add(new Recording.Event(elapsedMicros(), Recording.THINKING, partialThinking.text()));
+				handler.onPartialThinking(partialThinking, context);
+			}
+			
+			@Override
+			public void onPartialToolCall(PartialToolCall partialToolCall, PartialToolCallContext context) {
+				handler.onPartialToolCall(partialToolCall, context);
+			}
+			
+			@Override
+			public void onCompleteToolCall(CompleteToolCall completeToolCall) {
+				handler.onCompleteToolCall(completeToolCall);
+			}
+			
+			@Override
+			public void onCompleteResponse(ChatResponse response) {
+				try {
+					file.append(new Recording(key, events, elapsedMicros(), response));
+				}
+				catch (IOException error) {
+					log.warn(ExpertsystemConstants.GOLD + "Cannot record model call to {}: {}"
+					        + ExpertsystemConstants.RESET, file.getPath(), error.getMessage());
+				}
+				handler.onCompleteResponse(response);
+			}
+			
+			@Override
+			public void onError(Throwable error) {
+				handler.onError(error);
+			}
+			
+			private long elapsedMicros() {
+				long now = clock.getAsLong();
+				long elapsed = TimeUnit.NANOSECONDS.toMicros(now - last[0]);
+				last[0] = now;
+				return elapsed;
+			}
+		});
+	}
+	
+	@Override
+	public ChatRequestParameters defaultRequestParameters() {
+		return delegate.defaultRequestParameters();
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.model.chat.request.ChatRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The recordings a replay answers from. A request gets a recording of the same model and messages
+ * if there is one, taking turns when the same request was recorded several times. Any other
+ * request gets the next recording in the order they were recorded, so that a load test can send
+ * prompts that were never recorded.
+ */
+public class Recordings {
+	
+	private final List<Recording> all;
+	
+	private final Map<Long, List<Recording>> byKey = new HashMap<>();
+	
+	private final Map<Long, AtomicInteger> turns = new HashMap<>();
+	
+	private final AtomicInteger next = new AtomicInteger();
+	
+	public Recordings(List<Recording> recordings) {
+		this.all = new ArrayList<>(recordings);
+		for (Recording recording : recordings) {
+			byKey.computeIfAbsent(recording.key, key -> new ArrayList<>()).add(recording);
+			turns.computeIfAbsent(recording.key, key -> new AtomicInteger());
+		}
+	}
+	
+	/**
+	 * @param request the request to answer
+	 * @return the recording to replay
+	 * @throws IllegalStateException if there are no recordings
+	 */
+	Recording find(ChatRequest request) {
+		if (all.isEmpty()) {
+			throw new IllegalStateException("No recorded model calls to replay");
+		}
+		long key = Recording.keyOf(request);
+		List<Recording> matching = byKey.get(key);
+		if (matching != null) {
+			return matching.get(Math.floorMod(turns.get(key).getAndIncrement(), matching.size()));
+		}
+		return all.get(Math.floorMod(next.getAndIncrement(), all.size()));
+	}
+	
+	public int size() {
+		return all.size();
+	}
+}
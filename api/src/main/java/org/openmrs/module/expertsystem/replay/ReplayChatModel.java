@@ -0,0 +1,49 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers from {@link Recordings} instead of a model, returning the recorded response after its
+ * recorded duration divided by the speed. A speed of 0 or less returns at once.
+ * 
+ * @see RecordingChatModel
+ */
+public class ReplayChatModel implements ChatModel {
+	
+	private final Recordings recordings;
+	
+	private final double speed;
+	
+	public ReplayChatModel(Recordings recordings, double speed) {
+		this.recordings = recordings;
+		this.speed = speed;
+	}
+	
+	@Override
+	public ChatResponse chat(ChatRequest request) {
+		Recording recording = recordings.find(request);
+		if (speed > 0) {
+			try {
+				TimeUnit.MICROSECONDS.sleep((long) (recording.getDurationMicros() / speed));
+			}
+			catch (InterruptedException interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return recording.response;
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import io.reactivex.rxjava3.core.Scheduler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers from {@link Recordings} instead of a model, delivering the recorded partial responses at
+ * their recorded times divided by the speed. A speed of 2 replays twice as fast; a speed of 0 or
+ * less delivers everything at once. Each call runs on a worker of the given scheduler, so with a
+ * {@code TestScheduler} the timing of a test is fully deterministic.
+ * 
+ * @see RecordingStreamingChatModel
+ */
+public class ReplayStreamingChatModel implements StreamingChatModel {
+	
+	private final Recordings recordings;
+	
+	private final Scheduler scheduler;
+	
+	private final double speed;
+	
+	public ReplayStreamingChatModel(Recordings recordings, Scheduler scheduler, double speed) {
+		this.recordings = recordings;
+		this.scheduler = scheduler;
+		this.speed = speed;
+	}
+	
+	@Override
+	public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+		Recording recording;
+		try {
+			recording = recordings.find(request);
+		}
+		catch (IllegalStateException error) {
+			handler.onError(error);
+			return;
+		}
+		Scheduler.Worker worker = scheduler.createWorker();
+		StreamingHandle handle = new StreamingHandle() {
+			
+			@Override
+			public void cancel() {
+				worker.dispose();
+			}
+			
+			@Override
+			public boolean isCancelled() {
+				return worker.isDisposed();
+			}
+		};
+		long offsetMicros = 0;
+		for (Recording.Event event : recording.events) {
+			offsetMicros += event.delayMicros;
+			worker.schedule(() -> deliver(() -> {
+				if (event.kind == Recording.THINKING) {
+					handler.onPartialThinking(new PartialThinking(event.text), new PartialThinkingContext(handle));
+				} else {
+					handler.onPartialResponse(new PartialResponse(event.text), new PartialResponseContext(handle));
+				}
+			}, worker, handler), scale(offsetMicros), TimeUnit.MICROSECONDS);
+		}
+		offsetMicros += recording.completionMicros;
+		worker.schedule(() -> {
+			deliver(() -> handler.onCompleteResponse(recording.response), worker, handler);
+			worker.dispose();
+		}, scale(offsetMicros), TimeUnit.MICROSECONDS);
+	}
+	
+	private long scale(long micros) {
+		return speed > 0 ? (long) (micros / speed) : 0;
+	}
+	
+	/**
+	 * Fails the call, as a model would, when the handler throws.
+	 */
+	private static void deliver(Runnable callback, Scheduler.Worker worker, StreamingChatResponseHandler handler) {
+		try {
+			callback.run();
+		}
+		catch (RuntimeException error) {
+			worker.dispose();
+			handler.onError(error);
+		}
+	}
+}
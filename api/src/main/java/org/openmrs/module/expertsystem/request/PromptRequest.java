@@ -10,9 +10,12 @@
 
 package org.openmrs.module.expertsystem.request;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import dev.langchain4j.agent.tool.ToolSpecification;
+import org.openmrs.module.expertsystem.deadline.Deadline;
 import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.trace.RequestTrace;
 
 import java.util.List;
 import java.util.Map;
@@ -24,6 +27,19 @@ import java.util.Map;
 @Data
 public class PromptRequest {
 	
+	/**
+	 * Option holding the key of the user the prompt is sent for, recorded in the audit log and
+	 * scoping the semantic cache. Set from the authenticated user wherever a prompt enters the
+	 * module, replacing any value sent by the client.
+	 */
+	public static final String USER_OPTION = "user";
+	
+	/**
+	 * Option holding the id of the patient whose clinical summary is put into the prompt. Only
+	 * honoured when {@link #isPatientAccess()}.
+	 */
+	public static final String PATIENT_OPTION = "patient_id";
+	
 	private String model;
 	
 	private List<MessageDto> messages;
@@ -32,6 +48,27 @@ public class PromptRequest {
 	
 	private boolean stream;
 	
+	/**
+	 * The latency timeline of this request, when the caller started one.
+	 */
+	@JsonIgnore
+	private RequestTrace trace;
+	
+	/**
+	 * The deadline of this request, resolved from the {@code timeout_ms} or {@code deadline} option
+	 * when the request is received.
+	 */
+	@JsonIgnore
+	private Deadline deadline;
+	
+	/**
+	 * Whether the user the prompt is sent for holds {@code Get Patients}. Checked where a prompt
+	 * enters the module, on the thread that knows the authenticated user; the threads the prompt is
+	 * answered on have no user context.
+	 */
+	@JsonIgnore
+	private boolean patientAccess;
+	
 	public PromptRequest() {
 		this.options = new java.util.HashMap<>();
 	}
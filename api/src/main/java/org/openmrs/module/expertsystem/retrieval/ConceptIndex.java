@@ -0,0 +1,272 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.ConceptDescription;
+import org.openmrs.ConceptName;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.expertsystem.ExpertsystemActivator;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.api.dao.ExpertSystemDao;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.concurrency.Priority;
+import org.openmrs.module.expertsystem.dto.ConceptTextDto;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedding index over the concept dictionary, used to ground prompts with the concepts relevant to
+ * a question instead of the whole dictionary.
+ * <p>
+ * Vectors are kept in an {@link HnswIndex} for search and persisted to a memory-mapped
+ * {@link VectorFile} in the application data directory, so a restart only rebuilds the graph from
+ * the stored vectors rather than re-embedding every concept. On startup the
+ * {@link EmbeddingIngestionPipeline} embeds only the concepts changed since its last checkpoint
+ * (the whole dictionary the first time); while running, concepts are re-indexed one at a time as
+ * they are saved.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemConceptIndex")
+public class ConceptIndex implements IngestionSink, DisposableBean {
+	
+	private static final String INDEX_FILE = "concept-index.vec";
+	
+	private static final String CHECKPOINT_FILE = "concept-index.checkpoint";
+	
+	private static final long SLOT_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	
+	@Autowired
+	@Qualifier("expertSystemEmbeddingModel")
+	private EmbeddingModel expertSystemEmbeddingModel;
+	
+	@Autowired
+	@Qualifier("expertSystemDao")
+	private ExpertSystemDao dao;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	@Autowired
+	@Qualifier("expertSystemConcurrencyLimiter")
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	@Autowired
+	@Qualifier("expertSystemEmbeddingIngestionPipeline")
+	private EmbeddingIngestionPipeline ingestionPipeline;
+	
+	private final HnswIndex index = new HnswIndex();
+	
+	private volatile VectorFile vectorFile;
+	
+	private volatile boolean ready;
+	
+	/**
+	 * @return true if the index is enabled via {@code expertsystem.conceptIndexEnabled}
+	 */
+	public boolean isEnabled() {
+		return Boolean.parseBoolean(ConfigurationUtils.getConfigurationValue(adminService, "CONCEPT_INDEX_ENABLED",
+		    "expertsystem.conceptIndexEnabled", "false"));
+	}
+	
+	/**
+	 * @return true once the index has been loaded and can be searched
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+	
+	/**
+	 * Loads the persisted vectors and starts embedding the concepts changed since the last
+	 * checkpoint in the background. Does nothing when the index is disabled.
+	 */
+	public synchronized void initialize() {
+		if (vectorFile != null || !isEnabled()) {
+			return;
+		}
+		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
+		if (daemonToken == null) {
+			log.error(ExpertsystemConstants.RED + "Daemon token not available!" + ExpertsystemConstants.RESET);
+			return;
+		}
+		try {
+			File directory = OpenmrsUtil.getDirectoryInApplicationDataDirectory(ExpertsystemConstants.EXPERT_SYSTEM_MODULE_ID);
+			Path checkpointFile = new File(directory, CHECKPOINT_FILE).toPath();
+			vectorFile = new VectorFile(new File(directory, INDEX_FILE).toPath(), getEmbeddingModelName());
+			Map<Integer, float[]> vectors = vectorFile.load();
+			vectors.forEach(index::add);
+			if (vectors.isEmpty()) {
+				// vectors lost or produced by another model, so the checkpoint no longer applies
+				Files.deleteIfExists(checkpointFile);
+			} else if (vectorFile.getRecordCount() > 2L * vectors.size()) {
+				vectorFile.compact(vectors);
+			}
+			ready = true;
+			log.info(ExpertsystemConstants.GREEN + "Loaded {} concept vectors" + ExpertsystemConstants.RESET, vectors.size());
+			Daemon.runInDaemonThread(() -> {
+				try {
+					ingestionPipeline.run("concepts", this::readChangedConcepts, this, checkpointFile);
+					vectorFile.force();
+				}
+				catch (Exception error) {
+					log.error(ExpertsystemConstants.RED + "Concept dictionary indexing failed!"
+					        + ExpertsystemConstants.RESET, error);
+				}
+			}, daemonToken);
+		}
+		catch (IOException error) {
+			log.error(ExpertsystemConstants.RED + "Cannot open concept index!" + ExpertsystemConstants.RESET, error);
+		}
+	}
+	
+	@Override
+	public void destroy() throws IOException {
+		if (vectorFile != null) {
+			vectorFile.close();
+		}
+	}
+	
+	/**
+	 * Finds the concepts most similar to the given text.
+	 * 
+	 * @param text the text to search for, typically the latest user turn
+	 * @param topK the maximum number of concepts
+	 * @param minSimilarity the minimum cosine similarity of a returned concept
+	 * @return the matching concept texts ordered by descending similarity
+	 */
+	public List<ConceptTextDto> search(String text, int topK, double minSimilarity) {
+		if (!ready || StringUtils.isBlank(text) || topK <= 0) {
+			return Collections.emptyList();
+		}
+		float[] query = expertSystemEmbeddingModel.embed(text).content().vector();
+		List<Integer> conceptIds = new ArrayList<>();
+		for (HnswIndex.Match match : index.search(query, topK)) {
+			if (match.getSimilarity() >= minSimilarity) {
+				conceptIds.add(match.getKey());
+			}
+		}
+		return dao.getConceptTexts(conceptIds);
+	}
+	
+	/**
+	 * Re-indexes a saved concept, or removes it from the index if it was retired. The text is read
+	 * on the calling thread while the concept is attached to the session. The embedding call runs off
+	 * the chat executor and takes a slot of the background lane of the {@link ConcurrencyLimiter},
+	 * so a bulk concept import cannot crowd out clinicians.
+	 * 
+	 * @param concept the saved concept
+	 */
+	public void onConceptSaved(Concept concept) {
+		if (!ready || concept == null || concept.getConceptId() == null) {
+			return;
+		}
+		Integer conceptId = concept.getConceptId();
+		if (Boolean.TRUE.equals(concept.getRetired())) {
+			onConceptRemoved(conceptId);
+			return;
+		}
+		ConceptTextDto text = new ConceptTextDto(conceptId);
+		for (ConceptName name : concept.getNames()) {
+			if (!Boolean.TRUE.equals(name.getVoided()) && !text.getNames().contains(name.getName())) {
+				text.getNames().add(name.getName());
+			}
+		}
+		for (ConceptDescription description : concept.getDescriptions()) {
+			text.getDescriptions().add(description.getDescription());
+		}
+		Completable.fromAction(() -> embed(text)).subscribeOn(Schedulers.io())
+		        .subscribe(() -> {}, error -> log.error(
+		            ExpertsystemConstants.RED + "Cannot index concept {}" + ExpertsystemConstants.RESET, conceptId, error));
+	}
+	
+	/**
+	 * Removes a purged or retired concept from the index.
+	 * 
+	 * @param conceptId the concept id
+	 */
+	public void onConceptRemoved(Integer conceptId) {
+		if (!ready || conceptId == null) {
+			return;
+		}
+		try {
+			remove(Collections.singletonList(conceptId));
+		}
+		catch (IOException error) {
+			log.error(ExpertsystemConstants.RED + "Cannot remove concept {} from index file" + ExpertsystemConstants.RESET,
+			    conceptId, error);
+		}
+	}
+	
+	@Override
+	public void store(List<IngestionItem> items, List<float[]> vectors) throws IOException {
+		for (int i = 0; i < items.size(); i++) {
+			vectorFile.put(items.get(i).getId(), vectors.get(i));
+			index.add(items.get(i).getId(), vectors.get(i));
+		}
+	}
+	
+	@Override
+	public void remove(List<Integer> conceptIds) throws IOException {
+		for (Integer conceptId : conceptIds) {
+			index.remove(conceptId);
+			vectorFile.delete(conceptId);
+		}
+	}
+	
+	private void embed(ConceptTextDto text) throws IOException {
+		String content = text.toText();
+		if (StringUtils.isBlank(content)) {
+			remove(Collections.singletonList(text.getConceptId()));
+			return;
+		}
+		float[] vector = concurrencyLimiter.call(Priority.BACKGROUND, SLOT_WAIT_MILLIS,
+		    () -> expertSystemEmbeddingModel.embed(content).content().vector());
+		vectorFile.put(text.getConceptId(), vector);
+		index.add(text.getConceptId(), vector);
+	}
+	
+	private List<IngestionItem> readChangedConcepts(IngestionCheckpoint after, int limit) {
+		List<IngestionItem> items = new ArrayList<>();
+		for (ConceptTextDto concept : dao.getChangedConceptTexts(after.getModified(), after.getId(), limit)) {
+			String text = concept.isRetired() ? null : StringUtils.trimToNull(concept.toText());
+			items.add(new IngestionItem(concept.getConceptId(), concept.getDateChanged(), text));
+		}
+		return items;
+	}
+	
+	private String getEmbeddingModelName() {
+		return ConfigurationUtils.getConfigurationValue(adminService, "OLLAMA_EMBEDDING_MODEL",
+		    "expertsystem.ollamaEmbeddingModel", ConfigurationUtils.OllamaDefaults.DEFAULT_EMBEDDING_MODEL_NAME);
+	}
+}
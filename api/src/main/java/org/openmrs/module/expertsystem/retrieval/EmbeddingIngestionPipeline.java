@@ -0,0 +1,141 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.concurrency.Priority;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embeds entities into a retrieval index in batches, resuming from a checkpoint.
+ * <p>
+ * The calling (daemon) thread is the producer: it reads entities changed since the checkpoint in
+ * keyset-paginated pages. Each page is split into batches sized for the embedding backend
+ * ({@code expertsystem.embeddingBatchSize}), and at most {@code expertsystem.embeddingMaxInFlight}
+ * batches are embedded concurrently while the next page is read. The batches never run on the chat
+ * executor, and each embedding call takes a slot of the background lane of the
+ * {@link ConcurrencyLimiter}, so ingestion only competes with clinicians for the backend within
+ * {@code expertsystem.backgroundConcurrencyShare}. The checkpoint is saved once every batch of a
+ * page has been stored, so a restart only re-embeds the page that was in progress and entities
+ * changed since.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemEmbeddingIngestionPipeline")
+public class EmbeddingIngestionPipeline {
+	
+	private static final long SLOT_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	
+	@Autowired
+	@Qualifier("expertSystemEmbeddingModel")
+	private EmbeddingModel expertSystemEmbeddingModel;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	@Autowired
+	@Qualifier("expertSystemConcurrencyLimiter")
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	/**
+	 * Ingests every entity changed since the saved checkpoint. Must be called on a daemon thread
+	 * when the source reads from the database.
+	 * 
+	 * @param name the pipeline name, used for logging
+	 * @param source the entity producer
+	 * @param sink the index the vectors are stored in
+	 * @param checkpointFile the file the checkpoint is kept in
+	 * @return the number of entities ingested
+	 * @throws IOException if the checkpoint cannot be read or saved
+	 * @throws RuntimeException if embedding or storing a batch fails; the checkpoint of the last
+	 *             complete page is kept
+	 */
+	public int run(String name, IngestionSource source, IngestionSink sink, Path checkpointFile) throws IOException {
+		int batchSize = Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "EMBEDDING_BATCH_SIZE",
+		    "expertsystem.embeddingBatchSize", String.valueOf(ConfigurationUtils.EMBEDDING_BATCH_SIZE)));
+		int maxInFlight = Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService,
+		    "EMBEDDING_MAX_IN_FLIGHT", "expertsystem.embeddingMaxInFlight",
+		    String.valueOf(ConfigurationUtils.EMBEDDING_MAX_IN_FLIGHT)));
+		
+		IngestionCheckpoint checkpoint = IngestionCheckpoint.load(checkpointFile);
+		log.info(ExpertsystemConstants.GREEN + "Ingesting {} changed after {}" + ExpertsystemConstants.RESET, name,
+		    checkpoint);
+		int pageSize = batchSize * maxInFlight;
+		int ingested = 0;
+		List<IngestionItem> page = source.readPage(checkpoint, pageSize);
+		while (!page.isEmpty()) {
+			Completable pending = ingestPage(page, sink, batchSize, maxInFlight).cache();
+			pending.subscribe(() -> {}, error -> {});
+			IngestionCheckpoint next = IngestionCheckpoint.after(page.get(page.size() - 1));
+			List<IngestionItem> nextPage = page.size() < pageSize ? new ArrayList<>() : source.readPage(next, pageSize);
+			pending.blockingAwait();
+			next.save(checkpointFile);
+			ingested += page.size();
+			log.debug("Ingested {} {} up to {}", ingested, name, next);
+			page = nextPage;
+		}
+		log.info(ExpertsystemConstants.GREEN + "Ingested {} {}" + ExpertsystemConstants.RESET, ingested, name);
+		return ingested;
+	}
+	
+	private Completable ingestPage(List<IngestionItem> page, IngestionSink sink, int batchSize, int maxInFlight) {
+		List<Integer> removed = new ArrayList<>();
+		List<IngestionItem> changed = new ArrayList<>();
+		for (IngestionItem item : page) {
+			if (item.getText() == null) {
+				removed.add(item.getId());
+			} else {
+				changed.add(item);
+			}
+		}
+		List<List<IngestionItem>> batches = new ArrayList<>();
+		for (int from = 0; from < changed.size(); from += batchSize) {
+			batches.add(changed.subList(from, Math.min(from + batchSize, changed.size())));
+		}
+		Completable removal = removed.isEmpty() ? Completable.complete() : Completable.fromAction(() -> sink.remove(removed));
+		return removal.andThen(Flowable.fromIterable(batches).flatMapCompletable(
+		    batch -> Completable.fromAction(() -> embedBatch(batch, sink)).subscribeOn(Schedulers.io()), false,
+		    maxInFlight));
+	}
+	
+	private void embedBatch(List<IngestionItem> batch, IngestionSink sink) throws IOException {
+		List<TextSegment> segments = new ArrayList<>(batch.size());
+		for (IngestionItem item : batch) {
+			segments.add(TextSegment.from(item.getText()));
+		}
+		List<Embedding> embeddings = concurrencyLimiter.call(Priority.BACKGROUND, SLOT_WAIT_MILLIS,
+		    () -> expertSystemEmbeddingModel.embedAll(segments).content());
+		List<float[]> vectors = new ArrayList<>(embeddings.size());
+		for (Embedding embedding : embeddings) {
+			vectors.add(embedding.vector());
+		}
+		sink.store(batch, vectors);
+	}
+}
@@ -0,0 +1,403 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-process approximate nearest neighbour index based on Hierarchical Navigable Small World
+ * graphs, using cosine similarity.
+ * <p>
+ * Vectors are normalized on insert, so similarity is a plain dot product. Updating or removing a
+ * key only marks the old node as deleted; deleted nodes keep routing searches until the graph is
+ * rebuilt, which happens automatically once they make up half of the nodes. Searches share a read
+ * lock, inserts take the write lock.
+ * </p>
+ */
+public class HnswIndex {
+	
+	private static final int DEFAULT_M = 16;
+	
+	private static final int DEFAULT_EF_CONSTRUCTION = 100;
+	
+	private static final int DEFAULT_EF_SEARCH = 50;
+	
+	private final int m;
+	
+	private final int maxM0;
+	
+	private final int efConstruction;
+	
+	private final double levelMultiplier;
+	
+	private final Random random = new Random(42);
+	
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	private final List<Node> nodes = new ArrayList<>();
+	
+	private final Map<Integer, Integer> keyToNode = new HashMap<>();
+	
+	private int entryPoint = -1;
+	
+	private int maxLevel = -1;
+	
+	private int deletedCount;
+	
+	public HnswIndex() {
+		this(DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+	}
+	
+	public HnswIndex(int m, int efConstruction) {
+		this.m = m;
+		this.maxM0 = m * 2;
+		this.efConstruction = efConstruction;
+		this.levelMultiplier = 1 / Math.log(m);
+	}
+	
+	/**
+	 * Adds a vector under the given key, replacing any vector previously stored under it.
+	 * 
+	 * @param key the external key, e.g. a concept id
+	 * @param vector the embedding vector
+	 */
+	public void add(int key, float[] vector) {
+		float[] normalized = normalize(vector);
+		lock.writeLock().lock();
+		try {
+			markDeleted(key);
+			insert(key, normalized);
+			if (deletedCount > 0 && deletedCount * 2 > nodes.size()) {
+				rebuild();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes the vector stored under the given key, if any.
+	 * 
+	 * @param key the external key
+	 */
+	public void remove(int key) {
+		lock.writeLock().lock();
+		try {
+			markDeleted(key);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param key the external key
+	 * @return true if a vector is stored under the key
+	 */
+	public boolean contains(int key) {
+		lock.readLock().lock();
+		try {
+			return keyToNode.containsKey(key);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of live vectors in the index
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return keyToNode.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Finds the approximate k nearest neighbours of the query vector.
+	 * 
+	 * @param query the query vector
+	 * @param k the number of results
+	 * @return the matches ordered by descending similarity
+	 */
+	public List<Match> search(float[] query, int k) {
+		float[] normalized = normalize(query);
+		lock.readLock().lock();
+		try {
+			if (entryPoint < 0 || k <= 0) {
+				return Collections.emptyList();
+			}
+			int current = entryPoint;
+			for (int level = maxLevel; level > 0; level--) {
+				current = greedyClosest(normalized, current, level);
+			}
+			PriorityQueue<Candidate> found = searchLayer(normalized, current, Math.max(k, DEFAULT_EF_SEARCH), 0);
+			List<Candidate> sorted = new ArrayList<>(found);
+			sorted.sort((a, b) -> Float.compare(b.similarity, a.similarity));
+			List<Match> matches = new ArrayList<>(k);
+			for (Candidate candidate : sorted) {
+				Node node = nodes.get(candidate.node);
+				if (!node.deleted) {
+					matches.add(new Match(node.key, candidate.similarity));
+					if (matches.size() == k) {
+						break;
+					}
+				}
+			}
+			return matches;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private void markDeleted(int key) {
+		Integer existing = keyToNode.remove(key);
+		if (existing != null) {
+			nodes.get(existing).deleted = true;
+			deletedCount++;
+		}
+	}
+	
+	private void insert(int key, float[] vector) {
+		int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+		Node node = new Node(key, vector, level);
+		int id = nodes.size();
+		nodes.add(node);
+		keyToNode.put(key, id);
+		
+		if (entryPoint < 0) {
+			entryPoint = id;
+			maxLevel = level;
+			return;
+		}
+		int current = entryPoint;
+		for (int l = maxLevel; l > level; l--) {
+			current = greedyClosest(vector, current, l);
+		}
+		for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+			PriorityQueue<Candidate> candidates = searchLayer(vector, current, efConstruction, l);
+			int maxConnections = l == 0 ? maxM0 : m;
+			int[] neighbours = closest(candidates, m);
+			node.neighbours[l] = neighbours;
+			for (int neighbour : neighbours) {
+				connect(neighbour, id, l, maxConnections);
+			}
+			current = neighbours.length > 0 ? neighbours[0] : current;
+		}
+		if (level > maxLevel) {
+			maxLevel = level;
+			entryPoint = id;
+		}
+	}
+	
+	private void connect(int from, int to, int level, int maxConnections) {
+		Node node = nodes.get(from);
+		int[] existing = node.neighbours[level];
+		int[] extended = Arrays.copyOf(existing, existing.length + 1);
+		extended[existing.length] = to;
+		if (extended.length <= maxConnections) {
+			node.neighbours[level] = extended;
+			return;
+		}
+		PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+		for (int neighbour : extended) {
+			candidates.add(new Candidate(neighbour, dot(node.vector, nodes.get(neighbour).vector)));
+		}
+		node.neighbours[level] = closest(candidates, maxConnections);
+	}
+	
+	private int greedyClosest(float[] query, int start, int level) {
+		int current = start;
+		float best = dot(query, nodes.get(current).vector);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int neighbour : nodes.get(current).neighboursAt(level)) {
+				float similarity = dot(query, nodes.get(neighbour).vector);
+				if (similarity > best) {
+					best = similarity;
+					current = neighbour;
+					changed = true;
+				}
+			}
+		}
+		return current;
+	}
+	
+	/**
+	 * Beam search on a single layer.
+	 * 
+	 * @return a min-heap, by similarity, of the ef closest nodes found
+	 */
+	private PriorityQueue<Candidate> searchLayer(float[] query, int start, int ef, int level) {
+		BitSet visited = new BitSet(nodes.size());
+		visited.set(start);
+		Candidate first = new Candidate(start, dot(query, nodes.get(start).vector));
+		PriorityQueue<Candidate> toVisit = new PriorityQueue<>((a, b) -> Float.compare(b.similarity, a.similarity));
+		PriorityQueue<Candidate> found = new PriorityQueue<>();
+		toVisit.add(first);
+		found.add(first);
+		while (!toVisit.isEmpty()) {
+			Candidate candidate = toVisit.poll();
+			if (found.size() >= ef && candidate.similarity < found.peek().similarity) {
+				break;
+			}
+			for (int neighbour : nodes.get(candidate.node).neighboursAt(level)) {
+				if (visited.get(neighbour)) {
+					continue;
+				}
+				visited.set(neighbour);
+				float similarity = dot(query, nodes.get(neighbour).vector);
+				if (found.size() < ef || similarity > found.peek().similarity) {
+					Candidate next = new Candidate(neighbour, similarity);
+					toVisit.add(next);
+					found.add(next);
+					if (found.size() > ef) {
+						found.poll();
+					}
+				}
+			}
+		}
+		return found;
+	}
+	
+	private static int[] closest(PriorityQueue<Candidate> candidates, int count) {
+		List<Candidate> sorted = new ArrayList<>(candidates);
+		sorted.sort((a, b) -> Float.compare(b.similarity, a.similarity));
+		int size = Math.min(count, sorted.size());
+		int[] result = new int[size];
+		for (int i = 0; i < size; i++) {
+			result[i] = sorted.get(i).node;
+		}
+		return result;
+	}
+	
+	private void rebuild() {
+		List<Node> live = new ArrayList<>();
+		for (Node node : nodes) {
+			if (!node.deleted) {
+				live.add(node);
+			}
+		}
+		nodes.clear();
+		keyToNode.clear();
+		entryPoint = -1;
+		maxLevel = -1;
+		deletedCount = 0;
+		for (Node node : live) {
+			insert(node.key, node.vector);
+		}
+	}
+	
+	static float[] normalize(float[] vector) {
+		double norm = 0;
+		for (float value : vector) {
+			norm += value * value;
+		}
+		norm = Math.sqrt(norm);
+		float[] normalized = new float[vector.length];
+		if (norm == 0) {
+			return normalized;
+		}
+		for (int i = 0; i < vector.length; i++) {
+			normalized[i] = (float) (vector[i] / norm);
+		}
+		return normalized;
+	}
+	
+	private static float dot(float[] a, float[] b) {
+		float sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+	
+	/**
+	 * A search result: the external key and its cosine similarity to the query.
+	 */
+	public static class Match {
+		
+		private final int key;
+		
+		private final float similarity;
+		
+		Match(int key, float similarity) {
+			this.key = key;
+			this.similarity = similarity;
+		}
+		
+		public int getKey() {
+			return key;
+		}
+		
+		public float getSimilarity() {
+			return similarity;
+		}
+	}
+	
+	private static class Node {
+		
+		private static final int[] NONE = new int[0];
+		
+		final int key;
+		
+		final float[] vector;
+		
+		final int[][] neighbours;
+		
+		boolean deleted;
+		
+		Node(int key, float[] vector, int level) {
+			this.key = key;
+			this.vector = vector;
+			this.neighbours = new int[level + 1][];
+			Arrays.fill(this.neighbours, NONE);
+		}
+		
+		int[] neighboursAt(int level) {
+			return level < neighbours.length ? neighbours[level] : NONE;
+		}
+	}
+	
+	private static class Candidate implements Comparable<Candidate> {
+		
+		final int node;
+		
+		final float similarity;
+		
+		Candidate(int node, float similarity) {
+			this.node = node;
+			this.similarity = similarity;
+		}
+		
+		@Override
+		public int compareTo(Candidate other) {
+			return Float.compare(similarity, other.similarity);
+		}
+	}
+}
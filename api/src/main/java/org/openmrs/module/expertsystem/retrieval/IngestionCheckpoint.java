@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * The position of an {@link EmbeddingIngestionPipeline} run: the modification date and id of the
+ * last entity ingested. Saved to a small properties file after every page so that a restarted run
+ * resumes where the previous one stopped.
+ */
+@Data
+public class IngestionCheckpoint {
+	
+	/**
+	 * The checkpoint before the first entity, used for a full (re)index.
+	 */
+	public static final IngestionCheckpoint START = new IngestionCheckpoint(new Date(0), 0);
+	
+	private final Date modified;
+	
+	private final int id;
+	
+	/**
+	 * @param item the last entity ingested
+	 * @return the checkpoint directly after the entity
+	 */
+	public static IngestionCheckpoint after(IngestionItem item) {
+		return new IngestionCheckpoint(item.getModified(), item.getId());
+	}
+	
+	/**
+	 * Loads a checkpoint file.
+	 * 
+	 * @param file the checkpoint file
+	 * @return the saved checkpoint or {@link #START} if there is none
+	 * @throws IOException if the file cannot be read
+	 */
+	public static IngestionCheckpoint load(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return START;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		}
+		return new IngestionCheckpoint(new Date(Long.parseLong(properties.getProperty("modified", "0"))),
+		        Integer.parseInt(properties.getProperty("id", "0")));
+	}
+	
+	/**
+	 * Atomically replaces the checkpoint file with this checkpoint.
+	 * 
+	 * @param file the checkpoint file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(Path file) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("modified", String.valueOf(modified.getTime()));
+		properties.setProperty("id", String.valueOf(id));
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			properties.store(out, "Embedding ingestion checkpoint");
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,29 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * An entity read by an {@link IngestionSource}: its id, when it was last modified and the text to
+ * embed. A null text means the entity was retired or voided and must be removed from the index.
+ */
+@Data
+public class IngestionItem {
+	
+	private final int id;
+	
+	private final Date modified;
+	
+	private final String text;
+}
@@ -0,0 +1,38 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The consumer side of the {@link EmbeddingIngestionPipeline}: stores embedded entities in an index.
+ * Batches are stored concurrently, so implementations must be thread-safe.
+ */
+public interface IngestionSink {
+	
+	/**
+	 * Stores the vectors of a batch of entities.
+	 * 
+	 * @param items the entities
+	 * @param vectors the vectors, in the order of the entities
+	 * @throws IOException if the vectors cannot be persisted
+	 */
+	void store(List<IngestionItem> items, List<float[]> vectors) throws IOException;
+	
+	/**
+	 * Removes retired or voided entities from the index.
+	 * 
+	 * @param ids the entity ids
+	 * @throws IOException if the removal cannot be persisted
+	 */
+	void remove(List<Integer> ids) throws IOException;
+}
@@ -0,0 +1,30 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import java.util.List;
+
+/**
+ * The producer side of the {@link EmbeddingIngestionPipeline}: reads entities changed after a
+ * checkpoint in keyset-paginated chunks. Called on a daemon thread, so the database session is
+ * available.
+ */
+public interface IngestionSource {
+	
+	/**
+	 * Reads the next page of entities ordered by modification date and then id.
+	 * 
+	 * @param after the checkpoint of the last entity already ingested
+	 * @param limit the page size
+	 * @return the entities modified after the checkpoint, empty when there are none left
+	 */
+	List<IngestionItem> readPage(IngestionCheckpoint after, int limit);
+}
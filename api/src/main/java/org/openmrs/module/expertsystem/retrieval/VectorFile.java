@@ -0,0 +1,245 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only, memory-mapped file of embedding vectors keyed by an integer id.
+ * <p>
+ * The file starts with a fixed header (magic, format version, dimension, model hash and record
+ * count) followed by fixed-size records {@code [int key][byte live][float x dimension]}. A later
+ * record for the same key supersedes an earlier one, and a record with {@code live == 0} is a
+ * tombstone. The record count in the header is only advanced after a record has been written, so a
+ * record torn by a crash is ignored on the next load. A file written for a different embedding
+ * model is discarded when opened.
+ * </p>
+ */
+public class VectorFile implements Closeable {
+	
+	private static final int MAGIC = 0x45535643;
+	
+	private static final int FORMAT_VERSION = 1;
+	
+	private static final int HEADER_SIZE = 32;
+	
+	private static final int COUNT_OFFSET = 16;
+	
+	private static final long INITIAL_CAPACITY = 1 << 20;
+	
+	private final Path path;
+	
+	private final int modelHash;
+	
+	private FileChannel channel;
+	
+	private MappedByteBuffer buffer;
+	
+	private int dimension;
+	
+	private long recordCount;
+	
+	/**
+	 * Opens or creates the vector file.
+	 * 
+	 * @param path the file location
+	 * @param modelName the embedding model the vectors are produced by
+	 * @throws IOException if the file cannot be opened
+	 */
+	public VectorFile(Path path, String modelName) throws IOException {
+		this.path = path;
+		this.modelHash = modelName.hashCode();
+		open();
+	}
+	
+	private VectorFile(Path path, int modelHash) throws IOException {
+		this.path = path;
+		this.modelHash = modelHash;
+		open();
+	}
+	
+	private void open() throws IOException {
+		Files.createDirectories(path.getParent());
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY));
+		if (size >= HEADER_SIZE && buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION
+		        && buffer.getInt(12) == modelHash) {
+			dimension = buffer.getInt(8);
+			recordCount = buffer.getLong(COUNT_OFFSET);
+			long maxRecords = dimension > 0 ? (size - HEADER_SIZE) / recordSize() : 0;
+			recordCount = Math.min(recordCount, maxRecords);
+		} else {
+			writeHeader(0);
+		}
+	}
+	
+	private void writeHeader(int newDimension) {
+		dimension = newDimension;
+		recordCount = 0;
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, FORMAT_VERSION);
+		buffer.putInt(8, dimension);
+		buffer.putInt(12, modelHash);
+		buffer.putLong(COUNT_OFFSET, 0);
+	}
+	
+	/**
+	 * @return the vector dimension, or 0 if nothing has been written yet
+	 */
+	public synchronized int getDimension() {
+		return dimension;
+	}
+	
+	/**
+	 * @return the number of records, including superseded records and tombstones
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * Appends a vector for the key, superseding any earlier vector for it.
+	 * 
+	 * @param key the key
+	 * @param vector the vector
+	 * @throws IOException if the file cannot be grown
+	 * @throws IllegalArgumentException if the dimension differs from the stored vectors
+	 */
+	public synchronized void put(int key, float[] vector) throws IOException {
+		if (dimension == 0 && recordCount == 0) {
+			buffer.putInt(8, vector.length);
+			dimension = vector.length;
+		}
+		if (vector.length != dimension) {
+			throw new IllegalArgumentException("Expected vectors of dimension " + dimension + " but got " + vector.length);
+		}
+		append(key, true, vector);
+	}
+	
+	/**
+	 * Appends a tombstone for the key.
+	 * 
+	 * @param key the key
+	 * @throws IOException if the file cannot be grown
+	 */
+	public synchronized void delete(int key) throws IOException {
+		if (dimension > 0) {
+			append(key, false, null);
+		}
+	}
+	
+	private void append(int key, boolean live, float[] vector) throws IOException {
+		long position = HEADER_SIZE + recordCount * recordSize();
+		ensureCapacity(position + recordSize());
+		int offset = (int) position;
+		buffer.putInt(offset, key);
+		buffer.put(offset + 4, (byte) (live ? 1 : 0));
+		for (int i = 0; i < dimension; i++) {
+			buffer.putFloat(offset + 5 + i * 4, vector != null ? vector[i] : 0f);
+		}
+		recordCount++;
+		buffer.putLong(COUNT_OFFSET, recordCount);
+	}
+	
+	/**
+	 * Reads the live vectors, the latest record for each key winning.
+	 * 
+	 * @return the live vectors by key, in first-insertion order
+	 */
+	public synchronized Map<Integer, float[]> load() {
+		Map<Integer, float[]> vectors = new LinkedHashMap<>();
+		for (long i = 0; i < recordCount; i++) {
+			int offset = (int) (HEADER_SIZE + i * recordSize());
+			int key = buffer.getInt(offset);
+			if (buffer.get(offset + 4) == 0) {
+				vectors.remove(key);
+				continue;
+			}
+			float[] vector = new float[dimension];
+			for (int d = 0; d < dimension; d++) {
+				vector[d] = buffer.getFloat(offset + 5 + d * 4);
+			}
+			vectors.put(key, vector);
+		}
+		return vectors;
+	}
+	
+	/**
+	 * Rewrites the file so it only holds the given live vectors.
+	 * 
+	 * @param live the live vectors
+	 * @throws IOException if the file cannot be rewritten
+	 */
+	public synchronized void compact(Map<Integer, float[]> live) throws IOException {
+		Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+		Files.deleteIfExists(compacted);
+		try (VectorFile target = new VectorFile(compacted, modelHash)) {
+			for (Map.Entry<Integer, float[]> entry : live.entrySet()) {
+				target.put(entry.getKey(), entry.getValue());
+			}
+			target.force();
+		}
+		close();
+		Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		open();
+	}
+	
+	/**
+	 * Discards all vectors.
+	 */
+	public synchronized void clear() {
+		writeHeader(0);
+	}
+	
+	/**
+	 * Flushes the mapped pages to disk.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null && channel.isOpen()) {
+			buffer.force();
+			channel.close();
+		}
+	}
+	
+	private int recordSize() {
+		return 5 + 4 * dimension;
+	}
+	
+	private void ensureCapacity(long required) throws IOException {
+		if (required <= buffer.capacity()) {
+			return;
+		}
+		long capacity = buffer.capacity();
+		while (capacity < required) {
+			capacity *= 2;
+		}
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IOException("Vector file " + path + " exceeds the maximum mappable size");
+		}
+		buffer.force();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+}
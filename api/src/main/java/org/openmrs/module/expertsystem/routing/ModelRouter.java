@@ -0,0 +1,251 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.routing;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Routes each prompt to the small chat model or to the reasoning model.
+ * <p>
+ * Prompts that name a model are sent to it unchanged. Prompts without a model, or with the model
+ * {@value #AUTO_MODEL}, are classified by their latest user message:
+ * <ol>
+ * <li>A heuristic score counts analytical phrasing (differentials, comparisons, "why", step by
+ * step reasoning), multiple questions, numeric findings and length, and subtracts for lookup
+ * phrasing ("what is", "normal range", "dose of").</li>
+ * <li>Scores at or above {@code expertsystem.routingComplexityThreshold} go to
+ * {@code expertsystem.ollamaReasoningModel}, the others to {@code expertsystem.ollamaChatModel}.</li>
+ * <li>If {@code expertsystem.ollamaRouterModel} is set, prompts scoring within one point of the
+ * threshold are classified by that (tiny) model instead; a failed classification falls back to the
+ * heuristic.</li>
+ * </ol>
+ * Every decision and its latency is counted and available from {@link #getStatistics()}.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemModelRouter")
+public class ModelRouter {
+	
+	public static final String AUTO_MODEL = "auto";
+	
+	private static final Pattern ANALYTICAL = Pattern.compile("\\b(why|how come|compare|comparison|versus|vs\\.?|"
+	        + "differential|diagnos\\w*|interpret\\w*|explain|analy[sz]\\w*|evaluate|assess\\w*|reason\\w*|"
+	        + "step[- ]by[- ]step|pros and cons|trade-?offs?|should (i|we)|what if|plan|manage\\w*|"
+	        + "contraindicat\\w*|interaction\\w*|calculate|adjust\\w*|given that|taking into account)\\b");
+	
+	private static final Pattern LOOKUP = Pattern.compile("^(what is|what's|what are|define|definition of|"
+	        + "list|show|give me)\\b|\\b(normal range|dose of|dosage of|icd|code for|stands for|synonym)\\b");
+	
+	private static final Pattern NUMBER_WITH_UNIT = Pattern.compile("\\d+(\\.\\d+)?\\s*(mg|mcg|g|ml|l|mmol|"
+	        + "mmhg|bpm|kg|cm|%|iu|units?|years?|yo|days?|weeks?)\\b");
+	
+	private static final String CLASSIFIER_INSTRUCTIONS = "Classify the clinical question. Answer SIMPLE if it "
+	        + "is a factual lookup or short answer, COMPLEX if it needs multi-step reasoning. Answer with one word.";
+	
+	@Autowired
+	private ChatModel expertSystemChatModel;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final Map<String, LongAdder> decisions = new ConcurrentHashMap<>();
+	
+	private final LongAdder routed = new LongAdder();
+	
+	private final LongAdder routingNanos = new LongAdder();
+	
+	private final AtomicLong maxRoutingNanos = new AtomicLong();
+	
+	/**
+	 * Picks the model for a prompt.
+	 * 
+	 * @param requestedModel the model named by the client, may be null
+	 * @param messages the conversation
+	 * @return the routing decision
+	 */
+	public RoutingDecision route(String requestedModel, List<ChatMessage> messages) {
+		if (StringUtils.isNotBlank(requestedModel) && !AUTO_MODEL.equalsIgnoreCase(requestedModel)) {
+			return record(new RoutingDecision(requestedModel, false, RoutingDecision.Source.CLIENT, 0, 0));
+		}
+		long start = System.nanoTime();
+		String prompt = latestUserText(messages);
+		int turns = 0;
+		for (ChatMessage message : messages) {
+			if (!(message instanceof SystemMessage)) {
+				turns++;
+			}
+		}
+		int score = score(prompt, turns);
+		int threshold = getInt("ROUTING_COMPLEXITY_THRESHOLD", "expertsystem.routingComplexityThreshold",
+		    ConfigurationUtils.ROUTING_COMPLEXITY_THRESHOLD);
+		boolean complex = score >= threshold;
+		RoutingDecision.Source source = RoutingDecision.Source.HEURISTIC;
+		
+		String routerModel = ConfigurationUtils.getConfigurationValue(adminService, "OLLAMA_ROUTER_MODEL",
+		    "expertsystem.ollamaRouterModel", "");
+		if (StringUtils.isNotBlank(routerModel) && Math.abs(score - threshold) <= 1) {
+			Boolean classified = classify(routerModel, prompt);
+			if (classified != null) {
+				complex = classified;
+				source = RoutingDecision.Source.CLASSIFIER;
+			}
+		}
+		
+		String model = complex
+		        ? ConfigurationUtils.getConfigurationValue(adminService, "OLLAMA_REASONING_MODEL",
+		            "expertsystem.ollamaReasoningModel", ConfigurationUtils.OllamaDefaults.DEFAULT_REASONING_MODEL_NAME)
+		        : ConfigurationUtils.getConfigurationValue(adminService, "OLLAMA_CHAT_MODEL", "expertsystem.ollamaChatModel",
+		            ConfigurationUtils.OllamaDefaults.DEFAULT_MODEL_NAME);
+		RoutingDecision decision = new RoutingDecision(model, complex, source, score, System.nanoTime() - start);
+		log.debug("Routed prompt to {} (score {}, {}) in {} us", model, score, source, decision.getLatencyNanos() / 1000);
+		return record(decision);
+	}
+	
+	/**
+	 * Scores the complexity of a prompt; higher is more complex.
+	 * 
+	 * @param prompt the latest user message
+	 * @param turns the number of non-system messages in the conversation
+	 * @return the score
+	 */
+	static int score(String prompt, int turns) {
+		if (StringUtils.isBlank(prompt)) {
+			return 0;
+		}
+		String text = prompt.trim().toLowerCase(Locale.ROOT);
+		int score = 0;
+		
+		Matcher analytical = ANALYTICAL.matcher(text);
+		while (analytical.find()) {
+			score += 2;
+		}
+		if (LOOKUP.matcher(text).find()) {
+			score -= 2;
+		}
+		if (StringUtils.countMatches(text, '?') > 1) {
+			score++;
+		}
+		Matcher numbers = NUMBER_WITH_UNIT.matcher(text);
+		int findings = 0;
+		while (numbers.find()) {
+			findings++;
+		}
+		if (findings >= 2) {
+			// a case presentation with several findings to weigh
+			score += 2;
+		}
+		int words = text.split("\\s+").length;
+		if (words > 60) {
+			score += 2;
+		} else if (words > 25) {
+			score++;
+		}
+		if (turns > 6) {
+			score++;
+		}
+		return score;
+	}
+	
+	/**
+	 * Returns the routing counters since startup.
+	 * 
+	 * @return decisions per source and routed model, and the routing latency in microseconds
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		long count = routed.sum();
+		statistics.put("routed", count);
+		statistics.put("averageLatencyMicros", count > 0 ? routingNanos.sum() / count / 1000 : 0);
+		statistics.put("maxLatencyMicros", maxRoutingNanos.get() / 1000);
+		Map<String, Long> perDecision = new LinkedHashMap<>();
+		decisions.forEach((key, adder) -> perDecision.put(key, adder.sum()));
+		statistics.put("decisions", perDecision);
+		return statistics;
+	}
+	
+	private Boolean classify(String routerModel, String prompt) {
+		try {
+			ChatRequest request = ChatRequest.builder().modelName(routerModel).temperature(0.0).maxOutputTokens(3)
+			        .messages(SystemMessage.from(CLASSIFIER_INSTRUCTIONS), UserMessage.from(prompt)).build();
+			String answer = StringUtils.upperCase(expertSystemChatModel.chat(request).aiMessage().text());
+			if (StringUtils.contains(answer, "COMPLEX")) {
+				return true;
+			}
+			if (StringUtils.contains(answer, "SIMPLE")) {
+				return false;
+			}
+			log.debug("Router model answered '{}'; using the heuristic", answer);
+		}
+		catch (Exception e) {
+			log.warn(ExpertsystemConstants.GOLD + "Router model {} failed: {}" + ExpertsystemConstants.RESET, routerModel,
+			    e.getMessage());
+		}
+		return null;
+	}
+	
+	private RoutingDecision record(RoutingDecision decision) {
+		// clients may name any model, so their decisions share one counter and the map stays bounded
+		String key = decision.getSource() == RoutingDecision.Source.CLIENT ? decision.getSource().name()
+		        : decision.getSource() + ":" + decision.getModel();
+		decisions.computeIfAbsent(key, k -> new LongAdder()).increment();
+		if (decision.getSource() != RoutingDecision.Source.CLIENT) {
+			routed.increment();
+			routingNanos.add(decision.getLatencyNanos());
+			maxRoutingNanos.accumulateAndGet(decision.getLatencyNanos(), Math::max);
+		}
+		return decision;
+	}
+	
+	private static String latestUserText(List<ChatMessage> messages) {
+		for (int i = messages.size() - 1; i >= 0; i--) {
+			if (messages.get(i) instanceof UserMessage) {
+				StringBuilder text = new StringBuilder();
+				for (Content content : ((UserMessage) messages.get(i)).contents()) {
+					if (content instanceof TextContent) {
+						text.append(((TextContent) content).text());
+					}
+				}
+				return text.toString();
+			}
+		}
+		return "";
+	}
+	
+	private int getInt(String envVar, String globalProperty, int defaultValue) {
+		return Integer.parseInt(
+		    ConfigurationUtils.getConfigurationValue(adminService, envVar, globalProperty, String.valueOf(defaultValue)));
+	}
+}
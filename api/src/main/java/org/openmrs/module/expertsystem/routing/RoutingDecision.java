@@ -0,0 +1,42 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.routing;
+
+import lombok.Data;
+
+/**
+ * The outcome of routing a prompt to a model.
+ */
+@Data
+public class RoutingDecision {
+	
+	/**
+	 * How a decision was reached.
+	 */
+	public enum Source {
+		/** the client named the model */
+		CLIENT,
+		/** the heuristic score was decisive */
+		HEURISTIC,
+		/** the router model classified an ambiguous prompt */
+		CLASSIFIER
+	}
+	
+	private final String model;
+	
+	private final boolean complex;
+	
+	private final Source source;
+	
+	private final int score;
+	
+	private final long latencyNanos;
+}
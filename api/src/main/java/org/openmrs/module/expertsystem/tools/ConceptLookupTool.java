@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.tools;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.model.chat.request.json.JsonObjectSchema;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.ConceptService;
+import org.openmrs.module.expertsystem.dto.ConceptTextDto;
+import org.openmrs.module.expertsystem.retrieval.ConceptIndex;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Looks up concepts of the dictionary by a clinical term, so the model can name and refer to the
+ * concepts a site actually uses.
+ * <p>
+ * The {@link ConceptIndex} is searched when it is ready, which also finds concepts worded
+ * differently from the term; otherwise concepts are looked up by name through the
+ * {@link ConceptService}. At most {@value #MAX_LIMIT} concepts are returned.
+ * </p>
+ */
+@Component("expertSystemConceptLookupTool")
+public class ConceptLookupTool implements ExpertSystemTool {
+	
+	public static final String NAME = "lookup_concept";
+	
+	static final int MAX_LIMIT = 20;
+	
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	
+	private static final ToolSpecification SPECIFICATION = ToolSpecification.builder().name(NAME)
+	        .description("Finds OpenMRS concepts matching a clinical term. Returns one concept per line as "
+	                + "'concept id: names - description'.")
+	        .parameters(JsonObjectSchema.builder().addStringProperty("query", "The clinical term to look up")
+	                .addIntegerProperty("limit", "The maximum number of concepts, " + MAX_LIMIT + " at most")
+	                .required("query").build())
+	        .build();
+	
+	@Autowired
+	@Qualifier("expertSystemConceptIndex")
+	private ConceptIndex conceptIndex;
+	
+	@Autowired
+	@Qualifier("conceptService")
+	private ConceptService conceptService;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	@Override
+	public ToolSpecification getSpecification() {
+		return SPECIFICATION;
+	}
+	
+	@Override
+	public String execute(String arguments) throws Exception {
+		JsonNode json = objectMapper.readTree(StringUtils.defaultIfBlank(arguments, "{}"));
+		String query = StringUtils.trimToNull(json.path("query").asText(null));
+		if (query == null) {
+			throw new IllegalArgumentException("The query argument is required");
+		}
+		int limit = Math.max(1, Math.min(MAX_LIMIT, json.path("limit").asInt(ConfigurationUtils.CONCEPT_GROUNDING_TOP_K)));
+		
+		StringBuilder result = new StringBuilder();
+		if (conceptIndex.isReady()) {
+			double minSimilarity = Double.parseDouble(ConfigurationUtils.getConfigurationValue(adminService,
+			    "CONCEPT_GROUNDING_MIN_SIMILARITY", "expertsystem.conceptGroundingMinSimilarity",
+			    ConfigurationUtils.CONCEPT_GROUNDING_MIN_SIMILARITY));
+			for (ConceptTextDto concept : conceptIndex.search(query, limit, minSimilarity)) {
+				result.append(concept.getConceptId()).append(": ").append(concept.toText()).append('\n');
+			}
+		} else {
+			List<Concept> concepts = conceptService.getConceptsByName(query);
+			for (int i = 0; i < concepts.size() && i < limit; i++) {
+				Concept concept = concepts.get(i);
+				result.append(concept.getConceptId()).append(": ")
+				        .append(concept.getName() != null ? concept.getName().getName() : "").append('\n');
+			}
+		}
+		return result.length() > 0 ? result.toString().trim() : "No concept matches " + query;
+	}
+}
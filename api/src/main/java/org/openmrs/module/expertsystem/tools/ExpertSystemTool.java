@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.tools;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+
+/**
+ * A server-side tool the model can call while answering a prompt. Any Spring bean implementing this
+ * interface is picked up by the {@link ToolRegistry} and becomes available to requests that list it
+ * by name in their {@code tools} option.
+ */
+public interface ExpertSystemTool {
+	
+	/**
+	 * @return the specification advertised to the model; its name is the registry key
+	 */
+	ToolSpecification getSpecification();
+	
+	/**
+	 * Executes the tool. Called on a daemon thread, so the OpenMRS context and a database session
+	 * are available.
+	 * 
+	 * @param arguments the JSON arguments produced by the model
+	 * @return the textual result handed back to the model
+	 * @throws Exception if the tool fails; the message is reported to the model as the tool result
+	 */
+	String execute(String arguments) throws Exception;
+}
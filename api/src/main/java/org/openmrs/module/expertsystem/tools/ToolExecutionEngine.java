@@ -0,0 +1,199 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.tools;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import io.reactivex.rxjava3.core.Single;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.expertsystem.ExpertsystemActivator;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * Executes the tool calls requested by the model in a single turn.
+ * <p>
+ * Independent calls run in parallel on the bounded {@code expertSystemToolExecutor}, never on the
+ * executor of the chat requests, whose threads may be blocked waiting for the answer the tools
+ * contribute to. Every call gets its own timeout and its result is capped in size before it is handed
+ * back to the model. A call that times out interrupts the daemon thread running the tool, and keeps
+ * its executor thread until the tool has stopped, so a tool that hangs cannot leave an unbounded
+ * number of daemon threads behind. Failures, timeouts and unknown tools are reported to the model
+ * as the tool result, so it can recover instead of the whole request failing.
+ * </p>
+ */
+@Slf4j
+@Component("expertSystemToolExecutionEngine")
+public class ToolExecutionEngine {
+	
+	static final String TRUNCATED_SUFFIX = "... [truncated]";
+	
+	@Autowired
+	@Qualifier("expertSystemToolRegistry")
+	private ToolRegistry toolRegistry;
+	
+	@Autowired
+	@Qualifier("expertSystemToolExecutor")
+	private ExecutorService expertSystemToolExecutor;
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private final BiFunction<Runnable, DaemonToken, Thread> daemonLauncher;
+	
+	public ToolExecutionEngine() {
+		this(Daemon::runInDaemonThread);
+	}
+	
+	ToolExecutionEngine(BiFunction<Runnable, DaemonToken, Thread> daemonLauncher) {
+		this.daemonLauncher = daemonLauncher;
+	}
+	
+	/**
+	 * Executes the given tool calls in parallel. Nothing waits for them: the result is emitted by
+	 * the thread that finishes the last call, or by the timer of a call that timed out, so no thread
+	 * of the caller is held while the tools run.
+	 * 
+	 * @param requests the tool calls from a single model turn
+	 * @return one result message per request, in request order
+	 */
+	public Single<List<ToolExecutionResultMessage>> execute(List<ToolExecutionRequest> requests) {
+		long timeoutSeconds = Long.parseLong(ConfigurationUtils.getConfigurationValue(adminService, "TOOL_TIMEOUT",
+		    "expertsystem.toolTimeoutSeconds", String.valueOf(ConfigurationUtils.TOOL_TIMEOUT_SECONDS)));
+		int maxResultLength = Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService,
+		    "TOOL_MAX_RESULT_LENGTH", "expertsystem.toolMaxResultLength",
+		    String.valueOf(ConfigurationUtils.TOOL_MAX_RESULT_LENGTH)));
+		if (requests.isEmpty()) {
+			return Single.just(new ArrayList<>());
+		}
+		List<Single<ToolExecutionResultMessage>> calls = new ArrayList<>(requests.size());
+		for (ToolExecutionRequest request : requests) {
+			calls.add(call(request, timeoutSeconds)
+			        .map(result -> ToolExecutionResultMessage.from(request, truncate(result, maxResultLength))));
+		}
+		return Single.zip(calls, results -> {
+			List<ToolExecutionResultMessage> messages = new ArrayList<>(results.length);
+			for (Object result : results) {
+				messages.add((ToolExecutionResultMessage) result);
+			}
+			return messages;
+		});
+	}
+	
+	/**
+	 * Submits one tool call to the tool executor. A call that times out is cancelled, which
+	 * interrupts the thread running it.
+	 */
+	private Single<String> call(ToolExecutionRequest request, long timeoutSeconds) {
+		return Single.<String> create(emitter -> {
+			Future<?> future;
+			try {
+				future = expertSystemToolExecutor.submit(() -> {
+					try {
+						emitter.onSuccess(invoke(request));
+					}
+					catch (Exception error) {
+						emitter.tryOnError(error);
+					}
+				});
+			}
+			catch (RejectedExecutionException rejected) {
+				log.warn(ExpertsystemConstants.GOLD + "Tool executor saturated; rejected call to '{}'"
+				        + ExpertsystemConstants.RESET, request.name());
+				emitter.onSuccess("Error: tool '" + request.name() + "' could not be scheduled, the server is busy");
+				return;
+			}
+			emitter.setCancellable(() -> future.cancel(true));
+		}).timeout(timeoutSeconds, TimeUnit.SECONDS, Single.fromCallable(() -> {
+			log.warn(ExpertsystemConstants.GOLD + "Tool '{}' timed out after {} seconds" + ExpertsystemConstants.RESET,
+			    request.name(), timeoutSeconds);
+			return "Error: tool '" + request.name() + "' timed out after " + timeoutSeconds + " seconds";
+		})).onErrorReturn(error -> {
+			log.error(ExpertsystemConstants.RED + "Tool '{}' failed!" + ExpertsystemConstants.RESET, request.name(), error);
+			return "Error: " + error.getMessage();
+		});
+	}
+	
+	/**
+	 * Runs a single tool call on a daemon thread so that tools can use the OpenMRS services. If the
+	 * executor thread is interrupted, the daemon thread is interrupted too and waited for.
+	 */
+	private String invoke(ToolExecutionRequest request) throws Exception {
+		ExpertSystemTool tool = toolRegistry.getTool(request.name());
+		if (tool == null) {
+			return "Error: tool '" + request.name() + "' is not available";
+		}
+		DaemonToken daemonToken = ExpertsystemActivator.getDaemonToken();
+		if (daemonToken == null) {
+			throw new IllegalStateException("Daemon token not available!");
+		}
+		AtomicReference<String> resultRef = new AtomicReference<>();
+		AtomicReference<Exception> errorRef = new AtomicReference<>();
+		Thread daemon = daemonLauncher.apply(() -> {
+			try {
+				resultRef.set(tool.execute(request.arguments()));
+			}
+			catch (Exception error) {
+				errorRef.set(error);
+			}
+		}, daemonToken);
+		try {
+			daemon.join();
+		}
+		catch (InterruptedException interrupted) {
+			daemon.interrupt();
+			joinUninterruptibly(daemon);
+			throw interrupted;
+		}
+		if (errorRef.get() != null) {
+			throw errorRef.get();
+		}
+		return resultRef.get() != null ? resultRef.get() : "";
+	}
+	
+	private static void joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException again) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	static String truncate(String result, int maxLength) {
+		if (result == null || maxLength <= 0 || result.length() <= maxLength) {
+			return result;
+		}
+		return result.substring(0, maxLength) + TRUNCATED_SUFFIX;
+	}
+}
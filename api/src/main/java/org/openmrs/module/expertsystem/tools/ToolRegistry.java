@@ -0,0 +1,117 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.tools;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link ExpertSystemTool}s known to the module, keyed by tool name, and resolves the
+ * loosely typed {@code tools} request option into the specifications sent to the model.
+ */
+@Slf4j
+@Component("expertSystemToolRegistry")
+public class ToolRegistry {
+	
+	private final Map<String, ExpertSystemTool> tools = new ConcurrentHashMap<>();
+	
+	@Autowired(required = false)
+	public void setTools(List<ExpertSystemTool> expertSystemTools) {
+		expertSystemTools.forEach(this::register);
+	}
+	
+	/**
+	 * Registers a tool, replacing any tool previously registered under the same name.
+	 * 
+	 * @param tool the tool to register
+	 */
+	public void register(ExpertSystemTool tool) {
+		String name = tool.getSpecification().name();
+		if (tools.put(name, tool) != null) {
+			log.warn(ExpertsystemConstants.GOLD + "Replaced tool registered as '{}'" + ExpertsystemConstants.RESET, name);
+		}
+	}
+	
+	/**
+	 * @param name the tool name
+	 * @return the tool registered under the name or null if there is none
+	 */
+	public ExpertSystemTool getTool(String name) {
+		return name != null ? tools.get(name) : null;
+	}
+	
+	/**
+	 * @return the names of all registered tools
+	 */
+	public List<String> getToolNames() {
+		List<String> names = new ArrayList<>(tools.keySet());
+		Collections.sort(names);
+		return names;
+	}
+	
+	/**
+	 * Resolves the {@code tools} request option into tool specifications.
+	 * <p>
+	 * Entries may be {@link ToolSpecification} instances, tool names, or JSON objects as sent over
+	 * the WebSocket, either {@code {"name": "..."}} or the OpenAI style
+	 * {@code {"type": "function", "function": {"name": "..."}}}. Names and JSON objects are resolved
+	 * to the specification of the registered tool; entries naming an unknown tool are skipped.
+	 * </p>
+	 * 
+	 * @param toolOptions the raw {@code tools} option value
+	 * @return the resolved specifications, never null
+	 */
+	public List<ToolSpecification> resolve(Object toolOptions) {
+		List<ToolSpecification> specifications = new ArrayList<>();
+		if (!(toolOptions instanceof List)) {
+			return specifications;
+		}
+		for (Object tool : (List<?>) toolOptions) {
+			if (tool instanceof ToolSpecification) {
+				specifications.add((ToolSpecification) tool);
+				continue;
+			}
+			String name = getToolName(tool);
+			ExpertSystemTool registered = getTool(name);
+			if (registered == null) {
+				log.warn(ExpertsystemConstants.GOLD + "Skipping unknown tool: {}" + ExpertsystemConstants.RESET, tool);
+				continue;
+			}
+			specifications.add(registered.getSpecification());
+		}
+		return specifications;
+	}
+	
+	private String getToolName(Object tool) {
+		if (tool instanceof String) {
+			return StringUtils.trimToNull((String) tool);
+		}
+		if (tool instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) tool;
+			if (map.get("function") instanceof Map) {
+				map = (Map<?, ?>) map.get("function");
+			}
+			Object name = map.get("name");
+			return name instanceof String ? StringUtils.trimToNull((String) name) : null;
+		}
+		return null;
+	}
+}
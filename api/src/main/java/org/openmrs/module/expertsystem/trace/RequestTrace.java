@@ -0,0 +1,177 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.trace;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency timeline of one prompt: the moments it passed each phase, from receipt on the socket
+ * through the daemon thread handoff, request preparation, the model call and the first token, to
+ * the final frame sent back.
+ * <p>
+ * Marks are stored in preallocated arrays, so recording a phase costs a clock read and two array
+ * writes. Marks past {@value #MAX_PHASES} are ignored. Time spent sending token frames is summed
+ * rather than marked per token.
+ * </p>
+ */
+public class RequestTrace {
+	
+	public static final String RECEIVED = "received";
+	
+	public static final String ADMITTED = "admitted";
+	
+	public static final String DAEMON_STARTED = "daemon_started";
+	
+	public static final String PREPARED = "prepared";
+	
+	public static final String MODEL_REQUESTED = "model_requested";
+	
+	public static final String FIRST_TOKEN = "first_token";
+	
+	public static final String MODEL_COMPLETED = "model_completed";
+	
+	public static final String TOOLS_EXECUTED = "tools_executed";
+	
+	public static final String RESPONSE_SENT = "response_sent";
+	
+	static final int MAX_PHASES = 32;
+	
+	private final String requestId;
+	
+	private final String userKey;
+	
+	private final long startMillis = System.currentTimeMillis();
+	
+	private final long startNanos = System.nanoTime();
+	
+	private final String[] phases = new String[MAX_PHASES];
+	
+	private final long[] phaseNanos = new long[MAX_PHASES];
+	
+	private int phaseCount;
+	
+	private long tokenCount;
+	
+	private long sendNanos;
+	
+	private volatile String model;
+	
+	private volatile String status;
+	
+	private volatile long durationNanos = -1;
+	
+	public RequestTrace(String requestId, String userKey) {
+		this.requestId = requestId;
+		this.userKey = userKey;
+	}
+	
+	/**
+	 * Records that the request reached a phase now.
+	 * 
+	 * @param phase the phase
+	 */
+	public synchronized void mark(String phase) {
+		if (phaseCount < MAX_PHASES) {
+			phases[phaseCount] = phase;
+			phaseNanos[phaseCount++] = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Records that the first token arrived, once.
+	 */
+	public synchronized void markToken() {
+		if (tokenCount++ == 0) {
+			mark(FIRST_TOKEN);
+		}
+	}
+	
+	/**
+	 * Adds the time spent sending a frame to the client.
+	 * 
+	 * @param nanos the send time
+	 */
+	public synchronized void addSendNanos(long nanos) {
+		sendNanos += nanos;
+	}
+	
+	void finish(String status) {
+		this.status = status;
+		this.durationNanos = System.nanoTime() - startNanos;
+	}
+	
+	public String getRequestId() {
+		return requestId;
+	}
+	
+	public String getUserKey() {
+		return userKey;
+	}
+	
+	public String getModel() {
+		return model;
+	}
+	
+	public void setModel(String model) {
+		this.model = model;
+	}
+	
+	public String getStatus() {
+		return status;
+	}
+	
+	public Date getStartTime() {
+		return new Date(startMillis);
+	}
+	
+	/**
+	 * @return the total time of the request in milliseconds, or -1 while it is running
+	 */
+	public double getDurationMillis() {
+		long duration = durationNanos;
+		return duration < 0 ? -1 : toMillis(duration);
+	}
+	
+	public synchronized long getTokenCount() {
+		return tokenCount;
+	}
+	
+	public synchronized double getSendMillis() {
+		return toMillis(sendNanos);
+	}
+	
+	/**
+	 * @return each phase with the milliseconds since the request was received and since the previous
+	 *         phase, in order
+	 */
+	public synchronized List<Map<String, Object>> getPhases() {
+		List<Map<String, Object>> timeline = new ArrayList<>(phaseCount);
+		long previous = startNanos;
+		for (int i = 0; i < phaseCount; i++) {
+			Map<String, Object> phase = new LinkedHashMap<>();
+			phase.put("phase", phases[i]);
+			phase.put("atMillis", toMillis(phaseNanos[i] - startNanos));
+			phase.put("sinceMillis", toMillis(phaseNanos[i] - previous));
+			timeline.add(phase);
+			previous = phaseNanos[i];
+		}
+		return timeline;
+	}
+	
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free ring of the most recent traces. Writers claim a slot with one atomic
+ * increment and overwrite the oldest trace; readers take a best-effort snapshot without blocking
+ * writers.
+ */
+class TraceRing {
+	
+	private final AtomicReferenceArray<RequestTrace> slots;
+	
+	private final int mask;
+	
+	private final AtomicLong next = new AtomicLong();
+	
+	/**
+	 * @param capacity the number of traces kept, rounded up to a power of two
+	 */
+	TraceRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		slots = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+	}
+	
+	void add(RequestTrace trace) {
+		slots.set((int) (next.getAndIncrement() & mask), trace);
+	}
+	
+	int capacity() {
+		return slots.length();
+	}
+	
+	long count() {
+		return next.get();
+	}
+	
+	/**
+	 * @return the kept traces, newest first
+	 */
+	List<RequestTrace> snapshot() {
+		long end = next.get();
+		long start = Math.max(0, end - slots.length());
+		List<RequestTrace> traces = new ArrayList<>((int) (end - start));
+		for (long i = end - 1; i >= start; i--) {
+			RequestTrace trace = slots.get((int) (i & mask));
+			if (trace != null) {
+				traces.add(trace);
+			}
+		}
+		return traces;
+	}
+}
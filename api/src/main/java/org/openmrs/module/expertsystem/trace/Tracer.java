@@ -0,0 +1,111 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.trace;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the latency timelines of the last {@code expertsystem.traceBufferSize} requests, so that a
+ * slow answer can be broken down into queueing, preparation, model prefill, generation and sending
+ * after the fact.
+ * 
+ * @see RequestTrace
+ */
+@Component("expertSystemTracer")
+public class Tracer {
+	
+	public static final String COMPLETED = "COMPLETED";
+	
+	public static final String FAILED = "FAILED";
+	
+	@Autowired
+	@Qualifier("adminService")
+	private AdministrationService adminService;
+	
+	private volatile TraceRing ring = new TraceRing(ConfigurationUtils.TRACE_BUFFER_SIZE);
+	
+	/**
+	 * Sizes the buffer from the configuration. Called when the module starts.
+	 */
+	public void initialize() {
+		int size = Integer.parseInt(ConfigurationUtils.getConfigurationValue(adminService, "TRACE_BUFFER_SIZE",
+		    "expertsystem.traceBufferSize", String.valueOf(ConfigurationUtils.TRACE_BUFFER_SIZE)));
+		if (size != ring.capacity()) {
+			ring = new TraceRing(size);
+		}
+	}
+	
+	/**
+	 * Starts the timeline of a request, marking it received.
+	 * 
+	 * @param requestId the request id, generated when null
+	 * @param userKey the user, may be null
+	 * @return the trace
+	 */
+	public RequestTrace start(String requestId, String userKey) {
+		RequestTrace trace = new RequestTrace(requestId != null ? requestId : UUID.randomUUID().toString(), userKey);
+		trace.mark(RequestTrace.RECEIVED);
+		return trace;
+	}
+	
+	/**
+	 * Ends the timeline of a request and keeps it in the buffer.
+	 * 
+	 * @param trace the trace
+	 * @param status {@link #COMPLETED} or {@link #FAILED}
+	 */
+	public void finish(RequestTrace trace, String status) {
+		trace.finish(status);
+		ring.add(trace);
+	}
+	
+	/**
+	 * Finds kept traces, newest first.
+	 * 
+	 * @param userKey only traces of this user, if not blank
+	 * @param model only traces sent to this model, if not blank
+	 * @param minMillis only traces that took at least this long
+	 * @param limit the maximum number of traces returned
+	 * @return the matching traces
+	 */
+	public List<RequestTrace> find(String userKey, String model, double minMillis, int limit) {
+		List<RequestTrace> matches = new ArrayList<>();
+		for (RequestTrace trace : ring.snapshot()) {
+			if (matches.size() >= limit) {
+				break;
+			}
+			if ((StringUtils.isBlank(userKey) || userKey.equals(trace.getUserKey()))
+			        && (StringUtils.isBlank(model) || model.equals(trace.getModel()))
+			        && trace.getDurationMillis() >= minMillis) {
+				matches.add(trace);
+			}
+		}
+		return matches;
+	}
+	
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new HashMap<>();
+		statistics.put("capacity", ring.capacity());
+		statistics.put("recorded", ring.count());
+		return statistics;
+	}
+}
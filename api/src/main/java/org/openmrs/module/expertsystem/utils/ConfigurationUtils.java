@@ -32,6 +32,128 @@ public final class ConfigurationUtils {
 	
 	public static final int QUEUE_CAPACITY = 50;
 	
+	public static final String EXECUTOR_MODE_PLATFORM = "platform";
+	
+	public static final String EXECUTOR_MODE_VIRTUAL = "virtual";
+	
+	public static final int VIRTUAL_THREAD_CONCURRENCY = 64;
+	
+	public static final int TOOL_POOL_SIZE = 4;
+	
+	public static final int TOOL_QUEUE_CAPACITY = 100;
+	
+	public static final int TOOL_TIMEOUT_SECONDS = 30;
+	
+	public static final int TOOL_MAX_RESULT_LENGTH = 8000;
+	
+	public static final int MAX_TOOL_ROUNDS = 5;
+	
+	public static final int BACKGROUND_QUEUE_CAPACITY = 100;
+	
+	public static final int CONTEXT_WINDOW_TOKENS = 8192;
+	
+	public static final int MAX_OUTPUT_TOKENS = 2048;
+	
+	public static final int SUMMARY_THRESHOLD_MESSAGES = 12;
+	
+	public static final int SUMMARY_MAX_TOKENS = 512;
+	
+	public static final int SUMMARY_CACHE_SIZE = 1000;
+	
+	public static final int ROUTING_COMPLEXITY_THRESHOLD = 3;
+	
+	public static final String RATE_LIMIT_REQUESTS_PER_SECOND = "1";
+	
+	public static final int RATE_LIMIT_BURST = 5;
+	
+	public static final long DAILY_TOKEN_QUOTA = 500000;
+	
+	public static final int USAGE_FLUSH_SECONDS = 30;
+	
+	public static final int MAX_WEBSOCKET_SESSIONS = 2000;
+	
+	public static final int MAX_WEBSOCKET_REQUESTS_PER_SESSION = 16;
+	
+	public static final int STREAM_BUFFER_TOKENS = 4096;
+	
+	public static final int MAX_RESUMABLE_STREAMS = 1000;
+	
+	public static final int STREAM_RESUME_GRACE_SECONDS = 120;
+	
+	public static final int AUDIT_QUEUE_CAPACITY = 10000;
+	
+	public static final int AUDIT_BATCH_SIZE = 100;
+	
+	public static final int AUDIT_FLUSH_SECONDS = 5;
+	
+	public static final String MODEL_LOG_SAMPLE_RATE = "0";
+	
+	public static final int MODEL_LOG_MAX_CHARS = 2000;
+	
+	public static final int MODEL_LOG_QUEUE_CAPACITY = 1000;
+	
+	public static final int TRACE_BUFFER_SIZE = 1024;
+	
+	public static final int CONCURRENCY_LIMIT_INITIAL = 4;
+	
+	public static final int CONCURRENCY_LIMIT_MIN = 1;
+	
+	public static final int CONCURRENCY_LIMIT_MAX = 32;
+	
+	public static final String CONCURRENCY_LATENCY_TOLERANCE = "2.0";
+	
+	public static final String CONCURRENCY_BACKOFF_RATIO = "0.9";
+	
+	public static final int CONCURRENCY_QUEUE_CAPACITY = 200;
+	
+	public static final String STANDARD_CONCURRENCY_SHARE = "0.75";
+	
+	public static final String BACKGROUND_CONCURRENCY_SHARE = "0.25";
+	
+	public static final int HTTP_CONNECT_TIMEOUT_SECONDS = 5;
+	
+	public static final int HTTP_FIRST_BYTE_TIMEOUT_SECONDS = 120;
+	
+	public static final int HTTP_IDLE_TIMEOUT_SECONDS = 60;
+	
+	public static final int HTTP_KEEP_ALIVE_SECONDS = 300;
+	
+	public static final String REASONING_MODE = "drop";
+	
+	public static final String OUTPUT_GUARDRAIL_MASK = "[redacted]";
+	
+	public static final int PHI_REFRESH_MINUTES = 10;
+	
+	public static final int PATIENT_CONTEXT_OBS_LIMIT = 50;
+	
+	public static final int PATIENT_CONTEXT_ENCOUNTER_LIMIT = 5;
+	
+	public static final int PATIENT_CONTEXT_TTL_MINUTES = 10;
+	
+	public static final int PATIENT_CONTEXT_CACHE_SIZE = 500;
+	
+	public static final String MODEL_RECORDING_FILE = "model-recordings.bin";
+	
+	public static final String REPLAY_SPEED = "1.0";
+	
+	public static final int RESPONSE_CACHE_TTL_MINUTES = 1440;
+	
+	public static final int RESPONSE_CACHE_MAX_MEGABYTES = 256;
+	
+	public static final String SEMANTIC_CACHE_MIN_SIMILARITY = "0.92";
+	
+	public static final int SEMANTIC_CACHE_TTL_MINUTES = 60;
+	
+	public static final int SEMANTIC_CACHE_SIZE = 1000;
+	
+	public static final int EMBEDDING_BATCH_SIZE = 32;
+	
+	public static final int EMBEDDING_MAX_IN_FLIGHT = 2;
+	
+	public static final int CONCEPT_GROUNDING_TOP_K = 5;
+	
+	public static final String CONCEPT_GROUNDING_MIN_SIMILARITY = "0.5";
+	
 	/**
 	 * Inner class to group all default values related to the Ollama model configuration. This helps
 	 * in organizing the constants logically.
@@ -42,6 +164,10 @@ public final class ConfigurationUtils {
 		
 		public static final String DEFAULT_MODEL_NAME = "meditron:7b";
 		
+		public static final String DEFAULT_REASONING_MODEL_NAME = "deepseek-r1";
+		
+		public static final String DEFAULT_EMBEDDING_MODEL_NAME = "nomic-embed-text";
+		
 		public static final String DEFAULT_TEMPERATURE = "0.7";
 		
 		public static final String DEFAULT_TIMEOUT_MINUTES = "15";
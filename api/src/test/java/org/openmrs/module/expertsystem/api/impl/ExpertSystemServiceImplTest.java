@@ -0,0 +1,370 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.api.impl;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.ollama.OllamaChatRequestParameters;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockedStatic;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.expertsystem.ExpertsystemActivator;
+import org.openmrs.module.expertsystem.audit.AuditLog;
+import org.openmrs.module.expertsystem.cache.ResponseCache;
+import org.openmrs.module.expertsystem.cache.SemanticCache;
+import org.openmrs.module.expertsystem.concurrency.AdaptiveLimit;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.deidentify.Deidentifier;
+import org.openmrs.module.expertsystem.deidentify.PhiSession;
+import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.guardrail.OutputGuardrail;
+import org.openmrs.module.expertsystem.memory.ConversationSummarizer;
+import org.openmrs.module.expertsystem.patient.PatientContextCache;
+import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.module.expertsystem.retrieval.ConceptIndex;
+import org.openmrs.module.expertsystem.routing.ModelRouter;
+import org.openmrs.module.expertsystem.routing.RoutingDecision;
+import org.openmrs.module.expertsystem.tools.ConceptLookupTool;
+import org.openmrs.module.expertsystem.tools.ToolExecutionEngine;
+import org.openmrs.module.expertsystem.tools.ToolRegistry;
+import org.openmrs.module.expertsystem.trace.RequestTrace;
+import org.openmrs.module.expertsystem.trace.Tracer;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that ExpertSystemServiceImpl answers prompts that call tools
+ * while every thread of the chat executor is blocked in {@code chat()}, sizes each tool round to
+ * its prompt, hands the results of registered tools to the next round, and only puts a patient into
+ * the prompt for callers that may read patients.
+ */
+public class ExpertSystemServiceImplTest {
+	
+	@Mock
+	private ChatModel expertSystemChatModel;
+	
+	@Mock
+	private StreamingChatModel expertSystemStreamingChatModel;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@Mock
+	private ConceptIndex conceptIndex;
+	
+	@Mock
+	private ToolRegistry toolRegistry;
+	
+	@Mock
+	private ToolExecutionEngine toolExecutionEngine;
+	
+	@Mock
+	private ModelRouter modelRouter;
+	
+	@Mock
+	private ConversationSummarizer conversationSummarizer;
+	
+	@Mock
+	private AuditLog auditLog;
+	
+	@Mock
+	private Tracer tracer;
+	
+	@Mock
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	@Mock
+	private Deidentifier deidentifier;
+	
+	@Mock
+	private PatientContextCache patientContext;
+	
+	@Mock
+	private ResponseCache responseCache;
+	
+	@Mock
+	private SemanticCache semanticCache;
+	
+	@Spy
+	private OutputGuardrail outputGuardrail = new OutputGuardrail();
+	
+	@InjectMocks
+	private ExpertSystemServiceImpl service;
+	
+	private ExecutorService chatExecutor;
+	
+	@Before
+	public void setUp() throws Exception {
+		MockitoAnnotations.openMocks(this);
+		new ExpertsystemActivator().setDaemonToken(mock(DaemonToken.class));
+		// the default pool of expertsystem.corePoolSize threads; the daemon thread runs inline
+		chatExecutor = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(50)) {
+			
+			@Override
+			public void execute(Runnable task) {
+				super.execute(() -> {
+					try (MockedStatic<Daemon> daemon = mockStatic(Daemon.class)) {
+						daemon.when(() -> Daemon.runInDaemonThreadAndWait(any(), any())).thenAnswer(invocation -> {
+							invocation.<Runnable> getArgument(0).run();
+							return null;
+						});
+						task.run();
+					}
+				});
+			}
+		};
+		Field scheduler = ExpertSystemServiceImpl.class.getDeclaredField("expertSystemScheduler");
+		scheduler.setAccessible(true);
+		scheduler.set(service, Schedulers.from(chatExecutor));
+		
+		RoutingDecision decision = mock(RoutingDecision.class);
+		when(decision.getModel()).thenReturn("llama3");
+		when(modelRouter.route(any(), anyList())).thenReturn(decision);
+		when(deidentifier.start()).thenReturn(PhiSession.DISABLED);
+		when(auditLog.start(any())).thenReturn(mock(AuditLog.Recording.class));
+		when(tracer.start(any(), any())).thenAnswer(invocation -> new RequestTrace("trace", null));
+		when(toolRegistry.resolve(any()))
+		        .thenReturn(Collections.singletonList(ToolSpecification.builder().name("count_patients").build()));
+		doAnswer(invocation -> {
+			invocation.<Consumer<AdaptiveLimit.Permit>> getArgument(1).accept(mock(AdaptiveLimit.Permit.class));
+			return null;
+		}).when(concurrencyLimiter).submit(any(), any(), any());
+		when(toolExecutionEngine.execute(anyList())).thenAnswer(invocation -> {
+			List<ToolExecutionResultMessage> results = new ArrayList<>();
+			for (ToolExecutionRequest request : invocation.<List<ToolExecutionRequest>> getArgument(0)) {
+				results.add(ToolExecutionResultMessage.from(request, "42"));
+			}
+			return Single.just(results);
+		});
+		doAnswer(invocation -> {
+			ChatRequest request = invocation.getArgument(0);
+			StreamingChatResponseHandler handler = invocation.getArgument(1);
+			// answers on a thread of the HTTP client, as Ollama does
+			new Thread(() -> handler.onCompleteResponse(ChatResponse.builder().aiMessage(answer(request)).build()))
+			        .start();
+			return null;
+		}).when(expertSystemStreamingChatModel).chat(any(ChatRequest.class), any(StreamingChatResponseHandler.class));
+	}
+	
+	@After
+	public void tearDown() {
+		chatExecutor.shutdownNow();
+		new ExpertsystemActivator().setDaemonToken(null);
+	}
+	
+	@Test
+	public void shouldAnswerConcurrentToolCallingPromptsWhileChatThreadsAreBlocked() throws Exception {
+		ExecutorService callers = Executors.newFixedThreadPool(2);
+		try {
+			CompletableFuture<ChatResponse> first = CompletableFuture.supplyAsync(() -> service.chat(prompt()), callers);
+			CompletableFuture<ChatResponse> second = CompletableFuture.supplyAsync(() -> service.chat(prompt()), callers);
+			
+			assertThat(first.get(10, TimeUnit.SECONDS).aiMessage().text()).isEqualTo("There are 42 patients.");
+			assertThat(second.get(10, TimeUnit.SECONDS).aiMessage().text()).isEqualTo("There are 42 patients.");
+		}
+		finally {
+			callers.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void chat_shouldSizeContextOfToolRoundForToolResults() {
+		List<ChatRequest> requests = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			ChatRequest request = invocation.getArgument(0);
+			requests.add(request);
+			StreamingChatResponseHandler handler = invocation.getArgument(1);
+			new Thread(() -> handler.onCompleteResponse(ChatResponse.builder().aiMessage(answer(request)).build()))
+			        .start();
+			return null;
+		}).when(expertSystemStreamingChatModel).chat(any(ChatRequest.class), any(StreamingChatResponseHandler.class));
+		when(toolExecutionEngine.execute(anyList())).thenAnswer(invocation -> Single.just(Collections.singletonList(
+		    ToolExecutionResultMessage.from(invocation.<List<ToolExecutionRequest>> getArgument(0).get(0),
+		        String.join(" ", Collections.nCopies(1500, "patient"))))));
+		
+		service.chat(prompt());
+		
+		assertThat(requests).hasSize(2);
+		assertThat(((OllamaChatRequestParameters) requests.get(0).parameters()).numCtx()).isEqualTo(4096);
+		assertThat(((OllamaChatRequestParameters) requests.get(1).parameters()).numCtx()).isEqualTo(8192);
+		assertThat(requests.get(1).modelName()).isEqualTo("llama3");
+		assertThat(requests.get(1).toolSpecifications()).extracting(ToolSpecification::name)
+		        .containsExactly("count_patients");
+	}
+	
+	@Test
+	public void chat_shouldAnswerWithResultOfRegisteredTool() throws Exception {
+		ConceptName name = mock(ConceptName.class);
+		when(name.getName()).thenReturn("Diabetes mellitus");
+		Concept diabetes = mock(Concept.class);
+		when(diabetes.getConceptId()).thenReturn(119481);
+		when(diabetes.getName()).thenReturn(name);
+		ConceptService conceptService = mock(ConceptService.class);
+		when(conceptService.getConceptsByName("diabetes")).thenReturn(Collections.singletonList(diabetes));
+		ConceptLookupTool lookup = new ConceptLookupTool();
+		set(lookup, "conceptIndex", conceptIndex);
+		set(lookup, "conceptService", conceptService);
+		set(lookup, "adminService", adminService);
+		ToolRegistry registry = new ToolRegistry();
+		registry.setTools(Collections.singletonList(lookup));
+		// the daemon thread of a tool call is a plain thread
+		ExecutorService toolExecutor = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+			
+			@Override
+			public void execute(Runnable task) {
+				super.execute(() -> {
+					try (MockedStatic<Daemon> daemon = mockStatic(Daemon.class)) {
+						daemon.when(() -> Daemon.runInDaemonThread(any(), any())).thenAnswer(invocation -> {
+							Thread thread = new Thread(invocation.<Runnable> getArgument(0));
+							thread.start();
+							return thread;
+						});
+						task.run();
+					}
+				});
+			}
+		};
+		ToolExecutionEngine engine = new ToolExecutionEngine();
+		set(engine, "toolRegistry", registry);
+		set(engine, "expertSystemToolExecutor", toolExecutor);
+		set(engine, "adminService", adminService);
+		set(service, "toolRegistry", registry);
+		set(service, "toolExecutionEngine", engine);
+		List<ChatRequest> requests = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			ChatRequest request = invocation.getArgument(0);
+			requests.add(request);
+			ChatMessage last = request.messages().get(request.messages().size() - 1);
+			AiMessage answer = last instanceof ToolExecutionResultMessage
+			        ? AiMessage.from("Record it as " + ((ToolExecutionResultMessage) last).text() + ".")
+			        : AiMessage.from(ToolExecutionRequest.builder().id("1").name(ConceptLookupTool.NAME)
+			                .arguments("{\"query\": \"diabetes\"}").build());
+			StreamingChatResponseHandler handler = invocation.getArgument(1);
+			new Thread(() -> handler.onCompleteResponse(ChatResponse.builder().aiMessage(answer).build())).start();
+			return null;
+		}).when(expertSystemStreamingChatModel).chat(any(ChatRequest.class), any(StreamingChatResponseHandler.class));
+		PromptRequest promptRequest = prompt();
+		promptRequest.getOptions().put("tools", Collections.singletonList(ConceptLookupTool.NAME));
+		
+		try {
+			assertThat(service.chat(promptRequest).aiMessage().text()).isEqualTo("Record it as 119481: Diabetes mellitus.");
+		}
+		finally {
+			toolExecutor.shutdownNow();
+		}
+		assertThat(requests).hasSize(2);
+		assertThat(requests.get(0).toolSpecifications()).extracting(ToolSpecification::name)
+		        .containsExactly(ConceptLookupTool.NAME);
+		assertThat(requests.get(1).messages()).filteredOn(ToolExecutionResultMessage.class::isInstance).hasSize(1);
+	}
+	
+	@Test
+	public void chat_shouldAddPatientContextWhenCallerMayReadPatients() {
+		List<ChatRequest> requests = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			ChatRequest request = invocation.getArgument(0);
+			requests.add(request);
+			StreamingChatResponseHandler handler = invocation.getArgument(1);
+			new Thread(() -> handler.onCompleteResponse(ChatResponse.builder().aiMessage(answer(request)).build()))
+			        .start();
+			return null;
+		}).when(expertSystemStreamingChatModel).chat(any(ChatRequest.class), any(StreamingChatResponseHandler.class));
+		when(patientContext.get(7)).thenReturn("Female, 54 years. Active conditions: diabetes.");
+		PromptRequest promptRequest = prompt();
+		promptRequest.getOptions().put(PromptRequest.PATIENT_OPTION, 7);
+		promptRequest.setPatientAccess(true);
+		
+		assertThat(service.chat(promptRequest).aiMessage().text()).isEqualTo("There are 42 patients.");
+		assertThat(requests.get(0).messages()).filteredOn(SystemMessage.class::isInstance)
+		        .extracting(message -> ((SystemMessage) message).text())
+		        .contains("Female, 54 years. Active conditions: diabetes.");
+	}
+	
+	@Test
+	public void chat_shouldRefusePatientContextWhenCallerMayNotReadPatients() {
+		PromptRequest promptRequest = prompt();
+		promptRequest.getOptions().put(PromptRequest.PATIENT_OPTION, 7);
+		
+		assertThatThrownBy(() -> service.chat(promptRequest)).hasRootCauseInstanceOf(APIAuthenticationException.class);
+	}
+	
+	private static AiMessage answer(ChatRequest request) {
+		for (ChatMessage message : request.messages()) {
+			if (message instanceof ToolExecutionResultMessage) {
+				return AiMessage.from("There are " + ((ToolExecutionResultMessage) message).text() + " patients.");
+			}
+		}
+		return AiMessage.from(ToolExecutionRequest.builder().id("1").name("count_patients").arguments("{}").build());
+	}
+	
+	private static void set(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+	
+	private static PromptRequest prompt() {
+		MessageDto message = new MessageDto();
+		message.setType("USER");
+		message.setText("How many patients do I have?");
+		Map<String, Object> options = new HashMap<>();
+		options.put("tools", Collections.singletonList("count_patients"));
+		options.put("timeout_ms", 15000);
+		PromptRequest promptRequest = new PromptRequest();
+		promptRequest.setMessages(Collections.singletonList(message));
+		promptRequest.setOptions(options);
+		return promptRequest;
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.audit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.api.ExpertSystemService;
+import org.openmrs.module.expertsystem.dto.AuditEntryDto;
+import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.request.PromptRequest;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies the queueing and batching of the AuditLog.
+ */
+public class AuditLogTest {
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@Mock
+	private ExpertSystemService expertSystemService;
+	
+	@InjectMocks
+	private AuditLog auditLog = new AuditLog() {
+		
+		@Override
+		ExpertSystemService getService() {
+			return expertSystemService;
+		}
+	};
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		when(adminService.getGlobalProperty("expertsystem.auditQueueCapacity")).thenReturn("3");
+		when(adminService.getGlobalProperty("expertsystem.auditBatchSize")).thenReturn("2");
+		when(adminService.getGlobalProperty("expertsystem.auditFlushSeconds")).thenReturn("3600");
+	}
+	
+	@After
+	public void tearDown() {
+		auditLog.destroy();
+	}
+	
+	@Test
+	public void record_shouldDropNewestEntriesWhenQueueIsFull() {
+		auditLog.initialize();
+		
+		for (int i = 0; i < 5; i++) {
+			auditLog.record(entry("prompt " + i));
+		}
+		
+		assertThat(auditLog.getCounts()).containsExactly(3, 0, 2);
+		auditLog.drain();
+		assertThat(written().get(0).getPrompt()).isEqualTo("prompt 0");
+	}
+	
+	@Test
+	public void record_shouldDropOldestEntriesWhenConfigured() {
+		when(adminService.getGlobalProperty("expertsystem.auditOverflowPolicy")).thenReturn("drop_oldest");
+		auditLog.initialize();
+		
+		for (int i = 0; i < 5; i++) {
+			auditLog.record(entry("prompt " + i));
+		}
+		
+		assertThat(auditLog.getCounts()).containsExactly(3, 0, 2);
+		auditLog.drain();
+		assertThat(written().get(0).getPrompt()).isEqualTo("prompt 2");
+	}
+	
+	@Test
+	public void drain_shouldRetryFailedBatchOnNextFlush() {
+		auditLog.initialize();
+		doThrow(new IllegalStateException("database down")).doNothing().when(expertSystemService)
+		        .saveAuditEntries(anyList());
+		for (int i = 0; i < 3; i++) {
+			auditLog.record(entry("prompt " + i));
+		}
+		
+		auditLog.drain();
+		assertThat(auditLog.getCounts()).containsExactly(3, 0, 0);
+		
+		auditLog.drain();
+		assertThat(auditLog.getCounts()).containsExactly(0, 3, 0);
+		ArgumentCaptor<List<AuditEntryDto>> batches = batches();
+		verify(expertSystemService, times(3)).saveAuditEntries(batches.capture());
+		assertThat(batches.getAllValues().get(1)).extracting(AuditEntryDto::getPrompt).containsExactly("prompt 0",
+		    "prompt 1");
+	}
+	
+	@Test
+	public void drain_shouldEvictNewestEntriesToRequeueFailedBatch() {
+		auditLog.initialize();
+		doAnswer(invocation -> {
+			auditLog.record(entry("prompt 3"));
+			auditLog.record(entry("prompt 4"));
+			throw new IllegalStateException("database down");
+		}).doNothing().when(expertSystemService).saveAuditEntries(anyList());
+		for (int i = 0; i < 3; i++) {
+			auditLog.record(entry("prompt " + i));
+		}
+		
+		auditLog.drain();
+		assertThat(auditLog.getCounts()).containsExactly(3, 0, 2);
+		
+		auditLog.drain();
+		ArgumentCaptor<List<AuditEntryDto>> batches = batches();
+		verify(expertSystemService, times(3)).saveAuditEntries(batches.capture());
+		assertThat(batches.getAllValues().get(1)).extracting(AuditEntryDto::getPrompt).containsExactly("prompt 0",
+		    "prompt 1");
+		assertThat(batches.getAllValues().get(2)).extracting(AuditEntryDto::getPrompt).containsExactly("prompt 2");
+	}
+	
+	@Test
+	public void recording_shouldTimeResponseAndWriteInBatches() {
+		auditLog.initialize();
+		PromptRequest promptRequest = new PromptRequest();
+		MessageDto message = new MessageDto();
+		message.setType("USER");
+		message.setText("What is the normal range of serum potassium?");
+		promptRequest.setMessages(Collections.singletonList(message));
+		promptRequest.getOptions().put(PromptRequest.USER_OPTION, "user-1");
+		
+		AuditLog.Recording recording = auditLog.start(promptRequest);
+		recording.setModel("llama3.2:1b");
+		recording.onToken();
+		recording.onToken();
+		recording.complete("3.5 to 5.0 mmol/L");
+		recording.fail(new IllegalStateException("late error"));
+		auditLog.record(entry("other"));
+		auditLog.record(entry("another"));
+		auditLog.drain();
+		
+		ArgumentCaptor<List<AuditEntryDto>> batches = batches();
+		verify(expertSystemService, times(2)).saveAuditEntries(batches.capture());
+		AuditEntryDto entry = batches.getAllValues().get(0).get(0);
+		assertThat(entry.getUserKey()).isEqualTo("user-1");
+		assertThat(entry.getModel()).isEqualTo("llama3.2:1b");
+		assertThat(entry.getPrompt()).contains("serum potassium");
+		assertThat(entry.getResponse()).isEqualTo("3.5 to 5.0 mmol/L");
+		assertThat(entry.getStatus()).isEqualTo(AuditEntryDto.STATUS_COMPLETED);
+		assertThat(entry.getTokenCount()).isEqualTo(2);
+		assertThat(entry.getTimeToFirstTokenMillis()).isNotNull();
+		assertThat(auditLog.getCounts()).containsExactly(0, 3, 0);
+	}
+	
+	private List<AuditEntryDto> written() {
+		ArgumentCaptor<List<AuditEntryDto>> batches = batches();
+		verify(expertSystemService, times(2)).saveAuditEntries(batches.capture());
+		return batches.getAllValues().get(0);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ArgumentCaptor<List<AuditEntryDto>> batches() {
+		return (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+	}
+	
+	private static AuditEntryDto entry(String prompt) {
+		AuditEntryDto entry = new AuditEntryDto();
+		entry.setPrompt(prompt);
+		return entry;
+	}
+}
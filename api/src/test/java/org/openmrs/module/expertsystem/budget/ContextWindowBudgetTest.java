@@ -0,0 +1,86 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.budget;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies how the ContextWindowBudget trims conversations.
+ */
+public class ContextWindowBudgetTest {
+	
+	private final ModelTokenEstimator estimator = ModelTokenEstimator.forModel("llama3.2");
+	
+	@Test
+	public void fit_shouldKeepSystemAndLatestUserMessageAndDropOldestHistory() {
+		List<ChatMessage> messages = new ArrayList<>();
+		messages.add(SystemMessage.from("You are a clinical assistant."));
+		for (int i = 0; i < 20; i++) {
+			messages.add(UserMessage.from("Question " + i + " " + repeat("about the patient ", 10)));
+			messages.add(AiMessage.from("Answer " + i + " " + repeat("with some detail ", 10)));
+		}
+		UserMessage latest = UserMessage.from("What is the latest blood pressure?");
+		messages.add(latest);
+		
+		List<ChatMessage> fitted = ContextWindowBudget.fit(messages, 300, estimator);
+		
+		assertThat(fitted.size()).isLessThan(messages.size());
+		assertThat(fitted.get(0)).isEqualTo(messages.get(0));
+		assertThat(fitted.get(fitted.size() - 1)).isEqualTo(latest);
+		assertThat(estimator.estimateTokenCountInMessages(fitted)).isLessThanOrEqualTo(300);
+		// the kept history is the newest, contiguous part of the conversation
+		List<ChatMessage> history = fitted.subList(1, fitted.size());
+		assertThat(messages.subList(messages.size() - history.size(), messages.size())).isEqualTo(history);
+	}
+	
+	@Test
+	public void fit_shouldKeepToolCallsTogetherWithTheirResults() {
+		ToolExecutionRequest call = ToolExecutionRequest.builder().id("1").name("lookup_concept").arguments("{}").build();
+		AiMessage toolCall = AiMessage.from(call);
+		ToolExecutionResultMessage result = ToolExecutionResultMessage.from(call, repeat("result ", 200));
+		UserMessage latest = UserMessage.from("And now?");
+		List<ChatMessage> messages = Arrays.asList(UserMessage.from("Look it up"), toolCall, result, latest);
+		
+		List<ChatMessage> small = ContextWindowBudget.fit(messages, 100, estimator);
+		List<ChatMessage> large = ContextWindowBudget.fit(messages, 10000, estimator);
+		
+		assertThat(small).containsExactly(latest);
+		assertThat(large).isEqualTo(messages);
+	}
+	
+	@Test
+	public void contextSizeFor_shouldRoundUpToPowerOfTwoWithinBounds() {
+		assertThat(ContextWindowBudget.contextSizeFor(100, 8192)).isEqualTo(2048);
+		assertThat(ContextWindowBudget.contextSizeFor(2049, 8192)).isEqualTo(4096);
+		assertThat(ContextWindowBudget.contextSizeFor(6000, 8192)).isEqualTo(8192);
+		assertThat(ContextWindowBudget.contextSizeFor(20000, 8192)).isEqualTo(8192);
+	}
+	
+	private static String repeat(String text, int times) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			builder.append(text);
+		}
+		return builder.toString();
+	}
+}
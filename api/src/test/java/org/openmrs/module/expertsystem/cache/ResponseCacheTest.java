@@ -0,0 +1,85 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.cache;
+
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.ollama.OllamaChatRequestParameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.module.expertsystem.deidentify.PhiSession;
+import org.openmrs.module.expertsystem.request.PromptRequest;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the ResponseCache never keys, and so never stores,
+ * requests that carry protected health information.
+ */
+public class ResponseCacheTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ResponseCache cache = new ResponseCache();
+	
+	private final PhiSession phi = mock(PhiSession.class);
+	
+	@Before
+	public void setUp() throws Exception {
+		Field file = ResponseCache.class.getDeclaredField("file");
+		file.setAccessible(true);
+		file.set(cache, new ResponseSegmentFile(folder.getRoot().toPath().resolve("responses.seg"),
+		        System::currentTimeMillis));
+		when(phi.isEnabled()).thenReturn(true);
+		when(phi.restore(anyString()))
+		        .thenAnswer(invocation -> invocation.<String> getArgument(0).replace("[NAME_1]", "Okello"));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		cache.destroy();
+	}
+	
+	@Test
+	public void keyOf_shouldKeyRequestWithoutPatientData() {
+		assertThat(cache.keyOf(request("What is the normal range of serum potassium?"), phi, new HashMap<>()))
+		        .isNotNull();
+	}
+	
+	@Test
+	public void keyOf_shouldNotKeyRequestAboutPatient() {
+		Map<String, Object> options = Collections.singletonMap(PromptRequest.PATIENT_OPTION, "42");
+		
+		assertThat(cache.keyOf(request("Summarize the latest visit"), phi, options)).isNull();
+	}
+	
+	@Test
+	public void keyOf_shouldNotKeyRequestWithProtectedHealthInformation() {
+		assertThat(cache.keyOf(request("Is [NAME_1] due for a viral load?"), phi, new HashMap<>())).isNull();
+	}
+	
+	private static ChatRequest request(String question) {
+		return ChatRequest.builder().messages(UserMessage.from(question))
+		        .parameters(OllamaChatRequestParameters.builder().modelName("llama3").build()).build();
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.cache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies recovery, expiry and compaction of the ResponseSegmentFile.
+ */
+public class ResponseSegmentFileTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final AtomicLong now = new AtomicLong(1000);
+	
+	private Path path;
+	
+	@Before
+	public void setUp() throws IOException {
+		path = folder.getRoot().toPath().resolve("responses.seg");
+	}
+	
+	@Test
+	public void shouldKeepResponsesAcrossReopen() throws IOException {
+		try (ResponseSegmentFile file = new ResponseSegmentFile(path, now::get)) {
+			file.put(1, 11, "first", 5000);
+			file.put(2, 22, "second ✓", 5000);
+			file.put(1, 11, "first, again", 5000);
+		}
+		
+		try (ResponseSegmentFile file = new ResponseSegmentFile(path, now::get)) {
+			assertThat(file.getEntryCount()).isEqualTo(2);
+			assertThat(file.get(1, 11)).isEqualTo("first, again");
+			assertThat(file.get(2, 22)).isEqualTo("second ✓");
+			assertThat(file.get(2, 23)).isNull();
+			assertThat(file.get(3, 33)).isNull();
+		}
+	}
+	
+	@Test
+	public void shouldDropTornRecordOnReopen() throws IOException {
+		long intactEnd;
+		try (ResponseSegmentFile file = new ResponseSegmentFile(path, now::get)) {
+			file.put(1, 11, "intact", 5000);
+			intactEnd = file.getSize();
+			file.put(2, 22, "torn by a crash", 5000);
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 'X' }), intactEnd + 40);
+		}
+		
+		try (ResponseSegmentFile file = new ResponseSegmentFile(path, now::get)) {
+			assertThat(file.get(1, 11)).isEqualTo("intact");
+			assertThat(file.get(2, 22)).isNull();
+			assertThat(file.getSize()).isEqualTo(intactEnd);
+			file.put(3, 33, "after recovery", 5000);
+			assertThat(file.get(3, 33)).isEqualTo("after recovery");
+		}
+	}
+	
+	@Test
+	public void shouldExpireAndCompactAwayOldResponses() throws IOException {
+		try (ResponseSegmentFile file = new ResponseSegmentFile(path, now::get)) {
+			file.put(1, 11, "short lived", 2000);
+			file.put(2, 22, "long lived", 9000);
+			file.put(2, 22, "long lived, again", 9000);
+			long size = file.getSize();
+			now.set(3000);
+			
+			assertThat(file.get(1, 11)).isNull();
+			assertThat(file.getReclaimableBytes()).isGreaterThan(0);
+			
+			file.compact(Long.MAX_VALUE);
+			
+			assertThat(file.getEntryCount()).isEqualTo(1);
+			assertThat(file.getSize()).isLessThan(size);
+			assertThat(file.getReclaimableBytes()).isZero();
+			assertThat(file.get(2, 22)).isEqualTo("long lived, again");
+		}
+	}
+	
+	@Test
+	public void shouldDropOldestResponsesWhenCompactingBeyondTheLimit() throws IOException {
+		try (ResponseSegmentFile file = new ResponseSegmentFile(path, now::get)) {
+			for (int i = 0; i < 10; i++) {
+				file.put(i, i, "response " + i, 5000);
+			}
+			long size = file.getSize();
+			
+			file.compact(size / 2);
+			
+			assertThat(file.getSize()).isLessThanOrEqualTo(size / 2);
+			assertThat(file.get(0, 0)).isNull();
+			assertThat(file.get(9, 9)).isEqualTo("response 9");
+		}
+	}
+}
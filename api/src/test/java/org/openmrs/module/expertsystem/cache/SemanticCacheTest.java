@@ -0,0 +1,125 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.cache;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.ollama.OllamaChatRequestParameters;
+import dev.langchain4j.model.output.Response;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.deidentify.PhiSession;
+import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.request.PromptRequest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the SemanticCache answers similar questions of the same
+ * scope, and counts its hits and misses.
+ */
+public class SemanticCacheTest {
+	
+	private static final String QUESTION = "How many diabetic patients do I have";
+	
+	@Mock
+	private EmbeddingModel expertSystemEmbeddingModel;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	private final AtomicLong now = new AtomicLong();
+	
+	@InjectMocks
+	private SemanticCache cache = new SemanticCache(now::get);
+	
+	private final Map<String, float[]> vectors = new HashMap<>();
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		when(adminService.getGlobalProperty("expertsystem.semanticCacheEnabled")).thenReturn("true");
+		vectors.put(QUESTION, new float[] { 1, 0, 0 });
+		vectors.put("count of my patients with diabetes", new float[] { 0.95f, 0.31f, 0 });
+		vectors.put("list my hypertensive patients", new float[] { 0, 1, 0 });
+		vectors.put("How many patients over 60 have HIV", new float[] { 0, 0, 1 });
+		vectors.put("How many patients over 70 have HIV", new float[] { 0, 0, 1 });
+		when(expertSystemEmbeddingModel.embed(anyString()))
+		        .thenAnswer(invocation -> Response.from(Embedding.from(vectors.get(invocation.<String> getArgument(0)))));
+	}
+	
+	@Test
+	public void shouldAnswerSimilarQuestion() {
+		cache.put(query(QUESTION, "mary"), "You have 42 diabetic patients.");
+		
+		assertThat(cache.get(query("count of my patients with diabetes", "mary")))
+		        .isEqualTo("You have 42 diabetic patients.");
+		assertThat(cache.get(query("list my hypertensive patients", "mary"))).isNull();
+		assertThat(cache.get(query("count of my patients with diabetes", "john"))).isNull();
+		
+		Map<String, Object> statistics = cache.getStatistics();
+		assertThat(statistics).containsEntry("hits", 1L).containsEntry("misses", 2L).containsEntry("entries", 1)
+		        .containsEntry("scopes", 1);
+		assertThat(statistics.get("nearestSimilarity")).hasToString("{0.00=1, 0.95=1}");
+	}
+	
+	@Test
+	public void shouldNotAnswerQuestionWithOtherNumbers() {
+		cache.put(query("How many patients over 60 have HIV", "mary"), "12");
+		
+		assertThat(cache.get(query("How many patients over 70 have HIV", "mary"))).isNull();
+		assertThat(cache.get(query("How many patients over 60 have HIV", "mary"))).isEqualTo("12");
+	}
+	
+	@Test
+	public void shouldNotAnswerAfterExpiry() {
+		cache.put(query(QUESTION, "mary"), "You have 42 diabetic patients.");
+		now.addAndGet(TimeUnit.MINUTES.toMillis(61));
+		
+		assertThat(cache.get(query(QUESTION, "mary"))).isNull();
+		assertThat(cache.getStatistics()).containsEntry("entries", 0).containsEntry("scopes", 0);
+	}
+	
+	@Test
+	public void shouldScopeByNumbersNamesAndAbbreviations() {
+		StringBuilder scope = new StringBuilder();
+		
+		SemanticCache.appendDistinctive(scope, "How many patients over 60 have HIV? Show those seen at Kisumu in 2024.5");
+		
+		assertThat(scope.toString()).isEqualTo("60 HIV Kisumu 2024.5 ");
+	}
+	
+	private SemanticCache.Query query(String question, String user) {
+		MessageDto message = new MessageDto();
+		message.setType("USER");
+		message.setText(question);
+		PromptRequest promptRequest = new PromptRequest();
+		promptRequest.setMessages(Collections.singletonList(message));
+		promptRequest.setOptions(Collections.singletonMap(PromptRequest.USER_OPTION, user));
+		ChatRequest chatRequest = ChatRequest.builder().messages(UserMessage.from(question))
+		        .parameters(OllamaChatRequestParameters.builder().modelName("llama3").build()).build();
+		return cache.query(promptRequest, chatRequest, PhiSession.DISABLED);
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.concurrency;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies how the AdaptiveLimit queues calls and adapts to latency.
+ */
+public class AdaptiveLimitTest {
+	
+	private final AtomicLong clock = new AtomicLong();
+	
+	private final List<AdaptiveLimit.Permit> permits = new ArrayList<>();
+	
+	private final List<Throwable> errors = new ArrayList<>();
+	
+	@Test
+	public void submit_shouldQueueCallsOverTheLimitAndRejectWhenQueueIsFull() {
+		AdaptiveLimit limit = new AdaptiveLimit(2, 1, 8, 2.0, 0.9, 1, 1.0, 1.0, clock::get);
+		
+		for (int i = 0; i < 4; i++) {
+			limit.submit(Priority.STANDARD, permits::add, errors::add);
+		}
+		
+		assertThat(permits).hasSize(2);
+		assertThat(errors).hasSize(1);
+		assertThat(limit.getStatistics()).containsEntry("rejected", 1L);
+		assertThat(limit.getStatistics().get("standard")).isEqualTo(lane(2, 1));
+		
+		permits.get(0).release(true);
+		
+		assertThat(permits).hasSize(3);
+		assertThat(limit.getInFlight()).isEqualTo(2);
+	}
+	
+	@Test
+	public void release_shouldRaiseLimitWhileLatencyStaysNearBaseline() {
+		AdaptiveLimit limit = new AdaptiveLimit(2, 1, 8, 2.0, 0.9, 100, 1.0, 1.0, clock::get);
+		
+		for (int i = 0; i < 40; i++) {
+			limit.submit(Priority.STANDARD, permits::add, errors::add);
+			limit.submit(Priority.STANDARD, permits::add, errors::add);
+			advanceMillis(100);
+			permits.forEach(permit -> {
+				permit.onToken();
+				permit.release(true);
+			});
+			permits.clear();
+		}
+		
+		assertThat(limit.getLimit()).isGreaterThan(2);
+	}
+	
+	@Test
+	public void release_shouldLowerLimitOnceWhenTimeToFirstTokenRises() {
+		AdaptiveLimit limit = new AdaptiveLimit(8, 1, 8, 2.0, 0.5, 100, 1.0, 1.0, clock::get);
+		limit.submit(Priority.STANDARD, permits::add, errors::add);
+		advanceMillis(100);
+		permits.remove(0).release(true);
+		
+		for (int i = 0; i < 4; i++) {
+			limit.submit(Priority.STANDARD, permits::add, errors::add);
+		}
+		advanceMillis(500);
+		permits.forEach(permit -> permit.release(true));
+		
+		assertThat(limit.getLimit()).isEqualTo(4);
+		
+		permits.clear();
+		limit.submit(Priority.STANDARD, permits::add, errors::add);
+		permits.get(0).release(false);
+		
+		assertThat(limit.getLimit()).isEqualTo(2);
+	}
+	
+	@Test
+	public void submit_shouldStartInteractiveCallsBeforeQueuedBackgroundWork() {
+		AdaptiveLimit limit = new AdaptiveLimit(4, 1, 4, 2.0, 0.9, 100, 0.75, 0.5, clock::get);
+		List<String> started = new ArrayList<>();
+		
+		for (int i = 0; i < 4; i++) {
+			String name = "background-" + i;
+			limit.submit(Priority.BACKGROUND, permit -> {
+				started.add(name);
+				permits.add(permit);
+			}, errors::add);
+		}
+		limit.submit(Priority.STANDARD, permit -> {
+			started.add("standard");
+			permits.add(permit);
+		}, errors::add);
+		limit.submit(Priority.STANDARD, permit -> {
+			started.add("standard-2");
+			permits.add(permit);
+		}, errors::add);
+		limit.submit(Priority.INTERACTIVE, permit -> {
+			started.add("interactive");
+			permits.add(permit);
+		}, errors::add);
+		
+		// background may hold half of the 4 slots; the rest go to standard and interactive work
+		assertThat(started).containsExactly("background-0", "background-1", "standard", "standard-2");
+		
+		permits.get(0).release(true);
+		
+		assertThat(started).endsWith("interactive");
+		assertThat(limit.getInFlight()).isEqualTo(4);
+		assertThat(Priority.parse("interactive", Priority.STANDARD)).isEqualTo(Priority.STANDARD);
+		assertThat(Priority.parse("background", Priority.STANDARD)).isEqualTo(Priority.BACKGROUND);
+	}
+	
+	private static Map<String, Object> lane(int inFlight, int queued) {
+		Map<String, Object> lane = new HashMap<>();
+		lane.put("inFlight", inFlight);
+		lane.put("queued", queued);
+		return lane;
+	}
+	
+	private void advanceMillis(long millis) {
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+}
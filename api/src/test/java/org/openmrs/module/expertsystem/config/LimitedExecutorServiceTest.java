@@ -0,0 +1,66 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.config;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies the concurrency limit of the LimitedExecutorService and the
+ * virtual thread fallback.
+ */
+public class LimitedExecutorServiceTest {
+	
+	@Test
+	public void execute_shouldNotRunMoreTasksThanPermitsAtOnce() throws Exception {
+		ExecutorService executor = new LimitedExecutorService(Executors.newCachedThreadPool(), 3);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(20);
+		
+		for (int i = 0; i < 20; i++) {
+			executor.execute(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(10);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+				done.countDown();
+			});
+		}
+		
+		assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+		assertThat(maxRunning.get()).isEqualTo(3);
+		executor.shutdown();
+		assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+	}
+	
+	@Test
+	public void newThreadPerTaskExecutor_shouldMatchJdkSupport() throws Exception {
+		ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("test-");
+		if (!VirtualThreads.isSupported()) {
+			assertThat(executor).isNull();
+			return;
+		}
+		assertThat(executor.submit(() -> Thread.currentThread().getName()).get()).startsWith("test-");
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.deadline;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * This is a unit test, which verifies how a Deadline is read from the request options.
+ */
+public class DeadlineTest {
+	
+	private static final long DEFAULT_MILLIS = 60000;
+	
+	@Test
+	public void fromOptions_shouldUseDefaultWhenNoDeadlineIsSent() {
+		Deadline deadline = Deadline.fromOptions(null, DEFAULT_MILLIS);
+		
+		assertThat(deadline.getRemainingMillis()).isBetween(DEFAULT_MILLIS - 1000, DEFAULT_MILLIS);
+		assertThat(deadline.isExpired()).isFalse();
+	}
+	
+	@Test
+	public void fromOptions_shouldReadRelativeAndAbsoluteDeadlinesCappedByDefault() {
+		Map<String, Object> options = new HashMap<>();
+		options.put(Deadline.TIMEOUT_OPTION, 5000);
+		assertThat(Deadline.fromOptions(options, DEFAULT_MILLIS).getRemainingMillis()).isBetween(4000L, 5000L);
+		
+		options.clear();
+		options.put(Deadline.DEADLINE_OPTION, System.currentTimeMillis() + 10000);
+		assertThat(Deadline.fromOptions(options, DEFAULT_MILLIS).getRemainingMillis()).isBetween(9000L, 10000L);
+		
+		options.put(Deadline.DEADLINE_OPTION, System.currentTimeMillis() + 10 * DEFAULT_MILLIS);
+		assertThat(Deadline.fromOptions(options, DEFAULT_MILLIS).getRemainingMillis()).isLessThanOrEqualTo(DEFAULT_MILLIS);
+	}
+	
+	@Test
+	public void check_shouldFailOncePassed() {
+		Map<String, Object> options = new HashMap<>();
+		options.put(Deadline.DEADLINE_OPTION, System.currentTimeMillis() - 1000);
+		Deadline deadline = Deadline.fromOptions(options, DEFAULT_MILLIS);
+		
+		assertThat(deadline.isExpired()).isTrue();
+		assertThat(deadline.getRemainingMillis()).isZero();
+		assertThatThrownBy(() -> deadline.check("while queued")).isInstanceOf(DeadlineExceededException.class)
+		        .hasMessageContaining("while queued");
+	}
+}
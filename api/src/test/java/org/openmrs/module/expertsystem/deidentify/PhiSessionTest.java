@@ -0,0 +1,111 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.deidentify;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.expertsystem.dto.MessageDto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies that a PhiSession replaces names, identifiers and values of a
+ * known form with stable placeholders, restores them in streamed output, and keeps clinical terms
+ * and sentence-initial words that only happen to be names.
+ */
+public class PhiSessionTest {
+	
+	private PhiSession session;
+	
+	@Before
+	public void setUp() {
+		TokenDictionary names = TokenDictionary.EMPTY
+		        .withAdded(Arrays.asList("Mary", "Okello", "Al", "Given", "Hope", "Graves", "Parkinson", "Down"));
+		TokenDictionary terms = TokenDictionary.EMPTY
+		        .withAdded(Arrays.asList("Graves", "disease", "Parkinson", "Down", "syndrome", "malaria"));
+		TokenDictionary identifiers = TokenDictionary.EMPTY.withAdded(Collections.singletonList("100-8Y"));
+		session = new PhiSession(names, terms, identifiers,
+		        PhiSession.compile(Collections.singletonList("HIV-\\d{4}")), 1, 42L);
+	}
+	
+	@Test
+	public void deidentify_shouldReplaceNamesIdentifiersAndPatterns() {
+		String text = "Mary Okello (100-8y, mary@example.org, +254 712 345 678, HIV-2231) may have malaria since "
+		        + "2024-01-15; mary agrees.";
+		
+		String deidentified = session.deidentify(text);
+		
+		assertThat(deidentified).doesNotContain("Mary", "Okello", "100-8y", "example", "345", "2231")
+		        .contains("[NAME_", "[ID_", "[EMAIL_", "[PHONE_", "[PHI_", "may have malaria since 2024-01-15; mary");
+		assertThat(session.restore(deidentified)).isEqualTo(text);
+	}
+	
+	@Test
+	public void deidentify_shouldGiveTheSameValueTheSamePlaceholder() {
+		MessageDto message = new MessageDto();
+		message.setType("USER");
+		message.setText("Is Okello better?");
+		
+		List<MessageDto> copies = session.deidentify(Collections.singletonList(message));
+		String again = new PhiSession(TokenDictionary.EMPTY.withAdded(Collections.singletonList("Okello")),
+		        TokenDictionary.EMPTY, TokenDictionary.EMPTY, PhiSession.compile(Collections.emptyList()), 0, 42L)
+		                .deidentify("Dear Okello");
+		
+		assertThat(message.getText()).isEqualTo("Is Okello better?");
+		assertThat(copies.get(0).getText()).isEqualTo("Is " + again.substring("Dear ".length()) + " better?");
+	}
+	
+	@Test
+	public void restore_shouldRestorePlaceholdersSplitOverTokens() {
+		String placeholder = session.deidentify("Dear Okello").substring("Dear ".length());
+		List<String> received = new ArrayList<>();
+		RestoringStream stream = session.restore(received::add);
+		
+		stream.accept("Dear ");
+		stream.accept(placeholder.substring(0, 3));
+		stream.accept(placeholder.substring(3, 9));
+		stream.accept(placeholder.substring(9) + ", see [1] and [");
+		stream.finish();
+		
+		assertThat(String.join("", received)).isEqualTo("Dear Okello, see [1] and [");
+	}
+	
+	@Test
+	public void deidentify_shouldKeepClinicalTermsAndSentenceInitialWordsThatAreNames() {
+		String text = "Given the labs, Graves disease is likely. Hope for the best. Parkinson's disease and Down "
+		        + "syndrome were ruled out.";
+		
+		assertThat(session.deidentify(text)).isEqualTo(text);
+	}
+	
+	@Test
+	public void deidentify_shouldReplaceClinicalTermsAndSentenceInitialWordsNextToNames() {
+		String deidentified = session.deidentify("Mary Graves has Graves disease. Okello was seen. Is Okello better?");
+		
+		assertThat(deidentified).doesNotContain("Mary", "Graves", "Okello").contains(" disease. ", " was seen. Is ");
+	}
+	
+	@Test
+	public void restore_shouldRestoreToolArguments() {
+		String placeholder = session.deidentify("100-8Y");
+		ToolExecutionRequest request = ToolExecutionRequest.builder().id("1").name("findPatient")
+		        .arguments("{\"identifier\":\"" + placeholder + "\"}").build();
+		
+		assertThat(session.restore(request).arguments()).isEqualTo("{\"identifier\":\"100-8Y\"}");
+		assertThat(PhiSession.DISABLED.deidentify("Okello")).isEqualTo("Okello");
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.guardrail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the OutputGuardrail redacts and blocks phrases in
+ * streamed output, including phrases split over tokens.
+ */
+public class OutputGuardrailTest {
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@InjectMocks
+	private OutputGuardrail guardrail;
+	
+	private final List<String> received = new ArrayList<>();
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		when(adminService.getGlobalProperty("expertsystem.outputGuardrailRules"))
+		        .thenReturn("redact:###-###-####\nredact: he\nhers\nblock:Lethal dose");
+		guardrail.initialize();
+	}
+	
+	@Test
+	public void guard_shouldRedactPhrasesSplitOverTokens() {
+		GuardedStream stream = guardrail.guard(received::add);
+		for (String token : Arrays.asList("Call 555-", "123", "-4567 or u", "sh", "ers")) {
+			stream.accept(token);
+		}
+		stream.finish();
+		
+		assertThat(String.join("", received)).isEqualTo("Call [redacted] or us[redacted]rs");
+	}
+	
+	@Test
+	public void guard_shouldHoldBackOnlyWhatMayStillMatch() {
+		GuardedStream stream = guardrail.guard(received::add);
+		stream.accept("Take 2 tablets");
+		stream.accept(" now, l");
+		
+		assertThat(received).containsExactly("Take 2 tablets", " now, ");
+		stream.finish();
+		assertThat(received).containsExactly("Take 2 tablets", " now, ", "l");
+	}
+	
+	@Test
+	public void guard_shouldBlockBeforeAnyOfThePhraseIsPassedOn() {
+		GuardedStream stream = guardrail.guard(received::add);
+		stream.accept("A LETHAL ");
+		
+		assertThatThrownBy(() -> stream.accept("dose is")).isInstanceOf(OutputBlockedException.class);
+		assertThat(String.join("", received)).isEqualTo("A ");
+		assertThatThrownBy(() -> guardrail.apply("a lethal dose")).isInstanceOf(OutputBlockedException.class);
+	}
+	
+	@Test
+	public void apply_shouldPassTextUnchangedWithoutRules() {
+		when(adminService.getGlobalProperty("expertsystem.outputGuardrailRules")).thenReturn(null);
+		guardrail.initialize();
+		
+		assertThat(guardrail.apply("Call 555-123-4567")).isEqualTo("Call 555-123-4567");
+	}
+}
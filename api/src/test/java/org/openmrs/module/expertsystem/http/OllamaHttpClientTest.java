@@ -0,0 +1,164 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.http;
+
+import com.sun.net.httpserver.HttpServer;
+import dev.langchain4j.exception.HttpException;
+import dev.langchain4j.exception.TimeoutException;
+import dev.langchain4j.http.client.HttpMethod;
+import dev.langchain4j.http.client.HttpRequest;
+import dev.langchain4j.http.client.sse.ServerSentEvent;
+import dev.langchain4j.http.client.sse.ServerSentEventListener;
+import dev.langchain4j.http.client.sse.ServerSentEventParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * This is a unit test, which verifies that the OllamaHttpClient reuses its connections, counts
+ * failures and gives up on hung streams.
+ */
+public class OllamaHttpClientTest {
+	
+	private static final ServerSentEventParser LINE_PARSER = (input, listener) -> {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				listener.onEvent(new ServerSentEvent(null, line));
+			}
+		}
+		catch (IOException e) {
+			listener.onError(e);
+		}
+	};
+	
+	private final AtomicLong clock = new AtomicLong();
+	
+	private final List<Integer> clientPorts = new CopyOnWriteArrayList<>();
+	
+	private final CountDownLatch hang = new CountDownLatch(1);
+	
+	private HttpServer server;
+	
+	private OllamaHttpClient client;
+	
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/api/tags", exchange -> {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			byte[] body = "{\"models\":[]}".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.createContext("/api/missing", exchange -> {
+			exchange.sendResponseHeaders(500, -1);
+			exchange.close();
+		});
+		server.createContext("/api/chat", exchange -> {
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream body = exchange.getResponseBody();
+			body.write("{\"message\":\"first\"}\n".getBytes(StandardCharsets.UTF_8));
+			body.flush();
+			try {
+				hang.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.close();
+		});
+		server.start();
+		
+		java.net.http.HttpClient shared = java.net.http.HttpClient.newBuilder()
+		        .version(java.net.http.HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+		client = new OllamaHttpClient(shared, Duration.ofSeconds(5), Duration.ofSeconds(5), Duration.ofSeconds(30),
+		        clock::get);
+	}
+	
+	@After
+	public void tearDown() {
+		hang.countDown();
+		server.stop(0);
+	}
+	
+	@Test
+	public void execute_shouldReuseTheConnection() {
+		assertThat(client.execute(get("/api/tags")).body()).isEqualTo("{\"models\":[]}");
+		assertThat(client.execute(get("/api/tags")).body()).isEqualTo("{\"models\":[]}");
+		
+		assertThat(clientPorts).hasSize(2);
+		assertThat(clientPorts.get(1)).isEqualTo(clientPorts.get(0));
+		assertThat(client.getStatistics()).containsEntry("requests", 2L).containsEntry("failures", 0L)
+		        .containsEntry("inFlight", 0);
+	}
+	
+	@Test
+	public void execute_shouldCountFailedResponses() {
+		assertThatThrownBy(() -> client.execute(get("/api/missing"))).isInstanceOf(HttpException.class);
+		
+		assertThat(client.getStatistics()).containsEntry("requests", 1L).containsEntry("failures", 1L);
+	}
+	
+	@Test
+	public void closeIdleStreams_shouldReportHungStreamAsTimeout() throws Exception {
+		CompletableFuture<String> firstEvent = new CompletableFuture<>();
+		CompletableFuture<Throwable> error = new CompletableFuture<>();
+		HttpRequest chat = HttpRequest.builder().method(HttpMethod.POST).url(url("/api/chat")).body("{}").build();
+		client.execute(chat, LINE_PARSER, new ServerSentEventListener() {
+			
+			@Override
+			public void onEvent(ServerSentEvent event) {
+				firstEvent.complete(event.data());
+			}
+			
+			@Override
+			public void onError(Throwable throwable) {
+				error.complete(throwable);
+			}
+		});
+		assertThat(firstEvent.get(5, TimeUnit.SECONDS)).contains("first");
+		
+		assertThat(client.closeIdleStreams()).isZero();
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(31));
+		assertThat(client.closeIdleStreams()).isEqualTo(1);
+		
+		assertThat(error.get(5, TimeUnit.SECONDS)).isInstanceOf(TimeoutException.class);
+		assertThat(client.getStatistics()).containsEntry("idleTimeouts", 1L).containsEntry("openStreams", 0);
+	}
+	
+	private HttpRequest get(String path) {
+		return HttpRequest.builder().method(HttpMethod.GET).url(url(path)).build();
+	}
+	
+	private String url(String path) {
+		return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + path;
+	}
+}
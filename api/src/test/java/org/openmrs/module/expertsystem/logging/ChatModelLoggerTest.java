@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.logging;
+
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.listener.ChatModelRequestContext;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies the sampling, redaction and truncation of the
+ * ChatModelLogger.
+ */
+public class ChatModelLoggerTest {
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@InjectMocks
+	private ChatModelLogger logger;
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+	}
+	
+	@After
+	public void tearDown() {
+		logger.destroy();
+	}
+	
+	@Test
+	public void redact_shouldMaskIdentifyingDetails() {
+		Redactor redactor = new Redactor("MRN-[A-Z0-9]+");
+		
+		String redacted = redactor.redact("Patient MRN-7QX2, born 1957-03-14, phone +254 712 345 678, "
+		        + "mail jane.doe@example.org. Potassium 5.8 mmol/L.");
+		
+		assertThat(redacted).doesNotContain("7QX2", "1957", "712", "jane.doe");
+		assertThat(redacted).contains("Potassium 5.8 mmol/L");
+	}
+	
+	@Test
+	public void render_shouldRedactAndTruncateMessages() {
+		when(adminService.getGlobalProperty("expertsystem.modelLogMaxChars")).thenReturn("40");
+		ChatRequest request = ChatRequest.builder().messages(SystemMessage.from("You are a clinical assistant."),
+		    UserMessage.from("Patient 12345678 reports chest pain radiating to the left arm since yesterday.")).build();
+		
+		String rendered = logger.render(request, logger.getSettings());
+		
+		assertThat(rendered).contains("SYSTEM: You are a clinical assistant.");
+		assertThat(rendered).contains("USER: Patient [REDACTED] reports chest pain ra... (");
+		assertThat(rendered).doesNotContain("12345678", "left arm");
+	}
+	
+	@Test
+	public void onRequest_shouldNotSampleByDefault() {
+		Map<Object, Object> attributes = new HashMap<>();
+		
+		logger.onRequest(new ChatModelRequestContext(hello(), null, attributes));
+		
+		assertThat(attributes).isEmpty();
+	}
+	
+	@Test
+	public void onRequest_shouldMarkSampledRequestsForTheirResponse() {
+		when(adminService.getGlobalProperty("expertsystem.modelLogSampleRate")).thenReturn("1");
+		Map<Object, Object> attributes = new HashMap<>();
+		
+		logger.onRequest(new ChatModelRequestContext(hello(), null, attributes));
+		
+		assertThat(attributes).hasSize(2);
+	}
+	
+	private static ChatRequest hello() {
+		return ChatRequest.builder().messages(UserMessage.from("Hello")).build();
+	}
+}
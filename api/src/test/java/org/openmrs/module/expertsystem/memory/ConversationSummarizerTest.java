@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.memory;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.concurrency.Priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies how the ConversationSummarizer replaces older turns.
+ */
+public class ConversationSummarizerTest {
+	
+	@Mock
+	private ChatModel expertSystemChatModel;
+	
+	@Mock
+	private ExecutorService backgroundExecutor;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@Mock
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	@InjectMocks
+	private ConversationSummarizer summarizer;
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		// run background work inline
+		doAnswer(invocation -> {
+			((Runnable) invocation.getArgument(0)).run();
+			return null;
+		}).when(backgroundExecutor).execute(any(Runnable.class));
+		when(concurrencyLimiter.call(any(Priority.class), anyLong(), any()))
+		        .thenAnswer(invocation -> ((Supplier<?>) invocation.getArgument(2)).get());
+		when(expertSystemChatModel.chat(any(ChatRequest.class)))
+		        .thenReturn(ChatResponse.builder().aiMessage(AiMessage.from("Patient has hypertension.")).build());
+	}
+	
+	@Test
+	public void isEnabled_shouldRequireConversationIdAndSummaryMemory() {
+		Map<String, Object> options = new HashMap<>();
+		options.put("memory", "summary");
+		assertThat(summarizer.isEnabled(options)).isFalse();
+		
+		options.put("conversation_id", "c1");
+		assertThat(summarizer.isEnabled(options)).isTrue();
+		
+		options.put("memory", "none");
+		assertThat(summarizer.isEnabled(options)).isFalse();
+	}
+	
+	@Test
+	public void apply_shouldReplaceSummarizedTurnsOnLaterPrompts() {
+		List<ChatMessage> first = conversation(20);
+		
+		assertThat(summarizer.apply("c1", first)).isEqualTo(first);
+		verify(expertSystemChatModel, times(1)).chat(any(ChatRequest.class));
+		
+		List<ChatMessage> second = conversation(22);
+		List<ChatMessage> applied = summarizer.apply("c1", second);
+		
+		// system prompt, summary, then the 22 - 8 turns the summary does not cover
+		assertThat(applied).hasSize(16);
+		assertThat(applied.get(0)).isEqualTo(second.get(0));
+		assertThat(((SystemMessage) applied.get(1)).text()).endsWith("Patient has hypertension.");
+		assertThat(applied.subList(2, applied.size())).isEqualTo(second.subList(9, second.size()));
+	}
+	
+	@Test
+	public void apply_shouldDiscardSummaryWhenHistoryDiverges() {
+		summarizer.apply("c1", conversation(20));
+		
+		List<ChatMessage> edited = conversation(14);
+		edited.set(1, UserMessage.from("A different first question"));
+		
+		assertThat(summarizer.apply("c1", edited)).isEqualTo(edited);
+	}
+	
+	@Test
+	public void apply_shouldNotSummarizeShortConversations() {
+		List<ChatMessage> messages = conversation(10);
+		
+		assertThat(summarizer.apply("c1", messages)).isEqualTo(messages);
+		verify(expertSystemChatModel, never()).chat(any(ChatRequest.class));
+	}
+	
+	private static List<ChatMessage> conversation(int turns) {
+		List<ChatMessage> messages = new ArrayList<>(Collections.singletonList(SystemMessage.from("You are a clinician.")));
+		for (int i = 0; i < turns; i++) {
+			messages.add(i % 2 == 0 ? UserMessage.from("Question " + i) : AiMessage.from("Answer " + i));
+		}
+		return messages;
+	}
+}
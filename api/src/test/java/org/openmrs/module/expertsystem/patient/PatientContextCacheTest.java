@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.patient;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.api.dao.ExpertSystemDao;
+import org.openmrs.module.expertsystem.dto.PatientContextDto;
+
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the PatientContextCache reads the summary of a patient
+ * once, and again after the patient's data changed or the summary expired.
+ */
+public class PatientContextCacheTest {
+	
+	@Mock
+	private ExpertSystemDao dao;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	private final AtomicLong now = new AtomicLong();
+	
+	@InjectMocks
+	private PatientContextCache cache = new PatientContextCache(now::get);
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		PatientContextDto context = new PatientContextDto(7);
+		context.setGender("F");
+		context.getConditions().add("Malaria (active) since 2024-01-15");
+		when(dao.getPatientContext(eq(7), anyInt(), anyInt(), any(Date.class))).thenReturn(context);
+	}
+	
+	@Test
+	public void get_shouldReadThePatientOnce() {
+		String first = cache.get(7);
+		String second = cache.get(7);
+		
+		assertThat(second).isSameAs(first).contains("Sex: F", "Active conditions:\n- Malaria (active)");
+		verify(dao, times(1)).getPatientContext(eq(7), anyInt(), anyInt(), any(Date.class));
+		assertThat(cache.getStatistics()).containsEntry("hits", 1L).containsEntry("misses", 1L);
+	}
+	
+	@Test
+	public void get_shouldReadThePatientAgainAfterInvalidation() {
+		cache.get(7);
+		cache.invalidate(7);
+		cache.get(7);
+		
+		verify(dao, times(2)).getPatientContext(eq(7), anyInt(), anyInt(), any(Date.class));
+	}
+	
+	@Test
+	public void get_shouldReadThePatientAgainAfterTheSummaryExpired() {
+		cache.get(7);
+		now.addAndGet(TimeUnit.MINUTES.toNanos(11));
+		cache.get(7);
+		
+		verify(dao, times(2)).getPatientContext(eq(7), anyInt(), anyInt(), any(Date.class));
+	}
+	
+	@Test
+	public void toText_shouldListOnlyTheSectionsWithData() {
+		PatientContextDto context = new PatientContextDto(7);
+		context.setGender("M");
+		context.setBirthdate(new java.sql.Date(new GregorianCalendar(1990, 5, 1).getTimeInMillis()));
+		context.getObservations().add("2024-03-01 Weight: 62.5 kg");
+		
+		assertThat(context.toText(LocalDate.of(2024, 3, 2)))
+		        .isEqualTo("Patient summary\nSex: M, age 33\nLatest observations:\n- 2024-03-01 Weight: 62.5 kg");
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.ratelimit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.api.ExpertSystemService;
+import org.openmrs.module.expertsystem.dto.UsageDto;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the RateLimiter reads its limits once per maintenance
+ * run, drops idle users, keeps daily quotas across changed limits and keeps usage that failed to
+ * persist.
+ */
+public class RateLimiterTest {
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@Mock
+	private ExpertSystemService expertSystemService;
+	
+	@InjectMocks
+	private RateLimiter rateLimiter;
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		when(adminService.getGlobalProperty("expertsystem.rateLimitRequestsPerSecond")).thenReturn("1000");
+		when(adminService.getGlobalProperty("expertsystem.rateLimitBurst")).thenReturn("5");
+		when(adminService.getGlobalProperty("expertsystem.dailyTokenQuota")).thenReturn("0");
+	}
+	
+	@Test
+	public void acquire_shouldReadLimitsOnlyWhenMaintained() {
+		rateLimiter.acquire("alice");
+		rateLimiter.acquire("bob");
+		verify(adminService, times(1)).getGlobalProperty("expertsystem.rateLimitBurst");
+		
+		rateLimiter.maintain();
+		rateLimiter.acquire("alice");
+		verify(adminService, times(2)).getGlobalProperty("expertsystem.rateLimitBurst");
+	}
+	
+	@Test
+	public void maintain_shouldDropIdleUsersAndFlushedUsage() throws Exception {
+		rateLimiter.acquire("alice");
+		rateLimiter.recordTokens("alice", 7);
+		Thread.sleep(20);
+		
+		rateLimiter.maintain();
+		
+		ArgumentCaptor<List<UsageDto>> batch = batch();
+		verify(expertSystemService).saveUsage(any(), batch.capture());
+		assertThat(batch.getValue()).containsExactly(new UsageDto("alice", 1, 7));
+		assertThat(map("limits")).isEmpty();
+		assertThat(map("pending")).isEmpty();
+	}
+	
+	@Test
+	public void acquire_shouldKeepTokensUsedTodayWhenLimitsChange() {
+		when(adminService.getGlobalProperty("expertsystem.dailyTokenQuota")).thenReturn("100");
+		rateLimiter.acquire("alice");
+		rateLimiter.recordTokens("alice", 60);
+		rateLimiter.acquire("alice");
+		rateLimiter.recordTokens("alice", 50);
+		assertThatThrownBy(() -> rateLimiter.acquire("alice")).isInstanceOf(RateLimitExceededException.class);
+		
+		when(adminService.getGlobalProperty("expertsystem.rateLimitBurst")).thenReturn("10");
+		rateLimiter.maintain();
+		assertThatThrownBy(() -> rateLimiter.acquire("alice")).isInstanceOf(RateLimitExceededException.class);
+		
+		when(adminService.getGlobalProperty("expertsystem.dailyTokenQuota")).thenReturn("200");
+		rateLimiter.maintain();
+		rateLimiter.acquire("alice");
+		rateLimiter.recordTokens("alice", 100);
+		assertThatThrownBy(() -> rateLimiter.acquire("alice")).isInstanceOf(RateLimitExceededException.class)
+		        .hasMessageContaining("200");
+	}
+	
+	@Test
+	public void flush_shouldKeepUsageThatFailedToPersist() throws Exception {
+		rateLimiter.acquire("alice");
+		doThrow(new IllegalStateException("database down")).when(expertSystemService).saveUsage(any(), anyList());
+		
+		rateLimiter.flush();
+		rateLimiter.recordTokens("alice", 3);
+		
+		assertThat(map("pending")).containsOnlyKeys("alice");
+		ArgumentCaptor<List<UsageDto>> batch = batch();
+		rateLimiter.flush();
+		verify(expertSystemService, times(2)).saveUsage(any(), batch.capture());
+		assertThat(batch.getValue()).containsExactly(new UsageDto("alice", 1, 3));
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ArgumentCaptor<List<UsageDto>> batch() {
+		return (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<String, ?> map(String name) throws Exception {
+		Field field = RateLimiter.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return (Map<String, ?>) field.get(rateLimiter);
+	}
+}
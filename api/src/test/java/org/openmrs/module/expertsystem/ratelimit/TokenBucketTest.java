@@ -0,0 +1,82 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.ratelimit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies the refill and debt behaviour of the TokenBucket.
+ */
+public class TokenBucketTest {
+	
+	private final AtomicLong now = new AtomicLong();
+	
+	@Test
+	public void tryAcquire_shouldAllowBurstThenRefillOverTime() {
+		TokenBucket bucket = new TokenBucket(3, 1, 3, now::get);
+		
+		assertThat(bucket.tryAcquire(1)).isTrue();
+		assertThat(bucket.tryAcquire(1)).isTrue();
+		assertThat(bucket.tryAcquire(1)).isTrue();
+		assertThat(bucket.tryAcquire(1)).isFalse();
+		assertThat(bucket.getSecondsUntilAvailable(1)).isEqualTo(1);
+		
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+		assertThat(bucket.tryAcquire(1)).isTrue();
+		assertThat(bucket.tryAcquire(1)).isFalse();
+		
+		now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+		assertThat(bucket.getAvailable()).isEqualTo(3);
+	}
+	
+	@Test
+	public void consume_shouldLeaveBucketInDebtUntilRepaid() {
+		TokenBucket bucket = new TokenBucket(100, 10, 20, now::get);
+		
+		bucket.consume(50);
+		
+		assertThat(bucket.getAvailable()).isEqualTo(-30);
+		assertThat(bucket.getSecondsUntilAvailable(1)).isEqualTo(4);
+		now.addAndGet(TimeUnit.SECONDS.toNanos(4));
+		assertThat(bucket.tryAcquire(1)).isTrue();
+	}
+	
+	@Test
+	public void tryAcquire_shouldNotOverGrantUnderContention() throws Exception {
+		TokenBucket bucket = new TokenBucket(1000, 0);
+		AtomicInteger granted = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 500; j++) {
+					if (bucket.tryAcquire(1)) {
+						granted.incrementAndGet();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertThat(granted.get()).isEqualTo(1000);
+	}
+}
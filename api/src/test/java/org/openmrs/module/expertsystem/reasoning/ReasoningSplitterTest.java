@@ -0,0 +1,85 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.reasoning;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies that the ReasoningSplitter separates reasoning from the
+ * answer while the response streams.
+ */
+public class ReasoningSplitterTest {
+	
+	private final List<String> answer = new ArrayList<>();
+	
+	private final List<String> reasoning = new ArrayList<>();
+	
+	@Test
+	public void accept_shouldDropReasoningWithTagsSplitOverTokens() {
+		ReasoningSplitter splitter = new ReasoningSplitter(ReasoningMode.DROP, answer::add, reasoning::add);
+		for (String token : Arrays.asList("<th", "ink>", "The patient", " is febrile", "</thi", "nk>\n\n", "Give ",
+		    "paracetamol", " <", "500 mg")) {
+			splitter.accept(token);
+		}
+		splitter.finish();
+		
+		assertThat(String.join("", answer)).isEqualTo("Give paracetamol <500 mg");
+		assertThat(reasoning).isEmpty();
+	}
+	
+	@Test
+	public void accept_shouldSendReasoningSeparatelyInChunks() {
+		ReasoningSplitter splitter = new ReasoningSplitter(ReasoningMode.SEPARATE, answer::add, reasoning::add);
+		splitter.accept("<think>");
+		for (int i = 0; i < ReasoningSplitter.CHUNK_CHARS; i++) {
+			splitter.accept("x");
+		}
+		splitter.accept("y</think>Answer");
+		splitter.finish();
+		
+		assertThat(answer).containsExactly("Answer");
+		assertThat(reasoning).hasSize(2);
+		assertThat(reasoning.get(0)).hasSize(ReasoningSplitter.CHUNK_CHARS);
+		assertThat(reasoning.get(1)).isEqualTo("y");
+	}
+	
+	@Test
+	public void acceptReasoning_shouldSummarizeEachPassageOnceItEnds() {
+		ReasoningSplitter splitter = new ReasoningSplitter(ReasoningMode.SUMMARY, answer::add, reasoning::add);
+		StringBuilder thinking = new StringBuilder("Consider the renal function first. ");
+		while (thinking.length() <= ReasoningSplitter.SUMMARY_CHARS) {
+			thinking.append("More thoughts. ");
+		}
+		splitter.acceptReasoning(thinking.toString());
+		assertThat(reasoning).isEmpty();
+		
+		splitter.accept("\nReduce the dose.");
+		splitter.finish();
+		
+		assertThat(answer).containsExactly("Reduce the dose.");
+		assertThat(reasoning).hasSize(1);
+		assertThat(reasoning.get(0)).startsWith("Consider the renal function first.")
+		        .endsWith("(" + thinking.length() + " characters)");
+	}
+	
+	@Test
+	public void strip_shouldRemoveClosedAndUnclosedReasoning() {
+		assertThat(ReasoningSplitter.strip("<think>a\nb</think>\n\nAnswer")).isEqualTo("Answer");
+		assertThat(ReasoningSplitter.strip("Answer<think>cut off")).isEqualTo("Answer");
+		assertThat(ReasoningSplitter.strip("No reasoning")).isEqualTo("No reasoning");
+	}
+}
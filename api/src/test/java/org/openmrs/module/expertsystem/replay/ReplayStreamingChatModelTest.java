@@ -0,0 +1,183 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.replay;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import dev.langchain4j.model.output.FinishReason;
+import dev.langchain4j.model.output.TokenUsage;
+import io.reactivex.rxjava3.schedulers.TestScheduler;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * This is a unit test, which verifies that model calls recorded by RecordingStreamingChatModel are
+ * replayed by ReplayStreamingChatModel with the same tokens, response and scaled timing.
+ */
+public class ReplayStreamingChatModelTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final AtomicLong clock = new AtomicLong();
+	
+	private final TestScheduler scheduler = new TestScheduler();
+	
+	private final StreamingHandle handle = mock(StreamingHandle.class);
+	
+	private final List<String> received = new ArrayList<>();
+	
+	private final AtomicReference<ChatResponse> completed = new AtomicReference<>();
+	
+	private RecordingFile file;
+	
+	@Before
+	public void setUp() {
+		file = new RecordingFile(folder.getRoot().toPath().resolve("recordings.bin"));
+	}
+	
+	@Test
+	public void replay_shouldDeliverTheRecordedTokensAtTheScaledTimes() throws Exception {
+		record("What is digestion?");
+		ReplayStreamingChatModel replay = new ReplayStreamingChatModel(new Recordings(file.readAll()), scheduler, 2.0);
+		
+		replay.chat(request("What is digestion?"), handler());
+		scheduler.advanceTimeTo(59, TimeUnit.MILLISECONDS);
+		assertThat(received).isEmpty();
+		scheduler.advanceTimeTo(60, TimeUnit.MILLISECONDS);
+		assertThat(received).containsExactly("thinking:Food");
+		scheduler.advanceTimeTo(75, TimeUnit.MILLISECONDS);
+		assertThat(received).containsExactly("thinking:Food", "Diges", "tion");
+		assertThat(completed.get()).isNull();
+		scheduler.advanceTimeTo(80, TimeUnit.MILLISECONDS);
+		
+		assertThat(completed.get().aiMessage().text()).isEqualTo("Digestion");
+		assertThat(completed.get().tokenUsage().outputTokenCount()).isEqualTo(2);
+		assertThat(completed.get().finishReason()).isEqualTo(FinishReason.STOP);
+	}
+	
+	@Test
+	public void replay_shouldStopWhenTheStreamIsCancelled() throws Exception {
+		record("What is digestion?");
+		ReplayStreamingChatModel replay = new ReplayStreamingChatModel(new Recordings(file.readAll()), scheduler, 1.0);
+		
+		replay.chat(request("What is digestion?"), new StreamingChatResponseHandler() {
+			
+			@Override
+			public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+				received.add(partialThinking.text());
+				context.streamingHandle().cancel();
+			}
+			
+			@Override
+			public void onCompleteResponse(ChatResponse response) {
+				completed.set(response);
+			}
+			
+			@Override
+			public void onError(Throwable error) {
+			}
+		});
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		
+		assertThat(received).containsExactly("Food");
+		assertThat(completed.get()).isNull();
+	}
+	
+	@Test
+	public void replay_shouldAnswerUnknownRequestsWithTheRecordingsInTurn() throws Exception {
+		record("first");
+		record("second");
+		Recordings recordings = new Recordings(file.readAll());
+		
+		assertThat(recordings.find(request("never recorded"))).isNotSameAs(recordings.find(request("never recorded")));
+		assertThat(new ReplayChatModel(recordings, 0).chat(request("second")).aiMessage().text()).isEqualTo("Digestion");
+		
+		new ReplayStreamingChatModel(new Recordings(Collections.emptyList()), scheduler, 1.0).chat(request("first"),
+		    handler());
+		assertThat(received).containsExactly("error:No recorded model calls to replay");
+	}
+	
+	/**
+	 * Records a call whose thinking arrives after 120 ms and whose answer tokens follow 20 and 10 ms
+	 * apart, completing 10 ms after the last token.
+	 */
+	private void record(String prompt) {
+		StreamingChatModel model = new StreamingChatModel() {
+			
+			@Override
+			public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+				clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(120));
+				handler.onPartialThinking(new PartialThinking("Food"), new PartialThinkingContext(handle));
+				clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+				handler.onPartialResponse(new PartialResponse("Diges"), new PartialResponseContext(handle));
+				clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+				handler.onPartialResponse(new PartialResponse("tion"), new PartialResponseContext(handle));
+				clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+				handler.onCompleteResponse(ChatResponse.builder().aiMessage(AiMessage.from("Digestion"))
+				        .tokenUsage(new TokenUsage(5, 2)).finishReason(FinishReason.STOP).build());
+			}
+		};
+		new RecordingStreamingChatModel(model, file, clock::get).chat(request(prompt), handler());
+		received.clear();
+		completed.set(null);
+	}
+	
+	private static ChatRequest request(String prompt) {
+		return ChatRequest.builder().messages(UserMessage.from(prompt)).build();
+	}
+	
+	private StreamingChatResponseHandler handler() {
+		return new StreamingChatResponseHandler() {
+			
+			@Override
+			public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+				received.add(partialResponse.text());
+			}
+			
+			@Override
+			public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+				received.add("thinking:" + partialThinking.text());
+			}
+			
+			@Override
+			public void onCompleteResponse(ChatResponse response) {
+				completed.set(response);
+			}
+			
+			@Override
+			public void onError(Throwable error) {
+				received.add("error:" + error.getMessage());
+			}
+		};
+	}
+}
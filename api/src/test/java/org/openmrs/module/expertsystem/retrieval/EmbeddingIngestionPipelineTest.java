@@ -0,0 +1,161 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.concurrency.Priority;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies batching and checkpointing of the EmbeddingIngestionPipeline,
+ * and that it embeds through the background lane.
+ */
+public class EmbeddingIngestionPipelineTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Mock
+	private EmbeddingModel expertSystemEmbeddingModel;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@Mock
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	@InjectMocks
+	private EmbeddingIngestionPipeline pipeline;
+	
+	private final List<IngestionItem> items = new ArrayList<>();
+	
+	private Path checkpointFile;
+	
+	@Before
+	public void setUp() throws Exception {
+		MockitoAnnotations.openMocks(this);
+		when(concurrencyLimiter.call(any(), anyLong(), any()))
+		        .thenAnswer(invocation -> invocation.<Supplier<?>> getArgument(2).get());
+		when(adminService.getGlobalProperty("expertsystem.embeddingBatchSize")).thenReturn("3");
+		when(adminService.getGlobalProperty("expertsystem.embeddingMaxInFlight")).thenReturn("2");
+		when(expertSystemEmbeddingModel.embedAll(anyList())).thenAnswer(invocation -> {
+			List<TextSegment> segments = invocation.getArgument(0);
+			List<Embedding> embeddings = new ArrayList<>();
+			for (TextSegment segment : segments) {
+				embeddings.add(Embedding.from(new float[] { segment.text().length() }));
+			}
+			return Response.from(embeddings);
+		});
+		for (int id = 1; id <= 10; id++) {
+			items.add(new IngestionItem(id, new Date(1000L * id), id == 4 ? null : "concept " + id));
+		}
+		checkpointFile = folder.getRoot().toPath().resolve("test.checkpoint");
+	}
+	
+	@Test
+	public void run_shouldResumeFromCheckpointAfterFailure() throws Exception {
+		RecordingSink failing = new RecordingSink(8);
+		assertThatThrownBy(() -> pipeline.run("concepts", this::readPage, failing, checkpointFile))
+		        .isInstanceOf(RuntimeException.class);
+		assertThat(IngestionCheckpoint.load(checkpointFile).getId()).isEqualTo(6);
+		
+		RecordingSink sink = new RecordingSink(-1);
+		int ingested = pipeline.run("concepts", this::readPage, sink, checkpointFile);
+		
+		assertThat(ingested).isEqualTo(4);
+		assertThat(sink.stored).containsOnly(7, 8, 9, 10);
+		assertThat(IngestionCheckpoint.load(checkpointFile).getId()).isEqualTo(10);
+		assertThat(pipeline.run("concepts", this::readPage, sink, checkpointFile)).isZero();
+	}
+	
+	@Test
+	public void run_shouldEmbedInBatchesAndRemoveRetiredItems() throws Exception {
+		RecordingSink sink = new RecordingSink(-1);
+		
+		pipeline.run("concepts", this::readPage, sink, checkpointFile);
+		
+		assertThat(sink.stored).hasSize(9).doesNotContain(4);
+		assertThat(sink.removed).containsExactly(4);
+		verify(expertSystemEmbeddingModel, times(4)).embedAll(anyList());
+		verify(concurrencyLimiter, times(4)).call(eq(Priority.BACKGROUND), anyLong(), any());
+	}
+	
+	private List<IngestionItem> readPage(IngestionCheckpoint after, int limit) {
+		List<IngestionItem> page = new ArrayList<>();
+		for (IngestionItem item : items) {
+			boolean isAfter = item.getModified().after(after.getModified())
+			        || (item.getModified().equals(after.getModified()) && item.getId() > after.getId());
+			if (isAfter && page.size() < limit) {
+				page.add(item);
+			}
+		}
+		return page;
+	}
+	
+	private static class RecordingSink implements IngestionSink {
+		
+		private final int failOn;
+		
+		private final Set<Integer> stored = ConcurrentHashMap.newKeySet();
+		
+		private final List<Integer> removed = Collections.synchronizedList(new ArrayList<>());
+		
+		RecordingSink(int failOn) {
+			this.failOn = failOn;
+		}
+		
+		@Override
+		public void store(List<IngestionItem> batch, List<float[]> vectors) throws IOException {
+			for (IngestionItem item : batch) {
+				if (item.getId() == failOn) {
+					throw new IOException("Disk full");
+				}
+				stored.add(item.getId());
+			}
+		}
+		
+		@Override
+		public void remove(List<Integer> ids) {
+			removed.addAll(ids);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.retrieval;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies the HnswIndex search and the VectorFile persistence used by
+ * the concept index.
+ */
+public class HnswIndexTest {
+	
+	private static final int DIMENSION = 32;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void search_shouldFindExactVectorAsNearestNeighbour() {
+		HnswIndex index = new HnswIndex();
+		float[][] vectors = randomVectors(1000);
+		for (int i = 0; i < vectors.length; i++) {
+			index.add(i, vectors[i]);
+		}
+		
+		int found = 0;
+		for (int i = 0; i < vectors.length; i += 10) {
+			List<HnswIndex.Match> matches = index.search(vectors[i], 1);
+			if (!matches.isEmpty() && matches.get(0).getKey() == i) {
+				found++;
+			}
+		}
+		
+		assertThat(found).isGreaterThanOrEqualTo(95);
+	}
+	
+	@Test
+	public void add_shouldReplaceAndRemoveVectors() {
+		HnswIndex index = new HnswIndex();
+		float[][] vectors = randomVectors(3);
+		index.add(1, vectors[0]);
+		index.add(2, vectors[1]);
+		index.add(1, vectors[2]);
+		index.remove(2);
+		
+		List<HnswIndex.Match> matches = index.search(vectors[2], 5);
+		
+		assertThat(index.size()).isEqualTo(1);
+		assertThat(matches).hasSize(1);
+		assertThat(matches.get(0).getKey()).isEqualTo(1);
+		assertThat(matches.get(0).getSimilarity()).isGreaterThan(0.99f);
+	}
+	
+	@Test
+	public void vectorFile_shouldRestoreLatestVectorsAfterReopen() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("index.vec");
+		float[][] vectors = randomVectors(3);
+		try (VectorFile file = new VectorFile(path, "nomic-embed-text")) {
+			file.put(1, vectors[0]);
+			file.put(2, vectors[1]);
+			file.put(1, vectors[2]);
+			file.delete(2);
+		}
+		
+		try (VectorFile file = new VectorFile(path, "nomic-embed-text")) {
+			Map<Integer, float[]> loaded = file.load();
+			assertThat(loaded).containsOnlyKeys(1);
+			assertThat(loaded.get(1)).containsExactly(vectors[2]);
+		}
+		try (VectorFile file = new VectorFile(path, "all-minilm")) {
+			assertThat(file.load()).isEmpty();
+		}
+	}
+	
+	private static float[][] randomVectors(int count) {
+		Random random = new Random(7);
+		float[][] vectors = new float[count][DIMENSION];
+		for (float[] vector : vectors) {
+			for (int d = 0; d < DIMENSION; d++) {
+				vector[d] = (float) random.nextGaussian();
+			}
+		}
+		return vectors;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.routing;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies how the ModelRouter picks models.
+ */
+public class ModelRouterTest {
+	
+	@Mock
+	private ChatModel expertSystemChatModel;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@InjectMocks
+	private ModelRouter router;
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		when(adminService.getGlobalProperty("expertsystem.ollamaChatModel")).thenReturn("llama3.2:1b");
+		when(adminService.getGlobalProperty("expertsystem.ollamaReasoningModel")).thenReturn("deepseek-r1");
+	}
+	
+	@Test
+	public void route_shouldRespectModelNamedByClient() {
+		RoutingDecision decision = router.route("meditron:7b", prompt("Why is the sky blue? Explain step by step."));
+		
+		assertThat(decision.getModel()).isEqualTo("meditron:7b");
+		assertThat(decision.getSource()).isEqualTo(RoutingDecision.Source.CLIENT);
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getStatistics_shouldCountModelsNamedByClientsUnderOneKey() {
+		for (int i = 0; i < 100; i++) {
+			router.route("model-" + i, prompt("What is the normal range for serum sodium?"));
+		}
+		router.route(null, prompt("What is the normal range for serum sodium?"));
+		
+		Map<String, Long> decisions = (Map<String, Long>) router.getStatistics().get("decisions");
+		assertThat(decisions).containsOnlyKeys("CLIENT", "HEURISTIC:llama3.2:1b");
+		assertThat(decisions.get("CLIENT")).isEqualTo(100L);
+	}
+	
+	@Test
+	public void route_shouldSendLookupsToChatModelAndAnalysisToReasoningModel() {
+		RoutingDecision lookup = router.route(null, prompt("What is the normal range of serum potassium?"));
+		RoutingDecision analysis = router.route("auto", prompt("A 64 year old with BP 170/100 mmHg, creatinine 2.1 mg "
+		        + "and potassium 5.8 mmol. Compare ACE inhibitors versus calcium channel blockers and explain the plan."));
+		
+		assertThat(lookup.getModel()).isEqualTo("llama3.2:1b");
+		assertThat(lookup.isComplex()).isFalse();
+		assertThat(analysis.getModel()).isEqualTo("deepseek-r1");
+		assertThat(analysis.isComplex()).isTrue();
+		assertThat(router.getStatistics()).containsEntry("routed", 2L);
+	}
+	
+	@Test
+	public void route_shouldAskRouterModelOnlyForAmbiguousPrompts() {
+		when(adminService.getGlobalProperty("expertsystem.ollamaRouterModel")).thenReturn("qwen2.5:0.5b");
+		when(expertSystemChatModel.chat(any(ChatRequest.class)))
+		        .thenReturn(ChatResponse.builder().aiMessage(AiMessage.from("COMPLEX")).build());
+		
+		RoutingDecision ambiguous = router.route(null, prompt("Should we stop the statin?"));
+		
+		assertThat(ambiguous.getSource()).isEqualTo(RoutingDecision.Source.CLASSIFIER);
+		assertThat(ambiguous.getModel()).isEqualTo("deepseek-r1");
+	}
+	
+	@Test
+	public void route_shouldNotAskRouterModelForClearLookups() {
+		when(adminService.getGlobalProperty("expertsystem.ollamaRouterModel")).thenReturn("qwen2.5:0.5b");
+		
+		RoutingDecision lookup = router.route(null, prompt("What is the ICD code for asthma?"));
+		
+		assertThat(lookup.getSource()).isEqualTo(RoutingDecision.Source.HEURISTIC);
+		verify(expertSystemChatModel, never()).chat(any(ChatRequest.class));
+	}
+	
+	private static List<ChatMessage> prompt(String text) {
+		return Collections.singletonList(UserMessage.from(text));
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.tools;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.ConceptService;
+import org.openmrs.module.expertsystem.dto.ConceptTextDto;
+import org.openmrs.module.expertsystem.retrieval.ConceptIndex;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the ConceptLookupTool searches the concept index when it
+ * is ready and looks concepts up by name otherwise.
+ */
+public class ConceptLookupToolTest {
+	
+	@Mock
+	private ConceptIndex conceptIndex;
+	
+	@Mock
+	private ConceptService conceptService;
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@InjectMocks
+	private ConceptLookupTool tool;
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+	}
+	
+	@Test
+	public void execute_shouldSearchConceptIndexWhenReady() throws Exception {
+		ConceptTextDto diabetes = new ConceptTextDto(119481);
+		diabetes.getNames().add("Diabetes mellitus");
+		diabetes.getDescriptions().add("A metabolic disorder");
+		when(conceptIndex.isReady()).thenReturn(true);
+		when(conceptIndex.search(eq("sugar disease"), eq(2), anyDouble())).thenReturn(Collections.singletonList(diabetes));
+		
+		assertThat(tool.execute("{\"query\": \"sugar disease\", \"limit\": 2}"))
+		        .isEqualTo("119481: Diabetes mellitus - A metabolic disorder");
+	}
+	
+	@Test
+	public void execute_shouldLookUpConceptsByNameWithoutIndex() throws Exception {
+		List<Concept> concepts = Arrays.asList(concept(116128, "Malaria"), concept(160148, "Malaria, confirmed"));
+		when(conceptService.getConceptsByName("malaria")).thenReturn(concepts);
+		
+		assertThat(tool.execute("{\"query\": \"malaria\", \"limit\": 1}")).isEqualTo("116128: Malaria");
+		assertThat(tool.execute("{\"query\": \"ebola\"}")).isEqualTo("No concept matches ebola");
+	}
+	
+	@Test
+	public void execute_shouldRequireQuery() {
+		assertThatThrownBy(() -> tool.execute("{}")).isInstanceOf(IllegalArgumentException.class);
+		assertThat(tool.getSpecification().name()).isEqualTo(ConceptLookupTool.NAME);
+	}
+	
+	private static Concept concept(int conceptId, String name) {
+		ConceptName conceptName = mock(ConceptName.class);
+		when(conceptName.getName()).thenReturn(name);
+		Concept concept = mock(Concept.class);
+		when(concept.getConceptId()).thenReturn(conceptId);
+		when(concept.getName()).thenReturn(conceptName);
+		return concept;
+	}
+}
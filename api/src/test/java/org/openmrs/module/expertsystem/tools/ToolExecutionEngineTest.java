@@ -0,0 +1,164 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.tools;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.expertsystem.ExpertsystemActivator;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the ToolExecutionEngine runs the calls of a turn in
+ * parallel, stops the tools that time out and reports the calls a saturated executor rejects.
+ */
+public class ToolExecutionEngineTest {
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@InjectMocks
+	private ToolExecutionEngine engine = new ToolExecutionEngine((task, token) -> {
+		Thread daemon = new Thread(task);
+		daemon.start();
+		return daemon;
+	});
+	
+	private ExecutorService toolExecutor;
+	
+	private final CountDownLatch started = new CountDownLatch(2);
+	
+	private final CountDownLatch released = new CountDownLatch(1);
+	
+	private final CountDownLatch interrupted = new CountDownLatch(1);
+	
+	@Before
+	public void setUp() throws Exception {
+		MockitoAnnotations.openMocks(this);
+		new ExpertsystemActivator().setDaemonToken(mock(DaemonToken.class));
+		when(adminService.getGlobalProperty("expertsystem.toolTimeoutSeconds")).thenReturn("1");
+		ToolRegistry registry = new ToolRegistry();
+		registry.setTools(Arrays.asList(new BlockingTool("meet", () -> {
+			started.countDown();
+			return started.await(5, TimeUnit.SECONDS) ? "met" : "alone";
+		}), new BlockingTool("hang", () -> {
+			try {
+				released.await();
+				return "released";
+			}
+			catch (InterruptedException error) {
+				interrupted.countDown();
+				throw error;
+			}
+		})));
+		toolExecutor = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>());
+		set("toolRegistry", registry);
+		set("expertSystemToolExecutor", toolExecutor);
+	}
+	
+	@After
+	public void tearDown() {
+		released.countDown();
+		toolExecutor.shutdownNow();
+		new ExpertsystemActivator().setDaemonToken(null);
+	}
+	
+	@Test
+	public void execute_shouldRunCallsOfATurnInParallel() {
+		List<ToolExecutionResultMessage> results = engine.execute(Arrays.asList(request("1", "meet"), request("2", "meet")))
+		        .blockingGet();
+		
+		assertThat(results).extracting(ToolExecutionResultMessage::text).containsExactly("met", "met");
+		assertThat(results).extracting(ToolExecutionResultMessage::id).containsExactly("1", "2");
+	}
+	
+	@Test
+	public void execute_shouldInterruptToolThatTimesOut() throws Exception {
+		List<ToolExecutionResultMessage> results = engine.execute(Arrays.asList(request("1", "hang"))).blockingGet();
+		
+		assertThat(results.get(0).text()).isEqualTo("Error: tool 'hang' timed out after 1 seconds");
+		assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+	
+	@Test
+	public void execute_shouldReportCallsRejectedBySaturatedExecutor() {
+		List<ToolExecutionResultMessage> results = engine
+		        .execute(Arrays.asList(request("1", "hang"), request("2", "hang"), request("3", "hang"))).blockingGet();
+		
+		assertThat(results).extracting(ToolExecutionResultMessage::text).containsExactly(
+		    "Error: tool 'hang' timed out after 1 seconds", "Error: tool 'hang' timed out after 1 seconds",
+		    "Error: tool 'hang' could not be scheduled, the server is busy");
+	}
+	
+	@Test
+	public void execute_shouldReportUnknownTool() {
+		List<ToolExecutionResultMessage> results = engine.execute(Arrays.asList(request("1", "unknown"))).blockingGet();
+		
+		assertThat(results.get(0).text()).isEqualTo("Error: tool 'unknown' is not available");
+	}
+	
+	private void set(String name, Object value) throws Exception {
+		Field field = ToolExecutionEngine.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(engine, value);
+	}
+	
+	private static ToolExecutionRequest request(String id, String name) {
+		return ToolExecutionRequest.builder().id(id).name(name).arguments("{}").build();
+	}
+	
+	private interface Body {
+		
+		String run() throws Exception;
+	}
+	
+	private static class BlockingTool implements ExpertSystemTool {
+		
+		private final String name;
+		
+		private final Body body;
+		
+		BlockingTool(String name, Body body) {
+			this.name = name;
+			this.body = body;
+		}
+		
+		@Override
+		public ToolSpecification getSpecification() {
+			return ToolSpecification.builder().name(name).build();
+		}
+		
+		@Override
+		public String execute(String arguments) throws Exception {
+			return body.run();
+		}
+	}
+}
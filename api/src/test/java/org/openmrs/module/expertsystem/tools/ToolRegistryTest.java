@@ -0,0 +1,92 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.tools;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies how the ToolRegistry resolves the tools request option.
+ */
+public class ToolRegistryTest {
+	
+	private ToolRegistry registry;
+	
+	@Before
+	public void setUp() {
+		registry = new ToolRegistry();
+		registry.setTools(Collections.singletonList(new EchoTool("lookup_concept")));
+	}
+	
+	@Test
+	public void resolve_shouldResolveWebSocketMapsToRegisteredSpecifications() {
+		Map<String, Object> plain = new HashMap<>();
+		plain.put("name", "lookup_concept");
+		Map<String, Object> function = new HashMap<>();
+		function.put("name", "lookup_concept");
+		Map<String, Object> openAiStyle = new HashMap<>();
+		openAiStyle.put("type", "function");
+		openAiStyle.put("function", function);
+		
+		List<ToolSpecification> specifications = registry.resolve(Arrays.asList(plain, openAiStyle, "lookup_concept"));
+		
+		assertThat(specifications).hasSize(3);
+		assertThat(specifications).allMatch(specification -> "lookup_concept".equals(specification.name()));
+	}
+	
+	@Test
+	public void resolve_shouldSkipUnknownToolsAndKeepSpecifications() {
+		ToolSpecification external = ToolSpecification.builder().name("external").build();
+		
+		List<ToolSpecification> specifications = registry.resolve(Arrays.asList("unknown", external, 42));
+		
+		assertThat(specifications).containsExactly(external);
+	}
+	
+	@Test
+	public void resolve_shouldReturnEmptyListForMissingOption() {
+		assertThat(registry.resolve(null)).isEmpty();
+	}
+	
+	@Test
+	public void truncate_shouldCapResultLength() {
+		assertThat(ToolExecutionEngine.truncate("abcdef", 3)).isEqualTo("abc" + ToolExecutionEngine.TRUNCATED_SUFFIX);
+		assertThat(ToolExecutionEngine.truncate("abc", 3)).isEqualTo("abc");
+	}
+	
+	private static class EchoTool implements ExpertSystemTool {
+		
+		private final String name;
+		
+		EchoTool(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public ToolSpecification getSpecification() {
+			return ToolSpecification.builder().name(name).description("Echoes its arguments").build();
+		}
+		
+		@Override
+		public String execute(String arguments) {
+			return arguments;
+		}
+	}
+}
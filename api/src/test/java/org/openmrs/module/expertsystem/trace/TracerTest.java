@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.trace;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.api.AdministrationService;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies how the Tracer records and finds request timelines.
+ */
+public class TracerTest {
+	
+	@Mock
+	private AdministrationService adminService;
+	
+	@InjectMocks
+	private Tracer tracer;
+	
+	@Before
+	public void setUp() {
+		MockitoAnnotations.openMocks(this);
+		when(adminService.getGlobalProperty("expertsystem.traceBufferSize")).thenReturn("4");
+		tracer.initialize();
+	}
+	
+	@Test
+	public void trace_shouldRecordPhasesInOrder() {
+		RequestTrace trace = tracer.start("request-1", "user-1");
+		trace.mark(RequestTrace.PREPARED);
+		trace.markToken();
+		trace.markToken();
+		tracer.finish(trace, Tracer.COMPLETED);
+		
+		List<Map<String, Object>> phases = trace.getPhases();
+		assertThat(phases).extracting(phase -> phase.get("phase")).containsExactly(RequestTrace.RECEIVED,
+		    RequestTrace.PREPARED, RequestTrace.FIRST_TOKEN);
+		assertThat(trace.getTokenCount()).isEqualTo(2);
+		assertThat(trace.getDurationMillis()).isGreaterThanOrEqualTo((Double) phases.get(2).get("atMillis"));
+	}
+	
+	@Test
+	public void find_shouldKeepOnlyTheLatestTracesNewestFirst() {
+		for (int i = 0; i < 6; i++) {
+			tracer.finish(tracer.start("request-" + i, "user-1"), Tracer.COMPLETED);
+		}
+		
+		assertThat(tracer.find(null, null, 0, 10)).extracting(RequestTrace::getRequestId).containsExactly("request-5",
+		    "request-4", "request-3", "request-2");
+		assertThat(tracer.getStatistics()).containsEntry("recorded", 6L);
+	}
+	
+	@Test
+	public void find_shouldFilterByUserModelAndDuration() {
+		RequestTrace chat = tracer.start("chat", "user-1");
+		chat.setModel("llama3.2:1b");
+		tracer.finish(chat, Tracer.COMPLETED);
+		RequestTrace reasoning = tracer.start("reasoning", "user-2");
+		reasoning.setModel("deepseek-r1");
+		tracer.finish(reasoning, Tracer.FAILED);
+		
+		assertThat(tracer.find("user-2", null, 0, 10)).extracting(RequestTrace::getRequestId).containsExactly("reasoning");
+		assertThat(tracer.find(null, "llama3.2:1b", 0, 10)).extracting(RequestTrace::getRequestId).containsExactly("chat");
+		assertThat(tracer.find(null, null, 60000, 10)).isEmpty();
+		assertThat(tracer.find(null, null, 0, 1)).hasSize(1);
+	}
+}
@@ -10,15 +10,35 @@
 
 package org.openmrs.module.expertsystem.web.controller;
 
+import dev.langchain4j.http.client.HttpMethod;
+import dev.langchain4j.http.client.HttpRequest;
 import dev.langchain4j.model.chat.response.ChatResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.openmrs.User;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.expertsystem.ExpertsystemConstants;
 import org.openmrs.module.expertsystem.api.ExpertSystemService;
+import org.openmrs.module.expertsystem.budget.ModelTokenEstimator;
+import org.openmrs.module.expertsystem.cache.ResponseCache;
+import org.openmrs.module.expertsystem.cache.SemanticCache;
+import org.openmrs.module.expertsystem.concurrency.ConcurrencyLimiter;
+import org.openmrs.module.expertsystem.concurrency.Priority;
+import org.openmrs.module.expertsystem.deadline.DeadlineExceededException;
+import org.openmrs.module.expertsystem.guardrail.OutputBlockedException;
+import org.openmrs.module.expertsystem.http.SharedHttpClientBuilder;
+import org.openmrs.module.expertsystem.logging.ChatModelLogger;
+import org.openmrs.module.expertsystem.ratelimit.RateLimitExceededException;
+import org.openmrs.module.expertsystem.ratelimit.RateLimiter;
 import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.module.expertsystem.routing.ModelRouter;
+import org.openmrs.module.expertsystem.trace.RequestTrace;
+import org.openmrs.module.expertsystem.trace.Tracer;
 import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.openmrs.module.expertsystem.web.websocket.ExpertsystemSocket;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.v1_0.controller.MainResourceController;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpStatus;
@@ -28,10 +48,12 @@ import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import javax.validation.Valid;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Slf4j
 @Controller(value = "expertSystemRestController")
@@ -46,22 +68,123 @@ public class ExpertSystemRestController extends MainResourceController {
 	@Qualifier("adminService")
 	private AdministrationService adminService;
 	
+	@Autowired
+	@Qualifier("expertSystemModelRouter")
+	private ModelRouter modelRouter;
+	
+	@Autowired
+	@Qualifier("expertSystemRateLimiter")
+	private RateLimiter rateLimiter;
+	
+	@Autowired
+	@Qualifier("expertSystemChatModelLogger")
+	private ChatModelLogger chatModelLogger;
+	
+	@Autowired
+	@Qualifier("expertSystemTracer")
+	private Tracer tracer;
+	
+	@Autowired
+	@Qualifier("expertSystemConcurrencyLimiter")
+	private ConcurrencyLimiter concurrencyLimiter;
+	
+	@Autowired
+	@Qualifier("expertSystemHttpClientBuilder")
+	private SharedHttpClientBuilder httpClientBuilder;
+	
+	@Autowired
+	@Qualifier("expertSystemResponseCache")
+	private ResponseCache responseCache;
+	
+	@Autowired
+	@Qualifier("expertSystemSemanticCache")
+	private SemanticCache semanticCache;
+	
 	@RequestMapping(value = "/models", method = RequestMethod.GET)
 	public ResponseEntity<?> getModels() throws Exception {
 		String ollamaBaseUrl = ConfigurationUtils.getConfigurationValue(adminService, "OLLAMA_BASE_URL",
 		    "expertsystem.ollamaBaseUrl", ConfigurationUtils.OllamaDefaults.DEFAULT_BASE_URL);
-		RestTemplate restTemplate = new RestTemplate();
 		String response;
 		try {
-			response = restTemplate.getForObject(ollamaBaseUrl + "/api/tags", String.class);
+			response = httpClientBuilder.build()
+			        .execute(HttpRequest.builder().method(HttpMethod.GET).url(ollamaBaseUrl + "/api/tags").build()).body();
 		}
-		catch (RestClientException error) {
+		catch (RuntimeException error) {
 			log.error("Cannot get A.I models! {}", error.getMessage());
 			throw new Exception(error);
 		}
 		return new ResponseEntity<>(response, HttpStatus.OK);
 	}
 	
+	@RequestMapping(value = "/routing", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getRoutingStatistics() {
+		Context.requirePrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE);
+		return new ResponseEntity<>(modelRouter.getStatistics(), HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/concurrency", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getConcurrencyStatistics() {
+		Context.requirePrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE);
+		return new ResponseEntity<>(concurrencyLimiter.getStatistics(), HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/http", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getHttpStatistics() {
+		Context.requirePrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE);
+		return new ResponseEntity<>(httpClientBuilder.getStatistics(), HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/responsecache", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getResponseCacheStatistics() {
+		Context.requirePrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE);
+		return new ResponseEntity<>(responseCache.getStatistics(), HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/semanticcache", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getSemanticCacheStatistics() {
+		Context.requirePrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE);
+		return new ResponseEntity<>(semanticCache.getStatistics(), HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/modellog", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getModelLogStatistics() {
+		Context.requirePrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE);
+		return new ResponseEntity<>(chatModelLogger.getStatistics(), HttpStatus.OK);
+	}
+	
+	/**
+	 * Lists the latency timelines of recent streamed requests, newest first. Users without the
+	 * {@code Manage Expert System} privilege only see their own requests.
+	 * 
+	 * @param user only requests of this user
+	 * @param model only requests sent to this model
+	 * @param minMillis only requests that took at least this many milliseconds
+	 * @param limit the maximum number of traces
+	 * @return the traces
+	 */
+	@RequestMapping(value = "/traces", method = RequestMethod.GET)
+	public ResponseEntity<List<RequestTrace>> getTraces(@RequestParam(value = "user", required = false) String user,
+	        @RequestParam(value = "model", required = false) String model,
+	        @RequestParam(value = "minMillis", defaultValue = "0") double minMillis,
+	        @RequestParam(value = "limit", defaultValue = "50") int limit) {
+		if (!Context.hasPrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE)) {
+			User authenticatedUser = Context.getAuthenticatedUser();
+			if (authenticatedUser == null) {
+				return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+			}
+			user = authenticatedUser.getUuid();
+		}
+		return new ResponseEntity<>(tracer.find(user, model, minMillis, limit), HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/websocket", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getWebSocketStatistics() {
+		Context.requirePrivilege(ExpertsystemConstants.MANAGE_EXPERT_SYSTEM_PRIVILEGE);
+		Map<String, Object> statistics = ExpertsystemSocket.getRegistry().getStatistics();
+		statistics.put("resumableStreams", ExpertsystemSocket.getStreams().size());
+		return new ResponseEntity<>(statistics, HttpStatus.OK);
+	}
+	
 	@RequestMapping(value = "/prompt", method = RequestMethod.POST)
 	public ResponseEntity<String> prompt(@Valid @RequestBody PromptRequest promptRequest, BindingResult bindingResult) {
 		if (bindingResult.hasErrors()) {
@@ -70,9 +193,37 @@ public class ExpertSystemRestController extends MainResourceController {
 							.get(0).getDefaultMessage());
 		}
 
+		User user = Context.getAuthenticatedUser();
+		String userKey = user != null ? user.getUuid() : "anonymous";
+		try {
+			rateLimiter.acquire(userKey);
+		}
+		catch (RateLimitExceededException error) {
+			return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+			        .header("Retry-After", String.valueOf(error.getRetryAfterSeconds())).body(error.getMessage());
+		}
+
+		// "options" may be omitted or sent as null
+		if (promptRequest.getOptions() == null) {
+			promptRequest.setOptions(new HashMap<>());
+		}
+		// the caches and the audit log are scoped by this option, so it never comes from the client
+		promptRequest.getOptions().put(PromptRequest.USER_OPTION, userKey);
+		// the service answers on threads without the user context, so the privilege is checked here
+		promptRequest.setPatientAccess(Context.hasPrivilege(PrivilegeConstants.GET_PATIENTS));
+		// integrations may lower their priority, but never overtake interactive users
+		promptRequest.getOptions().put(Priority.OPTION,
+		    Priority.parse(promptRequest.getOptions().get(Priority.OPTION), Priority.STANDARD).name());
+
 		try {
 			ChatResponse response = expertSystemService.chat(promptRequest);
+			rateLimiter.recordTokens(userKey, ModelTokenEstimator.forModel(promptRequest.getModel())
+			        .estimateTokenCountInText(response.aiMessage().text()));
 			return new ResponseEntity<>(response.toString(), HttpStatus.OK);
+		} catch (DeadlineExceededException error) {
+			return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).body(error.getMessage());
+		} catch (OutputBlockedException error) {
+			return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(error.getMessage());
 		} catch (Exception error) {
 			log.error("AI request failed!", error);
 			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -0,0 +1,114 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal CBOR (RFC 8949) encoder for the frames sent to WebSocket clients.
+ * <p>
+ * Supports maps, lists, strings, integers, floating point numbers, booleans and null, which is all
+ * a frame contains, so the module does not need another Jackson data format on the classpath.
+ * </p>
+ */
+final class CborWriter {
+	
+	private static final int MAJOR_UNSIGNED = 0;
+	
+	private static final int MAJOR_NEGATIVE = 1;
+	
+	private static final int MAJOR_TEXT = 3;
+	
+	private static final int MAJOR_ARRAY = 4;
+	
+	private static final int MAJOR_MAP = 5;
+	
+	private CborWriter() {
+	}
+	
+	/**
+	 * @param value the value to encode
+	 * @return the CBOR encoding of the value
+	 * @throws IllegalArgumentException if the value contains an unsupported type
+	 */
+	static byte[] write(Object value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		write(out, value);
+		return out.toByteArray();
+	}
+	
+	private static void write(ByteArrayOutputStream out, Object value) {
+		if (value == null) {
+			out.write(0xf6);
+		} else if (value instanceof Boolean) {
+			out.write((Boolean) value ? 0xf5 : 0xf4);
+		} else if (value instanceof String) {
+			byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+			writeHead(out, MAJOR_TEXT, utf8.length);
+			out.write(utf8, 0, utf8.length);
+		} else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			long number = ((Number) value).longValue();
+			if (number >= 0) {
+				writeHead(out, MAJOR_UNSIGNED, number);
+			} else {
+				writeHead(out, MAJOR_NEGATIVE, -1 - number);
+			}
+		} else if (value instanceof Number) {
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			out.write(0xfb);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (bits >>> shift) & 0xff);
+			}
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			writeHead(out, MAJOR_ARRAY, list.size());
+			for (Object item : list) {
+				write(out, item);
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeHead(out, MAJOR_MAP, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				write(out, entry.getKey());
+				write(out, entry.getValue());
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot encode " + value.getClass().getName() + " as CBOR");
+		}
+	}
+	
+	private static void writeHead(ByteArrayOutputStream out, int majorType, long length) {
+		int major = majorType << 5;
+		if (length < 24) {
+			out.write(major | (int) length);
+		} else if (length < 0x100) {
+			out.write(major | 24);
+			out.write((int) length);
+		} else if (length < 0x10000) {
+			out.write(major | 25);
+			out.write((int) (length >>> 8) & 0xff);
+			out.write((int) length & 0xff);
+		} else if (length < 0x100000000L) {
+			out.write(major | 26);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				out.write((int) (length >>> shift) & 0xff);
+			}
+		} else {
+			out.write(major | 27);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (length >>> shift) & 0xff);
+			}
+		}
+	}
+}
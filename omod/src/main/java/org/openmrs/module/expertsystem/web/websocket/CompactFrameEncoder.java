@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes frames of one connection in the compact binary format.
+ * <p>
+ * Clients opt in by connecting with {@code ?format=cbor}. Frames are then binary CBOR maps with
+ * one-letter keys and numeric frame types instead of JSON text, and requests are identified by a
+ * small per-connection stream id instead of the full request id:
+ * <ul>
+ * <li>{@code t} - the frame type: 0 token, 1 done, 2 error, 3 replay, 4 start, 5 reasoning</li>
+ * <li>{@code s} - the stream id</li>
+ * <li>{@code d} - the data: the token, final text, error message, replayed tokens or reasoning</li>
+ * <li>{@code o} - the offset of the token, or of the first replayed token</li>
+ * <li>other keys, e.g. {@code truncated} or {@code retryAfter}, are kept as they are</li>
+ * </ul>
+ * The first frame of a request on a connection is a start frame {@code {t: 4, s, r: requestId}}
+ * that binds the stream id. Stream ids are released after the done or error frame.
+ * </p>
+ */
+class CompactFrameEncoder {
+	
+	static final String FORMAT_CBOR = "cbor";
+	
+	private static final Map<String, Integer> FRAME_TYPES = new HashMap<>();
+	
+	private static final Map<String, String> KEYS = new HashMap<>();
+	
+	static {
+		FRAME_TYPES.put("token", 0);
+		FRAME_TYPES.put("done", 1);
+		FRAME_TYPES.put("error", 2);
+		FRAME_TYPES.put("replay", 3);
+		FRAME_TYPES.put("start", 4);
+		FRAME_TYPES.put("reasoning", 5);
+		KEYS.put("data", "d");
+		KEYS.put("offset", "o");
+	}
+	
+	private final AtomicInteger nextStreamId = new AtomicInteger();
+	
+	private final Map<String, Integer> streamIds = new ConcurrentHashMap<>();
+	
+	/**
+	 * Encodes a frame, preceded by the start frame if it is the first frame of its request.
+	 * 
+	 * @param payload the frame with the keys of the JSON format
+	 * @return the binary frames to send, in order
+	 */
+	List<byte[]> encode(Map<String, Object> payload) {
+		List<byte[]> frames = new ArrayList<>(2);
+		Map<String, Object> frame = new LinkedHashMap<>();
+		String type = (String) payload.get("type");
+		frame.put("t", FRAME_TYPES.containsKey(type) ? FRAME_TYPES.get(type) : type);
+		
+		String requestId = (String) payload.get("requestId");
+		if (requestId != null) {
+			boolean[] bound = new boolean[1];
+			Integer streamId = streamIds.computeIfAbsent(requestId, id -> {
+				bound[0] = true;
+				return nextStreamId.getAndIncrement();
+			});
+			if (bound[0]) {
+				Map<String, Object> start = new LinkedHashMap<>();
+				start.put("t", FRAME_TYPES.get("start"));
+				start.put("s", streamId);
+				start.put("r", requestId);
+				frames.add(CborWriter.write(start));
+			}
+			frame.put("s", streamId);
+			if ("done".equals(type) || "error".equals(type)) {
+				streamIds.remove(requestId);
+			}
+		}
+		for (Map.Entry<String, Object> entry : payload.entrySet()) {
+			if (!"type".equals(entry.getKey()) && !"requestId".equals(entry.getKey())) {
+				frame.put(KEYS.getOrDefault(entry.getKey(), entry.getKey()), entry.getValue());
+			}
+		}
+		frames.add(CborWriter.write(frame));
+		return frames;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.expertsystem.ExpertsystemConstants;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
+import org.openmrs.util.PrivilegeConstants;
+import org.openmrs.web.WebConstants;
+
+import javax.servlet.http.HttpSession;
+import javax.websocket.Extension;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerEndpointConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Authenticates the handshake of the token endpoint and negotiates the permessage-deflate extension
+ * (RFC 7692).
+ * <p>
+ * The user of the connection is the one logged in to the HTTP session the handshake belongs to. Its
+ * uuid is handed to the endpoint as the {@link #USER_PROPERTY} user property, which is missing when
+ * the session is not authenticated; the endpoint then closes the connection. Whether the user may
+ * read patients is handed over as the {@link #PATIENT_ACCESS_PROPERTY} user property, since the
+ * threads the endpoint runs on have no OpenMRS user context to check it on.
+ * </p>
+ * <p>
+ * Token frames are small and highly repetitive, so deflate with a context kept across messages
+ * shrinks them considerably. The extension is negotiated when the client offers it, the servlet
+ * container implements it (Tomcat and Jetty do) and {@code expertsystem.webSocketCompression} is
+ * true. Other extensions offered by the client are negotiated as the container would.
+ * </p>
+ */
+@Slf4j
+public class CompressionConfigurator extends ServerEndpointConfig.Configurator {
+	
+	static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+	
+	static final String USER_PROPERTY = "expertsystem.userUuid";
+	
+	static final String PATIENT_ACCESS_PROPERTY = "expertsystem.patientAccess";
+	
+	private static volatile boolean warned;
+	
+	@Override
+	public void modifyHandshake(ServerEndpointConfig config, HandshakeRequest request, HandshakeResponse response) {
+		super.modifyHandshake(config, request, response);
+		authenticate(request.getHttpSession(), config.getUserProperties());
+	}
+	
+	/**
+	 * Sets the {@link #USER_PROPERTY} and {@link #PATIENT_ACCESS_PROPERTY} user properties from the
+	 * user logged in to the HTTP session, or removes them if there is none.
+	 * 
+	 * @param httpSession the HTTP session of the handshake, if any
+	 * @param properties the user properties of the connection
+	 */
+	static void authenticate(Object httpSession, Map<String, Object> properties) {
+		User user = getAuthenticatedUser(httpSession);
+		if (user != null) {
+			properties.put(USER_PROPERTY, user.getUuid());
+			properties.put(PATIENT_ACCESS_PROPERTY, user.hasPrivilege(PrivilegeConstants.GET_PATIENTS));
+		} else {
+			properties.remove(USER_PROPERTY);
+			properties.remove(PATIENT_ACCESS_PROPERTY);
+		}
+	}
+	
+	/**
+	 * @param httpSession the HTTP session of the handshake, if any
+	 * @return the user logged in to the session, or null
+	 */
+	static User getAuthenticatedUser(Object httpSession) {
+		if (!(httpSession instanceof HttpSession)) {
+			return null;
+		}
+		Object userContext = ((HttpSession) httpSession).getAttribute(WebConstants.OPENMRS_USER_CONTEXT_HTTPSESSION_ATTR);
+		User user = userContext instanceof UserContext ? ((UserContext) userContext).getAuthenticatedUser() : null;
+		return user != null && user.getUuid() != null ? user : null;
+	}
+	
+	@Override
+	public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+		boolean compression = Boolean.parseBoolean(ConfigurationUtils.getConfigurationValue(
+		    Context.getAdministrationService(), "WEBSOCKET_COMPRESSION", "expertsystem.webSocketCompression", "true"));
+		return negotiate(installed, requested, compression);
+	}
+	
+	static List<Extension> negotiate(List<Extension> installed, List<Extension> requested, boolean compression) {
+		List<String> installedNames = new ArrayList<>();
+		for (Extension extension : installed) {
+			installedNames.add(extension.getName());
+		}
+		List<Extension> negotiated = new ArrayList<>();
+		for (Extension extension : requested) {
+			boolean deflate = PERMESSAGE_DEFLATE.equals(extension.getName());
+			if (deflate && !compression) {
+				continue;
+			}
+			if (installedNames.contains(extension.getName())) {
+				// at most one variant of each extension, in the client's order of preference
+				if (negotiated.stream().noneMatch(chosen -> chosen.getName().equals(extension.getName()))) {
+					negotiated.add(extension);
+				}
+			} else if (deflate && !warned) {
+				warned = true;
+				log.warn(ExpertsystemConstants.GOLD + "Client offered permessage-deflate, but the servlet container "
+				        + "does not support it; token frames are sent uncompressed" + ExpertsystemConstants.RESET);
+			}
+		}
+		return negotiated;
+	}
+}
@@ -17,8 +17,14 @@ import org.apache.commons.lang3.StringUtils;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.expertsystem.ExpertsystemConstants;
 import org.openmrs.module.expertsystem.api.ExpertSystemService;
+import org.openmrs.module.expertsystem.concurrency.Priority;
 import org.openmrs.module.expertsystem.dto.MessageDto;
+import org.openmrs.module.expertsystem.ratelimit.RateLimitExceededException;
+import org.openmrs.module.expertsystem.ratelimit.RateLimiter;
 import org.openmrs.module.expertsystem.request.PromptRequest;
+import org.openmrs.module.expertsystem.trace.RequestTrace;
+import org.openmrs.module.expertsystem.trace.Tracer;
+import org.openmrs.module.expertsystem.utils.ConfigurationUtils;
 
 import javax.websocket.CloseReason;
 import javax.websocket.OnClose;
@@ -26,44 +32,101 @@ import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class ExpertsystemSocket {
 	
-	private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+	private static final SessionRegistry registry = new SessionRegistry();
 	
-	private static final Map<String, String> requestToSession = new ConcurrentHashMap<>();
-	
-	private static final Map<String, List<String>> userToSessions = new ConcurrentHashMap<>();
+	private static final ResumableStreams streams = new ResumableStreams();
 	
 	private static final ObjectMapper objectMapper = new ObjectMapper();
 	
+	private static final String FRAME_ENCODER = "expertsystem.frameEncoder";
+	
+	private static final String SEND_LOCK = "expertsystem.sendLock";
+	
 	private ExpertSystemService expertSystemService() {
 		return Context.getService(ExpertSystemService.class);
 	}
 	
+	private RateLimiter rateLimiter() {
+		return Context.getRegisteredComponent("expertSystemRateLimiter", RateLimiter.class);
+	}
+	
+	private Tracer tracer() {
+		return Context.getRegisteredComponent("expertSystemTracer", Tracer.class);
+	}
+	
+	/**
+	 * @return the buffers of recent responses that reconnecting clients can resume
+	 */
+	public static ResumableStreams getStreams() {
+		return streams;
+	}
+	
+	/**
+	 * @return the registry of the open sessions and their in-flight requests
+	 */
+	public static SessionRegistry getRegistry() {
+		return registry;
+	}
+	
+	private static int getLimit(String envVar, String globalProperty, int defaultValue) {
+		return Integer.parseInt(ConfigurationUtils.getConfigurationValue(Context.getAdministrationService(), envVar,
+		    globalProperty, String.valueOf(defaultValue)));
+	}
+	
 	/**
-	 * Called when WebSocket connection is opened. Registers session and associates with user ID.
+	 * Called when WebSocket connection is opened. Registers session and associates it with the user
+	 * authenticated at the handshake, see {@link CompressionConfigurator}; unauthenticated connections
+	 * are closed. Clients connecting with {@code format=cbor} receive compact binary frames, see
+	 * {@link CompactFrameEncoder}. Connections beyond {@code expertsystem.maxWebSocketSessions} are
+	 * closed with "try again later".
 	 */
 	@OnOpen
 	public void onOpen(Session session) {
-		String userId = session.getRequestParameterMap().getOrDefault("userId", Collections.singletonList("anonymous"))
-		        .get(0);
-		sessions.put(session.getId(), session);
-		userToSessions.computeIfAbsent(userId, key -> new CopyOnWriteArrayList<>()).add(session.getId());
+		String userId = (String) session.getUserProperties().get(CompressionConfigurator.USER_PROPERTY);
+		if (userId == null) {
+			log.warn(ExpertsystemConstants.GOLD + "WS REJECTED session:{}; not authenticated" + ExpertsystemConstants.RESET,
+			    session.getId());
+			close(session, new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Authentication required"));
+			return;
+		}
+		if (!registry.register(session, userId,
+		    getLimit("MAX_WEBSOCKET_SESSIONS", "expertsystem.maxWebSocketSessions", ConfigurationUtils.MAX_WEBSOCKET_SESSIONS))) {
+			log.warn(ExpertsystemConstants.GOLD + "WS REJECTED session:{} user:{}; session limit reached"
+			        + ExpertsystemConstants.RESET, session.getId(), userId);
+			close(session, new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too many connections"));
+			return;
+		}
+		session.getUserProperties().put(SEND_LOCK, new Object());
+		List<String> format = session.getRequestParameterMap().get("format");
+		if (format != null && CompactFrameEncoder.FORMAT_CBOR.equalsIgnoreCase(format.get(0))) {
+			session.getUserProperties().put(FRAME_ENCODER, new CompactFrameEncoder());
+		}
 		log.info(ExpertsystemConstants.GREEN + "WS CONNECTED session:{} user:{}" + ExpertsystemConstants.RESET,
 		    session.getId(), userId);
 	}
 	
+	private static void close(Session session, CloseReason reason) {
+		try {
+			session.close(reason);
+		}
+		catch (IOException exception) {
+			log.debug("Failed to close rejected session {}: {}", session.getId(), exception.getMessage());
+		}
+	}
+	
 	/**
 	 * Called when WebSocket connection is closed. Cleans up session resources.
 	 * 
@@ -89,6 +152,16 @@ public class ExpertsystemSocket {
 	
 	/**
 	 * Called when WebSocket message is received. Processes prompt request and initiates chat stream.
+	 * <p>
+	 * Token frames carry the {@code offset} of their token. A client that lost its connection can
+	 * reconnect and send {@code {"requestId": ..., "lastOffset": n}} to receive the tokens after
+	 * {@code n} in a single {@code replay} frame, followed by the live tail of the response.
+	 * </p>
+	 * <p>
+	 * The reasoning of the model is dropped unless the {@code reasoning} option asks for
+	 * {@code summary} or {@code separate}; it then arrives in {@code reasoning} frames, which are
+	 * neither counted against the rate limit nor replayed on resume.
+	 * </p>
 	 * 
 	 * @param session WebSocket session
 	 * @param message JSON message payload
@@ -109,10 +182,39 @@ public class ExpertsystemSocket {
 			} else {
 				requestId = requestIdNode.asText();
 			}
+			RequestTrace trace = tracer().start(requestId, registry.getUserId(session.getId()));
+			
+			if (json.has("lastOffset")) {
+				resume(session, requestId, json.get("lastOffset").asLong(-1));
+				return;
+			}
+			
+			String userId = StringUtils.defaultString(registry.getUserId(session.getId()), "anonymous");
+			// a new prompt never takes over a request id of another connection; only resume() moves one
+			Session bound = registry.resolve(requestId);
+			TokenStreamBuffer buffered = streams.get(requestId);
+			if (bound != null && !bound.getId().equals(session.getId())
+			        || buffered != null && !buffered.getUserId().equals(userId)) {
+				sendErrorDirect(session, new IllegalStateException("Request id " + requestId + " is already in use"));
+				return;
+			}
+			if (!registry.bindRequest(requestId, session.getId(), getLimit("MAX_WEBSOCKET_REQUESTS_PER_SESSION",
+			    "expertsystem.maxWebSocketRequestsPerSession", ConfigurationUtils.MAX_WEBSOCKET_REQUESTS_PER_SESSION))) {
+				sendErrorDirect(session, new IllegalStateException("Too many requests in flight on this connection"));
+				return;
+			}
 			
-			requestToSession.put(requestId, session.getId());
+			RateLimiter rateLimiter = rateLimiter();
+			try {
+				rateLimiter.acquire(userId);
+			}
+			catch (RateLimitExceededException exception) {
+				sendRateLimited(requestId, exception);
+				return;
+			}
+			trace.mark(RequestTrace.ADMITTED);
 			
-			String model = json.has("model") ? json.get("model").asText() : "meditron:7b";
+			String model = json.has("model") ? json.get("model").asText() : null;
 			List<MessageDto> messages = new ArrayList<>();
 			if (json.has("messages") && json.get("messages").isArray()) {
 				for (JsonNode msgNode : json.get("messages")) {
@@ -149,31 +251,142 @@ public class ExpertsystemSocket {
 				}
 			}
 			
+			options.put(PromptRequest.USER_OPTION, userId);
+			// clinicians on the socket are interactive unless they ask for less
+			options.put(Priority.OPTION, Priority.parse(options.get(Priority.OPTION), Priority.INTERACTIVE).name());
+			
 			PromptRequest promptRequest = new PromptRequest();
 			promptRequest.setModel(model);
 			promptRequest.setMessages(messages);
 			promptRequest.setOptions(options);
+			promptRequest.setTrace(trace);
+			promptRequest.setPatientAccess(
+			    Boolean.TRUE.equals(session.getUserProperties().get(CompressionConfigurator.PATIENT_ACCESS_PROPERTY)));
+			TokenStreamBuffer buffer = streams.open(requestId, userId,
+			    getLimit("STREAM_BUFFER_TOKENS", "expertsystem.streamBufferTokens", ConfigurationUtils.STREAM_BUFFER_TOKENS),
+			    getLimit("MAX_RESUMABLE_STREAMS", "expertsystem.maxResumableStreams", ConfigurationUtils.MAX_RESUMABLE_STREAMS),
+			    TimeUnit.SECONDS.toMillis(getLimit("STREAM_RESUME_GRACE_SECONDS", "expertsystem.streamResumeGraceSeconds",
+			        ConfigurationUtils.STREAM_RESUME_GRACE_SECONDS)));
 			expertSystemService()
-					.chatStream(promptRequest, token -> sendToken(requestId, token),
-			    finalText -> sendDone(requestId, finalText), error -> sendError(requestId, error));
+					.chatStream(promptRequest, token -> {
+						rateLimiter.recordTokens(userId, 1);
+						long sendStart = System.nanoTime();
+						onStreamToken(requestId, buffer, token);
+						trace.addSendNanos(System.nanoTime() - sendStart);
+					}, reasoning -> sendReasoning(requestId, reasoning),
+			    finalText -> {
+				    onStreamDone(requestId, buffer, finalText);
+				    trace.mark(RequestTrace.RESPONSE_SENT);
+			    }, error -> {
+				    onStreamError(requestId, buffer, error);
+				    trace.mark(RequestTrace.RESPONSE_SENT);
+			    });
 		}
 		catch (Exception exception) {
 			sendErrorDirect(session, exception);
 		}
 	}
 	
+	/**
+	 * Reattaches a reconnected client to a response: replays the buffered tokens after its last
+	 * offset, then either sends the completion or lets the live tail follow. Runs under the buffer's
+	 * lock, so no token is lost or sent twice between the replay and the live tail.
+	 * 
+	 * @param session the new session of the client
+	 * @param requestId Request identifier
+	 * @param lastOffset the offset of the last token the client received, -1 for none
+	 */
+	private void resume(Session session, String requestId, long lastOffset) {
+		TokenStreamBuffer buffer = streams.get(requestId);
+		if (buffer == null || !buffer.getUserId().equals(registry.getUserId(session.getId()))) {
+			Map<String, Object> errors = new HashMap<>();
+			errors.put("type", "error");
+			errors.put("requestId", requestId);
+			errors.put("data", "Response expired; please send the prompt again");
+			send(session, errors);
+			return;
+		}
+		synchronized (buffer) {
+			if (!registry.moveRequest(requestId, session.getId(), getLimit("MAX_WEBSOCKET_REQUESTS_PER_SESSION",
+			    "expertsystem.maxWebSocketRequestsPerSession", ConfigurationUtils.MAX_WEBSOCKET_REQUESTS_PER_SESSION))) {
+				sendErrorDirect(session, new IllegalStateException("Too many requests in flight on this connection"));
+				return;
+			}
+			long fromOffset = Math.max(lastOffset + 1, buffer.getFirstOffset());
+			Map<String, Object> replay = new HashMap<>();
+			replay.put("type", "replay");
+			replay.put("requestId", requestId);
+			replay.put("offset", fromOffset);
+			replay.put("data", buffer.getTokensAfter(lastOffset));
+			// tokens between the client's last offset and the oldest buffered token were overwritten
+			replay.put("truncated", fromOffset > lastOffset + 1);
+			send(session, replay);
+			log.info(ExpertsystemConstants.GREEN + "WS RESUMED request:{} session:{} from offset {}"
+			        + ExpertsystemConstants.RESET, requestId, session.getId(), fromOffset);
+			if (buffer.isDone()) {
+				if (buffer.getError() != null) {
+					sendError(requestId, new IllegalStateException(buffer.getError()));
+				} else {
+					sendDone(requestId, buffer.getFinalText());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Buffers a token, if the response is resumable, and sends it to the client if it is connected.
+	 */
+	private void onStreamToken(String requestId, TokenStreamBuffer buffer, String token) {
+		if (buffer == null) {
+			sendToken(requestId, token, null);
+			return;
+		}
+		synchronized (buffer) {
+			long offset = buffer.append(token);
+			if (resolveSession(requestId) != null) {
+				sendToken(requestId, token, offset);
+			}
+		}
+	}
+	
+	private void onStreamDone(String requestId, TokenStreamBuffer buffer, String finalText) {
+		if (buffer == null) {
+			sendDone(requestId, finalText);
+			return;
+		}
+		synchronized (buffer) {
+			buffer.complete(finalText);
+			sendDone(requestId, finalText);
+		}
+	}
+	
+	private void onStreamError(String requestId, TokenStreamBuffer buffer, Throwable error) {
+		if (buffer == null) {
+			sendError(requestId, error);
+			return;
+		}
+		synchronized (buffer) {
+			buffer.fail(error != null ? error.getMessage() : "Unknown error!");
+			sendError(requestId, error);
+		}
+	}
+	
 	/**
 	 * Sends token response to client.
 	 * 
 	 * @param requestId Request identifier
 	 * @param token Token data
+	 * @param offset Offset of the token in the response, null if the response is not resumable
 	 */
-	private void sendToken(String requestId, String token) {
+	private void sendToken(String requestId, String token, Long offset) {
 		Session session = resolveSession(requestId);
 		Map<String, Object> tokens = new HashMap<>();
 		tokens.put("type", "token");
 		tokens.put("requestId", requestId);
 		tokens.put("data", token);
+		if (offset != null) {
+			tokens.put("offset", offset);
+		}
 		if (session == null || !session.isOpen()) {
 			log.warn(ExpertsystemConstants.GOLD + "Cannot send token; session not found or closed for requestId={}" + ExpertsystemConstants.RESET, requestId);
 			return;
@@ -181,6 +394,24 @@ public class ExpertsystemSocket {
 		send(session, tokens);
 	}
 	
+	/**
+	 * Sends reasoning of the model to the client, if it is connected.
+	 * 
+	 * @param requestId Request identifier
+	 * @param reasoning Reasoning chunk or summary
+	 */
+	private void sendReasoning(String requestId, String reasoning) {
+		Session session = resolveSession(requestId);
+		if (session == null || !session.isOpen()) {
+			return;
+		}
+		Map<String, Object> frame = new HashMap<>();
+		frame.put("type", "reasoning");
+		frame.put("requestId", requestId);
+		frame.put("data", reasoning);
+		send(session, frame);
+	}
+	
 	/**
 	 * Sends completion response to client.
 	 * 
@@ -198,7 +429,7 @@ public class ExpertsystemSocket {
 			return;
 		}
 		send(session, operations);
-		requestToSession.remove(requestId);
+		registry.completeRequest(requestId);
 	}
 	
 	/**
@@ -218,21 +449,36 @@ public class ExpertsystemSocket {
 			return;
 		}
 		send(session, errors);
-		requestToSession.remove(requestId);
+		registry.completeRequest(requestId);
 	}
 	
 	/**
-	 * Cleans up session resources. Removes session from tracking maps. WS Session lifecycle is
-	 * container-managed (do NOT close manually)
+	 * Sends a rate limit rejection to the client, with the seconds after which it may retry.
+	 * 
+	 * @param requestId Request identifier
+	 * @param exception The rate limit that was exceeded
+	 */
+	private void sendRateLimited(String requestId, RateLimitExceededException exception) {
+		Session session = resolveSession(requestId);
+		Map<String, Object> errors = new HashMap<>();
+		errors.put("type", "error");
+		errors.put("requestId", requestId);
+		errors.put("data", exception.getMessage());
+		errors.put("retryAfter", exception.getRetryAfterSeconds());
+		send(session, errors);
+		registry.completeRequest(requestId);
+	}
+	
+	/**
+	 * Cleans up session resources. Removes the session, its requests and, if it was the last session
+	 * of its user, the user from the registry. WS Session lifecycle is container-managed (do NOT
+	 * close manually)
 	 * 
 	 * @param sessionId Session identifier
 	 * @param reason Close reason
 	 */
 	private void cleanUp(String sessionId, String reason) {
-		if (sessionId == null) return;
-		sessions.remove(sessionId);
-		requestToSession.entrySet().removeIf(entry -> entry.getValue().equals(sessionId));
-		userToSessions.values().forEach(list -> list.remove(sessionId));
+		if (sessionId == null || !registry.unregister(sessionId)) return;
 		log.info(ExpertsystemConstants.GOLD + "WS CLOSED: {} Reason: {}" + ExpertsystemConstants.RESET, sessionId, reason);
 	}
 	
@@ -243,14 +489,18 @@ public class ExpertsystemSocket {
 	 * @return Session or null if not found
 	 */
 	private Session resolveSession(String requestId) {
-		if (requestId == null) return null;
-		String sessionId = requestToSession.get(requestId);
-		return sessionId != null ? sessions.get(sessionId) : null;
+		return registry.resolve(requestId);
 	}
-
+	
 	/**
 	 * Sends payload to WebSocket session.
 	 * WS Session lifecycle is container-managed (do NOT closemanually)
+	 * <p>
+	 * Tokens, reasoning and completions are sent from different threads, and the container rejects
+	 * a write while an earlier one is pending. The frames of a session are therefore encoded and
+	 * written one at a time under its send lock, which also keeps a start frame ahead of the frames
+	 * of its stream.
+	 * </p>
 	 * 
 	 * @param session WebSocket session
 	 * @param payload JSON payload to send
@@ -260,14 +510,24 @@ public class ExpertsystemSocket {
 			log.warn(ExpertsystemConstants.GOLD + "Cannot send payload; session closed or null!" + ExpertsystemConstants.RESET);
 			return;
 		}
+		Object lock = session.getUserProperties().getOrDefault(SEND_LOCK, session);
 		try {
-			session.getAsyncRemote().sendText(objectMapper.writeValueAsString(payload));
+			synchronized (lock) {
+				CompactFrameEncoder encoder = (CompactFrameEncoder) session.getUserProperties().get(FRAME_ENCODER);
+				if (encoder == null) {
+					session.getBasicRemote().sendText(objectMapper.writeValueAsString(payload));
+					return;
+				}
+				for (byte[] frame : encoder.encode(payload)) {
+					session.getBasicRemote().sendBinary(ByteBuffer.wrap(frame));
+				}
+			}
 		}
 		catch (Exception exception) {
 			log.error(ExpertsystemConstants.RED +"WS send failed for session {}: {}" + ExpertsystemConstants.RESET, session.getId(), exception.getMessage());
 		}
 	}
-
+	
 	/**
 	 * Sends an error message directly to the session if it's open.
 	 * @param session The WebSocket session to send the error to
@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link TokenStreamBuffer}s of recent responses, by request id.
+ * <p>
+ * Buffers outlive the session that started them, so that a client whose connection dropped can
+ * reconnect and resume. A buffer expires once nothing was appended to or replayed from it for the
+ * grace period; expired buffers are swept lazily, at most once per second, when new buffers are
+ * opened. The number of buffers is bounded; responses beyond the bound are streamed without one
+ * and cannot be resumed.
+ * </p>
+ */
+public class ResumableStreams {
+	
+	private static final long SWEEP_INTERVAL_MILLIS = 1000;
+	
+	private final Map<String, TokenStreamBuffer> buffers = new ConcurrentHashMap<>();
+	
+	private final AtomicLong lastSweep = new AtomicLong();
+	
+	/**
+	 * Opens the buffer of a new response.
+	 * 
+	 * @param requestId the request id
+	 * @param userId the user the response belongs to
+	 * @param capacity the maximum number of buffered tokens
+	 * @param maxStreams the maximum number of buffers
+	 * @param graceMillis how long idle buffers are kept
+	 * @return the buffer, or null if there are too many buffers or the request id is buffered for
+	 *         another user, whose buffer is left alone
+	 */
+	public TokenStreamBuffer open(String requestId, String userId, int capacity, int maxStreams, long graceMillis) {
+		sweep(graceMillis);
+		if (buffers.size() >= maxStreams) {
+			return null;
+		}
+		TokenStreamBuffer buffer = new TokenStreamBuffer(userId, capacity);
+		TokenStreamBuffer opened = buffers.compute(requestId,
+		    (key, existing) -> existing != null && !existing.getUserId().equals(userId) ? existing : buffer);
+		return opened == buffer ? buffer : null;
+	}
+	
+	/**
+	 * @param requestId the request id
+	 * @return the buffer of the response, or null if it expired or was never buffered
+	 */
+	public TokenStreamBuffer get(String requestId) {
+		return buffers.get(requestId);
+	}
+	
+	/**
+	 * @return the number of buffered responses
+	 */
+	public int size() {
+		return buffers.size();
+	}
+	
+	void sweep(long graceMillis) {
+		long now = System.currentTimeMillis();
+		long last = lastSweep.get();
+		if (now - last < SWEEP_INTERVAL_MILLIS || !lastSweep.compareAndSet(last, now)) {
+			return;
+		}
+		buffers.values().removeIf(buffer -> now - buffer.getLastActivity() > graceMillis);
+	}
+}
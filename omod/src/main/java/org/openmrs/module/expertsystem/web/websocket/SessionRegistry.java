@@ -0,0 +1,209 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import javax.websocket.Session;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks open WebSocket sessions, their users and their in-flight requests.
+ * <p>
+ * Every index points both ways: a session entry holds its user and its request ids, so closing a
+ * session only touches its own requests and its user's entry instead of scanning every request and
+ * every user. Users without sessions are removed. The registry is bounded: at most
+ * {@code maxSessions} sessions and {@code maxRequestsPerSession} in-flight requests per session are
+ * accepted, and its size and rejections are reported by {@link #getStatistics()}.
+ * </p>
+ */
+public class SessionRegistry {
+	
+	private final Map<String, SessionEntry> sessions = new ConcurrentHashMap<>();
+	
+	private final Map<String, SessionEntry> requests = new ConcurrentHashMap<>();
+	
+	private final Map<String, Set<String>> users = new ConcurrentHashMap<>();
+	
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	
+	private final AtomicLong rejectedSessions = new AtomicLong();
+	
+	private final AtomicLong rejectedRequests = new AtomicLong();
+	
+	/**
+	 * Registers an opened session.
+	 * 
+	 * @param session the session
+	 * @param userId the user of the session
+	 * @param maxSessions the maximum number of open sessions
+	 * @return false if the registry is full
+	 */
+	public boolean register(Session session, String userId, int maxSessions) {
+		if (sessionCount.incrementAndGet() > maxSessions) {
+			sessionCount.decrementAndGet();
+			rejectedSessions.incrementAndGet();
+			return false;
+		}
+		sessions.put(session.getId(), new SessionEntry(session, userId));
+		users.compute(userId, (key, sessionIds) -> {
+			Set<String> ids = sessionIds != null ? sessionIds : ConcurrentHashMap.newKeySet();
+			ids.add(session.getId());
+			return ids;
+		});
+		return true;
+	}
+	
+	/**
+	 * Removes a session together with its requests, and its user if it was the user's last session.
+	 * 
+	 * @param sessionId the session id
+	 * @return false if the session was not registered
+	 */
+	public boolean unregister(String sessionId) {
+		SessionEntry entry = sessions.remove(sessionId);
+		if (entry == null) {
+			return false;
+		}
+		sessionCount.decrementAndGet();
+		for (String requestId : entry.requestIds) {
+			requests.remove(requestId, entry);
+		}
+		users.computeIfPresent(entry.userId, (key, sessionIds) -> {
+			sessionIds.remove(sessionId);
+			return sessionIds.isEmpty() ? null : sessionIds;
+		});
+		return true;
+	}
+	
+	/**
+	 * Binds a new request to the session it streams to. A request id that is bound to another
+	 * session is refused, so that one client cannot take over the response of another.
+	 * 
+	 * @param requestId the request id
+	 * @param sessionId the session id
+	 * @param maxRequestsPerSession the maximum number of in-flight requests of the session
+	 * @return false if the session is not registered, has too many in-flight requests, or the request
+	 *         id is bound to another session
+	 */
+	public boolean bindRequest(String requestId, String sessionId, int maxRequestsPerSession) {
+		SessionEntry entry = sessions.get(sessionId);
+		if (entry == null || !hasCapacity(entry, requestId, maxRequestsPerSession)) {
+			return false;
+		}
+		SessionEntry bound = requests.putIfAbsent(requestId, entry);
+		if (bound != null && bound != entry) {
+			return false;
+		}
+		entry.requestIds.add(requestId);
+		return true;
+	}
+	
+	/**
+	 * Moves a request to the session of a reconnected client. The caller has checked that the
+	 * request belongs to the user of the session.
+	 * 
+	 * @param requestId the request id
+	 * @param sessionId the session id
+	 * @param maxRequestsPerSession the maximum number of in-flight requests of the session
+	 * @return false if the session is not registered or has too many in-flight requests
+	 */
+	public boolean moveRequest(String requestId, String sessionId, int maxRequestsPerSession) {
+		SessionEntry entry = sessions.get(sessionId);
+		if (entry == null || !hasCapacity(entry, requestId, maxRequestsPerSession)) {
+			return false;
+		}
+		entry.requestIds.add(requestId);
+		SessionEntry previous = requests.put(requestId, entry);
+		if (previous != null && previous != entry) {
+			previous.requestIds.remove(requestId);
+		}
+		return true;
+	}
+	
+	private boolean hasCapacity(SessionEntry entry, String requestId, int maxRequestsPerSession) {
+		if (!entry.requestIds.contains(requestId) && entry.requestIds.size() >= maxRequestsPerSession) {
+			rejectedRequests.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes a finished request.
+	 * 
+	 * @param requestId the request id
+	 */
+	public void completeRequest(String requestId) {
+		SessionEntry entry = requests.remove(requestId);
+		if (entry != null) {
+			entry.requestIds.remove(requestId);
+		}
+	}
+	
+	/**
+	 * @param requestId the request id
+	 * @return the session the request streams to, or null
+	 */
+	public Session resolve(String requestId) {
+		SessionEntry entry = requestId != null ? requests.get(requestId) : null;
+		return entry != null ? entry.session : null;
+	}
+	
+	/**
+	 * @param sessionId the session id
+	 * @return the user of the session, or null if it is not registered
+	 */
+	public String getUserId(String sessionId) {
+		SessionEntry entry = sessions.get(sessionId);
+		return entry != null ? entry.userId : null;
+	}
+	
+	/**
+	 * @param userId the user
+	 * @return the ids of the user's open sessions
+	 */
+	public Set<String> getSessionIds(String userId) {
+		Set<String> sessionIds = users.get(userId);
+		return sessionIds != null ? Collections.unmodifiableSet(sessionIds) : Collections.emptySet();
+	}
+	
+	/**
+	 * @return the number of sessions, users and in-flight requests, and the rejections so far
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<>();
+		statistics.put("sessions", sessions.size());
+		statistics.put("users", users.size());
+		statistics.put("requests", requests.size());
+		statistics.put("rejectedSessions", rejectedSessions.get());
+		statistics.put("rejectedRequests", rejectedRequests.get());
+		return statistics;
+	}
+	
+	private static final class SessionEntry {
+		
+		final Session session;
+		
+		final String userId;
+		
+		final Set<String> requestIds = ConcurrentHashMap.newKeySet();
+		
+		SessionEntry(Session session, String userId) {
+			this.session = session;
+			this.userId = userId;
+		}
+	}
+}
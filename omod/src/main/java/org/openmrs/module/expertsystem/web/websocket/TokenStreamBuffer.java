@@ -0,0 +1,119 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ring buffer of the most recent tokens of one streamed response.
+ * <p>
+ * Tokens are numbered from 0 in the order they were generated. The buffer keeps the last
+ * {@code capacity} of them, so a client that reconnects can ask for the tokens after the last
+ * offset it received. Once the response is complete the final text, or the error, is kept as well.
+ * Callers that must not interleave with appends (replay followed by attaching to the live tail)
+ * synchronize on the buffer.
+ * </p>
+ */
+public class TokenStreamBuffer {
+	
+	private final String userId;
+	
+	private final String[] ring;
+	
+	private long nextOffset;
+	
+	private boolean done;
+	
+	private String finalText;
+	
+	private String error;
+	
+	private volatile long lastActivity = System.currentTimeMillis();
+	
+	public TokenStreamBuffer(String userId, int capacity) {
+		this.userId = userId;
+		this.ring = new String[capacity];
+	}
+	
+	/**
+	 * @param token the next token
+	 * @return the offset of the token
+	 */
+	public synchronized long append(String token) {
+		long offset = nextOffset++;
+		ring[(int) (offset % ring.length)] = token;
+		lastActivity = System.currentTimeMillis();
+		return offset;
+	}
+	
+	/**
+	 * @param text the complete response
+	 */
+	public synchronized void complete(String text) {
+		done = true;
+		finalText = text;
+		lastActivity = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @param message the error that ended the response
+	 */
+	public synchronized void fail(String message) {
+		done = true;
+		error = message;
+		lastActivity = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @return the offset of the oldest token still buffered
+	 */
+	public synchronized long getFirstOffset() {
+		return Math.max(0, nextOffset - ring.length);
+	}
+	
+	/**
+	 * Returns the buffered tokens after an offset. If tokens right after the offset were already
+	 * overwritten, the result starts at {@link #getFirstOffset()}.
+	 * 
+	 * @param lastOffset the offset of the last token the client received, -1 for none
+	 * @return the tokens after the offset, oldest first
+	 */
+	public synchronized List<String> getTokensAfter(long lastOffset) {
+		long from = Math.max(lastOffset + 1, getFirstOffset());
+		List<String> tokens = new ArrayList<>((int) Math.max(0, nextOffset - from));
+		for (long offset = from; offset < nextOffset; offset++) {
+			tokens.add(ring[(int) (offset % ring.length)]);
+		}
+		lastActivity = System.currentTimeMillis();
+		return tokens;
+	}
+	
+	public String getUserId() {
+		return userId;
+	}
+	
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	public synchronized String getFinalText() {
+		return finalText;
+	}
+	
+	public synchronized String getError() {
+		return error;
+	}
+	
+	long getLastActivity() {
+		return lastActivity;
+	}
+}
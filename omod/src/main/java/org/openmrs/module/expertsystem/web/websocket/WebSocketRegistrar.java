@@ -56,8 +56,9 @@ public class WebSocketRegistrar implements ApplicationListener<ContextRefreshedE
 				        + ExpertsystemConstants.RESET);
 				return;
 			}
-			serverContainer.addEndpoint(ServerEndpointConfig.Builder.create(ExpertsystemSocket.class,
-			    "/ws/v1/expertsystem/websocket/tokens").build());
+			serverContainer.addEndpoint(ServerEndpointConfig.Builder
+			        .create(ExpertsystemSocket.class, "/ws/v1/expertsystem/websocket/tokens")
+			        .configurator(new CompressionConfigurator()).build());
 			log.info(ExpertsystemConstants.GREEN + "WebSocket registered at /ws/v1/expertsystem/websocket/tokens"
 			        + ExpertsystemConstants.RESET);
 		}
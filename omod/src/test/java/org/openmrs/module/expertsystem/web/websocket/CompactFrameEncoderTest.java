@@ -0,0 +1,136 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import javax.websocket.Extension;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies the compact binary frames and the permessage-deflate
+ * negotiation.
+ */
+public class CompactFrameEncoderTest {
+	
+	@Test
+	public void write_shouldEncodeRfc8949Examples() {
+		assertThat(CborWriter.write(0)).containsExactly(0x00);
+		assertThat(CborWriter.write(24)).containsExactly(0x18, 0x18);
+		assertThat(CborWriter.write(1000)).containsExactly(0x19, 0x03, 0xe8);
+		assertThat(CborWriter.write(-1)).containsExactly(0x20);
+		assertThat(CborWriter.write("a")).containsExactly(0x61, 0x61);
+		assertThat(CborWriter.write(Arrays.asList(1, true, null))).containsExactly(0x83, 0x01, 0xf5, 0xf6);
+		assertThat(CborWriter.write(1.1)).containsExactly(0xfb, 0x3f, 0xf1, 0x99, 0x99, 0x99, 0x99, 0x99, 0x9a);
+		assertThat(CborWriter.write(Collections.singletonMap("a", 1))).containsExactly(0xa1, 0x61, 0x61, 0x01);
+	}
+	
+	@Test
+	public void encode_shouldBindStreamIdOnceAndShrinkTokenFrames() throws Exception {
+		CompactFrameEncoder encoder = new CompactFrameEncoder();
+		Map<String, Object> token = frame("token", "3f2b6c1e-9a4d-4c1b-8f0e-6d2a7b9c5e11", " the");
+		token.put("offset", 41L);
+		
+		List<byte[]> first = encoder.encode(token);
+		List<byte[]> second = encoder.encode(token);
+		
+		assertThat(first).hasSize(2);
+		assertThat(first.get(0)).startsWith(0xa3, 0x61, 't', 0x04, 0x61, 's', 0x00);
+		assertThat(second).hasSize(1);
+		// {t: 0, s: 0, d: " the", o: 41}
+		assertThat(second.get(0)).containsExactly(0xa4, 0x61, 't', 0x00, 0x61, 's', 0x00, 0x61, 'd', 0x64, ' ', 't', 'h',
+		    'e', 0x61, 'o', 0x18, 41);
+		assertThat(second.get(0).length * 4).isLessThan(new ObjectMapper().writeValueAsBytes(token).length);
+	}
+	
+	@Test
+	public void encode_shouldReleaseStreamIdAfterDone() {
+		CompactFrameEncoder encoder = new CompactFrameEncoder();
+		encoder.encode(frame("token", "r1", "a"));
+		encoder.encode(frame("done", "r1", "a"));
+		
+		assertThat(encoder.encode(frame("token", "r1", "b"))).hasSize(2);
+	}
+	
+	@Test
+	public void encode_shouldBindStreamIdOnceWhenFramesOfRequestRace() throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			for (int attempt = 0; attempt < 100; attempt++) {
+				CompactFrameEncoder encoder = new CompactFrameEncoder();
+				CountDownLatch ready = new CountDownLatch(1);
+				List<CompletableFuture<List<byte[]>>> encoded = new ArrayList<>();
+				for (int i = 0; i < 8; i++) {
+					encoded.add(CompletableFuture.supplyAsync(() -> {
+						try {
+							ready.await();
+						}
+						catch (InterruptedException interrupted) {
+							Thread.currentThread().interrupt();
+						}
+						return encoder.encode(frame("token", "r1", "a"));
+					}, threads));
+				}
+				ready.countDown();
+				int frames = 0;
+				for (CompletableFuture<List<byte[]>> future : encoded) {
+					frames += future.get(5, TimeUnit.SECONDS).size();
+				}
+				
+				assertThat(frames).isEqualTo(9);
+			}
+		}
+		finally {
+			threads.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void negotiate_shouldOnlyNegotiateDeflateWhenEnabledAndInstalled() {
+		Extension deflate = extension(CompressionConfigurator.PERMESSAGE_DEFLATE);
+		Extension other = extension("x-custom");
+		List<Extension> requested = Arrays.asList(deflate, other);
+		
+		assertThat(CompressionConfigurator.negotiate(Collections.singletonList(deflate), requested, true))
+		        .containsExactly(deflate);
+		assertThat(CompressionConfigurator.negotiate(Collections.singletonList(deflate), requested, false)).isEmpty();
+		assertThat(CompressionConfigurator.negotiate(Collections.<Extension> emptyList(), requested, true)).isEmpty();
+	}
+	
+	private static Map<String, Object> frame(String type, String requestId, String data) {
+		Map<String, Object> frame = new LinkedHashMap<>();
+		frame.put("type", type);
+		frame.put("requestId", requestId);
+		frame.put("data", data);
+		return frame;
+	}
+	
+	private static Extension extension(String name) {
+		Extension extension = mock(Extension.class);
+		when(extension.getName()).thenReturn(name);
+		return extension;
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import org.junit.Test;
+import org.openmrs.User;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.util.PrivilegeConstants;
+import org.openmrs.web.WebConstants;
+
+import javax.servlet.http.HttpSession;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies that the CompressionConfigurator takes the user of a
+ * connection, and whether it may read patients, from its authenticated HTTP session only.
+ */
+public class CompressionConfiguratorTest {
+	
+	@Test
+	public void authenticate_shouldTakeUserAndPatientAccessFromHttpSession() {
+		Map<String, Object> properties = new HashMap<>();
+		
+		CompressionConfigurator.authenticate(httpSession(userContext("clerk-uuid", false)), properties);
+		assertThat(properties).containsEntry(CompressionConfigurator.USER_PROPERTY, "clerk-uuid")
+		        .containsEntry(CompressionConfigurator.PATIENT_ACCESS_PROPERTY, false);
+		
+		CompressionConfigurator.authenticate(httpSession(userContext("clinician-uuid", true)), properties);
+		assertThat(properties).containsEntry(CompressionConfigurator.USER_PROPERTY, "clinician-uuid")
+		        .containsEntry(CompressionConfigurator.PATIENT_ACCESS_PROPERTY, true);
+	}
+	
+	@Test
+	public void authenticate_shouldRemoveUserWithoutAuthenticatedUser() {
+		Map<String, Object> properties = new HashMap<>();
+		CompressionConfigurator.authenticate(httpSession(userContext("user-uuid", true)), properties);
+		
+		CompressionConfigurator.authenticate(null, properties);
+		assertThat(properties).isEmpty();
+		
+		assertThat(CompressionConfigurator.getAuthenticatedUser(httpSession(null))).isNull();
+		assertThat(CompressionConfigurator.getAuthenticatedUser(httpSession(mock(UserContext.class)))).isNull();
+	}
+	
+	private static UserContext userContext(String uuid, boolean patientAccess) {
+		User user = mock(User.class);
+		when(user.getUuid()).thenReturn(uuid);
+		when(user.hasPrivilege(PrivilegeConstants.GET_PATIENTS)).thenReturn(patientAccess);
+		UserContext userContext = mock(UserContext.class);
+		when(userContext.getAuthenticatedUser()).thenReturn(user);
+		return userContext;
+	}
+	
+	private static HttpSession httpSession(UserContext userContext) {
+		HttpSession httpSession = mock(HttpSession.class);
+		when(httpSession.getAttribute(WebConstants.OPENMRS_USER_CONTEXT_HTTPSESSION_ATTR)).thenReturn(userContext);
+		return httpSession;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import org.junit.Test;
+
+import javax.websocket.Session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * This is a unit test, which verifies the indexes and bounds of the SessionRegistry.
+ */
+public class SessionRegistryTest {
+	
+	private final SessionRegistry registry = new SessionRegistry();
+	
+	@Test
+	public void unregister_shouldRemoveRequestsAndEmptyUsers() {
+		Session first = session("s1");
+		Session second = session("s2");
+		registry.register(first, "alice", 10);
+		registry.register(second, "alice", 10);
+		registry.bindRequest("r1", "s1", 10);
+		registry.bindRequest("r2", "s2", 10);
+		
+		assertThat(registry.resolve("r1")).isSameAs(first);
+		assertThat(registry.getSessionIds("alice")).containsExactlyInAnyOrder("s1", "s2");
+		
+		registry.unregister("s1");
+		assertThat(registry.resolve("r1")).isNull();
+		assertThat(registry.resolve("r2")).isSameAs(second);
+		assertThat(registry.getSessionIds("alice")).containsExactly("s2");
+		
+		registry.unregister("s2");
+		assertThat(registry.getStatistics()).containsEntry("sessions", 0).containsEntry("users", 0)
+		        .containsEntry("requests", 0);
+	}
+	
+	@Test
+	public void register_shouldRejectSessionsAndRequestsBeyondLimits() {
+		assertThat(registry.register(session("s1"), "alice", 1)).isTrue();
+		assertThat(registry.register(session("s2"), "bob", 1)).isFalse();
+		
+		assertThat(registry.bindRequest("r1", "s1", 1)).isTrue();
+		assertThat(registry.bindRequest("r2", "s1", 1)).isFalse();
+		registry.completeRequest("r1");
+		assertThat(registry.bindRequest("r2", "s1", 1)).isTrue();
+		
+		assertThat(registry.getStatistics()).containsEntry("rejectedSessions", 1L).containsEntry("rejectedRequests", 1L);
+	}
+	
+	@Test
+	public void bindRequest_shouldRefuseRequestBoundToAnotherSession() {
+		Session first = session("s1");
+		registry.register(first, "alice", 10);
+		registry.register(session("s2"), "mallory", 10);
+		registry.bindRequest("r1", "s1", 10);
+		
+		assertThat(registry.bindRequest("r1", "s2", 10)).isFalse();
+		assertThat(registry.bindRequest("r1", "s1", 10)).isTrue();
+		assertThat(registry.resolve("r1")).isSameAs(first);
+	}
+	
+	@Test
+	public void moveRequest_shouldMoveRequestToNewSession() {
+		registry.register(session("s1"), "alice", 10);
+		Session second = session("s2");
+		registry.register(second, "alice", 10);
+		registry.bindRequest("r1", "s1", 10);
+		
+		assertThat(registry.moveRequest("r1", "s2", 10)).isTrue();
+		registry.unregister("s1");
+		
+		assertThat(registry.resolve("r1")).isSameAs(second);
+	}
+	
+	private static Session session(String id) {
+		Session session = mock(Session.class);
+		when(session.getId()).thenReturn(id);
+		return session;
+	}
+}
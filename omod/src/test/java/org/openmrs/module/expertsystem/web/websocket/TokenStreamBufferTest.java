@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+
+package org.openmrs.module.expertsystem.web.websocket;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * This is a unit test, which verifies replay from the TokenStreamBuffer and expiry of
+ * ResumableStreams.
+ */
+public class TokenStreamBufferTest {
+	
+	@Test
+	public void getTokensAfter_shouldReplayMissingTokens() {
+		TokenStreamBuffer buffer = new TokenStreamBuffer("alice", 8);
+		for (int i = 0; i < 5; i++) {
+			assertThat(buffer.append("t" + i)).isEqualTo(i);
+		}
+		
+		assertThat(buffer.getTokensAfter(-1)).containsExactly("t0", "t1", "t2", "t3", "t4");
+		assertThat(buffer.getTokensAfter(2)).containsExactly("t3", "t4");
+		assertThat(buffer.getTokensAfter(4)).isEmpty();
+	}
+	
+	@Test
+	public void getTokensAfter_shouldStartAtOldestTokenOnceOverwritten() {
+		TokenStreamBuffer buffer = new TokenStreamBuffer("alice", 4);
+		for (int i = 0; i < 10; i++) {
+			buffer.append("t" + i);
+		}
+		
+		assertThat(buffer.getFirstOffset()).isEqualTo(6);
+		assertThat(buffer.getTokensAfter(1)).containsExactly("t6", "t7", "t8", "t9");
+		assertThat(buffer.getTokensAfter(7)).containsExactly("t8", "t9");
+	}
+	
+	@Test
+	public void open_shouldBoundAndExpireBuffers() throws Exception {
+		ResumableStreams streams = new ResumableStreams();
+		
+		assertThat(streams.open("r1", "alice", 4, 1, 10)).isNotNull();
+		assertThat(streams.open("r2", "alice", 4, 1, 10)).isNull();
+		
+		Thread.sleep(1100);
+		assertThat(streams.open("r3", "alice", 4, 1, 10)).isNotNull();
+		assertThat(streams.get("r1")).isNull();
+	}
+}